@@ -41,6 +41,8 @@ import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
@@ -75,6 +77,8 @@ public class CommandLine extends AbstractAnalyzer
         QUERY_DIRECTION_VALUE("\t a[ncestors] | d[escendants]"),
 
         QUERY_FUNCTION_EXPORT("export > <path_to_file_for_next_query>"),
+        QUERY_FUNCTION_STREAM("stream [limit] <function>"),
+        QUERY_CANCEL("cancel (while streaming)"),
         QUERY_LIST_CONSTRAINTS("list constraints"),
         QUERY_EXIT("exit");
 
@@ -166,11 +170,49 @@ public class CommandLine extends AbstractAnalyzer
 
     public class QueryConnection extends AbstractAnalyzer.QueryConnection
     {
+        // lines read from the client. Read by a separate thread so that a
+        // cancel can arrive while a result is being streamed.
+        private final BlockingQueue<String> commandQueue = new LinkedBlockingQueue<>();
+        // streaming of the current query result. null if the result is sent as one string.
+        private boolean streamResult = false;
+        private Integer streamLimit = null;
+
         QueryConnection(Socket socket)
         {
             super(socket);
         }
 
+        private void startReader(final BufferedReader reader)
+        {
+            Runnable readerRunnable = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        String line;
+                        while((line = reader.readLine()) != null)
+                        {
+                            commandQueue.put(line);
+                        }
+                    }
+                    catch(SocketException ex)
+                    {
+                        // connection closed
+                    }
+                    catch(Exception ex)
+                    {
+                        logger.log(Level.WARNING, "Error reading from the query client", ex);
+                    }
+                    commandQueue.offer(QueryCommands.QUERY_EXIT.value);
+                }
+            };
+            Thread readerThread = new Thread(readerRunnable, "queryReader-Thread");
+            readerThread.setDaemon(true);
+            readerThread.start();
+        }
+
         @Override
         public void run()
         {
@@ -180,16 +222,22 @@ public class CommandLine extends AbstractAnalyzer
                 InputStream inStream = querySocket.getInputStream();
                 ObjectOutputStream queryOutputStream = new ObjectOutputStream(outStream);
                 BufferedReader queryInputStream = new BufferedReader(new InputStreamReader(inStream));
+                startReader(queryInputStream);
 
                 while(!SHUTDOWN)
                 {
                     // Commands read from the input stream and executed.
-                    String line = queryInputStream.readLine();
+                    String line = commandQueue.take();
                     long start_time = System.currentTimeMillis();
                     if(line.equalsIgnoreCase(QueryCommands.QUERY_EXIT.value))
                     {
                         break;
                     }
+                    else if(line.trim().equalsIgnoreCase(ResultStream.CANCEL_COMMAND))
+                    {
+                        // arrived after the streamed result had ended
+                        continue;
+                    }
                     else if(line.toLowerCase().startsWith("set"))
                     {
                         // set storage for querying
@@ -225,8 +273,14 @@ public class CommandLine extends AbstractAnalyzer
                     else
                     {
                         line = replaceConstraintNames(line.trim());
+                        ResultStream resultStream = null;
                         try
                         {
+                            line = parseStream(line);
+                            if(streamResult)
+                            {
+                                resultStream = new ResultStream(queryOutputStream, commandQueue, streamLimit);
+                            }
                             boolean success = parseQuery(line);
                             if(!success)
                             {
@@ -244,7 +298,32 @@ public class CommandLine extends AbstractAnalyzer
                             }
                             queryClass = (AbstractQuery) Class.forName(functionClassName).newInstance();
                             returnType = Class.forName(getReturnType(functionName));
-                            result = queryClass.execute(functionArguments);
+                            AbstractStorage storage = AbstractQuery.getCurrentStorage();
+                            String cacheKey = getCacheKey(functionName, functionArguments);
+                            result = (cacheKey == null) ? null : storage.getCachedResult(cacheKey);
+                            if(result != null)
+                            {
+                                logger.log(Level.INFO, "Result served from the query cache");
+                            }
+                            else
+                            {
+                                long writeEpoch = storage.getWriteEpoch();
+                                boolean listening = resultStream != null && !USE_TRANSFORMER;
+                                if(listening)
+                                {
+                                    // transformers need the whole graph, so then the result is streamed at the end
+                                    queryClass.setResultListener(resultStream);
+                                }
+                                result = queryClass.execute(functionArguments);
+                                // a streamed result is not kept and a result with remote parts is not final
+                                if(cacheKey != null && !listening && result instanceof Graph &&
+                                        !isRemoteResolutionRequired())
+                                {
+                                    Graph graph = (Graph) result;
+                                    storage.cacheResult(cacheKey, graph, writeEpoch,
+                                            1 + graph.vertexSet().size() + graph.edgeSet().size());
+                                }
+                            }
                             if(result != null && returnType.isAssignableFrom(result.getClass()))
                             {
                                 if(result instanceof Graph)
@@ -285,7 +364,7 @@ public class CommandLine extends AbstractAnalyzer
                                     }
                                 }
                                 // if result output is to be converted into dot file format
-                                if(EXPORT_RESULT)
+                                if(EXPORT_RESULT && resultStream == null)
                                 {
                                     Graph temp_result = new Graph();
                                     if(functionName.equalsIgnoreCase("GetEdge"))
@@ -306,9 +385,18 @@ public class CommandLine extends AbstractAnalyzer
                             {
                                 logger.log(Level.SEVERE, "Return type null or mismatch!");
                             }
+                            if(resultStream != null)
+                            {
+                                resultStream.putResult(result);
+                                resultStream.finish(false);
+                            }
                             long elapsed_time = System.currentTimeMillis() - start_time;
                             logger.log(Level.INFO, "Time taken for query: " + elapsed_time + " ms");
-                            if(result != null)
+                            if(resultStream != null)
+                            {
+                                logger.log(Level.INFO, "Streamed result " + resultStream.getStatus());
+                            }
+                            else if(result != null)
                             {
                                 queryOutputStream.writeObject(result.toString());
                             }
@@ -320,7 +408,14 @@ public class CommandLine extends AbstractAnalyzer
                         catch(Exception ex)
                         {
                             logger.log(Level.SEVERE, "Error executing query request!", ex);
-                            queryOutputStream.writeObject("Error");
+                            if(resultStream != null)
+                            {
+                                resultStream.finish(true);
+                            }
+                            else
+                            {
+                                queryOutputStream.writeObject("Error");
+                            }
                         }
                     }
                 }
@@ -347,6 +442,30 @@ public class CommandLine extends AbstractAnalyzer
             }
         }
 
+        /**
+         * Removes the stream prefix from the query line.
+         * The format is: stream [limit] function(arguments)
+         *
+         * @return the query line without the prefix
+         */
+        private String parseStream(String query_line)
+        {
+            streamResult = false;
+            streamLimit = null;
+            String[] tokens = query_line.split("\\s+", 3);
+            if(!tokens[0].equalsIgnoreCase("stream") || tokens.length < 2)
+            {
+                return query_line;
+            }
+            streamResult = true;
+            if(tokens.length == 3 && tokens[1].matches("\\d+"))
+            {
+                streamLimit = Integer.parseInt(tokens[1]);
+                return tokens[2];
+            }
+            return query_line.substring(tokens[0].length()).trim();
+        }
+
         public boolean parseQuery(String query_line)
         {
             functionName = null;
@@ -391,6 +510,63 @@ public class CommandLine extends AbstractAnalyzer
         }
     }
 
+    /**
+     * @return the normalized text of a lineage or path query OR NULL if the
+     * result of the query is not cached
+     */
+    private static String getCacheKey(String functionName, String functionArguments)
+    {
+        // transformers may change the result graph in place
+        if(USE_TRANSFORMER ||
+                !(functionName.equals("GetLineage") || functionName.equals("GetPaths")))
+        {
+            return null;
+        }
+        return functionName + "(" + normalizeArguments(functionArguments) + ")";
+    }
+
+    /**
+     * Removes the whitespace that does not change the meaning of the arguments:
+     * around operators, commas and parentheses, and repeated whitespace.
+     * Quoted text is kept as it is.
+     */
+    static String normalizeArguments(String arguments)
+    {
+        StringBuilder normalized = new StringBuilder(arguments.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for(int i = 0; i < arguments.length(); i++)
+        {
+            char c = arguments.charAt(i);
+            if(quote != 0)
+            {
+                normalized.append(c);
+                if(c == quote)
+                {
+                    quote = 0;
+                }
+                continue;
+            }
+            if(Character.isWhitespace(c))
+            {
+                pendingSpace = normalized.length() > 0;
+                continue;
+            }
+            boolean separator = ",()=<>!".indexOf(c) >= 0;
+            if(pendingSpace && !separator && ",(=<>!".indexOf(normalized.charAt(normalized.length() - 1)) < 0)
+            {
+                normalized.append(' ');
+            }
+            pendingSpace = false;
+            if(c == '\'' || c == '"')
+            {
+                quote = c;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString();
+    }
+
     private static String createConstraint(String line)
     {
         String output;
@@ -0,0 +1,316 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.analyzer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+import spade.core.ResultListener;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes a query result to the client as it is found instead of as one string.
+ *
+ * Every vertex and edge is one line of JSON:
+ *     {"type":"vertex","hash":...,"annotations":{...}}
+ *     {"type":"edge","hash":...,"childVertexHash":...,"parentVertexHash":...,"annotations":{...}}
+ * Lines are sent in frames. A frame is one String written to the object
+ * stream and holds up to FRAME_ROWS lines. The first frame is sent as soon as
+ * there is a line and the rest at least every FRAME_MILLIS. The last frame is
+ * a single line with type "end", the number of vertices and edges sent and
+ * the status: complete, limit, cancelled or error.
+ *
+ * The client cancels by sending the line "cancel". The stream stops at the
+ * row limit, on cancellation, or when the client can no longer be written to.
+ */
+public class ResultStream implements ResultListener
+{
+    public static final String TYPE_VERTEX = "vertex";
+    public static final String TYPE_EDGE = "edge";
+    public static final String TYPE_VALUE = "value";
+    public static final String TYPE_END = "end";
+    public static final String STATUS_COMPLETE = "complete";
+    public static final String STATUS_LIMIT = "limit";
+    public static final String STATUS_CANCELLED = "cancelled";
+    public static final String STATUS_ERROR = "error";
+    public static final String CANCEL_COMMAND = "cancel";
+
+    private static final int FRAME_ROWS = 1000;
+    private static final long FRAME_MILLIS = 200;
+    private static final Logger logger = Logger.getLogger(ResultStream.class.getName());
+
+    private final ObjectOutputStream outputStream;
+    private final Queue<String> commands;
+    private final Integer limit;
+
+    // hashes of what was sent, so that repeated vertices and edges are sent once
+    private final Set<String> sentHashes = new HashSet<>();
+    private StringBuilder frame = new StringBuilder();
+    private int frameRows = 0;
+    private int framesSent = 0;
+    private long lastFrameTime = System.currentTimeMillis();
+    private long vertexCount = 0;
+    private long edgeCount = 0;
+    private String status = null;
+
+    /**
+     * @param outputStream stream of the client connection
+     * @param commands lines received from the client that have not been handled yet
+     * @param limit maximum number of vertices and edges to send or null for no limit
+     */
+    public ResultStream(ObjectOutputStream outputStream, Queue<String> commands, Integer limit)
+    {
+        this.outputStream = outputStream;
+        this.commands = commands;
+        this.limit = limit;
+    }
+
+    @Override
+    public void putVertex(AbstractVertex vertex)
+    {
+        if(isStopped() || !sentHashes.add(vertex.bigHashCode()))
+        {
+            return;
+        }
+        try
+        {
+            JSONObject line = new JSONObject();
+            line.put("type", TYPE_VERTEX);
+            line.put("hash", vertex.bigHashCode());
+            line.put("annotations", new JSONObject(vertex.getAnnotations()));
+            vertexCount++;
+            append(line.toString());
+        }
+        catch(JSONException ex)
+        {
+            logger.log(Level.WARNING, "Unable to convert vertex to JSON", ex);
+        }
+    }
+
+    @Override
+    public void putEdge(AbstractEdge edge)
+    {
+        if(isStopped() || !sentHashes.add(edge.bigHashCode()))
+        {
+            return;
+        }
+        try
+        {
+            JSONObject line = new JSONObject();
+            line.put("type", TYPE_EDGE);
+            line.put("hash", edge.bigHashCode());
+            line.put("childVertexHash", edge.getChildVertex().bigHashCode());
+            line.put("parentVertexHash", edge.getParentVertex().bigHashCode());
+            line.put("annotations", new JSONObject(edge.getAnnotations()));
+            edgeCount++;
+            append(line.toString());
+        }
+        catch(JSONException ex)
+        {
+            logger.log(Level.WARNING, "Unable to convert edge to JSON", ex);
+        }
+    }
+
+    /**
+     * Sends whatever part of a finished result has not been sent yet.
+     *
+     * @param result a Graph, a collection of vertices or edges, or any other value
+     */
+    public void putResult(Object result)
+    {
+        if(result instanceof Graph)
+        {
+            Graph graph = (Graph) result;
+            for(AbstractVertex vertex : graph.vertexSet())
+            {
+                if(isStopped())
+                {
+                    return;
+                }
+                putVertex(vertex);
+            }
+            for(AbstractEdge edge : graph.edgeSet())
+            {
+                if(isStopped())
+                {
+                    return;
+                }
+                putEdge(edge);
+            }
+        }
+        else if(result instanceof Collection)
+        {
+            for(Object element : (Collection<?>) result)
+            {
+                if(isStopped())
+                {
+                    return;
+                }
+                if(element instanceof AbstractVertex)
+                {
+                    putVertex((AbstractVertex) element);
+                }
+                else if(element instanceof AbstractEdge)
+                {
+                    putEdge((AbstractEdge) element);
+                }
+                else
+                {
+                    putValue(element);
+                }
+            }
+        }
+        else if(result != null)
+        {
+            putValue(result);
+        }
+    }
+
+    private void putValue(Object value)
+    {
+        try
+        {
+            JSONObject line = new JSONObject();
+            line.put("type", TYPE_VALUE);
+            line.put("value", String.valueOf(value));
+            append(line.toString());
+        }
+        catch(JSONException ex)
+        {
+            logger.log(Level.WARNING, "Unable to convert value to JSON", ex);
+        }
+    }
+
+    private void append(String line)
+    {
+        frame.append(line).append('\n');
+        frameRows++;
+        if(limit != null && vertexCount + edgeCount >= limit)
+        {
+            status = STATUS_LIMIT;
+            sendFrame();
+        }
+        else if(framesSent == 0 || frameRows >= FRAME_ROWS ||
+                System.currentTimeMillis() - lastFrameTime >= FRAME_MILLIS)
+        {
+            sendFrame();
+        }
+    }
+
+    private void sendFrame()
+    {
+        if(frameRows == 0)
+        {
+            return;
+        }
+        String data = frame.toString();
+        frame = new StringBuilder();
+        frameRows = 0;
+        write(data);
+        framesSent++;
+        lastFrameTime = System.currentTimeMillis();
+    }
+
+    private void write(String data)
+    {
+        try
+        {
+            outputStream.writeObject(data);
+            // forget the written strings so that the stream does not keep them
+            outputStream.reset();
+            outputStream.flush();
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.WARNING, "Unable to send result to the client. Stopping the query.", ex);
+            status = STATUS_CANCELLED;
+        }
+    }
+
+    @Override
+    public boolean isStopped()
+    {
+        if(status == null)
+        {
+            // the client may have sent other lines before cancelling, which are kept for later
+            Iterator<String> iterator = commands.iterator();
+            while(iterator.hasNext())
+            {
+                if(CANCEL_COMMAND.equalsIgnoreCase(iterator.next().trim()))
+                {
+                    iterator.remove();
+                    status = STATUS_CANCELLED;
+                    break;
+                }
+            }
+        }
+        return status != null;
+    }
+
+    @Override
+    public Integer getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Sends the remaining lines and the end line.
+     *
+     * @param failed true if the query ended with an error
+     */
+    public void finish(boolean failed)
+    {
+        if(failed && status == null)
+        {
+            status = STATUS_ERROR;
+        }
+        else if(status == null)
+        {
+            status = STATUS_COMPLETE;
+        }
+        sendFrame();
+        try
+        {
+            JSONObject line = new JSONObject();
+            line.put("type", TYPE_END);
+            line.put("status", status);
+            line.put("vertices", vertexCount);
+            line.put("edges", edgeCount);
+            write(line.toString() + "\n");
+        }
+        catch(JSONException ex)
+        {
+            logger.log(Level.WARNING, "Unable to convert end of stream to JSON", ex);
+        }
+    }
+
+    public String getStatus()
+    {
+        return status;
+    }
+}
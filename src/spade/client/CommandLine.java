@@ -18,6 +18,8 @@ package spade.client;
 
 import jline.ConsoleReader;
 import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+import spade.analyzer.ResultStream;
 import spade.core.Settings;
 
 import javax.net.ssl.KeyManagerFactory;
@@ -25,6 +27,7 @@ import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileWriter;
@@ -33,6 +36,7 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.io.Writer;
 import java.security.KeyStore;
 import java.security.SecureRandom;
 import java.util.HashMap;
@@ -149,6 +153,11 @@ public class CommandLine
                         // save export path for next answer's dot file
                         parseExport(line);
                     }
+                    else if(line.trim().toLowerCase().startsWith("stream "))
+                    {
+                        clientOutputStream.println(line);
+                        readStream();
+                    }
                     else
                     {
                         if(RESULT_EXPORT_PATH != null)
@@ -192,6 +201,62 @@ public class CommandLine
         }
     }
 
+    /**
+     * Prints the lines of a streamed result as they arrive, or writes them to
+     * the export file if one is set. Pressing enter cancels the query.
+     */
+    private static void readStream() throws Exception
+    {
+        Writer writer = null;
+        if(RESULT_EXPORT_PATH != null)
+        {
+            writer = new BufferedWriter(new FileWriter(RESULT_EXPORT_PATH, false));
+        }
+        boolean cancelSent = false;
+        try
+        {
+            while(true)
+            {
+                String frame = (String) clientInputStream.readObject();
+                int lastLineStart = frame.lastIndexOf('\n', frame.length() - 2) + 1;
+                JSONObject lastLine = new JSONObject(frame.substring(lastLineStart));
+                if(ResultStream.TYPE_END.equals(lastLine.optString("type")))
+                {
+                    System.out.println("Streamed " + lastLine.optLong("vertices") + " vertices and " +
+                            lastLine.optLong("edges") + " edges (" + lastLine.optString("status") + ")");
+                    break;
+                }
+                if(writer != null)
+                {
+                    writer.write(frame);
+                }
+                else
+                {
+                    System.out.print(frame);
+                }
+                if(!cancelSent && System.in.available() > 0)
+                {
+                    while(System.in.available() > 0)
+                    {
+                        System.in.read();
+                    }
+                    clientOutputStream.println(ResultStream.CANCEL_COMMAND);
+                    cancelSent = true;
+                    System.out.println("Cancelling query...");
+                }
+            }
+        }
+        finally
+        {
+            if(writer != null)
+            {
+                writer.close();
+                System.out.println("Output exported to file: " + RESULT_EXPORT_PATH);
+                RESULT_EXPORT_PATH = null;
+            }
+        }
+    }
+
     private static void parseExport(String line)
     {
         try
@@ -57,6 +57,8 @@ public abstract class AbstractAnalyzer
     private static String configFile = CONFIG_PATH + FILE_SEPARATOR + "spade.core.AbstractAnalyzer.config";
     public static boolean USE_SCAFFOLD;
     public static boolean USE_TRANSFORMER;
+    // number of vertices expanded by one query in GetLineage
+    public static int LINEAGE_BATCH_SIZE;
     static
     {
         try
@@ -64,12 +66,14 @@ public abstract class AbstractAnalyzer
             databaseConfigs.load(new FileInputStream(configFile));
             USE_SCAFFOLD = Boolean.parseBoolean(databaseConfigs.getProperty("use_scaffold"));
             USE_TRANSFORMER = Boolean.parseBoolean(Settings.getProperty("use_transformer"));
+            LINEAGE_BATCH_SIZE = Integer.parseInt(databaseConfigs.getProperty("lineage_batch_size", "500"));
         }
         catch(Exception ex)
         {
             // default settings
             USE_SCAFFOLD = false;
             USE_TRANSFORMER = false;
+            LINEAGE_BATCH_SIZE = 500;
             Logger.getLogger(AbstractAnalyzer.class.getName()).log(Level.WARNING,
                     "Loading configurations from the file unsuccessful! Falling back to default settings" , ex);
         }
@@ -21,10 +21,9 @@ package spade.core;
 
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
 
 import com.mysql.jdbc.StringUtils;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.binary.Hex;
 import spade.reporter.audit.OPMConstants;
 
 /**
@@ -43,10 +42,39 @@ public abstract class AbstractEdge implements Serializable
 	/**
      * A map containing the annotations for this edge.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
     private AbstractVertex childVertex;
     private AbstractVertex parentVertex;
 
+    /**
+     * Memoized result of bigHashCode(). Only valid while the annotations and
+     * both end points (including their hashes) are the ones it was computed for.
+     */
+    private transient BigHash bigHash;
+
+    private static final class BigHash
+    {
+        final long version;
+        final AbstractVertex childVertex;
+        final AbstractVertex parentVertex;
+        final AbstractVertex.BigHash childHash;
+        final AbstractVertex.BigHash parentHash;
+        final byte[] bytes;
+        final String hex;
+
+        BigHash(long version, AbstractVertex childVertex, AbstractVertex parentVertex,
+                AbstractVertex.BigHash childHash, AbstractVertex.BigHash parentHash, byte[] bytes)
+        {
+            this.version = version;
+            this.childVertex = childVertex;
+            this.parentVertex = parentVertex;
+            this.childHash = childHash;
+            this.parentHash = parentHash;
+            this.bytes = bytes;
+            this.hex = Hex.encodeHexString(bytes);
+        }
+    }
+
     /**
      * Checks if edge is empty
      *
@@ -181,23 +209,49 @@ public abstract class AbstractEdge implements Serializable
     }
 
     /**
-     * Computes MD5 hash of annotations in the edge and its end point vertices.
+     * Returns the memoized hash, computing it first if the annotations, the
+     * end points or the hashes of the end points changed.
+     */
+    private BigHash getBigHash()
+    {
+        long version = (annotations instanceof AnnotationMap) ? ((AnnotationMap) annotations).getVersion() : -1;
+        AbstractVertex currentChild = childVertex;
+        AbstractVertex currentParent = parentVertex;
+        AbstractVertex.BigHash childHash = currentChild == null ? null : currentChild.getBigHash();
+        AbstractVertex.BigHash parentHash = currentParent == null ? null : currentParent.getBigHash();
+        BigHash current = bigHash;
+        if(current == null || version < 0 || current.version != version
+                || current.childVertex != currentChild || current.parentVertex != currentParent
+                || current.childHash != childHash || current.parentHash != parentHash)
+        {
+            byte[] bytes = HashFunction.getConfigured().hashEdge(this, annotations,
+                    childHash == null ? null : childHash.bytes, parentHash == null ? null : parentHash.bytes);
+            current = new BigHash(version, currentChild, currentParent, childHash, parentHash, bytes);
+            bigHash = current;
+        }
+        return current;
+    }
+
+    /**
+     * Computes the 128-bit hash of annotations in the edge and its end point
+     * vertices using the configured hash function (MD5 by default). The
+     * result is memoized until the annotations or the end points change.
      *
-     @return A 128-bit hash digest.
+     @return A 128-bit hash digest as 32 hex characters.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        return getBigHash().hex;
     }
 
     /**
-     * Computes MD5 hash of annotations in the vertex.
+     * Computes the 128-bit hash of annotations in the edge and its end point vertices.
      *
-     @return A 128-bit hash digest.
+     @return 16 element byte array of the digest.
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return getBigHash().bytes.clone();
     }
 
     @Override
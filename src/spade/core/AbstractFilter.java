@@ -51,6 +51,19 @@ public abstract class AbstractFilter {
         return true;
     }
 
+    /**
+     * This method is used by the Kernel to decide whether elements from
+     * different reporters can be passed through the filter list concurrently.
+     * Filters that keep no mutable state (or guard it themselves) should
+     * override this to return true. The filter list is only run in parallel
+     * when every filter in it is thread-safe.
+     *
+     * @return True if putVertex and putEdge can be called concurrently.
+     */
+    public boolean isThreadSafe() {
+        return false;
+    }
+
     /**
      * This method is used by the Kernel for configuring the filter list.
      *
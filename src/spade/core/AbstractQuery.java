@@ -40,6 +40,9 @@ public abstract class AbstractQuery<R>
 
     protected static AbstractStorage currentStorage;
 
+    // receives the results as they are found. null if only the returned result is used
+    protected ResultListener resultListener = null;
+
     public interface OPERATORS
     {
         String EQUALS = "=";
@@ -66,6 +69,17 @@ public abstract class AbstractQuery<R>
         return currentStorage;
     }
 
+    /**
+     * Queries that can report results incrementally send them to the listener.
+     * Others ignore it and only return the result.
+     *
+     * @param listener receiver of the results or null
+     */
+    public void setResultListener(ResultListener listener)
+    {
+        resultListener = listener;
+    }
+
     public void register()
     {
         try
@@ -69,6 +69,19 @@ public abstract class AbstractStorage
      * The number of edges that this storage instance has successfully received.
      */
     protected long edgeCount;
+    /**
+     * Incremented for every element written to this storage, by its storage
+     * worker or by the final commit filter under the lock of the storage.
+     * Cached query results computed at an older epoch are stale.
+     */
+    private volatile long writeEpoch = 0;
+    /**
+     * Hashes of the elements written recently, so that repeated elements are
+     * not written again. NULL for storages that do not use it.
+     */
+    protected Cache<String, Boolean> elementCache = null;
+    // results of queries on this storage with the epoch they were computed at. Created on first use.
+    private volatile Cache<String, CachedResult> queryCache = null;
 
     protected static Properties databaseConfigs = new Properties();
 
@@ -89,6 +102,17 @@ public abstract class AbstractStorage
     public static boolean BUILD_SCAFFOLD;
     public static String SCAFFOLD_PATH;
     public static String SCAFFOLD_DATABASE_NAME;
+    public static boolean SCAFFOLD_OFF_HEAP;
+    // keep the edges of a disk scaffold in memory for lineage and path queries
+    public static boolean SCAFFOLD_SNAPSHOT;
+    // number of threads that expand the frontiers of scaffold traversals
+    public static int SCAFFOLD_TRAVERSAL_THREADS;
+    // number of vertices a path search visits before it stops expanding
+    public static int PATH_MAX_VERTICES;
+    public static int ELEMENT_CACHE_SIZE;
+    // number of results and number of vertices and edges in them that the query cache of a storage keeps
+    public static int QUERY_CACHE_SIZE;
+    public static long QUERY_CACHE_WEIGHT;
     static
     {
         try
@@ -97,6 +121,14 @@ public abstract class AbstractStorage
             BUILD_SCAFFOLD = Boolean.parseBoolean(databaseConfigs.getProperty("build_scaffold"));
             SCAFFOLD_PATH = SPADE_ROOT + databaseConfigs.getProperty("scaffold_path");
             SCAFFOLD_DATABASE_NAME = databaseConfigs.getProperty("scaffold_database_name");
+            SCAFFOLD_OFF_HEAP = Boolean.parseBoolean(databaseConfigs.getProperty("scaffold_off_heap"));
+            SCAFFOLD_SNAPSHOT = Boolean.parseBoolean(databaseConfigs.getProperty("scaffold_snapshot"));
+            SCAFFOLD_TRAVERSAL_THREADS = Integer.parseInt(databaseConfigs.getProperty("scaffold_traversal_threads",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            PATH_MAX_VERTICES = Integer.parseInt(databaseConfigs.getProperty("path_max_vertices", "1000000"));
+            ELEMENT_CACHE_SIZE = Integer.parseInt(databaseConfigs.getProperty("element_cache_size", "100000"));
+            QUERY_CACHE_SIZE = Integer.parseInt(databaseConfigs.getProperty("query_cache_size", "64"));
+            QUERY_CACHE_WEIGHT = Long.parseLong(databaseConfigs.getProperty("query_cache_weight", "1000000"));
             if(BUILD_SCAFFOLD)
             {
                 scaffold = ScaffoldFactory.createScaffold(SCAFFOLD_DATABASE_NAME);
@@ -112,6 +144,13 @@ public abstract class AbstractStorage
             BUILD_SCAFFOLD = false;
             SCAFFOLD_PATH = SPADE_ROOT + "db/scaffold";
             SCAFFOLD_DATABASE_NAME = "BerkeleyDB";
+            SCAFFOLD_OFF_HEAP = false;
+            SCAFFOLD_SNAPSHOT = false;
+            SCAFFOLD_TRAVERSAL_THREADS = Runtime.getRuntime().availableProcessors();
+            PATH_MAX_VERTICES = 1000000;
+            ELEMENT_CACHE_SIZE = 100000;
+            QUERY_CACHE_SIZE = 64;
+            QUERY_CACHE_WEIGHT = 1000000;
             Logger.getLogger(AbstractStorage.class.getName()).log(Level.WARNING,
             "Loading scaffold configurations from file '" + configFile + "' " +
                     " unsuccessful! Falling back to default settings", ex);
@@ -123,6 +162,91 @@ public abstract class AbstractStorage
         return scaffold.insertEntry(incomingEdge);
     }
 
+    // Called by one thread at a time, after the element is written
+    public void incrementWriteEpoch()
+    {
+        writeEpoch++;
+    }
+
+    public long getWriteEpoch()
+    {
+        return writeEpoch;
+    }
+
+    public Cache<String, Boolean> getElementCache()
+    {
+        return elementCache;
+    }
+
+    public Cache<String, CachedResult> getQueryCache()
+    {
+        if(queryCache == null)
+        {
+            synchronized(this)
+            {
+                if(queryCache == null)
+                {
+                    // one segment, so that one result can use all of the weight
+                    queryCache = new Cache<>(QUERY_CACHE_SIZE, QUERY_CACHE_WEIGHT, 1);
+                }
+            }
+        }
+        return queryCache;
+    }
+
+    /**
+     * @param query normalized text of the query
+     * @return a copy of the cached result of the query OR NULL if it is not
+     * cached or elements were written since it was computed
+     */
+    public Object getCachedResult(String query)
+    {
+        Cache<String, CachedResult> cache = getQueryCache();
+        CachedResult cached = cache.get(query);
+        if(cached == null)
+        {
+            return null;
+        }
+        if(cached.epoch != writeEpoch)
+        {
+            cache.remove(query);
+            return null;
+        }
+        return copyResult(cached.result);
+    }
+
+    /**
+     * @param query normalized text of the query
+     * @param result result of the query
+     * @param epoch write epoch read before the query was executed
+     * @param weight weight of the result, the number of vertices and edges in it
+     */
+    public void cacheResult(String query, Object result, long epoch, long weight)
+    {
+        if(epoch == writeEpoch)
+        {
+            getQueryCache().put(query, new CachedResult(copyResult(result), epoch), weight);
+        }
+    }
+
+    // The caller may change the result it gets, so the cache never shares its own
+    private static Object copyResult(Object result)
+    {
+        return (result instanceof Graph) ? ((Graph) result).copy() : result;
+    }
+
+    public static class CachedResult
+    {
+        private final Object result;
+        private final long epoch;
+
+        private CachedResult(Object result, long epoch)
+        {
+            this.result = result;
+            this.epoch = epoch;
+        }
+    }
+
     /* For testing purposes only. Set scaffold through Settings file normally. */
     public static void setScaffold(Scaffold scaffold)
     {
@@ -208,6 +332,18 @@ public abstract class AbstractStorage
         return vertexCount;
     }
 
+    /**
+     * Storages whose transactions are bound to the thread that opened them
+     * (e.g. embedded Neo4j) must return true. The Kernel then hands all
+     * elements, flushes and the shutdown of the storage to a single dedicated
+     * thread instead of calling it from the pipeline threads.
+     *
+     * @return True if the storage must always be called from the same thread.
+     */
+    public boolean isThreadAffine() {
+        return false;
+    }
+
     /**
      * This method is triggered by the Kernel to flush transactions.
      *
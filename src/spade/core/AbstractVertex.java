@@ -20,11 +20,10 @@
 package spade.core;
 
 import com.mysql.jdbc.StringUtils;
-import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.codec.binary.Hex;
 
 import java.io.Serializable;
 import java.util.Map;
-import java.util.TreeMap;
 
 import spade.reporter.audit.OPMConstants;
 
@@ -44,7 +43,27 @@ public abstract class AbstractVertex implements Serializable
 	/**
      * A map containing the annotations for this vertex.
      */
-    protected Map<String, String> annotations = new TreeMap<>();
+    protected Map<String, String> annotations = new AnnotationMap();
+
+    /**
+     * Memoized result of bigHashCode(). Only valid while the annotations are
+     * at the version it was computed for.
+     */
+    private transient BigHash bigHash;
+
+    static final class BigHash
+    {
+        final long version;
+        final byte[] bytes;
+        final String hex;
+
+        BigHash(long version, byte[] bytes)
+        {
+            this.version = version;
+            this.bytes = bytes;
+            this.hex = Hex.encodeHexString(bytes);
+        }
+    }
 
     /**
      * An integer indicating the depth of the vertex in the graph
@@ -149,23 +168,50 @@ public abstract class AbstractVertex implements Serializable
     }
 
     /**
-     * Computes MD5 hash of annotations in the vertex.
+     * Returns the version of the annotations map, or -1 if the map does not
+     * track modifications and the hash cannot be memoized.
+     */
+    final long getAnnotationsVersion()
+    {
+        return (annotations instanceof AnnotationMap) ? ((AnnotationMap) annotations).getVersion() : -1;
+    }
+
+    /**
+     * Returns the memoized hash, computing it first if the annotations
+     * changed since it was last computed.
+     */
+    final BigHash getBigHash()
+    {
+        long version = getAnnotationsVersion();
+        BigHash current = bigHash;
+        if(current == null || version < 0 || current.version != version)
+        {
+            current = new BigHash(version, HashFunction.getConfigured().hashVertex(this, annotations));
+            bigHash = current;
+        }
+        return current;
+    }
+
+    /**
+     * Computes the 128-bit hash of annotations in the vertex using the
+     * configured hash function (MD5 by default). The result is memoized until
+     * the annotations change.
      *
-     @return A 128-bit hash digest.
+     @return A 128-bit hash digest as 32 hex characters.
      */
     public String bigHashCode()
     {
-        return DigestUtils.md5Hex(this.toString());
+        return getBigHash().hex;
     }
 
 
     /**
-     * Computes MD5 hash of annotations in the vertex
+     * Computes the 128-bit hash of annotations in the vertex
      * @return 16 element byte array of the digest.
      */
     public byte[] bigHashCodeBytes()
     {
-        return DigestUtils.md5(this.toString());
+        return getBigHash().bytes.clone();
     }
 
     public boolean isCompleteNetworkVertex()
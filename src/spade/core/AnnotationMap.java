@@ -0,0 +1,426 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The map holding the annotations of a vertex or an edge.
+ *
+ * Keys and values are kept in two parallel arrays sorted by key, which takes
+ * a fraction of the memory of a TreeMap with its entry objects. Iteration is
+ * in ascending key order, the same as TreeMap, so hashes and string forms
+ * of vertices and edges do not change.
+ *
+ * Keys come from a small vocabulary and short values repeat a lot, so both
+ * are interned in bounded process-wide dictionaries. Elements waiting in the
+ * pipeline then share one copy of each string instead of holding their own.
+ *
+ * It counts modifications made through the map itself so that vertices and
+ * edges can tell whether a memoized hash is still valid, even when the map
+ * is changed through getAnnotations() instead of addAnnotation().
+ */
+class AnnotationMap extends AbstractMap<String, String> implements Serializable
+{
+
+    private static final long serialVersionUID = -2313871924385634012L;
+
+    private static final String[] EMPTY = new String[0];
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Interned strings are never released, so the dictionaries stop growing
+    // at these sizes. Long values are unlikely to repeat and are not interned.
+    private static final int MAX_INTERNED_KEYS = 4096;
+    private static final int MAX_INTERNED_VALUES = 1 << 16;
+    private static final int MAX_INTERNED_VALUE_LENGTH = 64;
+
+    private static final ConcurrentHashMap<String, String> keyDictionary = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, String> valueDictionary = new ConcurrentHashMap<>();
+
+    private transient String[] keys = EMPTY;
+    private transient String[] values = EMPTY;
+    private transient int size = 0;
+    private transient long version = 0;
+    // Structural modifications only. Checked by iterators.
+    private transient int modCount = 0;
+    private transient Set<Map.Entry<String, String>> entrySet;
+
+    private static String intern(ConcurrentHashMap<String, String> dictionary, int maxSize, String string)
+    {
+        String interned = dictionary.get(string);
+        if(interned != null)
+        {
+            return interned;
+        }
+        if(dictionary.size() >= maxSize)
+        {
+            return string;
+        }
+        interned = dictionary.putIfAbsent(string, string);
+        return interned == null ? string : interned;
+    }
+
+    static String internKey(String key)
+    {
+        return intern(keyDictionary, MAX_INTERNED_KEYS, key);
+    }
+
+    static String internValue(String value)
+    {
+        if(value == null || value.length() > MAX_INTERNED_VALUE_LENGTH)
+        {
+            return value;
+        }
+        return intern(valueDictionary, MAX_INTERNED_VALUES, value);
+    }
+
+    /**
+     * @return A number that changes whenever the map is modified
+     */
+    long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * @return Index of the key, or -(insertion point + 1) if absent
+     */
+    private int indexOf(Object key)
+    {
+        if(key == null)
+        {
+            throw new NullPointerException("Null annotation key");
+        }
+        String string = (String) key;
+        int low = 0;
+        int high = size - 1;
+        while(low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            String current = keys[middle];
+            if(current == string)
+            {
+                return middle;
+            }
+            int comparison = current.compareTo(string);
+            if(comparison < 0)
+            {
+                low = middle + 1;
+            }
+            else if(comparison > 0)
+            {
+                high = middle - 1;
+            }
+            else
+            {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty()
+    {
+        return size == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return key instanceof String && indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key)
+    {
+        if(!(key instanceof String))
+        {
+            return null;
+        }
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    @Override
+    public String put(String key, String value)
+    {
+        int index = indexOf(key);
+        version++;
+        value = internValue(value);
+        if(index >= 0)
+        {
+            String previous = values[index];
+            values[index] = value;
+            return previous;
+        }
+        index = -(index + 1);
+        if(size == keys.length)
+        {
+            int capacity = Math.max(INITIAL_CAPACITY, keys.length * 2);
+            keys = Arrays.copyOf(keys, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        System.arraycopy(keys, index, keys, index + 1, size - index);
+        System.arraycopy(values, index, values, index + 1, size - index);
+        keys[index] = internKey(key);
+        values[index] = value;
+        size++;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    public void putAll(Map<? extends String, ? extends String> map)
+    {
+        version++;
+        if(size == 0 && keys.length < map.size())
+        {
+            keys = new String[map.size()];
+            values = new String[map.size()];
+        }
+        for(Map.Entry<? extends String, ? extends String> entry : map.entrySet())
+        {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public String remove(Object key)
+    {
+        if(!(key instanceof String))
+        {
+            return null;
+        }
+        int index = indexOf(key);
+        version++;
+        if(index < 0)
+        {
+            return null;
+        }
+        String previous = values[index];
+        removeAt(index);
+        return previous;
+    }
+
+    private void removeAt(int index)
+    {
+        int moved = size - index - 1;
+        System.arraycopy(keys, index + 1, keys, index, moved);
+        System.arraycopy(values, index + 1, values, index, moved);
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        modCount++;
+    }
+
+    @Override
+    public void clear()
+    {
+        version++;
+        Arrays.fill(keys, 0, size, null);
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet()
+    {
+        if(entrySet == null)
+        {
+            entrySet = new EntrySet();
+        }
+        return entrySet;
+    }
+
+    private class EntrySet extends AbstractSet<Map.Entry<String, String>>
+    {
+        @Override
+        public int size()
+        {
+            return size;
+        }
+
+        @Override
+        public void clear()
+        {
+            AnnotationMap.this.clear();
+        }
+
+        @Override
+        public Iterator<Map.Entry<String, String>> iterator()
+        {
+            return new EntryIterator();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, String>>
+    {
+        private int next = 0;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        @Override
+        public boolean hasNext()
+        {
+            return next < size;
+        }
+
+        @Override
+        public Map.Entry<String, String> next()
+        {
+            if(expectedModCount != modCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            if(next >= size)
+            {
+                throw new NoSuchElementException();
+            }
+            last = next++;
+            return new Entry(last);
+        }
+
+        @Override
+        public void remove()
+        {
+            if(last < 0)
+            {
+                throw new IllegalStateException();
+            }
+            if(expectedModCount != modCount)
+            {
+                throw new ConcurrentModificationException();
+            }
+            removeAt(last);
+            version++;
+            expectedModCount = modCount;
+            next = last;
+            last = -1;
+        }
+    }
+
+    private class Entry implements Map.Entry<String, String>
+    {
+        private final String key;
+        private String value;
+
+        private Entry(int index)
+        {
+            this.key = keys[index];
+            this.value = values[index];
+        }
+
+        @Override
+        public String getKey()
+        {
+            return key;
+        }
+
+        @Override
+        public String getValue()
+        {
+            return value;
+        }
+
+        @Override
+        public String setValue(String value)
+        {
+            String previous = this.value;
+            int index = indexOf(key);
+            if(index < 0)
+            {
+                throw new IllegalStateException("Entry no longer in map");
+            }
+            this.value = internValue(value);
+            values[index] = this.value;
+            version++;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object object)
+        {
+            if(!(object instanceof Map.Entry))
+            {
+                return false;
+            }
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) object;
+            return key.equals(other.getKey())
+                    && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return key + "=" + value;
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        out.defaultWriteObject();
+        out.writeInt(size);
+        for(int i = 0; i < size; i++)
+        {
+            out.writeObject(keys[i]);
+            out.writeObject(values[i]);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        int count = in.readInt();
+        keys = count == 0 ? EMPTY : new String[count];
+        values = count == 0 ? EMPTY : new String[count];
+        for(int i = 0; i < count; i++)
+        {
+            keys[i] = internKey((String) in.readObject());
+            values[i] = internValue((String) in.readObject());
+        }
+        size = count;
+    }
+}
@@ -31,6 +31,8 @@ import java.util.concurrent.ConcurrentLinkedQueue;
 public class Buffer {
 
     private final Queue<Object> queue;
+    // Invoked after an element is added so that an idle consumer can wake up
+    private volatile Runnable arrivalListener;
 
     /**
      * Empty constructor for this class.
@@ -50,7 +52,9 @@ public class Buffer {
         if (incomingVertex == null) {
             return false;
         } else {
-            return queue.add(incomingVertex);
+            boolean added = queue.add(incomingVertex);
+            signalArrival();
+            return added;
         }
     }
 
@@ -66,7 +70,30 @@ public class Buffer {
                 || (incomingEdge.getParentVertex() == null)) {
             return false;
         } else {
-            return queue.add(incomingEdge);
+            boolean added = queue.add(incomingEdge);
+            signalArrival();
+            return added;
+        }
+    }
+
+    /**
+     * This method is used by the Kernel to get notified when elements are
+     * added to this buffer.
+     *
+     * @param listener The callback to run after every successful put.
+     */
+    final void setArrivalListener(Runnable listener) {
+        arrivalListener = listener;
+    }
+
+    /**
+     * This method is called by buffer implementations after an element has
+     * been added.
+     */
+    protected final void signalArrival() {
+        Runnable listener = arrivalListener;
+        if (listener != null) {
+            listener.run();
         }
     }
 
@@ -97,4 +124,14 @@ public class Buffer {
     public int size() {
         return queue.size();
     }
+
+    /**
+     * This method is used by the control client to report the state of the
+     * buffer.
+     *
+     * @return A human-readable summary of the buffer occupancy and counters
+     */
+    public String getStatistics() {
+        return "size=" + size() + ", capacity=unbounded";
+    }
 }
@@ -20,31 +20,281 @@
 
 package spade.core;
 
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
- * This class encapsulates the caching policy and implementation
- * for graph vertices and edges.
+ * Bounded cache that can be used by several threads.
+ *
+ * The entries are split over segments by the hash of the key. Each segment is
+ * locked on its own and evicts its least recently used entries once it holds
+ * more than its share of the maximum size or the maximum weight. An entry
+ * heavier than the share of one segment is not kept.
  *
  * @author Raza Ahmad
  */
-public class Cache<T> {
+public class Cache<K, V>
+{
+    private static final int MAX_SEGMENTS = 16;
+
+    private final Segment<K, V>[] segments;
+    private final long maxSize;
+    private final long maxWeight;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache in which every entry weighs 1.
+     *
+     * @param maxSize maximum number of entries
+     */
+    public Cache(long maxSize)
+    {
+        this(maxSize, maxSize);
+    }
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param maxWeight maximum sum of the weights of the entries
+     */
+    public Cache(long maxSize, long maxWeight)
+    {
+        this(maxSize, maxWeight, MAX_SEGMENTS);
+    }
+
+    /**
+     * @param maxSize maximum number of entries
+     * @param maxWeight maximum sum of the weights of the entries
+     * @param segmentCount number of segments. Fewer segments allow heavier
+     * entries and more segments allow more threads at the same time.
+     */
+    @SuppressWarnings("unchecked")
+    public Cache(long maxSize, long maxWeight, int segmentCount)
+    {
+        this.maxSize = Math.max(1, maxSize);
+        this.maxWeight = Math.max(1, maxWeight);
+        segmentCount = (int) Math.max(1, Math.min(segmentCount, Math.min(this.maxSize, this.maxWeight)));
+        segments = (Segment<K, V>[]) new Segment<?, ?>[segmentCount];
+        for(int i = 0; i < segmentCount; i++)
+        {
+            // the limits are split so that the segments add up to them exactly
+            segments[i] = new Segment<>(share(this.maxSize, segmentCount, i), share(this.maxWeight, segmentCount, i));
+        }
+    }
+
+    private static long share(long total, int parts, int index)
+    {
+        return total / parts + (index < total % parts ? 1 : 0);
+    }
+
+    private Segment<K, V> segmentFor(Object key)
+    {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * @param key key of the entry
+     * @return value of the entry OR NULL if the key is not in the cache
+     */
+    public V get(K key)
+    {
+        V value = segmentFor(key).get(key);
+        if(value == null)
+        {
+            misses.incrementAndGet();
+        }
+        else
+        {
+            hits.incrementAndGet();
+        }
+        return value;
+    }
+
+    /**
+     * This function checks for the presence of given key in the cache.
+     *
+     * @param key key to check the presence of
+     * @return returns true if the key is found in cache
+     */
+    public boolean isPresent(K key)
+    {
+        return get(key) != null;
+    }
+
+    /**
+     * Adds an entry that weighs 1.
+     */
+    public void put(K key, V value)
+    {
+        put(key, value, 1);
+    }
 
     /**
-     * This function checks for the presence of given object in the underlying cache(s).
-     * @param object object to check the presence of
-     * @return returns true if the object is found in cache
+     * Adds an entry and evicts the least recently used entries of its segment
+     * if the segment is over its size or weight.
+     *
+     * @param key key of the entry
+     * @param value value of the entry. Must not be null.
+     * @param weight weight of the entry
+     * @return true if the entry was added and false if it was too heavy
      */
-    public static<T> boolean isPresent(T object)
+    public boolean put(K key, V value, long weight)
+    {
+        Segment<K, V> segment = segmentFor(key);
+        if(weight > segment.maxWeight)
+        {
+            segment.remove(key);
+            return false;
+        }
+        evictions.addAndGet(segment.put(key, value, weight));
+        return true;
+    }
+
+    public void remove(K key)
     {
-        return false;
+        segmentFor(key).remove(key);
+    }
+
+    public void clear()
+    {
+        for(Segment<K, V> segment : segments)
+        {
+            segment.clear();
+        }
+    }
+
+    public long size()
+    {
+        long size = 0;
+        for(Segment<K, V> segment : segments)
+        {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long weight()
+    {
+        long weight = 0;
+        for(Segment<K, V> segment : segments)
+        {
+            weight += segment.weight();
+        }
+        return weight;
+    }
+
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    public long getEvictions()
+    {
+        return evictions.get();
     }
 
     /**
-     * This function adds an item to the underlying cache(s).
-     * @param object object to add to the cache(s).
-     * @return returns true if the object has been successfully added to the cache
+     * @return size, weight, hits, misses, hit rate and evictions in one line
      */
-    public static<T> boolean addItem(T object)
+    public String getStatistics()
+    {
+        long currentHits = hits.get();
+        long lookups = currentHits + misses.get();
+        float hitRate = lookups > 0 ? 100f * currentHits / lookups : 0;
+        return String.format("size=%d/%d, weight=%d/%d, hits=%d, misses=%d, hit rate=%.1f%%, evictions=%d",
+                size(), maxSize, weight(), maxWeight, currentHits, lookups - currentHits, hitRate, evictions.get());
+    }
+
+    private static class Entry<V>
+    {
+        private final V value;
+        private final long weight;
+
+        private Entry(V value, long weight)
+        {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    private static class Segment<K, V>
     {
-        return false;
+        private final long maxSize;
+        private final long maxWeight;
+        // in access order, so the first entry is the least recently used
+        private final LinkedHashMap<K, Entry<V>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long weight = 0;
+
+        private Segment(long maxSize, long maxWeight)
+        {
+            this.maxSize = maxSize;
+            this.maxWeight = maxWeight;
+        }
+
+        private synchronized V get(Object key)
+        {
+            Entry<V> entry = entries.get(key);
+            return entry == null ? null : entry.value;
+        }
+
+        // returns the number of entries evicted
+        private synchronized long put(K key, V value, long entryWeight)
+        {
+            Entry<V> previous = entries.put(key, new Entry<>(value, entryWeight));
+            if(previous != null)
+            {
+                weight -= previous.weight;
+            }
+            weight += entryWeight;
+            long evicted = 0;
+            Iterator<Map.Entry<K, Entry<V>>> iterator = entries.entrySet().iterator();
+            while((entries.size() > maxSize || weight > maxWeight) && iterator.hasNext())
+            {
+                Map.Entry<K, Entry<V>> eldest = iterator.next();
+                if(eldest.getKey().equals(key))
+                {
+                    continue;
+                }
+                weight -= eldest.getValue().weight;
+                iterator.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        private synchronized void remove(Object key)
+        {
+            Entry<V> entry = entries.remove(key);
+            if(entry != null)
+            {
+                weight -= entry.weight;
+            }
+        }
+
+        private synchronized void clear()
+        {
+            entries.clear();
+            weight = 0;
+        }
+
+        private synchronized int size()
+        {
+            return entries.size();
+        }
+
+        private synchronized long weight()
+        {
+            return weight;
+        }
     }
 }
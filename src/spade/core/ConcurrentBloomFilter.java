@@ -0,0 +1,560 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import spade.utility.Murmur3;
+
+/**
+ * A Bloom filter that can be shared by many threads without a lock.
+ *
+ * The k bit positions of an element are derived by double hashing
+ * (h1 + i * h2) from a single MurmurHash3 128-bit hash, so each add or
+ * contains hashes the element once and does not allocate. Bits are kept in a
+ * long array and set with compare-and-swap.
+ *
+ * The bits can optionally live in a memory-mapped file instead of the heap
+ * (see {@link #map(File, double, int)}). In that case setting a bit takes one
+ * of a small set of striped locks because mapped buffers have no atomic
+ * operations on Java 8. Lookups never lock.
+ *
+ * The filter is persisted in a compact binary format: a 32-byte header
+ * followed by the words of the bit array. A mapped filter file uses the same
+ * layout, so a saved filter can be mapped and a mapped filter can be loaded.
+ *
+ * Elements passed as E are hashed by the chars of their toString() and byte
+ * arrays by their bytes. The two forms do not match each other, so use one of
+ * them consistently for a given filter.
+ *
+ * @param <E> Object type that is to be inserted into the Bloom filter, e.g. String.
+ */
+public class ConcurrentBloomFilter<E> implements Closeable {
+
+    private static final int MAGIC = 0x53424631; // "SBF1"
+    private static final int FORMAT_VERSION = 1;
+    // magic, version, bit count, k, expected elements, added elements
+    private static final int HEADER_BYTES = 4 + 4 + 8 + 4 + 4 + 8;
+    private static final int ADDED_ELEMENTS_OFFSET = HEADER_BYTES - 8;
+    // Number of locks used to serialize bit updates in a mapped filter
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Per-thread hashing state so that probing does not allocate.
+     */
+    private static final class Probe {
+        private final Murmur3 hasher = new Murmur3();
+        private final long[] hash = new long[2];
+    }
+
+    private static final ThreadLocal<Probe> probes = new ThreadLocal<Probe>() {
+        @Override
+        protected Probe initialValue() {
+            return new Probe();
+        }
+    };
+
+    private final long bitSetSize;
+    private final int k;
+    private final int expectedNumberOfFilterElements;
+    private final LongAdder numberOfAddedElements = new LongAdder();
+
+    // Heap bit array. Null for a mapped filter.
+    private final AtomicLongArray words;
+    // Mapped bit array. Null for a heap filter.
+    private final RandomAccessFile mappedFile;
+    private final MappedByteBuffer mappedBuffer;
+    private final LongBuffer mappedWords;
+    private final Object[] stripes;
+
+    /**
+     * Constructs an empty heap Bloom filter with a given false positive
+     * probability. The number of bits and hash functions is estimated to match
+     * the false positive probability at the expected number of elements.
+     *
+     * @param falsePositiveProbability is the desired false positive probability.
+     * @param expectedNumberOfElements is the expected number of elements in the Bloom filter.
+     */
+    public ConcurrentBloomFilter(double falsePositiveProbability, int expectedNumberOfElements) {
+        this(optimalBitSetSize(falsePositiveProbability, expectedNumberOfElements),
+             expectedNumberOfElements,
+             optimalK(optimalBitSetSize(falsePositiveProbability, expectedNumberOfElements), expectedNumberOfElements));
+    }
+
+    /**
+     * Constructs an empty heap Bloom filter.
+     *
+     * @param bitSetSize defines how many bits should be used in total for the filter.
+     * @param expectedNumberOfElements defines the maximum number of elements the filter is expected to contain.
+     * @param k is the number of hash functions used.
+     */
+    public ConcurrentBloomFilter(long bitSetSize, int expectedNumberOfElements, int k) {
+        checkArguments(bitSetSize, k);
+        if (wordCount(bitSetSize) > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many bits for a heap Bloom filter: " + bitSetSize);
+        }
+        this.bitSetSize = bitSetSize;
+        this.k = k;
+        this.expectedNumberOfFilterElements = expectedNumberOfElements;
+        this.words = new AtomicLongArray((int) wordCount(bitSetSize));
+        this.mappedFile = null;
+        this.mappedBuffer = null;
+        this.mappedWords = null;
+        this.stripes = null;
+    }
+
+    private ConcurrentBloomFilter(RandomAccessFile mappedFile, MappedByteBuffer mappedBuffer,
+                                  long bitSetSize, int expectedNumberOfElements, int k) {
+        this.bitSetSize = bitSetSize;
+        this.k = k;
+        this.expectedNumberOfFilterElements = expectedNumberOfElements;
+        this.words = null;
+        this.mappedFile = mappedFile;
+        this.mappedBuffer = mappedBuffer;
+        mappedBuffer.position(HEADER_BYTES);
+        this.mappedWords = mappedBuffer.slice().asLongBuffer();
+        mappedBuffer.position(0);
+        this.stripes = new Object[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            stripes[i] = new Object();
+        }
+    }
+
+    private static void checkArguments(long bitSetSize, int k) {
+        if (bitSetSize <= 0) {
+            throw new IllegalArgumentException("Bit set size must be positive: " + bitSetSize);
+        }
+        if (k <= 0) {
+            throw new IllegalArgumentException("Number of hash functions must be positive: " + k);
+        }
+    }
+
+    private static long optimalBitSetSize(double falsePositiveProbability, int expectedNumberOfElements) {
+        // m = -n * ln(p) / ln(2)^2
+        return (long) Math.ceil(-expectedNumberOfElements * Math.log(falsePositiveProbability)
+                / (Math.log(2) * Math.log(2)));
+    }
+
+    private static int optimalK(long bitSetSize, int expectedNumberOfElements) {
+        // k = m / n * ln(2)
+        return Math.max(1, (int) Math.round((double) bitSetSize / expectedNumberOfElements * Math.log(2)));
+    }
+
+    private static long wordCount(long bitSetSize) {
+        return (bitSetSize + 63) >>> 6;
+    }
+
+    /**
+     * Maps the filter stored in the given file, creating the file with an
+     * empty filter if it does not exist. Bits set in the filter are written
+     * to the file by the operating system. Call {@link #force()} or
+     * {@link #close()} to make sure they and the element count are on disk.
+     *
+     * @param file file holding the filter.
+     * @param falsePositiveProbability is the desired false positive probability. Only used if the file is created.
+     * @param expectedNumberOfElements is the expected number of elements. Only used if the file is created.
+     * @return the mapped filter.
+     * @throws IOException if the file cannot be mapped or is not a Bloom filter file.
+     */
+    public static <E> ConcurrentBloomFilter<E> map(File file, double falsePositiveProbability,
+                                                   int expectedNumberOfElements) throws IOException {
+        long bitSetSize;
+        int k;
+        int expected;
+        long added = 0;
+        boolean create = !file.exists() || file.length() == 0;
+        if (create) {
+            bitSetSize = optimalBitSetSize(falsePositiveProbability, expectedNumberOfElements);
+            k = optimalK(bitSetSize, expectedNumberOfElements);
+            expected = expectedNumberOfElements;
+        } else {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                readMagic(in, file);
+                bitSetSize = in.readLong();
+                k = in.readInt();
+                expected = in.readInt();
+                added = in.readLong();
+            }
+        }
+        checkArguments(bitSetSize, k);
+        long length = HEADER_BYTES + wordCount(bitSetSize) * 8;
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many bits for a mapped Bloom filter: " + bitSetSize);
+        }
+        if (!create && file.length() < length) {
+            throw new IOException("Truncated Bloom filter file: " + file);
+        }
+
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (create) {
+                randomAccessFile.setLength(length);
+            }
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            ConcurrentBloomFilter<E> filter = new ConcurrentBloomFilter<>(randomAccessFile, buffer,
+                    bitSetSize, expected, k);
+            filter.numberOfAddedElements.add(added);
+            filter.writeHeader();
+            return filter;
+        } catch (IOException | RuntimeException exception) {
+            randomAccessFile.close();
+            throw exception;
+        }
+    }
+
+    /**
+     * Reads a filter written by {@link #save(File)} into the heap.
+     *
+     * @param file file holding the filter.
+     * @return the loaded filter.
+     * @throws IOException if the file cannot be read or is not a Bloom filter file.
+     */
+    public static <E> ConcurrentBloomFilter<E> load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            readMagic(in, file);
+            return readFilter(in);
+        }
+    }
+
+    /**
+     * Reads a filter written by {@link #write(DataOutput)} into the heap. The
+     * input is left right after the filter.
+     *
+     * @param in input positioned at the start of the filter.
+     * @return the read filter.
+     * @throws IOException if the input cannot be read or does not hold a Bloom filter.
+     */
+    public static <E> ConcurrentBloomFilter<E> read(DataInput in) throws IOException {
+        readMagic(in, "input");
+        return readFilter(in);
+    }
+
+    private static <E> ConcurrentBloomFilter<E> readFilter(DataInput in) throws IOException {
+        long bitSetSize = in.readLong();
+        int k = in.readInt();
+        int expected = in.readInt();
+        long added = in.readLong();
+        ConcurrentBloomFilter<E> filter = new ConcurrentBloomFilter<>(bitSetSize, expected, k);
+        int count = filter.words.length();
+        for (int i = 0; i < count; i++) {
+            filter.words.set(i, in.readLong());
+        }
+        filter.numberOfAddedElements.add(added);
+        return filter;
+    }
+
+    private static void readMagic(DataInput in, Object source) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a Bloom filter file: " + source);
+        }
+        int version = in.readInt();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unsupported Bloom filter format version " + version + ": " + source);
+        }
+    }
+
+    /**
+     * Writes the filter to the given file. The filter is first written to a
+     * temporary file next to it and then moved into place so that a failed
+     * save never leaves a partial filter behind.
+     *
+     * @param file destination file.
+     * @throws IOException if the file cannot be written.
+     */
+    public void save(File file) throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)))) {
+            write(out);
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Writes the filter to a stream in the same format as {@link #save(File)},
+     * so that it can be embedded in other files.
+     *
+     * @param out destination of the filter.
+     * @throws IOException if the output cannot be written.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(bitSetSize);
+        out.writeInt(k);
+        out.writeInt(expectedNumberOfFilterElements);
+        out.writeLong(count());
+        long count = wordCount(bitSetSize);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(getWord(i));
+        }
+    }
+
+    private void writeHeader() {
+        mappedBuffer.putInt(0, MAGIC);
+        mappedBuffer.putInt(4, FORMAT_VERSION);
+        mappedBuffer.putLong(8, bitSetSize);
+        mappedBuffer.putInt(16, k);
+        mappedBuffer.putInt(20, expectedNumberOfFilterElements);
+        mappedBuffer.putLong(ADDED_ELEMENTS_OFFSET, count());
+    }
+
+    /**
+     * Writes the element count and all changed bits of a mapped filter to
+     * disk. Does nothing for a heap filter.
+     */
+    public void force() {
+        if (mappedBuffer != null) {
+            mappedBuffer.putLong(ADDED_ELEMENTS_OFFSET, count());
+            mappedBuffer.force();
+        }
+    }
+
+    /**
+     * Forces a mapped filter to disk and releases the file. The filter must not
+     * be used afterwards. Does nothing for a heap filter.
+     */
+    @Override
+    public void close() throws IOException {
+        if (mappedFile != null) {
+            force();
+            mappedFile.close();
+        }
+    }
+
+    /**
+     * @return true if the bits are kept in a memory-mapped file.
+     */
+    public boolean isMapped() {
+        return mappedBuffer != null;
+    }
+
+    private long getWord(int index) {
+        if (words != null) {
+            return words.get(index);
+        }
+        return mappedWords.get(index);
+    }
+
+    /**
+     * Sets a bit and returns true if it was not set before.
+     */
+    private boolean setBit(long bit) {
+        int index = (int) (bit >>> 6);
+        long mask = 1L << bit; // shift uses the low six bits
+        if (words != null) {
+            while (true) {
+                long word = words.get(index);
+                if ((word & mask) != 0) {
+                    return false;
+                }
+                if (words.compareAndSet(index, word, word | mask)) {
+                    return true;
+                }
+            }
+        }
+        synchronized (stripes[index & (LOCK_STRIPES - 1)]) {
+            long word = mappedWords.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            mappedWords.put(index, word | mask);
+            return true;
+        }
+    }
+
+    private boolean getBit(long bit) {
+        return (getWord((int) (bit >>> 6)) & (1L << bit)) != 0;
+    }
+
+    private long[] hashElement(E element) {
+        Probe probe = probes.get();
+        probe.hasher.reset().putChars(element.toString());
+        return probe.hasher.hash128(probe.hash);
+    }
+
+    private static long[] hash(byte[] bytes) {
+        Probe probe = probes.get();
+        probe.hasher.reset().putBytes(bytes);
+        return probe.hasher.hash128(probe.hash);
+    }
+
+    private long position(long[] hash, int i) {
+        // Kirsch-Mitzenmacher: g_i(x) = h1(x) + i * h2(x)
+        return ((hash[0] + i * hash[1]) & Long.MAX_VALUE) % bitSetSize;
+    }
+
+    private boolean addHash(long[] hash) {
+        boolean changed = false;
+        for (int i = 0; i < k; i++) {
+            changed |= setBit(position(hash, i));
+        }
+        if (changed) {
+            numberOfAddedElements.increment();
+        }
+        return changed;
+    }
+
+    private boolean containsHash(long[] hash) {
+        for (int i = 0; i < k; i++) {
+            if (!getBit(position(hash, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds an object to the Bloom filter. The output from the object's
+     * toString() method is used as input to the hash function.
+     *
+     * @param element is an element to register in the Bloom filter.
+     * @return true if the element was definitely not in the filter before.
+     */
+    public boolean add(E element) {
+        return addHash(hashElement(element));
+    }
+
+    /**
+     * Adds an array of bytes to the Bloom filter.
+     *
+     * @param bytes array of bytes to add to the Bloom filter.
+     * @return true if the bytes were definitely not in the filter before.
+     */
+    public boolean add(byte[] bytes) {
+        return addHash(hash(bytes));
+    }
+
+    /**
+     * Adds all elements from a Collection to the Bloom filter.
+     * @param c Collection of elements.
+     */
+    public void addAll(Collection<? extends E> c) {
+        for (E element : c)
+            add(element);
+    }
+
+    /**
+     * Returns true if the element could have been inserted into the Bloom filter.
+     *
+     * @param element element to check.
+     * @return true if the element could have been inserted into the Bloom filter.
+     */
+    public boolean contains(E element) {
+        return containsHash(hashElement(element));
+    }
+
+    /**
+     * Returns true if the array of bytes could have been inserted into the Bloom filter.
+     *
+     * @param bytes array of bytes to check.
+     * @return true if the array could have been inserted into the Bloom filter.
+     */
+    public boolean contains(byte[] bytes) {
+        return containsHash(hash(bytes));
+    }
+
+    /**
+     * Sets all bits to false in the Bloom filter. Must not run concurrently
+     * with add().
+     */
+    public void clear() {
+        long count = wordCount(bitSetSize);
+        for (int i = 0; i < count; i++) {
+            if (words != null) {
+                words.set(i, 0);
+            } else {
+                mappedWords.put(i, 0);
+            }
+        }
+        numberOfAddedElements.reset();
+    }
+
+    /**
+     * Calculate the probability of a false positive given the specified
+     * number of inserted elements.
+     *
+     * @param numberOfElements number of inserted elements.
+     * @return probability of a false positive.
+     */
+    public double getFalsePositiveProbability(double numberOfElements) {
+        // (1 - e^(-k * n / m)) ^ k
+        return Math.pow((1 - Math.exp(-k * numberOfElements / (double) bitSetSize)), k);
+    }
+
+    /**
+     * Get the current probability of a false positive. The probability is calculated from
+     * the size of the Bloom filter and the current number of elements added to it.
+     *
+     * @return probability of false positives.
+     */
+    public double getFalsePositiveProbability() {
+        return getFalsePositiveProbability(count());
+    }
+
+    /**
+     * @return the number of hash functions.
+     */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Returns the number of bits in the Bloom filter. Use count() to retrieve
+     * the number of inserted elements.
+     *
+     * @return the size of the bitset used by the Bloom filter.
+     */
+    public long size() {
+        return bitSetSize;
+    }
+
+    /**
+     * Returns the number of elements added to the Bloom filter. Elements that
+     * did not change any bit when added are not counted.
+     *
+     * @return number of elements added to the Bloom filter.
+     */
+    public long count() {
+        return numberOfAddedElements.sum();
+    }
+
+    /**
+     * @return the expected number of elements the filter was sized for.
+     */
+    public int getExpectedNumberOfElements() {
+        return expectedNumberOfFilterElements;
+    }
+}
@@ -20,7 +20,6 @@
 package spade.core;
 
 import org.apache.commons.codec.binary.Hex;
-import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.core.KeywordAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
@@ -77,14 +76,10 @@ public class Graph extends AbstractStorage implements Serializable
 	
     private static final Logger logger = Logger.getLogger(Graph.class.getName());
     private static final int MAX_QUERY_HITS = 1000;
-    private static final String SRC_VERTEX_ID = "SRC_VERTEX_ID";
-    private static final String DST_VERTEX_ID = "DST_VERTEX_ID";
 
     private static final Pattern nodePattern = Pattern.compile("\"(.*)\" \\[label=\"(.*)\" shape=\"(\\w*)\" fillcolor=\"(\\w*)\"", Pattern.DOTALL);
     private static final Pattern edgePattern = Pattern.compile("\"(.*)\" -> \"(.*)\" \\[label=\"(.*)\" color=\"(\\w*)\"", Pattern.DOTALL);
 
-    private transient Analyzer analyzer = new KeywordAnalyzer();
-    private transient QueryParser queryParser = new QueryParser(null, analyzer);
     private Set<AbstractVertex> vertexSet = new LinkedHashSet<>();
     private Map<String, AbstractVertex> vertexIdentifiers = new HashMap<>();
     private Map<AbstractVertex, String> reverseVertexIdentifiers = new HashMap<>();
@@ -92,16 +87,18 @@ public class Graph extends AbstractStorage implements Serializable
     private Map<String, AbstractEdge> edgeIdentifiers = new HashMap<>();
     private Map<AbstractEdge, String> reverseEdgeIdentifiers = new HashMap<>();
     private Map<AbstractVertex, Integer> networkMap = new HashMap<>();
-    private int serial_number = 1;
     /**
      * For query results spanning multiple hosts, this is used to indicate
      * whether the network boundaries have been properly transformed.
      */
     public boolean transformed = false;
-    private Directory vertexIndex;
-    private Directory edgeIndex;
-    private transient IndexWriter vertexIndexWriter;
-    private transient IndexWriter edgeIndexWriter;
+    /**
+     * Lucene index of the vertices. Most graphs are never searched, so it is
+     * built by the first search and dropped whenever the graph changes.
+     */
+    private transient Directory vertexIndex;
+    // vertices in the order of their ids in the index
+    private transient List<AbstractVertex> indexedVertices;
 
     /**
      * Fields for discrepancy check and query params
@@ -127,16 +124,6 @@ public class Graph extends AbstractStorage implements Serializable
      * An empty constructor.
      */
     public Graph() {
-        // Lucene initialization
-        try {
-            vertexIndex = new RAMDirectory();
-            edgeIndex = new RAMDirectory();
-            vertexIndexWriter = new IndexWriter(vertexIndex, new IndexWriterConfig(analyzer));
-            edgeIndexWriter = new IndexWriter(edgeIndex, new IndexWriterConfig(analyzer));
-            queryParser.setAllowLeadingWildcard(true);
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
-        }
     }
 
     public String getHash(AbstractVertex vertex)
@@ -175,30 +162,11 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
-        // Add vertex to Lucene index
-        try
-        {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(PRIMARY_KEY, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            // vertexIndexWriter.addDocument(doc);
-            // vertexIndexWriter.commit();
-
-            String hashCode = incomingVertex.bigHashCode();
-            vertexIdentifiers.put(hashCode, incomingVertex);
-            reverseVertexIdentifiers.put(incomingVertex, hashCode);
-            vertexSet.add(incomingVertex);
-            serial_number++;
-        }
-        catch (Exception exception)
-        {
-            logger.log(Level.SEVERE, null, exception);
-        }
+        String hashCode = incomingVertex.bigHashCode();
+        vertexIdentifiers.put(hashCode, incomingVertex);
+        reverseVertexIdentifiers.put(incomingVertex, hashCode);
+        vertexSet.add(incomingVertex);
+        dropIndex();
         return true;
     }
 
@@ -222,33 +190,11 @@ public class Graph extends AbstractStorage implements Serializable
         {
             return false;
         }
-        // Add edge to Lucene index
-        try
-        {
-            Document doc = new Document();
-            for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet())
-            {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                doc.add(new Field(key, value, Field.Store.YES, Field.Index.ANALYZED));
-            }
-            doc.add(new Field(PRIMARY_KEY, Integer.toString(serial_number), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(SRC_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getChildVertex()), Field.Store.YES, Field.Index.ANALYZED));
-            doc.add(new Field(DST_VERTEX_ID, reverseVertexIdentifiers.get(incomingEdge.getParentVertex()), Field.Store.YES, Field.Index.ANALYZED));
-//            edgeIndexWriter.addDocument(doc);
-//            edgeIndexWriter.commit();
-
-            //String hashCode = incomingEdge.getChildVertex().bigHashCode() + incomingEdge.getParentVertex().bigHashCode();
-            String hashCode = incomingEdge.bigHashCode();
-            edgeIdentifiers.put(hashCode, incomingEdge);
-            reverseEdgeIdentifiers.put(incomingEdge, hashCode);
-            edgeSet.add(incomingEdge);
-            serial_number++;
-        }
-        catch (Exception exception)
-        {
-            logger.log(Level.SEVERE, null, exception);
-        }
+        //String hashCode = incomingEdge.getChildVertex().bigHashCode() + incomingEdge.getParentVertex().bigHashCode();
+        String hashCode = incomingEdge.bigHashCode();
+        edgeIdentifiers.put(hashCode, incomingEdge);
+        reverseEdgeIdentifiers.put(incomingEdge, hashCode);
+        edgeSet.add(incomingEdge);
         return true;
     }
 
@@ -262,7 +208,6 @@ public class Graph extends AbstractStorage implements Serializable
         edgeIdentifiers.remove(hashCode);
         reverseEdgeIdentifiers.remove(edge);
         edgeSet.remove(edge);
-        serial_number--;
         return true;
     }
 
@@ -274,7 +219,7 @@ public class Graph extends AbstractStorage implements Serializable
         vertexIdentifiers.remove(hashCode);
         reverseVertexIdentifiers.remove(vertex);
         vertexSet.remove(vertex);
-        serial_number--;
+        dropIndex();
         return true;
     }
 
@@ -291,6 +236,7 @@ public class Graph extends AbstractStorage implements Serializable
         vertexIdentifiers.put(newhash, vertex);
 
         reverseVertexIdentifiers.put(vertex, newhash);
+        dropIndex();
         return true;
     }
 
@@ -330,13 +276,46 @@ public class Graph extends AbstractStorage implements Serializable
 
     }
 
+    /**
+     * Makes the current contents searchable. The index is built by the next
+     * search, so this only drops an index built before vertices were added
+     * directly to vertexSet().
+     */
     public void commitIndex() {
+        dropIndex();
+    }
+
+    private void dropIndex() {
+        vertexIndex = null;
+        indexedVertices = null;
+    }
+
+    /**
+     * Builds the Lucene index of the vertices if it is not built yet.
+     * The id of a vertex is its position in vertexSet() starting at 1.
+     */
+    private void buildIndex() throws IOException {
+        if (vertexIndex != null) {
+            return;
+        }
+        Directory directory = new RAMDirectory();
+        List<AbstractVertex> vertices = new ArrayList<>(vertexSet);
+        IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig(new KeywordAnalyzer()));
         try {
-            vertexIndexWriter.commit();
-            edgeIndexWriter.commit();
-        } catch (Exception exception) {
-            logger.log(Level.SEVERE, null, exception);
+            for (int i = 0; i < vertices.size(); i++) {
+                Document doc = new Document();
+                for (Map.Entry<String, String> currentEntry : vertices.get(i).getAnnotations().entrySet()) {
+                    doc.add(new Field(currentEntry.getKey(), currentEntry.getValue(), Field.Store.YES, Field.Index.ANALYZED));
+                }
+                doc.add(new Field(PRIMARY_KEY, Integer.toString(i + 1), Field.Store.YES, Field.Index.ANALYZED));
+                writer.addDocument(doc);
+            }
+            writer.commit();
+        } finally {
+            writer.close();
         }
+        vertexIndex = directory;
+        indexedVertices = vertices;
     }
 
     /**
@@ -455,7 +434,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -471,19 +449,20 @@ public class Graph extends AbstractStorage implements Serializable
     public static Graph union(Graph graph1, Graph graph2)
     {
         Graph resultGraph = new Graph();
-        Set<AbstractVertex> vertices = new HashSet<>();
-        Set<AbstractEdge> edges = new HashSet<>();
-
-        vertices.addAll(graph1.vertexSet());
-        vertices.addAll(graph2.vertexSet());
-        edges.addAll(graph1.edgeSet());
-        edges.addAll(graph2.edgeSet());
-
-        for (AbstractVertex vertex : vertices)
+        // putVertex and putEdge skip the elements already added
+        for (AbstractVertex vertex : graph1.vertexSet())
         {
             resultGraph.putVertex(vertex);
         }
-        for (AbstractEdge edge : edges)
+        for (AbstractVertex vertex : graph2.vertexSet())
+        {
+            resultGraph.putVertex(vertex);
+        }
+        for (AbstractEdge edge : graph1.edgeSet())
+        {
+            resultGraph.putEdge(edge);
+        }
+        for (AbstractEdge edge : graph2.edgeSet())
         {
             resultGraph.putEdge(edge);
         }
@@ -492,11 +471,25 @@ public class Graph extends AbstractStorage implements Serializable
         resultGraph.networkMap.putAll(graph1.networkMap());
         resultGraph.networkMap.putAll(graph2.networkMap());
 
-        resultGraph.commitIndex();
-
         return resultGraph;
     }
 
+    /**
+     * @return a new graph with the same vertices, edges, network map and query
+     * fields, so that changes to either graph do not show in the other
+     */
+    public Graph copy()
+    {
+        Graph copy = Graph.union(this, new Graph());
+        copy.hostName = hostName;
+        copy.computeTime = computeTime;
+        copy.maxDepth = maxDepth;
+        copy.rootVertex = rootVertex;
+        copy.destinationVertex = destinationVertex;
+        copy.signature = signature;
+        return copy;
+    }
+
     /**
      * This method is used to create a new graph obtained by removing all
      * elements of the second graph from the first graph given as inputs.
@@ -530,7 +523,6 @@ public class Graph extends AbstractStorage implements Serializable
             resultGraph.putEdge(edge);
         }
 
-        resultGraph.commitIndex();
         return resultGraph;
     }
 
@@ -538,6 +530,7 @@ public class Graph extends AbstractStorage implements Serializable
     {
         vertexSet.removeAll(graph.vertexSet());
         edgeSet.removeAll(graph.edgeSet());
+        dropIndex();
     }
 
     public static Graph importGraph(String path) {
@@ -564,7 +557,6 @@ public class Graph extends AbstractStorage implements Serializable
         } catch (Exception exception) {
             exception.printStackTrace();
         }
-        result.commitIndex();
         return result;
     }
 
@@ -814,6 +806,9 @@ public class Graph extends AbstractStorage implements Serializable
     public List<Integer> listVertices(String expression) {
         try {
             List<Integer> results = new ArrayList<>();
+            buildIndex();
+            QueryParser queryParser = new QueryParser(null, new KeywordAnalyzer());
+            queryParser.setAllowLeadingWildcard(true);
             IndexReader reader = DirectoryReader.open(vertexIndex);
             IndexSearcher searcher = new IndexSearcher(reader);
             ScoreDoc[] hits = searcher.search(queryParser.parse(expression), MAX_QUERY_HITS).scoreDocs;
@@ -832,6 +827,15 @@ public class Graph extends AbstractStorage implements Serializable
         }
     }
 
+    /**
+     * @param id id of a vertex returned by listVertices
+     * @return the vertex OR NULL if the id is not valid or the graph has changed since
+     */
+    public AbstractVertex getVertex(int id) {
+        List<AbstractVertex> vertices = indexedVertices;
+        return (vertices != null && id >= 1 && id <= vertices.size()) ? vertices.get(id - 1) : null;
+    }
+
     /**
      * This function queries the underlying storage and retrieves the edge
      * matching the given criteria.
@@ -990,8 +994,6 @@ public class Graph extends AbstractStorage implements Serializable
 
     public Graph getLineage(String vertexExpression, Integer depth, String direction, String terminatingExpression) {return null; }
 
-    public AbstractVertex getVertex(int id) {return null; }
-
     public String getHostName()
     {
         return hostName;
@@ -0,0 +1,122 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.digest.DigestUtils;
+
+import spade.utility.Murmur3;
+
+/**
+ * The function used by bigHashCode() of vertices and edges.
+ *
+ * MD5 hashes the toString() of the element and is what existing databases
+ * were built with. MURMUR3 streams the annotation keys and values straight
+ * into a 128-bit MurmurHash3 without building the string. Both produce 16
+ * bytes (32 hex characters) so storages keep the same column widths. The
+ * function is selected with 'hash_function' in the Kernel config and must
+ * not be changed for an existing database.
+ */
+public enum HashFunction
+{
+    MD5, MURMUR3;
+
+    private static final HashFunction configured = load();
+
+    private static HashFunction load()
+    {
+        String value = Settings.getProperty("hash_function");
+        if(value != null && !value.trim().isEmpty())
+        {
+            try
+            {
+                return HashFunction.valueOf(value.trim().toUpperCase());
+            }
+            catch(IllegalArgumentException exception)
+            {
+                Logger.getLogger(HashFunction.class.getName()).log(Level.WARNING,
+                        "Invalid hash_function ''{0}''. Using ''md5''", value);
+            }
+        }
+        return MD5;
+    }
+
+    /**
+     * @return The hash function selected in the Kernel config.
+     */
+    public static HashFunction getConfigured()
+    {
+        return configured;
+    }
+
+    byte[] hashVertex(AbstractVertex vertex, Map<String, String> annotations)
+    {
+        switch(this)
+        {
+            case MURMUR3:
+                Murmur3 murmur3 = new Murmur3();
+                putAnnotations(murmur3, annotations);
+                return murmur3.hash128Bytes();
+            case MD5:
+            default:
+                return DigestUtils.md5(vertex.toString());
+        }
+    }
+
+    byte[] hashEdge(AbstractEdge edge, Map<String, String> annotations, byte[] childHash, byte[] parentHash)
+    {
+        switch(this)
+        {
+            case MURMUR3:
+                Murmur3 murmur3 = new Murmur3();
+                putAnnotations(murmur3, annotations);
+                // Missing end points are hashed as an empty array to stay distinct
+                // from present ones
+                murmur3.putInt(childHash == null ? 0 : childHash.length);
+                if(childHash != null)
+                {
+                    murmur3.putBytes(childHash);
+                }
+                murmur3.putInt(parentHash == null ? 0 : parentHash.length);
+                if(parentHash != null)
+                {
+                    murmur3.putBytes(parentHash);
+                }
+                return murmur3.hash128Bytes();
+            case MD5:
+            default:
+                return DigestUtils.md5(edge.toString());
+        }
+    }
+
+    // Iteration order of the sorted map makes the hash independent of insertion order
+    private static void putAnnotations(Murmur3 murmur3, Map<String, String> annotations)
+    {
+        murmur3.putInt(annotations.size());
+        for(Map.Entry<String, String> entry : annotations.entrySet())
+        {
+            murmur3.putString(entry.getKey());
+            murmur3.putString(entry.getValue());
+        }
+    }
+}
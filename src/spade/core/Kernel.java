@@ -47,6 +47,10 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.FileHandler;
 import java.util.logging.Handler;
 import java.util.logging.Level;
@@ -61,6 +65,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManagerFactory;
 
 import spade.filter.FinalCommitFilter;
+import spade.utility.CommonFunctions;
 import spade.utility.LogManager;
 
 /**
@@ -186,7 +191,23 @@ public class Kernel
     private static Set<AbstractStorage> removeStorages;
     private static Set<AbstractAnalyzer> removeAnalyzers;
 
+    /**
+     * Members for dispatching buffer elements to the filter list
+     */
+    private static List<PipelineWorker> pipelineWorkers;
+    private static Map<AbstractReporter, PipelineWorker> reporterWorkers;
+    private static Map<AbstractStorage, StorageWorker> storageWorkers;
+    // Held for reading (parallel) or writing (exclusive) while elements are in
+    // the filter list, and for writing while the filter list or storages change
+    private static final ReadWriteLock pipelineLock = new ReentrantReadWriteLock();
+    private static volatile boolean filtersThreadSafe;
+    private static int dispatcherThreads;
+    private static int nextPipelineWorker;
+
     private static final int BATCH_BUFFER_ELEMENTS = 1000000;
+    private static final int DISPATCH_CHUNK_ELEMENTS = 4096;
+    private static final int DEFAULT_DISPATCHER_THREADS = 1;
+    private static final int DEFAULT_STORAGE_QUEUE_CAPACITY = 65536;
     private static final int MAIN_THREAD_SLEEP_DELAY = 10;
     private static final int REMOVE_WAIT_DELAY = 100;
     private static final int FIRST_FILTER = 0;
@@ -339,6 +360,9 @@ public class Kernel
         sketches = Collections.synchronizedSet(new HashSet<AbstractSketch>());
         remoteSketches = Collections.synchronizedMap(new HashMap<String, AbstractSketch>());
         serverSockets = Collections.synchronizedList(new LinkedList<ServerSocket>());
+        pipelineWorkers = Collections.synchronizedList(new LinkedList<PipelineWorker>());
+        reporterWorkers = new ConcurrentHashMap<>();
+        storageWorkers = new ConcurrentHashMap<>();
 
         removeReporters = Collections.synchronizedSet(new HashSet<AbstractReporter>());
         removeStorages = Collections.synchronizedSet(new HashSet<AbstractStorage>());
@@ -354,7 +378,9 @@ public class Kernel
         FinalCommitFilter commitFilter = new FinalCommitFilter();
         commitFilter.storages = storages;
         commitFilter.sketches = sketches;
+        commitFilter.storageWorkers = storageWorkers;
         filters.add(commitFilter);
+        filtersThreadSafe = commitFilter.isThreadSafe();
 
         // The final transformer is used to send vertex and edge objects to
         // their corresponding result Graph.
@@ -363,18 +389,68 @@ public class Kernel
     }
 
     /**
-     * Initialize the main thread. This thread performs critical
-     * provenance-related work inside SPADE.
-     * It extracts provenance objects (vertices, edges) from the
-     * buffers, adds the source_reporter annotation to each object which is
-     * class name of the reporter, and then sends these objects to the filter list.
-     * This thread is also used for cleanly removing reporters and storages
-     * through the control commands and also when shutting down. This is done by
-     * ensuring that once a reporter is marked for removal, the provenance objects from
-     * its buffer are completely flushed.
+     * Creates the buffer for a newly added reporter. A bounded ring is used
+     * when 'buffer_capacity' is set to a positive value in the Kernel config,
+     * otherwise the reporter gets an unbounded buffer.
+     *
+     * @return The buffer to be set for the reporter.
+     */
+    private static Buffer createBuffer()
+    {
+        int capacity = CommonFunctions.parseInt(Settings.getProperty("buffer_capacity"), 0);
+        if (capacity <= 0)
+        {
+            return new Buffer();
+        }
+        int highWaterMark = CommonFunctions.parseInt(Settings.getProperty("buffer_high_water_mark"), capacity);
+        RingBuffer.OverflowPolicy overflowPolicy = RingBuffer.OverflowPolicy.BLOCK;
+        String overflowPolicyValue = Settings.getProperty("buffer_overflow_policy");
+        if (overflowPolicyValue != null)
+        {
+            try
+            {
+                overflowPolicy = RingBuffer.OverflowPolicy.valueOf(overflowPolicyValue.trim().toUpperCase());
+            }
+            catch (IllegalArgumentException exception)
+            {
+                logger.log(Level.WARNING, "Invalid buffer_overflow_policy ''{0}''. Using ''block''", overflowPolicyValue);
+            }
+        }
+        return new RingBuffer(capacity, highWaterMark, overflowPolicy);
+    }
+
+    /**
+     * Initialize the main thread and the pipeline workers.
+     * The pipeline workers perform the critical provenance-related work inside
+     * SPADE. They extract provenance objects (vertices, edges) from the
+     * reporter buffers and send them to the filter list. A worker sleeps
+     * while its buffers are empty and is woken up by the buffer as soon as the
+     * reporter puts an element.
+     * With the default 'dispatcher_threads' of 1 a single worker serves all
+     * reporters. A larger value creates that many workers and spreads the
+     * reporters over them, and 0 gives every reporter its own worker. Elements
+     * from different workers only go through the filter list at the same time
+     * if all filters are thread-safe, otherwise the workers take turns.
+     * The main thread is used for flushing transactions and for cleanly removing
+     * storages and analyzers through the control commands. Reporters are removed
+     * once the worker draining them has completely flushed their buffer.
      */
     private static void registerMainThread()
     {
+        dispatcherThreads = CommonFunctions.parseInt(Settings.getProperty("dispatcher_threads"), DEFAULT_DISPATCHER_THREADS);
+        if (dispatcherThreads < 0)
+        {
+            logger.log(Level.WARNING, "Invalid dispatcher_threads ''{0}''. Using {1}",
+                    new Object[]{dispatcherThreads, DEFAULT_DISPATCHER_THREADS});
+            dispatcherThreads = DEFAULT_DISPATCHER_THREADS;
+        }
+        for (int i = 0; i < dispatcherThreads; i++)
+        {
+            PipelineWorker worker = new PipelineWorker("pipelineSPADE-Thread-" + i, false);
+            pipelineWorkers.add(worker);
+            worker.start();
+        }
+
         Runnable mainRunnable = new Runnable()
         {
             @Override
@@ -386,13 +462,20 @@ public class Kernel
                     {
                         if (flushTransactions)
                         {
-                            // Flushing of transactions is also handled by this thread to ensure that
-                            // there are no errors/problems when using storages that are sensitive to
-                            // thread-context for their transactions.
-                            // For example, this is true for the embedded neo4j graph database.
-                            for (AbstractStorage currentStorage : storages)
+                            // Storages that are sensitive to thread-context for their
+                            // transactions (e.g. the embedded neo4j graph database) are
+                            // flushed on their own storage thread.
+                            pipelineLock.writeLock().lock();
+                            try
+                            {
+                                for (AbstractStorage currentStorage : storages)
+                                {
+                                    flushStorage(currentStorage);
+                                }
+                            }
+                            finally
                             {
-                                currentStorage.flushTransactions();
+                                pipelineLock.writeLock().unlock();
                             }
                             flushTransactions = false;
                         }
@@ -400,13 +483,22 @@ public class Kernel
                         if (!removeStorages.isEmpty())
                         {
                             // Check if a storage is marked for removal.
-                            // If it is, shut it down and remove it from the list.
-                            Iterator<AbstractStorage> iterator = removeStorages.iterator();
-                            while(iterator.hasNext())
+                            // If it is, remove it from the list and shut it down.
+                            pipelineLock.writeLock().lock();
+                            try
                             {
-                                AbstractStorage currentStorage = iterator.next();
-                                currentStorage.shutdown();
-                                iterator.remove();
+                                Iterator<AbstractStorage> iterator = removeStorages.iterator();
+                                while(iterator.hasNext())
+                                {
+                                    AbstractStorage currentStorage = iterator.next();
+                                    storages.remove(currentStorage);
+                                    shutdownStorage(currentStorage);
+                                    iterator.remove();
+                                }
+                            }
+                            finally
+                            {
+                                pipelineLock.writeLock().unlock();
                             }
                         }
                         if (!removeAnalyzers.isEmpty())
@@ -422,36 +514,6 @@ public class Kernel
                             }
                         }
 
-                        for (AbstractReporter reporter : reporters)
-                        {
-                            // This loop performs the actual task of committing provenance data to
-                            // the storages. Each reporter is selected and the nested loop is used to
-                            // extract buffer elements in a batch manner for increased efficiency.
-                            // The elements are then passed to the filter list.
-                            Buffer buffer = reporter.getBuffer();
-                            for (int i = 0; i < BATCH_BUFFER_ELEMENTS; i++)
-                            {
-                                Object bufferElement = buffer.getBufferElement();
-                                if (bufferElement instanceof AbstractVertex)
-                                {
-                                    AbstractVertex tempVertex = (AbstractVertex) bufferElement;
-                                    filters.get(FIRST_FILTER).putVertex(tempVertex);
-                                }
-                                else if (bufferElement instanceof AbstractEdge)
-                                {
-                                    AbstractEdge tempEdge = (AbstractEdge) bufferElement;
-                                    filters.get(FIRST_FILTER).putEdge(tempEdge);
-                                }
-                                else if (bufferElement == null)
-                                {
-                                    if (removeReporters.contains(reporter))
-                                    {
-                                        removeReporters.remove(reporter);
-                                    }
-                                    break;
-                                }
-                            }
-                        }
                         Thread.sleep(MAIN_THREAD_SLEEP_DELAY);
                     }
                 }
@@ -465,6 +527,160 @@ public class Kernel
         mainThread.start();
     }
 
+    /**
+     * Assigns a newly added reporter to a pipeline worker.
+     *
+     * @param reporter The reporter whose buffer needs to be drained.
+     */
+    private static void assignPipelineWorker(AbstractReporter reporter)
+    {
+        PipelineWorker worker;
+        if (dispatcherThreads == 0)
+        {
+            worker = new PipelineWorker("pipelineSPADE-Thread-" + reporter.getClass().getSimpleName(), true);
+            worker.start();
+        }
+        else
+        {
+            synchronized (pipelineWorkers)
+            {
+                worker = pipelineWorkers.get(nextPipelineWorker % pipelineWorkers.size());
+                nextPipelineWorker++;
+            }
+        }
+        reporterWorkers.put(reporter, worker);
+        worker.addReporter(reporter);
+    }
+
+    /**
+     * Extracts elements from the reporter's buffer in a batch manner and
+     * passes them to the filter list. Only called by the pipeline worker that
+     * the reporter is assigned to.
+     *
+     * @param reporter The reporter whose buffer is to be drained.
+     * @return The number of elements passed to the filter list.
+     */
+    static int drainBuffer(AbstractReporter reporter)
+    {
+        Buffer buffer = reporter.getBuffer();
+        int drained = 0;
+        while (drained < BATCH_BUFFER_ELEMENTS)
+        {
+            boolean parallel = filtersThreadSafe;
+            Lock lock = parallel ? pipelineLock.readLock() : pipelineLock.writeLock();
+            lock.lock();
+            try
+            {
+                if (parallel && !filtersThreadSafe)
+                {
+                    // The filter list changed while waiting for the lock
+                    continue;
+                }
+                AbstractFilter firstFilter = filters.get(FIRST_FILTER);
+                int chunkEnd = Math.min(drained + DISPATCH_CHUNK_ELEMENTS, BATCH_BUFFER_ELEMENTS);
+                while (drained < chunkEnd)
+                {
+                    Object bufferElement = buffer.getBufferElement();
+                    if (bufferElement instanceof AbstractVertex)
+                    {
+                        AbstractVertex tempVertex = (AbstractVertex) bufferElement;
+                        firstFilter.putVertex(tempVertex);
+                    }
+                    else if (bufferElement instanceof AbstractEdge)
+                    {
+                        AbstractEdge tempEdge = (AbstractEdge) bufferElement;
+                        firstFilter.putEdge(tempEdge);
+                    }
+                    else if (bufferElement == null)
+                    {
+                        if (removeReporters.contains(reporter))
+                        {
+                            removeReporters.remove(reporter);
+                        }
+                        return drained;
+                    }
+                    drained++;
+                }
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        return drained;
+    }
+
+    /**
+     * Recomputes whether the filter list can be run in parallel. Must be
+     * called with the pipeline write lock held after the list changes.
+     */
+    private static void updateFiltersThreadSafe()
+    {
+        boolean threadSafe = true;
+        synchronized (filters)
+        {
+            for (AbstractFilter filter : filters)
+            {
+                threadSafe = threadSafe && filter.isThreadSafe();
+            }
+        }
+        filtersThreadSafe = threadSafe;
+    }
+
+    /**
+     * Creates the storage thread and queue for a storage. Every storage gets
+     * one unless 'storage_fan_out' is false in the Kernel config, in which case
+     * only storages that are thread-affine get one and the rest are committed
+     * to directly by the pipeline workers.
+     *
+     * @param storage The storage that was just initialized.
+     */
+    private static void registerStorageWorker(AbstractStorage storage)
+    {
+        String fanOutValue = Settings.getProperty("storage_fan_out");
+        boolean fanOut = fanOutValue == null || Boolean.parseBoolean(fanOutValue.trim());
+        if (fanOut || storage.isThreadAffine())
+        {
+            int queueCapacity = CommonFunctions.parseInt(Settings.getProperty("storage_queue_capacity"), DEFAULT_STORAGE_QUEUE_CAPACITY);
+            StorageWorker worker = new StorageWorker(storage, queueCapacity > 0 ? queueCapacity : DEFAULT_STORAGE_QUEUE_CAPACITY);
+            worker.start();
+            storageWorkers.put(storage, worker);
+        }
+    }
+
+    private static void flushStorage(final AbstractStorage storage)
+    {
+        StorageWorker worker = storageWorkers.get(storage);
+        if (worker == null)
+        {
+            storage.flushTransactions();
+        }
+        else
+        {
+            worker.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    storage.flushTransactions();
+                }
+            });
+        }
+    }
+
+    private static void shutdownStorage(AbstractStorage storage)
+    {
+        StorageWorker worker = storageWorkers.remove(storage);
+        if (worker == null)
+        {
+            storage.shutdown();
+        }
+        else
+        {
+            worker.shutdown();
+        }
+    }
+
     /**
      * Register a SHUTDOWN hook to terminate gracefully
      */
@@ -809,7 +1025,7 @@ public class Kernel
                     return;
                 }
                 // Create a new buffer and allocate it to this reporter.
-                Buffer buffer = new Buffer();
+                Buffer buffer = createBuffer();
                 reporter.setBuffer(buffer);
                 if (reporter.launch(arguments))
                 {
@@ -819,6 +1035,7 @@ public class Kernel
                     // SPADE thread to extract buffer elements.
                     reporter.arguments = arguments;
                     reporters.add(reporter);
+                    assignPipelineWorker(reporter);
                     logger.log(Level.INFO, "Reporter added: {0}", className + " " + arguments);
                     outputStream.println("done");
                 }
@@ -885,7 +1102,16 @@ public class Kernel
                         storage.arguments = arguments;
                         storage.vertexCount = 0;
                         storage.edgeCount = 0;
-                        storages.add(storage);
+                        registerStorageWorker(storage);
+                        pipelineLock.writeLock().lock();
+                        try
+                        {
+                            storages.add(storage);
+                        }
+                        finally
+                        {
+                            pipelineLock.writeLock().unlock();
+                        }
                         logger.log(Level.INFO, "Storage added: {0}", className + " " + arguments);
                         logger.log(Level.INFO, "currentStorage set to "+ storage.getClass().getName());
                         outputStream.println("done");
@@ -949,18 +1175,27 @@ public class Kernel
 	                    outputStream.println("error: Invalid position");
 	                    return;
 	                }
-	                // Set the next filter of this newly added filter.
-	                filter.setNextFilter((AbstractFilter) filters.get(index));
-	                if (index > 0)
+	                pipelineLock.writeLock().lock();
+	                try
+	                {
+	                    // Set the next filter of this newly added filter.
+	                    filter.setNextFilter((AbstractFilter) filters.get(index));
+	                    if (index > 0)
+	                    {
+	                        // If the newly added filter is not the first in the list, then
+	                        // then configure the previous filter in the list to point to
+	                        // this
+	                        // newly added filter as its next.
+	                        ((AbstractFilter) filters.get(index - 1)).setNextFilter(filter);
+	                    }
+
+	                    filters.add(index, filter);
+	                    updateFiltersThreadSafe();
+	                }
+	                finally
 	                {
-	                    // If the newly added filter is not the first in the list, then
-	                    // then configure the previous filter in the list to point to
-	                    // this
-	                    // newly added filter as its next.
-	                    ((AbstractFilter) filters.get(index - 1)).setNextFilter(filter);
+	                    pipelineLock.writeLock().unlock();
 	                }
-	
-	                filters.add(index, filter);
 	                logger.log(Level.INFO, "Filter added: {0}", className + " " + arguments);
 	                outputStream.println("done");
                 }else{
@@ -1098,6 +1333,11 @@ public class Kernel
                         outputStream.print(" (" + arguments + ")");
                     }
                     outputStream.println();
+                    Buffer buffer = reporter.getBuffer();
+                    if (buffer != null)
+                    {
+                        outputStream.println("\t   buffer: " + buffer.getStatistics());
+                    }
                     count++;
                 }
 
@@ -1136,6 +1376,16 @@ public class Kernel
                         outputStream.print(" (" + arguments + ")");
                     }
                     outputStream.println();
+                    StorageWorker storageWorker = storageWorkers.get(storage);
+                    if (storageWorker != null)
+                    {
+                        outputStream.println("\t   queue: " + storageWorker.getStatistics());
+                    }
+                    if (storage.getElementCache() != null)
+                    {
+                        outputStream.println("\t   element cache: " + storage.getElementCache().getStatistics());
+                    }
+                    outputStream.println("\t   query cache: " + storage.getQueryCache().getStatistics());
                     count++;
                 }
 
@@ -1260,7 +1510,7 @@ public class Kernel
                         if (reporter.getClass().getSimpleName().equals(className))
                         {
                             // Mark the reporter for removal by adding it to the removeReporters set.
-                            // This will enable the main SPADE thread to cleanly flush the reporter
+                            // This will enable the pipeline worker to cleanly flush the reporter
                             // buffer and remove it.
                             reporter.shutdown();
                             removeReporters.add(reporter);
@@ -1272,6 +1522,11 @@ public class Kernel
                                 // Wait for other thread to safely remove reporter
                                 Thread.sleep(REMOVE_WAIT_DELAY);
                             }
+                            PipelineWorker worker = reporterWorkers.remove(reporter);
+                            if (worker != null)
+                            {
+                                worker.removeReporter(reporter);
+                            }
                             reporterIterator.remove();
                             logger.log(Level.INFO, "Reporter shut down: {0}", className);
                             outputStream.println("done");
@@ -1331,8 +1586,6 @@ public class Kernel
                                 // Mark the storage for removal by adding it to the removeStorages set.
                                 // This will enable the main SPADE thread to safely commit any transactions
                                 // and then remove the storage.
-                                long vertexCount = storage.vertexCount;
-                                long edgeCount = storage.edgeCount;
                                 removeStorages.add(storage);
                                 found = true;
                                 logger.log(Level.INFO, "Shutting down storage: {0}", className);
@@ -1343,7 +1596,11 @@ public class Kernel
                                     // Wait for other thread to safely remove storage
                                     Thread.sleep(REMOVE_WAIT_DELAY);
                                 }
-                                storageIterator.remove();
+                                // Read after the storage queue has been drained
+                                long vertexCount = storage.vertexCount;
+                                long edgeCount = storage.edgeCount;
+                                // The storage has already been taken out of the
+                                // storages set by the main thread
                                 logger.log(Level.INFO, "Storage shut down: {0} ({1} vertices and {2} edges were added)",
                                         new Object[]{className, vertexCount, edgeCount});
                                 outputStream.println("done (" + vertexCount + " vertices and " + edgeCount + " edges added)");
@@ -1372,18 +1629,27 @@ public class Kernel
                     className = filters.get(index - 1).getClass().getName();
                     logger.log(Level.INFO, "Removing filter {0}", className.split("\\.")[2]);
                     outputStream.print("Removing filter " + className.split("\\.")[2] + "... ");
-                    filters.get(index - 1).shutdown();
-                    if (index > 1)
+                    pipelineLock.writeLock().lock();
+                    try
+                    {
+                        filters.get(index - 1).shutdown();
+                        if (index > 1)
+                        {
+                            // Update the internal links between filters by calling the
+                            // setNextFilter
+                            // method on the filter just before the one being removed.
+                            // The (index-1)
+                            // check is used because this method is not to be called on
+                            // the first filter.
+                            (filters.get(index - 2)).setNextFilter(filters.get(index));
+                        }
+                        filters.remove(index - 1);
+                        updateFiltersThreadSafe();
+                    }
+                    finally
                     {
-                        // Update the internal links between filters by calling the
-                        // setNextFilter
-                        // method on the filter just before the one being removed.
-                        // The (index-1)
-                        // check is used because this method is not to be called on
-                        // the first filter.
-                        (filters.get(index - 2)).setNextFilter(filters.get(index));
+                        pipelineLock.writeLock().unlock();
                     }
-                    filters.remove(index - 1);
                     logger.log(Level.INFO, "Filter Removed: {0}", className.split("\\.")[2]);
                     outputStream.println("done");
 
@@ -1493,6 +1759,9 @@ public class Kernel
             }
         }
 
+        // Wait for the elements already taken out of the buffers to leave the
+        // filter list. The pipeline workers stay blocked from here on.
+        pipelineLock.writeLock().lock();
         // Shut down filters.
         for (int i = 0; i < filters.size() - 1; i++)
         {
@@ -1501,7 +1770,7 @@ public class Kernel
         // Shut down storages.
         for (AbstractStorage storage : storages)
         {
-            storage.shutdown();
+            shutdownStorage(storage);
         }
         // Shut down analzers.
         for(AbstractAnalyzer analyzer: analyzers)
@@ -0,0 +1,133 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A thread that drains the buffers of the reporters assigned to it and passes
+ * the elements to the filter list.
+ *
+ * When all of its buffers are empty the worker parks. The buffers wake it up
+ * as soon as a reporter puts an element, so there is no fixed polling delay
+ * on the ingest path. Each reporter is assigned to exactly one worker which
+ * keeps every buffer single-consumer.
+ */
+class PipelineWorker implements Runnable
+{
+    // Upper bound on a single park in case a wake-up is missed
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final List<AbstractReporter> reporters = new CopyOnWriteArrayList<>();
+    private final boolean dedicated;
+    private final Thread thread;
+    private volatile boolean idle = false;
+    private volatile boolean running = true;
+
+    private final Runnable wakeUp = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if(idle)
+            {
+                LockSupport.unpark(thread);
+            }
+        }
+    };
+
+    /**
+     * @param name Name of the thread.
+     * @param dedicated True if the worker serves only one reporter and must
+     * stop once that reporter is removed.
+     */
+    PipelineWorker(String name, boolean dedicated)
+    {
+        this.dedicated = dedicated;
+        this.thread = new Thread(this, name);
+    }
+
+    void start()
+    {
+        thread.start();
+    }
+
+    void addReporter(AbstractReporter reporter)
+    {
+        reporter.getBuffer().setArrivalListener(wakeUp);
+        reporters.add(reporter);
+        LockSupport.unpark(thread);
+    }
+
+    void removeReporter(AbstractReporter reporter)
+    {
+        reporters.remove(reporter);
+        reporter.getBuffer().setArrivalListener(null);
+        if(dedicated && reporters.isEmpty())
+        {
+            running = false;
+            LockSupport.unpark(thread);
+        }
+    }
+
+    int getReporterCount()
+    {
+        return reporters.size();
+    }
+
+    private boolean allBuffersEmpty()
+    {
+        for(AbstractReporter reporter : reporters)
+        {
+            if(!reporter.getBuffer().isEmpty())
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void run()
+    {
+        while(running)
+        {
+            int drained = 0;
+            for(AbstractReporter reporter : reporters)
+            {
+                drained += Kernel.drainBuffer(reporter);
+            }
+            if(drained == 0)
+            {
+                idle = true;
+                // Re-check after publishing the idle flag so that an element
+                // put in between is not left waiting for the timeout
+                if(running && allBuffersEmpty())
+                {
+                    LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+                }
+                idle = false;
+            }
+        }
+    }
+}
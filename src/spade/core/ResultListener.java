@@ -0,0 +1,44 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+/**
+ * Receives the vertices and edges of a query result as the query finds them.
+ *
+ * A query that reports to a listener does not need to keep what it reported
+ * in the graph it returns. The same vertex or edge may be reported more than
+ * once.
+ */
+public interface ResultListener
+{
+    void putVertex(AbstractVertex vertex);
+
+    void putEdge(AbstractEdge edge);
+
+    /**
+     * @return true if the receiver wants no more results. The query should
+     * stop as soon as it can.
+     */
+    boolean isStopped();
+
+    /**
+     * @return the number of vertices and edges after which the receiver
+     * stops, or null if there is no limit. Queries can pass it on to the
+     * storage.
+     */
+    Integer getLimit();
+}
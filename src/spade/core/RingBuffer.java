@@ -0,0 +1,212 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded buffer backed by a preallocated array used as a ring.
+ *
+ * Elements are taken out by a single consumer (the Kernel thread draining
+ * the reporter). Producers are serialized among themselves so reporters that
+ * emit from more than one thread remain safe. Once the number of elements in
+ * the ring reaches the high-water mark the producer is either blocked until
+ * the consumer catches up or the element is rejected and counted as dropped,
+ * depending on the overflow policy.
+ */
+public class RingBuffer extends Buffer {
+
+    /**
+     * What to do with an element that arrives when the ring is at its
+     * high-water mark.
+     */
+    public enum OverflowPolicy {
+        BLOCK, DROP
+    }
+
+    // Upper bound on a single wait so that a missed notification can never
+    // stall a producer for long
+    private static final long PRODUCER_WAIT_MILLIS = 10;
+
+    private final Object[] ring;
+    private final int mask;
+    private final int highWaterMark;
+    private final OverflowPolicy overflowPolicy;
+
+    // Index of the next element to read. Only written by the consumer.
+    private final AtomicLong head = new AtomicLong(0);
+    // Index of the next slot to write. Only written under producerLock.
+    private final AtomicLong tail = new AtomicLong(0);
+
+    private final Object producerLock = new Object();
+    private final Object notFull = new Object();
+    private volatile boolean producerWaiting = false;
+
+    private final AtomicLong putCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong blockedCount = new AtomicLong(0);
+    private volatile long peakOccupancy = 0;
+
+    /**
+     * Creates a ring that can hold at least the given number of elements.
+     *
+     * @param capacity Number of slots. Rounded up to the next power of two.
+     * @param highWaterMark Occupancy at which the overflow policy kicks in.
+     * Values outside (0, capacity] are treated as the capacity.
+     * @param overflowPolicy Whether to block the producer or drop the element.
+     */
+    public RingBuffer(int capacity, int highWaterMark, OverflowPolicy overflowPolicy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size = size << 1;
+        }
+        ring = new Object[size];
+        mask = size - 1;
+        this.highWaterMark = (highWaterMark <= 0 || highWaterMark > size) ? size : highWaterMark;
+        this.overflowPolicy = overflowPolicy == null ? OverflowPolicy.BLOCK : overflowPolicy;
+    }
+
+    @Override
+    public boolean putVertex(AbstractVertex incomingVertex) {
+        if (incomingVertex == null) {
+            return false;
+        } else {
+            boolean added = offer(incomingVertex);
+            signalArrival();
+            return added;
+        }
+    }
+
+    @Override
+    public boolean putEdge(AbstractEdge incomingEdge) {
+        if ((incomingEdge == null)
+                || (incomingEdge.getChildVertex() == null)
+                || (incomingEdge.getParentVertex() == null)) {
+            return false;
+        } else {
+            boolean added = offer(incomingEdge);
+            signalArrival();
+            return added;
+        }
+    }
+
+    private boolean offer(Object element) {
+        synchronized (producerLock) {
+            boolean blocked = false;
+            while (true) {
+                long currentTail = tail.get();
+                long occupancy = currentTail - head.get();
+                if (occupancy < highWaterMark) {
+                    ring[(int) (currentTail & mask)] = element;
+                    tail.lazySet(currentTail + 1);
+                    putCount.incrementAndGet();
+                    if (occupancy + 1 > peakOccupancy) {
+                        peakOccupancy = occupancy + 1;
+                    }
+                    return true;
+                }
+                if (overflowPolicy == OverflowPolicy.DROP) {
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
+                if (!blocked) {
+                    blocked = true;
+                    blockedCount.incrementAndGet();
+                }
+                try {
+                    synchronized (notFull) {
+                        producerWaiting = true;
+                        if (tail.get() - head.get() >= highWaterMark) {
+                            notFull.wait(PRODUCER_WAIT_MILLIS);
+                        }
+                    }
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread().interrupt();
+                    droppedCount.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+    }
+
+    @Override
+    public Object getBufferElement() {
+        long currentHead = head.get();
+        if (currentHead == tail.get()) {
+            return null;
+        }
+        int index = (int) (currentHead & mask);
+        Object element = ring[index];
+        ring[index] = null;
+        head.lazySet(currentHead + 1);
+        if (producerWaiting) {
+            synchronized (notFull) {
+                producerWaiting = false;
+                notFull.notifyAll();
+            }
+        }
+        return element;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return head.get() == tail.get();
+    }
+
+    @Override
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * @return Number of slots in the ring
+     */
+    public int getCapacity() {
+        return ring.length;
+    }
+
+    /**
+     * @return Number of elements rejected because of the overflow policy
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return Number of puts that had to wait for the consumer
+     */
+    public long getBlockedCount() {
+        return blockedCount.get();
+    }
+
+    @Override
+    public String getStatistics() {
+        return "size=" + size() + ", capacity=" + ring.length
+                + ", highWaterMark=" + highWaterMark
+                + ", peak=" + peakOccupancy
+                + ", policy=" + overflowPolicy.name().toLowerCase()
+                + ", put=" + putCount.get()
+                + ", blocked=" + blockedCount.get()
+                + ", dropped=" + droppedCount.get();
+    }
+}
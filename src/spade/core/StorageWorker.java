@@ -0,0 +1,273 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Owns the thread that commits provenance elements to a single storage.
+ *
+ * The pipeline threads enqueue vertices and edges and return immediately
+ * unless the queue is full. Everything else that touches the storage on the
+ * write path (flushing transactions and shutting down) is enqueued as well so
+ * that it runs on the same thread, in order with the elements.
+ *
+ * Each storage proceeds at its own speed. A slow storage only blocks the
+ * pipeline once its own queue is full. The queue depth, the lag (how long a
+ * sampled element waited before being committed) and the commit rate are
+ * kept for the 'list storages' control command.
+ */
+public class StorageWorker implements Runnable
+{
+    private static final Logger logger = Logger.getLogger(StorageWorker.class.getName());
+
+    // Marks the end of the queue. Nothing after it is processed.
+    private static final Object END_OF_QUEUE = new Object();
+    // One lag probe is queued after this many elements
+    private static final int LAG_PROBE_INTERVAL = 1024;
+
+    private final AbstractStorage storage;
+    private final BlockingQueue<Object> queue;
+    private final int queueCapacity;
+    private final Thread thread;
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private final AtomicLong enqueuedCount = new AtomicLong(0);
+    private volatile long committedCount = 0;
+    private volatile long lagNanos = 0;
+    private final long startTime = System.currentTimeMillis();
+    private long lastStatisticsTime = startTime;
+    private long lastStatisticsCount = 0;
+
+    /**
+     * Queued every LAG_PROBE_INTERVAL elements to measure how long elements
+     * wait before the storage gets to them.
+     */
+    private class LagProbe implements Runnable
+    {
+        private final long enqueueTime = System.nanoTime();
+
+        @Override
+        public void run()
+        {
+            lagNanos = System.nanoTime() - enqueueTime;
+        }
+    }
+
+    /**
+     * @param storage The storage that this worker commits to.
+     * @param queueCapacity Maximum number of elements waiting to be committed.
+     */
+    public StorageWorker(AbstractStorage storage, int queueCapacity)
+    {
+        this.storage = storage;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.queueCapacity = queueCapacity;
+        this.thread = new Thread(this, "storage-" + storage.getClass().getSimpleName() + "-Thread");
+    }
+
+    public AbstractStorage getStorage()
+    {
+        return storage;
+    }
+
+    public void start()
+    {
+        thread.start();
+    }
+
+    /**
+     * Enqueues the vertex for the storage. Blocks while the queue is full.
+     *
+     * @param vertex The vertex to commit.
+     */
+    public void putVertex(AbstractVertex vertex)
+    {
+        enqueueElement(vertex);
+    }
+
+    /**
+     * Enqueues the edge for the storage. Blocks while the queue is full.
+     *
+     * @param edge The edge to commit.
+     */
+    public void putEdge(AbstractEdge edge)
+    {
+        enqueueElement(edge);
+    }
+
+    /**
+     * Runs the given task on the storage thread after all elements enqueued
+     * so far have been committed.
+     *
+     * @param task The task to run.
+     */
+    public void submit(Runnable task)
+    {
+        enqueue(task);
+    }
+
+    /**
+     * Commits everything still in the queue, shuts the storage down on the
+     * storage thread and waits for the thread to finish.
+     */
+    public void shutdown()
+    {
+        submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                storage.shutdown();
+            }
+        });
+        enqueue(END_OF_QUEUE);
+        try
+        {
+            finished.await();
+        }
+        catch(InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Interrupted while waiting for storage thread to finish", exception);
+        }
+    }
+
+    private void enqueueElement(Object element)
+    {
+        enqueue(element);
+        if(enqueuedCount.incrementAndGet() % LAG_PROBE_INTERVAL == 0)
+        {
+            enqueue(new LagProbe());
+        }
+    }
+
+    private void enqueue(Object element)
+    {
+        try
+        {
+            queue.put(element);
+        }
+        catch(InterruptedException exception)
+        {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Interrupted while queueing for " + storage.getClass().getSimpleName(), exception);
+        }
+    }
+
+    /**
+     * @return Number of elements waiting to be committed
+     */
+    public long getQueueDepth()
+    {
+        return enqueuedCount.get() - committedCount;
+    }
+
+    /**
+     * @return Milliseconds that the most recently probed element waited in the queue
+     */
+    public long getLagMillis()
+    {
+        if(getQueueDepth() == 0)
+        {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMillis(lagNanos);
+    }
+
+    /**
+     * Returns a summary of the queue for the control client. The rate is
+     * computed over the time since the previous call.
+     *
+     * @return A human-readable summary of the queue state and commit rate
+     */
+    public synchronized String getStatistics()
+    {
+        long currentTime = System.currentTimeMillis();
+        long currentCount = committedCount;
+        float intervalTime = (float) (currentTime - lastStatisticsTime) / 1000;
+        float overallTime = (float) (currentTime - startTime) / 1000;
+        float intervalRate = intervalTime > 0 ? (currentCount - lastStatisticsCount) / intervalTime : 0;
+        float overallRate = overallTime > 0 ? currentCount / overallTime : 0;
+        lastStatisticsTime = currentTime;
+        lastStatisticsCount = currentCount;
+        return String.format("depth=%d, capacity=%d, lag=%dms, committed=%d, rate=%.1f/s (overall %.1f/s)",
+                getQueueDepth(), queueCapacity, getLagMillis(), currentCount, intervalRate, overallRate);
+    }
+
+    @Override
+    public void run()
+    {
+        try
+        {
+            while(true)
+            {
+                Object element = queue.take();
+                if(element == END_OF_QUEUE)
+                {
+                    break;
+                }
+                try
+                {
+                    if(element instanceof AbstractVertex)
+                    {
+                        committedCount++;
+                        if(storage.putVertex((AbstractVertex) element))
+                        {
+                            storage.vertexCount++;
+                        }
+                        storage.incrementWriteEpoch();
+                    }
+                    else if(element instanceof AbstractEdge)
+                    {
+                        committedCount++;
+                        if(storage.putEdge((AbstractEdge) element))
+                        {
+                            storage.edgeCount++;
+                        }
+                        storage.incrementWriteEpoch();
+                    }
+                    else if(element instanceof Runnable)
+                    {
+                        ((Runnable) element).run();
+                    }
+                }
+                catch(Exception exception)
+                {
+                    logger.log(Level.SEVERE, "Error committing to " + storage.getClass().getSimpleName(), exception);
+                }
+            }
+        }
+        catch(InterruptedException exception)
+        {
+            logger.log(Level.WARNING, "Storage thread interrupted", exception);
+        }
+        finally
+        {
+            finished.countDown();
+        }
+    }
+}
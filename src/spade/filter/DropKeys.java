@@ -51,6 +51,12 @@ public class DropKeys extends AbstractFilter{
 	
 	private Set<String> keysToDrop = new HashSet<String>(); 
 	
+	// The keys are only written in initialize
+	@Override
+	public boolean isThreadSafe(){
+		return true;
+	}
+	
 	public boolean initialize(String arguments){
 		
 		//Must not be null or empty
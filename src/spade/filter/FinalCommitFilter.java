@@ -24,8 +24,11 @@ import spade.core.AbstractFilter;
 import spade.core.AbstractSketch;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
+import spade.core.StorageWorker;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 public class FinalCommitFilter extends AbstractFilter {
@@ -33,6 +36,15 @@ public class FinalCommitFilter extends AbstractFilter {
     // Reference to the set of storages maintained by the Kernel.
     public Set<AbstractStorage> storages = new HashSet<>();
     public Set<AbstractSketch> sketches = new HashSet<>();
+    // Storages that are committed to from their own thread instead of the caller's.
+    public Map<AbstractStorage, StorageWorker> storageWorkers = new HashMap<>();
+
+    // Storages and sketches are either handed off to their own thread or
+    // locked individually, so elements can arrive from several threads.
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
 
     // This filter is the last filter in the list so any vertices or edges
     // received by it need to be passed to the storages. On receiving any
@@ -40,24 +52,44 @@ public class FinalCommitFilter extends AbstractFilter {
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
         for (AbstractStorage storage : storages) {
-            if (storage.putVertex(incomingVertex)) {
-                incrementStorageVertexCount(storage);
+            StorageWorker storageWorker = storageWorkers.get(storage);
+            if (storageWorker != null) {
+                storageWorker.putVertex(incomingVertex);
+            } else {
+                synchronized (storage) {
+                    if (storage.putVertex(incomingVertex)) {
+                        incrementStorageVertexCount(storage);
+                    }
+                    storage.incrementWriteEpoch();
+                }
             }
         }
         for (AbstractSketch sketch : sketches) {
-            sketch.putVertex(incomingVertex);
+            synchronized (sketch) {
+                sketch.putVertex(incomingVertex);
+            }
         }
     }
 
     @Override
     public void putEdge(AbstractEdge incomingEdge) {
         for (AbstractStorage storage : storages) {
-            if (storage.putEdge(incomingEdge)) {
-                incrementStorageEdgeCount(storage);
+            StorageWorker storageWorker = storageWorkers.get(storage);
+            if (storageWorker != null) {
+                storageWorker.putEdge(incomingEdge);
+            } else {
+                synchronized (storage) {
+                    if (storage.putEdge(incomingEdge)) {
+                        incrementStorageEdgeCount(storage);
+                    }
+                    storage.incrementWriteEpoch();
+                }
             }
         }
         for (AbstractSketch sketch : sketches) {
-            sketch.putEdge(incomingEdge);
+            synchronized (sketch) {
+                sketch.putEdge(incomingEdge);
+            }
         }
     }
 }
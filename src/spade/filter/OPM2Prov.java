@@ -35,6 +35,12 @@ import java.util.Map;
  */
 public class OPM2Prov extends AbstractFilter {
 
+    // Stateless: every element is converted on its own
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
     @Override
     public void putVertex(AbstractVertex incomingVertex) {
         putInNextFilter(createProvVertex(incomingVertex));
@@ -0,0 +1,52 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.archive;
+
+import spade.core.AbstractQuery;
+
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Queries of the archive storage. The conditions are evaluated by the
+ * segments of the archive itself.
+ */
+public abstract class Archive<R> extends AbstractQuery<R>
+{
+    protected static spade.storage.Archive getArchive()
+    {
+        return (spade.storage.Archive) currentStorage;
+    }
+
+    /**
+     * Executes the query with the constraints and optional limit in the
+     * argument string, separated by a comma.
+     */
+    protected R executeArguments(String argument_string)
+    {
+        Pattern argument_pattern = Pattern.compile(",");
+        String[] arguments = argument_pattern.split(argument_string);
+        String constraints = arguments[0].trim();
+        Map<String, List<String>> parameters = parseConstraints(constraints);
+        Integer limit = null;
+        if(arguments.length > 1)
+            limit = Integer.parseInt(arguments[1].trim());
+
+        return execute(parameters, limit);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.archive;
+
+import spade.core.Graph;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+
+/**
+ * Finds the parents or children of a set of vertices, along with the edges
+ * to them, in one pass over the segments of the archive.
+ *
+ * Parameters contain either CHILD_VERTEX_KEY to get parents or PARENT_VERTEX_KEY
+ * to get children. The value is a comma separated list of vertex hashes.
+ */
+public class GetNeighbors extends Archive<Graph>
+{
+    public GetNeighbors()
+    {
+        register();
+    }
+
+    @Override
+    public Graph execute(String argument_string)
+    {
+        // hashes are separated by commas so the whole argument is the constraint
+        Map<String, List<String>> parameters = parseConstraints(argument_string.trim());
+        return execute(parameters, null);
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        boolean ancestors = parameters.containsKey(CHILD_VERTEX_KEY);
+        List<String> entry = parameters.get(ancestors ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY);
+        if(entry == null)
+            return null;
+        Set<String> hashes = new LinkedHashSet<>();
+        for(String vertexHash : entry.get(COL_VALUE).split(","))
+        {
+            if(!vertexHash.trim().isEmpty())
+                hashes.add(vertexHash.trim());
+        }
+        if(hashes.isEmpty())
+            return null;
+        try
+        {
+            return getArchive().getNeighbors(hashes, ancestors);
+        }
+        catch (Exception ex)
+        {
+            Logger.getLogger(GetNeighbors.class.getName()).log(Level.SEVERE, "Error finding neighbors of " + hashes, ex);
+            return null;
+        }
+    }
+}
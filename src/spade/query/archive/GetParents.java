@@ -0,0 +1,59 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.archive;
+
+import spade.core.Graph;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+
+public class GetParents extends Archive<Graph>
+{
+    public GetParents()
+    {
+        register();
+    }
+
+    @Override
+    public Graph execute(String argument_string)
+    {
+        return executeArguments(argument_string);
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        // implicit assumption that parameters contain annotation CHILD_VERTEX_KEY
+        List<String> entry = parameters.get(CHILD_VERTEX_KEY);
+        if(entry == null)
+            return null;
+        try
+        {
+            return getArchive().getNeighbors(Collections.singleton(entry.get(COL_VALUE)), true);
+        }
+        catch (Exception ex)
+        {
+            Logger.getLogger(GetParents.class.getName()).log(Level.SEVERE, "Error finding parents of " + entry.get(COL_VALUE), ex);
+            return null;
+        }
+    }
+}
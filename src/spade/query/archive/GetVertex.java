@@ -0,0 +1,53 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.archive;
+
+import spade.core.AbstractVertex;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+public class GetVertex extends Archive<Set<AbstractVertex>>
+{
+    public GetVertex()
+    {
+        register();
+    }
+
+    @Override
+    public Set<AbstractVertex> execute(String argument_string)
+    {
+        return executeArguments(argument_string);
+    }
+
+    @Override
+    public Set<AbstractVertex> execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        try
+        {
+            return getArchive().findVertices(parameters, limit);
+        }
+        catch (Exception ex)
+        {
+            Logger.getLogger(GetVertex.class.getName()).log(Level.SEVERE, "Error finding vertices matching " + parameters, ex);
+            return null;
+        }
+    }
+}
@@ -23,6 +23,7 @@ import spade.core.AbstractVertex;
 import spade.core.Graph;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
@@ -35,6 +36,7 @@ import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
+import static spade.core.AbstractAnalyzer.LINEAGE_BATCH_SIZE;
 import static spade.core.AbstractAnalyzer.USE_SCAFFOLD;
 import static spade.core.AbstractAnalyzer.setRemoteResolutionRequired;
 import static spade.core.AbstractStorage.BUILD_SCAFFOLD;
@@ -56,6 +58,10 @@ public class GetLineage extends AbstractQuery<Graph>
     private AbstractQuery getEdge = null;
     private AbstractQuery getChildren = null;
     private AbstractQuery getParents = null;
+    // set-based expansion of a whole level. null if the storage has no GetNeighbors
+    private AbstractQuery getNeighbors = null;
+    // lineage computed by the storage itself. null if the storage has no GetLineage
+    private AbstractQuery storageLineage = null;
     private static final Logger logger = Logger.getLogger(GetLineage.class.getName());
 
     public GetLineage()
@@ -90,6 +96,22 @@ public class GetLineage extends AbstractQuery<Graph>
             getEdge = (AbstractQuery) Class.forName(class_prefix + ".GetEdge").newInstance();
             getChildren = (AbstractQuery) Class.forName(class_prefix + ".GetChildren").newInstance();
             getParents = (AbstractQuery) Class.forName(class_prefix + ".GetParents").newInstance();
+            try
+            {
+                getNeighbors = (AbstractQuery) Class.forName(class_prefix + ".GetNeighbors").newInstance();
+            }
+            catch(ClassNotFoundException ex)
+            {
+                getNeighbors = null;
+            }
+            try
+            {
+                storageLineage = (AbstractQuery) Class.forName(class_prefix + ".GetLineage").newInstance();
+            }
+            catch(ClassNotFoundException ex)
+            {
+                storageLineage = null;
+            }
 
             if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()) ||
                     DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
@@ -125,6 +147,14 @@ public class GetLineage extends AbstractQuery<Graph>
 
     Graph execute(Map<String, List<String>> parameters, String direction, int maxDepth)
     {
+        if(storageLineage != null)
+        {
+            Map<String, List<String>> lineageParams = new HashMap<>(parameters);
+            lineageParams.put(DIRECTION, Arrays.asList(OPERATORS.EQUALS, direction, null));
+            lineageParams.put(MAX_DEPTH, Arrays.asList(OPERATORS.EQUALS, String.valueOf(maxDepth), null));
+            storageLineage.setResultListener(resultListener);
+            return (Graph) storageLineage.execute(lineageParams, null);
+        }
         Graph result = new Graph();
         try
         {
@@ -148,62 +178,35 @@ public class GetLineage extends AbstractQuery<Graph>
 //                remainingVertices.add(startingVertex.getAnnotation(PRIMARY_KEY));
                 result.putVertex(startingVertex);
                 result.setRootVertex(startingVertex);
+                if(resultListener != null)
+                {
+                    resultListener.putVertex(startingVertex);
+                }
             }
             else
             {
                 return null;
             }
 
-            while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+            boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+            while(!remainingVertices.isEmpty() && current_depth < maxDepth && !isStopped())
             {
                 current_depth++;
                 visitedVertices.addAll(remainingVertices);
                 Set<String> currentSet = new HashSet<>();
-                for(String vertexHash: remainingVertices)
+                if(getNeighbors != null)
                 {
-                    Graph neighbors;
-                    Map<String, List<String>> params = new HashMap<>();
-                    if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                    {
-                        params.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
-                        neighbors = (Graph) getParents.execute(params, limit);
-                    }
-                    else
-                    {
-                        params.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
-                        neighbors = (Graph) getChildren.execute(params, limit);
-                    }
-                    result.vertexSet().addAll(neighbors.vertexSet());
-                    // empty right now. TODO: make getParents and getChildren return edges too
-                    result.edgeSet().addAll(neighbors.edgeSet());
-                    for(AbstractVertex vertex : neighbors.vertexSet())
+                    expandLevel(result, remainingVertices, ancestors, visitedVertices, currentSet, current_depth);
+                }
+                else
+                {
+                    for(String vertexHash: remainingVertices)
                     {
-                        // for discrepancy check
-                        vertex.setDepth(current_depth+1);
-                        String neighborHash = vertex.bigHashCode();
-//                        String neighborHash = vertex.getAnnotation(PRIMARY_KEY);
-                        if(!visitedVertices.contains(neighborHash))
-                        {
-                            currentSet.add(neighborHash);
-                        }
-                        if(vertex.isCompleteNetworkVertex())
-                        {
-                            setRemoteResolutionRequired();
-                            result.putNetworkVertex(vertex, current_depth);
-                        }
-                        Map<String, List<String>> edgeParams = new LinkedHashMap<>();
-                        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                        {
-                            edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
-                            edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
-                        }
-                        else
+                        if(isStopped())
                         {
-                            edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
-                            edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+                            break;
                         }
-                        Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, limit);
-                        result.edgeSet().addAll(edgeSet);
+                        expandVertex(result, vertexHash, ancestors, visitedVertices, currentSet, current_depth);
                     }
                 }
                 remainingVertices.clear();
@@ -219,4 +222,135 @@ public class GetLineage extends AbstractQuery<Graph>
             return null;
         }
     }
+
+    /**
+     * Expands all the vertices of one level with one GetNeighbors query per
+     * LINEAGE_BATCH_SIZE vertices. The query returns the edges too.
+     */
+    private void expandLevel(Graph result, Set<String> remainingVertices, boolean ancestors,
+                             Set<String> visitedVertices, Set<String> currentSet, int current_depth)
+    {
+        String vertexKey = ancestors ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY;
+        List<String> frontier = new ArrayList<>(remainingVertices);
+        int batchSize = Math.max(1, LINEAGE_BATCH_SIZE);
+        for(int start = 0; start < frontier.size() && !isStopped(); start += batchSize)
+        {
+            StringBuilder hashes = new StringBuilder();
+            for(String vertexHash : frontier.subList(start, Math.min(start + batchSize, frontier.size())))
+            {
+                if(hashes.length() > 0)
+                {
+                    hashes.append(",");
+                }
+                hashes.append(vertexHash);
+            }
+            Map<String, List<String>> params = new HashMap<>();
+            params.put(vertexKey, Arrays.asList(OPERATORS.EQUALS, hashes.toString(), null));
+            Graph neighbors = (Graph) getNeighbors.execute(params, null);
+            if(neighbors == null)
+            {
+                continue;
+            }
+            addEdges(result, neighbors.edgeSet());
+            for(AbstractVertex vertex : neighbors.vertexSet())
+            {
+                addNeighbor(result, vertex, visitedVertices, currentSet, current_depth);
+            }
+        }
+    }
+
+    /**
+     * Expands one vertex with one GetParents or GetChildren query and one
+     * GetEdge query per neighbor. Used by storages without GetNeighbors.
+     */
+    private void expandVertex(Graph result, String vertexHash, boolean ancestors,
+                              Set<String> visitedVertices, Set<String> currentSet, int current_depth)
+    {
+        Graph neighbors;
+        Integer limit = null;
+        Map<String, List<String>> params = new HashMap<>();
+        if(ancestors)
+        {
+            params.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
+            neighbors = (Graph) getParents.execute(params, limit);
+        }
+        else
+        {
+            params.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
+            neighbors = (Graph) getChildren.execute(params, limit);
+        }
+        if(neighbors == null)
+        {
+            return;
+        }
+        addEdges(result, neighbors.edgeSet());
+        for(AbstractVertex vertex : neighbors.vertexSet())
+        {
+            String neighborHash = addNeighbor(result, vertex, visitedVertices, currentSet, current_depth);
+            Map<String, List<String>> edgeParams = new LinkedHashMap<>();
+            if(ancestors)
+            {
+                edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
+                edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+            }
+            else
+            {
+                edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, "AND"));
+                edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, neighborHash, null));
+            }
+            Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, limit);
+            if(edgeSet != null)
+            {
+                addEdges(result, edgeSet);
+            }
+        }
+    }
+
+    private String addNeighbor(Graph result, AbstractVertex vertex, Set<String> visitedVertices,
+                               Set<String> currentSet, int current_depth)
+    {
+        if(resultListener != null)
+        {
+            resultListener.putVertex(vertex);
+        }
+        else
+        {
+            result.vertexSet().add(vertex);
+        }
+        // for discrepancy check
+        vertex.setDepth(current_depth+1);
+        String neighborHash = vertex.bigHashCode();
+        if(!visitedVertices.contains(neighborHash))
+        {
+            currentSet.add(neighborHash);
+        }
+        if(vertex.isCompleteNetworkVertex())
+        {
+            setRemoteResolutionRequired();
+            result.putNetworkVertex(vertex, current_depth);
+        }
+        return neighborHash;
+    }
+
+    /**
+     * Sends the edges to the result listener if there is one and keeps them
+     * in the result otherwise.
+     */
+    private void addEdges(Graph result, Set<AbstractEdge> edges)
+    {
+        if(resultListener == null)
+        {
+            result.edgeSet().addAll(edges);
+            return;
+        }
+        for(AbstractEdge edge : edges)
+        {
+            resultListener.putEdge(edge);
+        }
+    }
+
+    private boolean isStopped()
+    {
+        return resultListener != null && resultListener.isStopped();
+    }
 }
@@ -16,23 +16,51 @@
  */
 package spade.query.common;
 
+import spade.core.AbstractEdge;
 import spade.core.AbstractQuery;
+import spade.core.AbstractVertex;
 import spade.core.Graph;
 
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.regex.Pattern;
 
-import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
-import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
+import static spade.core.AbstractAnalyzer.LINEAGE_BATCH_SIZE;
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PATH_MAX_VERTICES;
 import static spade.core.AbstractStorage.PRIMARY_KEY;
 
 /**
+ * Finds the subgraph on the paths of at most maxLength edges from the source
+ * vertex to the destination vertex.
+ *
+ * Storages with their own GetPaths query answer it directly. Otherwise the
+ * paths are found with PathSearch over the GetNeighbors query of the storage,
+ * or over GetParents and GetChildren if it has none.
+ *
  * @author raza
  */
 public class GetPaths extends AbstractQuery<Graph>
 {
+    private static final String SOURCE_VERTEX_KEY = "sourceVertexHash";
+    private static final String DESTINATION_VERTEX_KEY = "destinationVertexHash";
+    private static final Logger logger = Logger.getLogger(GetPaths.class.getName());
+
+    private AbstractQuery getVertex = null;
+    private AbstractQuery getEdge = null;
+    private AbstractQuery getChildren = null;
+    private AbstractQuery getParents = null;
+    private AbstractQuery getNeighbors = null;
+
     public GetPaths()
     {
         register();
@@ -45,18 +73,243 @@ public class GetPaths extends AbstractQuery<Graph>
         String[] arguments = argument_pattern.split(argument_string);
         String constraints = arguments[0].trim();
         int maxLength = Integer.parseInt(arguments[1].trim());
-        String direction = arguments[2].trim();
         Map<String, List<String>> parameters = parseConstraints(constraints);
+        Graph storagePaths = executeInStorage(parameters, maxLength);
+        if(storagePaths != null)
+        {
+            return storagePaths;
+        }
         // assumption that 'sourceVertexHash' and 'destinationVertexHash' keys are present
-        GetLineage getLineage = new GetLineage();
-        parameters.put(PRIMARY_KEY, parameters.get("sourceVertexHash"));
-        parameters.put("direction", Collections.singletonList(DIRECTION_ANCESTORS));
-        Graph ancestorLineage = getLineage.execute(parameters, direction, maxLength);
-        parameters.put("direction", Collections.singletonList(DIRECTION_DESCENDANTS));
-        parameters.put(PRIMARY_KEY, parameters.get("destinationVertexHash"));
-        Graph descendantLineage = getLineage.execute(parameters, direction, maxLength);
-
-        return Graph.union(ancestorLineage, descendantLineage);
+        String sourceHash = parameters.get(SOURCE_VERTEX_KEY).get(COL_VALUE);
+        String destinationHash = parameters.get(DESTINATION_VERTEX_KEY).get(COL_VALUE);
+
+        try
+        {
+            String storage = currentStorage.getClass().getSimpleName().toLowerCase();
+            String class_prefix = "spade.query." + storage;
+            getVertex = (AbstractQuery) Class.forName(class_prefix + ".GetVertex").newInstance();
+            getEdge = (AbstractQuery) Class.forName(class_prefix + ".GetEdge").newInstance();
+            getChildren = (AbstractQuery) Class.forName(class_prefix + ".GetChildren").newInstance();
+            getParents = (AbstractQuery) Class.forName(class_prefix + ".GetParents").newInstance();
+            try
+            {
+                getNeighbors = (AbstractQuery) Class.forName(class_prefix + ".GetNeighbors").newInstance();
+            }
+            catch(ClassNotFoundException ex)
+            {
+                getNeighbors = null;
+            }
+
+            return execute(sourceHash, destinationHash, maxLength);
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.SEVERE, "Error executing GetPaths!", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Runs the GetPaths query of the current storage if it has one
+     *
+     * @return paths found by the storage OR NULL if the storage has no GetPaths query
+     */
+    private Graph executeInStorage(Map<String, List<String>> parameters, int maxLength)
+    {
+        String storage = currentStorage.getClass().getSimpleName().toLowerCase();
+        AbstractQuery storagePaths;
+        try
+        {
+            storagePaths = (AbstractQuery) Class.forName("spade.query." + storage + ".GetPaths").newInstance();
+        }
+        catch(ClassNotFoundException | InstantiationException | IllegalAccessException ex)
+        {
+            return null;
+        }
+        Map<String, List<String>> pathParams = new HashMap<>(parameters);
+        pathParams.put(MAX_DEPTH, Arrays.asList(OPERATORS.EQUALS, String.valueOf(maxLength), null));
+        storagePaths.setResultListener(resultListener);
+        return (Graph) storagePaths.execute(pathParams, null);
+    }
+
+    Graph execute(String sourceHash, String destinationHash, int maxLength)
+    {
+        // vertices and edges returned while searching, so that most need not be queried again
+        final Map<String, AbstractVertex> vertices = new HashMap<>();
+        final Map<String, AbstractEdge> edges = new HashMap<>();
+        PathSearch<String> pathSearch = new PathSearch<String>(maxLength, PATH_MAX_VERTICES)
+        {
+            @Override
+            protected Map<String, Set<String>> expand(Set<String> hashes, boolean ancestors)
+            {
+                return getNeighbors != null ? expandBatches(hashes, ancestors, vertices, edges)
+                        : expandEach(hashes, ancestors, vertices);
+            }
+        };
+        Map<String, Set<String>> paths = pathSearch.search(sourceHash, destinationHash);
+        if(paths == null)
+        {
+            return null;
+        }
+        if(pathSearch.isTruncated())
+        {
+            logger.log(Level.WARNING, "Path search stopped after visiting " + PATH_MAX_VERTICES +
+                    " vertices. Returning the paths found so far");
+        }
+
+        Graph result = new Graph();
+        for(String vertexHash : paths.keySet())
+        {
+            AbstractVertex vertex = getVertex(vertexHash, vertices);
+            if(vertex != null)
+            {
+                result.putVertex(vertex);
+                if(vertexHash.equals(sourceHash))
+                {
+                    result.setRootVertex(vertex);
+                }
+            }
+        }
+        for(Map.Entry<String, Set<String>> entry : paths.entrySet())
+        {
+            for(String parentHash : entry.getValue())
+            {
+                AbstractEdge edge = edges.get(entry.getKey() + parentHash);
+                if(edge == null)
+                {
+                    edge = getEdge(entry.getKey(), parentHash);
+                }
+                if(edge != null)
+                {
+                    result.putEdge(edge);
+                }
+            }
+        }
+        result.setMaxDepth(maxLength);
+
+        return result;
+    }
+
+    private Map<String, Set<String>> expandBatches(Set<String> hashes, boolean ancestors,
+                                                   Map<String, AbstractVertex> vertices,
+                                                   Map<String, AbstractEdge> edges)
+    {
+        Map<String, Set<String>> neighbors = new HashMap<>();
+        String vertexKey = ancestors ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY;
+        int batchSize = Math.max(1, LINEAGE_BATCH_SIZE);
+        StringBuilder batch = new StringBuilder();
+        int batchCount = 0;
+        for(String hash : hashes)
+        {
+            if(batch.length() > 0)
+            {
+                batch.append(",");
+            }
+            batch.append(hash);
+            batchCount++;
+            if(batchCount == batchSize)
+            {
+                expandBatch(batch.toString(), vertexKey, ancestors, neighbors, vertices, edges);
+                batch.setLength(0);
+                batchCount = 0;
+            }
+        }
+        if(batchCount > 0)
+        {
+            expandBatch(batch.toString(), vertexKey, ancestors, neighbors, vertices, edges);
+        }
+        return neighbors;
+    }
+
+    private void expandBatch(String batch, String vertexKey, boolean ancestors, Map<String, Set<String>> neighbors,
+                             Map<String, AbstractVertex> vertices, Map<String, AbstractEdge> edges)
+    {
+        Map<String, List<String>> params = new HashMap<>();
+        params.put(vertexKey, Arrays.asList(OPERATORS.EQUALS, batch, null));
+        Graph result = (Graph) getNeighbors.execute(params, null);
+        if(result == null)
+        {
+            return;
+        }
+        for(AbstractEdge edge : result.edgeSet())
+        {
+            String childHash = edge.getChildVertex().bigHashCode();
+            String parentHash = edge.getParentVertex().bigHashCode();
+            vertices.put(childHash, edge.getChildVertex());
+            vertices.put(parentHash, edge.getParentVertex());
+            edges.put(childHash + parentHash, edge);
+            String hash = ancestors ? childHash : parentHash;
+            Set<String> hashNeighbors = neighbors.get(hash);
+            if(hashNeighbors == null)
+            {
+                hashNeighbors = new HashSet<>();
+                neighbors.put(hash, hashNeighbors);
+            }
+            hashNeighbors.add(ancestors ? parentHash : childHash);
+        }
+    }
+
+    private Map<String, Set<String>> expandEach(Set<String> hashes, boolean ancestors,
+                                                Map<String, AbstractVertex> vertices)
+    {
+        Map<String, Set<String>> neighbors = new HashMap<>();
+        for(String hash : hashes)
+        {
+            Map<String, List<String>> params = new HashMap<>();
+            Graph result;
+            if(ancestors)
+            {
+                params.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, hash, null));
+                result = (Graph) getParents.execute(params, null);
+            }
+            else
+            {
+                params.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, hash, null));
+                result = (Graph) getChildren.execute(params, null);
+            }
+            if(result == null)
+            {
+                continue;
+            }
+            Set<String> hashNeighbors = new HashSet<>();
+            for(AbstractVertex vertex : result.vertexSet())
+            {
+                String neighborHash = vertex.bigHashCode();
+                vertices.put(neighborHash, vertex);
+                hashNeighbors.add(neighborHash);
+            }
+            neighbors.put(hash, hashNeighbors);
+        }
+        return neighbors;
+    }
+
+    private AbstractVertex getVertex(String vertexHash, Map<String, AbstractVertex> vertices)
+    {
+        AbstractVertex vertex = vertices.get(vertexHash);
+        if(vertex == null)
+        {
+            Map<String, List<String>> params = new HashMap<>();
+            params.put(PRIMARY_KEY, Arrays.asList(OPERATORS.EQUALS, vertexHash, null));
+            Set<AbstractVertex> vertexSet = (Set<AbstractVertex>) getVertex.execute(params, null);
+            if(vertexSet != null && !vertexSet.isEmpty())
+            {
+                vertex = vertexSet.iterator().next();
+            }
+        }
+        return vertex;
+    }
+
+    private AbstractEdge getEdge(String childHash, String parentHash)
+    {
+        Map<String, List<String>> edgeParams = new LinkedHashMap<>();
+        edgeParams.put(CHILD_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, childHash, "AND"));
+        edgeParams.put(PARENT_VERTEX_KEY, Arrays.asList(OPERATORS.EQUALS, parentHash, null));
+        Set<AbstractEdge> edgeSet = (Set<AbstractEdge>) getEdge.execute(edgeParams, null);
+        if(edgeSet != null && !edgeSet.isEmpty())
+        {
+            return edgeSet.iterator().next();
+        }
+        return null;
     }
 
     @Override
@@ -0,0 +1,238 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.common;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the subgraph on the paths of at most a given length from a source
+ * vertex to a destination vertex, following the edges from child to parent.
+ *
+ * The search expands the source towards its ancestors and the destination
+ * towards its descendants, one level at a time, always on the side with the
+ * smaller frontier, until the two depths add up to the maximum length. Every
+ * edge of such a path is seen by one of the two sides. The vertices and edges
+ * on a path are then those whose distance from the source plus distance to the
+ * destination over the seen edges is within the maximum length.
+ *
+ * The search stops as soon as either side has no frontier left, since that
+ * side has then seen all the edges that can be on a path. It also gives up
+ * expanding once more than the given number of vertices were visited. The
+ * result then contains only the paths found so far. If the neighbors of a
+ * level cannot be read, the search fails instead of returning partial paths.
+ *
+ * @param <K> what identifies a vertex, like its hash or its id in a scaffold
+ */
+public abstract class PathSearch<K>
+{
+    private final int maxLength;
+    private final int maxVertices;
+    // edges seen by either side
+    private final Map<K, Set<K>> parentsOf = new HashMap<>();
+    private final Map<K, Set<K>> childrenOf = new HashMap<>();
+    private boolean truncated = false;
+
+    /**
+     * @param maxLength maximum number of edges on a path
+     * @param maxVertices number of vertices visited after which the search stops expanding
+     */
+    public PathSearch(int maxLength, int maxVertices)
+    {
+        this.maxLength = maxLength;
+        this.maxVertices = maxVertices;
+    }
+
+    /**
+     * @param hashes vertices to expand
+     * @param ancestors true to get parents and false to get children
+     * @return the parents or children of each of the vertices. Vertices without any can be left out.
+     * Null if they could not be read.
+     */
+    protected abstract Map<K, Set<K>> expand(Set<K> hashes, boolean ancestors);
+
+    /**
+     * @return true if the last search stopped because it visited too many vertices
+     */
+    public boolean isTruncated()
+    {
+        return truncated;
+    }
+
+    /**
+     * @param sourceHash hash of the source vertex
+     * @param destinationHash hash of the destination vertex
+     * @return map of each vertex on a path to its parents on a path. Empty if there is no path and
+     * null if expanding a level failed.
+     */
+    public Map<K, Set<K>> search(K sourceHash, K destinationHash)
+    {
+        parentsOf.clear();
+        childrenOf.clear();
+        truncated = false;
+
+        Set<K> forwardVisited = new HashSet<>();
+        Set<K> backwardVisited = new HashSet<>();
+        Set<K> forwardFrontier = new HashSet<>();
+        Set<K> backwardFrontier = new HashSet<>();
+        forwardVisited.add(sourceHash);
+        forwardFrontier.add(sourceHash);
+        backwardVisited.add(destinationHash);
+        backwardFrontier.add(destinationHash);
+        int depth = 0;
+        while(depth < maxLength)
+        {
+            // A side without frontier has expanded every vertex it can reach, so every edge
+            // from a vertex on a path was already seen
+            if(forwardFrontier.isEmpty() || backwardFrontier.isEmpty())
+            {
+                break;
+            }
+            if(forwardFrontier.size() <= backwardFrontier.size())
+            {
+                forwardFrontier = expandLevel(forwardFrontier, true, forwardVisited);
+            }
+            else
+            {
+                backwardFrontier = expandLevel(backwardFrontier, false, backwardVisited);
+            }
+            if(forwardFrontier == null || backwardFrontier == null)
+            {
+                return null;
+            }
+            depth++;
+            if(forwardVisited.size() + backwardVisited.size() > maxVertices)
+            {
+                truncated = true;
+                break;
+            }
+        }
+
+        Map<K, Integer> fromSource = distances(sourceHash, parentsOf);
+        Map<K, Integer> toDestination = distances(destinationHash, childrenOf);
+        Map<K, Set<K>> paths = new HashMap<>();
+        for(Map.Entry<K, Integer> entry : fromSource.entrySet())
+        {
+            K hash = entry.getKey();
+            Integer remaining = toDestination.get(hash);
+            if(remaining == null || entry.getValue() + remaining > maxLength)
+            {
+                continue;
+            }
+            Set<K> pathParents = new HashSet<>();
+            Set<K> parents = parentsOf.get(hash);
+            if(parents != null)
+            {
+                for(K parent : parents)
+                {
+                    Integer parentRemaining = toDestination.get(parent);
+                    if(parentRemaining != null && entry.getValue() + 1 + parentRemaining <= maxLength)
+                    {
+                        pathParents.add(parent);
+                    }
+                }
+            }
+            paths.put(hash, pathParents);
+        }
+        return paths;
+    }
+
+    // Returns the next frontier or null if the neighbors could not be read
+    private Set<K> expandLevel(Set<K> frontier, boolean ancestors, Set<K> visited)
+    {
+        Set<K> next = new HashSet<>();
+        Map<K, Set<K>> neighbors = expand(frontier, ancestors);
+        if(neighbors == null)
+        {
+            return null;
+        }
+        for(Map.Entry<K, Set<K>> entry : neighbors.entrySet())
+        {
+            if(entry.getValue() == null)
+            {
+                continue;
+            }
+            for(K neighbor : entry.getValue())
+            {
+                if(ancestors)
+                {
+                    addEdge(entry.getKey(), neighbor);
+                }
+                else
+                {
+                    addEdge(neighbor, entry.getKey());
+                }
+                if(visited.add(neighbor))
+                {
+                    next.add(neighbor);
+                }
+            }
+        }
+        return next;
+    }
+
+    private void addEdge(K childHash, K parentHash)
+    {
+        Set<K> parents = parentsOf.get(childHash);
+        if(parents == null)
+        {
+            parents = new HashSet<>();
+            parentsOf.put(childHash, parents);
+        }
+        parents.add(parentHash);
+        Set<K> children = childrenOf.get(parentHash);
+        if(children == null)
+        {
+            children = new HashSet<>();
+            childrenOf.put(parentHash, children);
+        }
+        children.add(childHash);
+    }
+
+    // Breadth first distances over the seen edges, up to the maximum length
+    private Map<K, Integer> distances(K start, Map<K, Set<K>> edges)
+    {
+        Map<K, Integer> distance = new HashMap<>();
+        Deque<K> queue = new ArrayDeque<>();
+        distance.put(start, 0);
+        queue.add(start);
+        while(!queue.isEmpty())
+        {
+            K current = queue.poll();
+            int currentDistance = distance.get(current);
+            if(currentDistance >= maxLength)
+            {
+                continue;
+            }
+            Set<K> neighbors = edges.get(current);
+            for(K neighbor : neighbors == null ? Collections.<K>emptySet() : neighbors)
+            {
+                if(!distance.containsKey(neighbor))
+                {
+                    distance.put(neighbor, currentDistance + 1);
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return distance;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.neo4j;
+
+import spade.core.Graph;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+
+/**
+ * Finds the parents or children of a set of vertices, along with the edges
+ * to them, using one UNWIND query.
+ *
+ * Parameters contain either CHILD_VERTEX_KEY to get parents or PARENT_VERTEX_KEY
+ * to get children. The value is a comma separated list of vertex hashes.
+ */
+public class GetNeighbors extends Neo4j<Graph>
+{
+    private static final Logger logger = Logger.getLogger(GetNeighbors.class.getName());
+
+    @Override
+    public Graph execute(String argument_string)
+    {
+        // hashes are separated by commas so the whole argument is the constraint
+        Map<String, List<String>> parameters = parseConstraints(argument_string.trim());
+
+        return execute(parameters, null);
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        try
+        {
+            boolean ancestors = parameters.containsKey(CHILD_VERTEX_KEY);
+            List<String> values = ancestors ? parameters.get(CHILD_VERTEX_KEY) : parameters.get(PARENT_VERTEX_KEY);
+            if(values == null)
+            {
+                return null;
+            }
+            List<String> vertexHashes = new ArrayList<>();
+            for(String vertexHash : values.get(COL_VALUE).split(","))
+            {
+                if(!vertexHash.trim().isEmpty())
+                {
+                    vertexHashes.add(vertexHash.trim());
+                }
+            }
+
+            spade.storage.Neo4j neo4jStorage = (spade.storage.Neo4j) currentStorage;
+            return neo4jStorage.getNeighbors(vertexHashes, ancestors, limit);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.SEVERE, "Error retrieving neighbors!", ex);
+            return null;
+        }
+    }
+}
@@ -61,22 +61,7 @@ public class GetEdge extends PostgreSQL<Set<AbstractEdge>>
             query.append("SELECT * FROM ");
             query.append(EDGE_TABLE);
             query.append(" WHERE ");
-            for (Map.Entry<String, List<String>> entry : parameters.entrySet())
-            {
-                List<String> values = entry.getValue();
-                String colName = entry.getKey();
-                query.append("\"");
-                query.append(colName);
-                query.append("\"");
-                query.append(values.get(COMPARISON_OPERATOR));
-                query.append("'");
-                query.append(values.get(COL_VALUE));
-                query.append("'");
-                query.append(" ");
-                String boolOperator = values.get(BOOLEAN_OPERATOR);
-                if (boolOperator != null)
-                    query.append(boolOperator).append(" ");
-            }
+            query.append(prepareCondition(parameters));
             if (limit != null)
                 query.append(" LIMIT ").append(limit);
             query.append(";");
@@ -0,0 +1,128 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.postgresql;
+
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import static spade.core.AbstractAnalyzer.setRemoteResolutionRequired;
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.DIRECTION;
+import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Lineage computed by the database with one recursive query.
+ *
+ * The recursive part walks the edge table one level per iteration up to the
+ * maximum depth. UNION drops a (vertex, depth) pair that was already found,
+ * so cycles end at the depth bound and every vertex is expanded at most once
+ * per level. The vertices and the edges of expanded vertices are returned as
+ * JSON rows of a single result. With a result listener the vertices are sent
+ * as their rows are read and the rows are limited to the limit of the listener.
+ *
+ * Parameters are the constraints on the starting vertex plus DIRECTION and
+ * MAX_DEPTH with their value at COL_VALUE.
+ */
+public class GetLineage extends PostgreSQL<Graph>
+{
+    private static final Logger logger = Logger.getLogger(GetLineage.class.getName());
+
+    public GetLineage()
+    {
+        register();
+    }
+
+    @Override
+    public Graph execute(String argument_string)
+    {
+        Pattern argument_pattern = Pattern.compile(",");
+        String[] arguments = argument_pattern.split(argument_string);
+        String constraints = arguments[0].trim();
+        Map<String, List<String>> parameters = parseConstraints(constraints);
+        parameters.put(MAX_DEPTH, Arrays.asList(OPERATORS.EQUALS, arguments[1].trim(), null));
+        parameters.put(DIRECTION, Arrays.asList(OPERATORS.EQUALS, arguments[2].trim(), null));
+
+        return execute(parameters, null);
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        try
+        {
+            Map<String, List<String>> vertexParams = new HashMap<>(parameters);
+            String direction = vertexParams.remove(DIRECTION).get(COL_VALUE);
+            int maxDepth = Integer.parseInt(vertexParams.remove(MAX_DEPTH).get(COL_VALUE));
+            boolean ancestors = DIRECTION_ANCESTORS.startsWith(direction.toLowerCase());
+            String vertexKey = ancestors ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY;
+            String neighborKey = ancestors ? PARENT_VERTEX_KEY : CHILD_VERTEX_KEY;
+
+            StringBuilder query = new StringBuilder(1000);
+            query.append("WITH RECURSIVE lineage(\"").append(PRIMARY_KEY).append("\", depth) AS (");
+            query.append("(SELECT \"").append(PRIMARY_KEY).append("\", 0 FROM ").append(VERTEX_TABLE);
+            query.append(" WHERE ").append(prepareCondition(vertexParams)).append("LIMIT 1)");
+            query.append(" UNION ");
+            query.append("SELECT e.\"").append(neighborKey).append("\", l.depth + 1");
+            query.append(" FROM lineage l JOIN ").append(EDGE_TABLE).append(" e");
+            query.append(" ON e.\"").append(vertexKey).append("\" = l.\"").append(PRIMARY_KEY).append("\"");
+            query.append(" WHERE l.depth < ").append(maxDepth).append("), ");
+            // the smallest depth of every vertex
+            query.append("reached AS (SELECT \"").append(PRIMARY_KEY).append("\", MIN(depth) AS depth");
+            query.append(" FROM lineage GROUP BY \"").append(PRIMARY_KEY).append("\") ");
+            query.append("SELECT r.depth, row_to_json(v)::text FROM reached r JOIN ").append(VERTEX_TABLE);
+            query.append(" v ON v.\"").append(PRIMARY_KEY).append("\" = r.\"").append(PRIMARY_KEY).append("\"");
+            query.append(" UNION ALL ");
+            query.append("SELECT -1, row_to_json(e)::text FROM reached r JOIN ").append(EDGE_TABLE);
+            query.append(" e ON e.\"").append(vertexKey).append("\" = r.\"").append(PRIMARY_KEY).append("\"");
+            query.append(" WHERE r.depth < ").append(maxDepth);
+            appendLimit(query, limit);
+            query.append(";");
+
+            logger.log(Level.INFO, "Following query: " + query.toString());
+            Graph result = prepareGraphFromJSONResult(query.toString(), resultListener);
+            if(result == null || result.vertexSet().isEmpty())
+                return null;
+            result.setMaxDepth(maxDepth);
+            for(AbstractVertex vertex : result.vertexSet())
+            {
+                if(vertex.getDepth() > 0 && vertex.isCompleteNetworkVertex())
+                {
+                    setRemoteResolutionRequired();
+                    result.putNetworkVertex(vertex, vertex.getDepth());
+                }
+            }
+
+            return result;
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.SEVERE, "Error executing GetLineage!", ex);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.postgresql;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Graph;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Finds the parents or children of a set of vertices, along with the edges
+ * to them, using one vertex query and one edge query.
+ *
+ * Parameters contain either CHILD_VERTEX_KEY to get parents or PARENT_VERTEX_KEY
+ * to get children. The value is a comma separated list of vertex hashes.
+ */
+public class GetNeighbors extends PostgreSQL<Graph>
+{
+    public GetNeighbors()
+    {
+        register();
+    }
+
+    @Override
+    public Graph execute(String argument_string)
+    {
+        // hashes are separated by commas so the whole argument is the constraint
+        Map<String, List<String>> parameters = parseConstraints(argument_string.trim());
+
+        return execute(parameters, null);
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        boolean ancestors = parameters.containsKey(CHILD_VERTEX_KEY);
+        String vertexKey = ancestors ? CHILD_VERTEX_KEY : PARENT_VERTEX_KEY;
+        String neighborKey = ancestors ? PARENT_VERTEX_KEY : CHILD_VERTEX_KEY;
+        List<String> entry = parameters.get(vertexKey);
+        if(entry == null)
+            return null;
+
+        StringBuilder hashList = new StringBuilder(40 * 16);
+        for(String vertexHash : entry.get(COL_VALUE).split(","))
+        {
+            if(vertexHash.trim().isEmpty())
+                continue;
+            if(hashList.length() > 0)
+                hashList.append(", ");
+            hashList.append("'").append(vertexHash.trim()).append("'");
+        }
+        if(hashList.length() == 0)
+            return null;
+
+        StringBuilder edgeQuery = new StringBuilder(100 + hashList.length());
+        edgeQuery.append("SELECT * FROM ");
+        edgeQuery.append(EDGE_TABLE);
+        edgeQuery.append(" WHERE \"").append(vertexKey).append("\"");
+        edgeQuery.append(" IN (").append(hashList).append(")");
+        if(limit != null)
+            edgeQuery.append(" LIMIT ").append(limit);
+        edgeQuery.append(";");
+
+        // the vertices themselves are needed as end points of the edges
+        StringBuilder vertexQuery = new StringBuilder(200 + 2 * hashList.length());
+        vertexQuery.append("SELECT * FROM ");
+        vertexQuery.append(VERTEX_TABLE);
+        vertexQuery.append(" WHERE \"").append(PRIMARY_KEY).append("\"");
+        vertexQuery.append(" IN (").append(hashList).append(")");
+        vertexQuery.append(" OR \"").append(PRIMARY_KEY).append("\"");
+        vertexQuery.append(" IN (SELECT \"").append(neighborKey).append("\" FROM ");
+        vertexQuery.append(EDGE_TABLE);
+        vertexQuery.append(" WHERE \"").append(vertexKey).append("\"");
+        vertexQuery.append(" IN (").append(hashList).append("));");
+
+        Logger.getLogger(GetNeighbors.class.getName()).log(Level.FINE, "Following query: " + vertexQuery.toString());
+        Map<String, AbstractVertex> vertexMap = prepareVertexMapFromSQLResult(vertexQuery.toString());
+        Logger.getLogger(GetNeighbors.class.getName()).log(Level.FINE, "Following query: " + edgeQuery.toString());
+        Set<AbstractEdge> edgeSet = prepareEdgeSetFromSQLResult(edgeQuery.toString(), vertexMap);
+
+        Graph neighbors = new Graph();
+        for(AbstractEdge edge : edgeSet)
+        {
+            neighbors.vertexSet().add(ancestors ? edge.getParentVertex() : edge.getChildVertex());
+        }
+        neighbors.edgeSet().addAll(edgeSet);
+
+        return neighbors;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.postgresql;
+
+import spade.core.Graph;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.MAX_DEPTH;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Paths computed by the database with one recursive query.
+ *
+ * The ancestors of the source and the descendants of the destination are
+ * found the same way as in GetLineage. A vertex is on a path if its distance
+ * from the source plus its distance to the destination is at most the maximum
+ * length. An edge is on a path if it joins two such vertices within the same
+ * bound. The rows are read the same way as in GetLineage.
+ *
+ * Parameters contain SOURCE_VERTEX_KEY and DESTINATION_VERTEX_KEY with the hashes
+ * and MAX_DEPTH with the maximum length, each with its value at COL_VALUE.
+ */
+public class GetPaths extends PostgreSQL<Graph>
+{
+    public static final String SOURCE_VERTEX_KEY = "sourceVertexHash";
+    public static final String DESTINATION_VERTEX_KEY = "destinationVertexHash";
+    private static final Logger logger = Logger.getLogger(GetPaths.class.getName());
+
+    public GetPaths()
+    {
+        register();
+    }
+
+    @Override
+    public Graph execute(String argument_string)
+    {
+        Pattern argument_pattern = Pattern.compile(",");
+        String[] arguments = argument_pattern.split(argument_string);
+        String constraints = arguments[0].trim();
+        Map<String, List<String>> parameters = parseConstraints(constraints);
+        parameters.put(MAX_DEPTH, Arrays.asList(OPERATORS.EQUALS, arguments[1].trim(), null));
+
+        return execute(parameters, null);
+    }
+
+    private static void appendReachable(StringBuilder query, String name, String hash, String vertexKey,
+                                        String neighborKey, int maxLength)
+    {
+        query.append(name).append("(\"").append(PRIMARY_KEY).append("\", depth) AS (");
+        query.append("SELECT \"").append(PRIMARY_KEY).append("\", 0 FROM ").append(VERTEX_TABLE);
+        query.append(" WHERE \"").append(PRIMARY_KEY).append("\" = '").append(hash).append("'");
+        query.append(" UNION ");
+        query.append("SELECT e.\"").append(neighborKey).append("\", r.depth + 1");
+        query.append(" FROM ").append(name).append(" r JOIN ").append(EDGE_TABLE).append(" e");
+        query.append(" ON e.\"").append(vertexKey).append("\" = r.\"").append(PRIMARY_KEY).append("\"");
+        query.append(" WHERE r.depth < ").append(maxLength).append("), ");
+        query.append(name).append("_min AS (SELECT \"").append(PRIMARY_KEY).append("\", MIN(depth) AS depth");
+        query.append(" FROM ").append(name).append(" GROUP BY \"").append(PRIMARY_KEY).append("\"), ");
+    }
+
+    @Override
+    public Graph execute(Map<String, List<String>> parameters, Integer limit)
+    {
+        try
+        {
+            Map<String, List<String>> pathParams = new HashMap<>(parameters);
+            String sourceHash = pathParams.get(SOURCE_VERTEX_KEY).get(COL_VALUE);
+            String destinationHash = pathParams.get(DESTINATION_VERTEX_KEY).get(COL_VALUE);
+            int maxLength = Integer.parseInt(pathParams.get(MAX_DEPTH).get(COL_VALUE));
+
+            StringBuilder query = new StringBuilder(2000);
+            query.append("WITH RECURSIVE ");
+            appendReachable(query, "up", sourceHash, CHILD_VERTEX_KEY, PARENT_VERTEX_KEY, maxLength);
+            appendReachable(query, "down", destinationHash, PARENT_VERTEX_KEY, CHILD_VERTEX_KEY, maxLength);
+            query.append("on_path AS (SELECT u.\"").append(PRIMARY_KEY).append("\", u.depth AS up_depth,");
+            query.append(" d.depth AS down_depth FROM up_min u JOIN down_min d");
+            query.append(" ON u.\"").append(PRIMARY_KEY).append("\" = d.\"").append(PRIMARY_KEY).append("\"");
+            query.append(" WHERE u.depth + d.depth <= ").append(maxLength).append(") ");
+            query.append("SELECT p.up_depth, row_to_json(v)::text FROM on_path p JOIN ").append(VERTEX_TABLE);
+            query.append(" v ON v.\"").append(PRIMARY_KEY).append("\" = p.\"").append(PRIMARY_KEY).append("\"");
+            query.append(" UNION ALL ");
+            query.append("SELECT -1, row_to_json(e)::text FROM on_path c JOIN ").append(EDGE_TABLE);
+            query.append(" e ON e.\"").append(CHILD_VERTEX_KEY).append("\" = c.\"").append(PRIMARY_KEY).append("\"");
+            query.append(" JOIN on_path p ON e.\"").append(PARENT_VERTEX_KEY).append("\" = p.\"");
+            query.append(PRIMARY_KEY).append("\"");
+            query.append(" WHERE c.up_depth + 1 + p.down_depth <= ").append(maxLength);
+            appendLimit(query, limit);
+            query.append(";");
+
+            logger.log(Level.INFO, "Following query: " + query.toString());
+            Graph result = prepareGraphFromJSONResult(query.toString(), resultListener);
+            if(result != null)
+                result.setMaxDepth(maxLength);
+
+            return result;
+        }
+        catch(Exception ex)
+        {
+            logger.log(Level.SEVERE, "Error executing GetPaths!", ex);
+            return null;
+        }
+    }
+}
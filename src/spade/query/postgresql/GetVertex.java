@@ -60,22 +60,7 @@ public class GetVertex extends PostgreSQL<Set<AbstractVertex>>
             query.append("SELECT * FROM ");
             query.append(VERTEX_TABLE);
             query.append(" WHERE ");
-            for (Map.Entry<String, List<String>> entry : parameters.entrySet())
-            {
-                String colName = entry.getKey();
-                List<String> values = entry.getValue();
-                query.append("\"");
-                query.append(colName);
-                query.append("\"");
-                query.append(values.get(COMPARISON_OPERATOR));
-                query.append("'");
-                query.append(values.get(COL_VALUE));
-                query.append("'");
-                query.append(" ");
-                String boolOperator = values.get(BOOLEAN_OPERATOR);
-                if (boolOperator != null)
-                    query.append(boolOperator).append(" ");
-            }
+            query.append(prepareCondition(parameters));
             if (limit != null)
                 query.append(" LIMIT ").append(limit);
             query.append(";");
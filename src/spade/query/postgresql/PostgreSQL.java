@@ -18,11 +18,14 @@ package spade.query.postgresql;
 
 import com.mysql.jdbc.StringUtils;
 import org.apache.commons.collections.CollectionUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
 import spade.core.AbstractEdge;
 import spade.core.AbstractQuery;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Graph;
+import spade.core.ResultListener;
 import spade.core.Vertex;
 
 import java.sql.ResultSet;
@@ -32,6 +35,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,6 +46,7 @@ import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
 import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
 import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
 import static spade.core.AbstractStorage.PRIMARY_KEY;
+import static spade.storage.PostgreSQL.ANNOTATIONS_COLUMN;
 import static spade.storage.SQL.stripDashes;
 
 /**
@@ -51,6 +56,9 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
 {
     public static final String VERTEX_TABLE = "vertex";
     public static final String EDGE_TABLE = "edge";
+    // columns that stay in the tables when the other annotations are in the JSONB column
+    private static final Set<String> ELEMENT_COLUMNS = new HashSet<>(Arrays.asList(PRIMARY_KEY, "type",
+            CHILD_VERTEX_KEY, PARENT_VERTEX_KEY));
 
     public static Set<AbstractVertex> prepareVertexSetFromSQLResult(String query)
     {
@@ -66,6 +74,7 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
             {
                 columnLabels.put(i, metadata.getColumnName(i));
             }
+            Set<Integer> jsonColumns = getJsonColumns(metadata);
 
             while (result.next())
             {
@@ -76,7 +85,11 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
                     String value = result.getString(i);
                     if (value != null)
                     {
-                        if(colName != null && !colName.equals(PRIMARY_KEY))
+                        if(jsonColumns.contains(i))
+                        {
+                            vertex.addAnnotations(toAnnotations(new JSONObject(value)));
+                        }
+                        else if(colName != null && !colName.equals(PRIMARY_KEY))
                         {
                             vertex.addAnnotation(colName, value);
                         }
@@ -85,7 +98,7 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
                 vertexSet.add(vertex);
             }
         }
-        catch (SQLException ex)
+        catch (SQLException | JSONException ex)
         {
             Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Vertex set querying unsuccessful!", ex);
         }
@@ -107,19 +120,32 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
             {
                 columnLabels.put(i, metadata.getColumnName(i));
             }
+            Set<Integer> jsonColumns = getJsonColumns(metadata);
 
             while (result.next())
             {
                 Map<String, String> annotations = new HashMap<>();
+                String childHash = null;
+                String parentHash = null;
                 for (int i = 1; i <= columnCount; i++)
                 {
                     String colName = columnLabels.get(i);
                     String value = result.getString(i);
                     if (value != null)
                     {
-                        if (!(colName == null || colName.equals(PRIMARY_KEY) ||
-                                colName.equals(CHILD_VERTEX_KEY) ||
-                                colName.equals(PARENT_VERTEX_KEY)))
+                        if(jsonColumns.contains(i))
+                        {
+                            annotations.putAll(toAnnotations(new JSONObject(value)));
+                        }
+                        else if (CHILD_VERTEX_KEY.equals(colName))
+                        {
+                            childHash = value;
+                        }
+                        else if (PARENT_VERTEX_KEY.equals(colName))
+                        {
+                            parentHash = value;
+                        }
+                        else if (!(colName == null || colName.equals(PRIMARY_KEY)))
                         {
                             annotations.put(colName, value);
                         }
@@ -127,9 +153,8 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
                 }
                 GetVertex getVertex = new GetVertex();
                 Map<String, List<String>> childMap = new HashMap<>();
-                // Note: implicit assumption that CHILD_VERTEX_KEY and PARENT_VERTEX_KEY are present in annotations
                 childMap.put(PRIMARY_KEY, new ArrayList<>(
-                        Arrays.asList(OPERATORS.EQUALS, annotations.get(CHILD_VERTEX_KEY), null)));
+                        Arrays.asList(OPERATORS.EQUALS, childHash, null)));
                 Set<AbstractVertex> childVertexSet = getVertex.execute(childMap, null);
                 AbstractVertex childVertex;
                 if(!CollectionUtils.isEmpty(childVertexSet))
@@ -139,7 +164,7 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
 
                 Map<String, List<String>> parentMap = new HashMap<>();
                 parentMap.put(PRIMARY_KEY, new ArrayList<>(
-                        Arrays.asList(OPERATORS.EQUALS, annotations.get(PARENT_VERTEX_KEY), null)));
+                        Arrays.asList(OPERATORS.EQUALS, parentHash, null)));
                 Set<AbstractVertex> parentVertexSet = getVertex.execute(parentMap, null);
                 AbstractVertex parentVertex;
                 if(!CollectionUtils.isEmpty(parentVertexSet))
@@ -152,7 +177,7 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
                 edgeSet.add(edge);
             }
         }
-        catch (SQLException ex)
+        catch (SQLException | JSONException ex)
         {
             Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Edge set querying unsuccessful!", ex);
         }
@@ -160,6 +185,380 @@ public abstract class PostgreSQL<R> extends AbstractQuery<R>
         return edgeSet;
     }
 
+    /**
+     * @param query query on the vertex table
+     * @return vertices returned by the query keyed by their hash
+     */
+    public static Map<String, AbstractVertex> prepareVertexMapFromSQLResult(String query)
+    {
+        Map<String, AbstractVertex> vertexMap = new HashMap<>();
+        try
+        {
+            ResultSet result = (ResultSet) currentStorage.executeQuery(query);
+            ResultSetMetaData metadata = result.getMetaData();
+            int columnCount = metadata.getColumnCount();
+
+            Map<Integer, String> columnLabels = new HashMap<>();
+            for (int i = 1; i <= columnCount; i++)
+            {
+                columnLabels.put(i, metadata.getColumnName(i));
+            }
+            Set<Integer> jsonColumns = getJsonColumns(metadata);
+
+            while (result.next())
+            {
+                AbstractVertex vertex = new Vertex();
+                String hash = null;
+                for (int i = 1; i <= columnCount; i++)
+                {
+                    String colName = columnLabels.get(i);
+                    String value = result.getString(i);
+                    if (value != null && colName != null)
+                    {
+                        if(colName.equals(PRIMARY_KEY))
+                        {
+                            hash = value;
+                        }
+                        else if(jsonColumns.contains(i))
+                        {
+                            vertex.addAnnotations(toAnnotations(new JSONObject(value)));
+                        }
+                        else
+                        {
+                            vertex.addAnnotation(colName, value);
+                        }
+                    }
+                }
+                if(hash != null)
+                {
+                    vertexMap.put(hash, vertex);
+                }
+            }
+        }
+        catch (SQLException | JSONException ex)
+        {
+            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Vertex map querying unsuccessful!", ex);
+        }
+
+        return vertexMap;
+    }
+
+    /**
+     * Unlike prepareEdgeSetFromSQLResult(String), the end points are taken from the given
+     * vertices instead of being queried for every edge. Edges with an end point missing
+     * from the map are skipped.
+     *
+     * @param query query on the edge table
+     * @param vertexMap vertices keyed by their hash
+     * @return edges returned by the query
+     */
+    public static Set<AbstractEdge> prepareEdgeSetFromSQLResult(String query, Map<String, AbstractVertex> vertexMap)
+    {
+        Set<AbstractEdge> edgeSet = new HashSet<>();
+        try
+        {
+            ResultSet result = (ResultSet) currentStorage.executeQuery(query);
+            ResultSetMetaData metadata = result.getMetaData();
+            int columnCount = metadata.getColumnCount();
+
+            Map<Integer, String> columnLabels = new HashMap<>();
+            for (int i = 1; i <= columnCount; i++)
+            {
+                columnLabels.put(i, metadata.getColumnName(i));
+            }
+            Set<Integer> jsonColumns = getJsonColumns(metadata);
+
+            while (result.next())
+            {
+                Map<String, String> annotations = new HashMap<>();
+                String childHash = null;
+                String parentHash = null;
+                for (int i = 1; i <= columnCount; i++)
+                {
+                    String colName = columnLabels.get(i);
+                    String value = result.getString(i);
+                    if (value == null || colName == null || colName.equals(PRIMARY_KEY))
+                    {
+                        continue;
+                    }
+                    if (colName.equals(CHILD_VERTEX_KEY))
+                    {
+                        childHash = value;
+                    }
+                    else if (colName.equals(PARENT_VERTEX_KEY))
+                    {
+                        parentHash = value;
+                    }
+                    else if (jsonColumns.contains(i))
+                    {
+                        annotations.putAll(toAnnotations(new JSONObject(value)));
+                    }
+                    else
+                    {
+                        annotations.put(colName, value);
+                    }
+                }
+                AbstractVertex childVertex = vertexMap.get(childHash);
+                AbstractVertex parentVertex = vertexMap.get(parentHash);
+                if(childVertex == null || parentVertex == null)
+                    continue;
+
+                AbstractEdge edge = new Edge(childVertex, parentVertex);
+                edge.addAnnotations(annotations);
+                edgeSet.add(edge);
+            }
+        }
+        catch (SQLException | JSONException ex)
+        {
+            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Edge set querying unsuccessful!", ex);
+        }
+
+        return edgeSet;
+    }
+
+    /**
+     * Reads the result of a lineage or path query into a graph. Every row has
+     * two columns: a depth and a row of the vertex or edge table as JSON. Rows
+     * with a negative depth are edges. The vertex at depth 0 becomes the root.
+     * Rows are read one at a time so the storage can stream them with a cursor.
+     *
+     * @param query query returning (depth, json) rows
+     * @return graph of the returned vertices and edges OR NULL on failure
+     */
+    public static Graph prepareGraphFromJSONResult(String query)
+    {
+        return prepareGraphFromJSONResult(query, null);
+    }
+
+    /**
+     * Same as prepareGraphFromJSONResult(String), but every vertex is also
+     * sent to the listener as its row is read. The edges are sent once all
+     * the rows are read, since their end points may come after them, and are
+     * not kept in the graph. Reading stops as soon as the listener is stopped.
+     *
+     * @param query query returning (depth, json) rows
+     * @param listener receives the vertices and edges. Can be null.
+     * @return graph of the vertices and edges read OR NULL on failure
+     */
+    public static Graph prepareGraphFromJSONResult(String query, ResultListener listener)
+    {
+        Graph graph = new Graph();
+        Map<String, AbstractVertex> vertexMap = new HashMap<>();
+        List<JSONObject> edgeRows = new ArrayList<>();
+        try
+        {
+            ResultSet result = (ResultSet) currentStorage.executeQuery(query);
+            if(result == null)
+                return null;
+            try
+            {
+                while (!isStopped(listener) && result.next())
+                {
+                    int depth = result.getInt(1);
+                    JSONObject row = new JSONObject(result.getString(2));
+                    if(depth < 0)
+                    {
+                        // end points may come later in the result
+                        edgeRows.add(row);
+                        continue;
+                    }
+                    AbstractVertex vertex = new Vertex();
+                    Iterator<?> keys = row.keys();
+                    while(keys.hasNext())
+                    {
+                        String colName = (String) keys.next();
+                        if(colName.equals(PRIMARY_KEY) || row.isNull(colName))
+                            continue;
+                        Object value = row.get(colName);
+                        if(value instanceof JSONObject)
+                        {
+                            vertex.addAnnotations(toAnnotations((JSONObject) value));
+                        }
+                        else
+                        {
+                            vertex.addAnnotation(colName, value.toString());
+                        }
+                    }
+                    vertex.setDepth(depth);
+                    vertexMap.put(stripDashes(row.getString(PRIMARY_KEY)), vertex);
+                    graph.vertexSet().add(vertex);
+                    if(depth == 0)
+                    {
+                        graph.setRootVertex(vertex);
+                    }
+                    if(listener != null)
+                    {
+                        listener.putVertex(vertex);
+                    }
+                }
+            }
+            finally
+            {
+                result.close();
+            }
+
+            for(JSONObject row : edgeRows)
+            {
+                if(isStopped(listener))
+                    break;
+                AbstractVertex childVertex = vertexMap.get(stripDashes(row.getString(CHILD_VERTEX_KEY)));
+                AbstractVertex parentVertex = vertexMap.get(stripDashes(row.getString(PARENT_VERTEX_KEY)));
+                if(childVertex == null || parentVertex == null)
+                    continue;
+                AbstractEdge edge = new Edge(childVertex, parentVertex);
+                Iterator<?> keys = row.keys();
+                while(keys.hasNext())
+                {
+                    String colName = (String) keys.next();
+                    if(colName.equals(PRIMARY_KEY) || colName.equals(CHILD_VERTEX_KEY) ||
+                            colName.equals(PARENT_VERTEX_KEY) || row.isNull(colName))
+                        continue;
+                    Object value = row.get(colName);
+                    if(value instanceof JSONObject)
+                    {
+                        edge.addAnnotations(toAnnotations((JSONObject) value));
+                    }
+                    else
+                    {
+                        edge.addAnnotation(colName, value.toString());
+                    }
+                }
+                if(listener != null)
+                {
+                    listener.putEdge(edge);
+                }
+                else
+                {
+                    graph.edgeSet().add(edge);
+                }
+            }
+        }
+        catch (SQLException | JSONException ex)
+        {
+            Logger.getLogger(PostgreSQL.class.getName()).log(Level.SEVERE, "Graph querying unsuccessful!", ex);
+            return null;
+        }
+
+        return graph;
+    }
+
+    private static boolean isStopped(ResultListener listener)
+    {
+        return listener != null && listener.isStopped();
+    }
+
+    /**
+     * Appends a LIMIT clause with the given limit, or with the limit of the
+     * result listener if there is none
+     *
+     * @param query query to append to
+     * @param limit maximum number of rows. Can be null.
+     */
+    protected void appendLimit(StringBuilder query, Integer limit)
+    {
+        if(limit == null && resultListener != null)
+        {
+            limit = resultListener.getLimit();
+        }
+        if(limit != null)
+        {
+            query.append(" LIMIT ").append(limit);
+        }
+    }
+
+    /**
+     * @return true if the storage keeps the annotations other than the type in
+     * one JSONB column
+     */
+    protected static boolean hasJsonAnnotations()
+    {
+        return currentStorage instanceof spade.storage.PostgreSQL
+                && ((spade.storage.PostgreSQL) currentStorage).hasJsonAnnotations();
+    }
+
+    /**
+     * @return the indexes of the JSONB columns in the result
+     */
+    private static Set<Integer> getJsonColumns(ResultSetMetaData metadata) throws SQLException
+    {
+        Set<Integer> jsonColumns = new HashSet<>();
+        for (int i = 1; i <= metadata.getColumnCount(); i++)
+        {
+            if("jsonb".equalsIgnoreCase(metadata.getColumnTypeName(i)))
+                jsonColumns.add(i);
+        }
+        return jsonColumns;
+    }
+
+    /**
+     * @param object value of the JSONB annotations column
+     * @return the annotations in it that are not NULL
+     */
+    private static Map<String, String> toAnnotations(JSONObject object) throws JSONException
+    {
+        Map<String, String> annotations = new HashMap<>();
+        Iterator<?> keys = object.keys();
+        while(keys.hasNext())
+        {
+            String key = (String) keys.next();
+            if(!object.isNull(key))
+                annotations.put(key, object.get(key).toString());
+        }
+        return annotations;
+    }
+
+    /**
+     * Constraints on the element columns compare the column. With JSONB
+     * annotations, the other constraints look the key up in the annotations
+     * column. Equality is written as containment so that it can use the GIN
+     * index.
+     *
+     * @param parameters constraints in the format of GetVertex
+     * @return the constraints as the condition of a WHERE clause on the vertex or edge table
+     */
+    public static String prepareCondition(Map<String, List<String>> parameters)
+    {
+        boolean jsonAnnotations = hasJsonAnnotations();
+        StringBuilder condition = new StringBuilder(100);
+        for (Map.Entry<String, List<String>> entry : parameters.entrySet())
+        {
+            String colName = entry.getKey();
+            List<String> values = entry.getValue();
+            String operator = values.get(COMPARISON_OPERATOR);
+            if(!jsonAnnotations || ELEMENT_COLUMNS.contains(colName))
+            {
+                condition.append("\"");
+                condition.append(colName);
+                condition.append("\"");
+                condition.append(operator);
+                condition.append("'");
+                condition.append(values.get(COL_VALUE));
+                condition.append("'");
+            }
+            else if(OPERATORS.EQUALS.equals(operator.trim()))
+            {
+                String object = "{" + JSONObject.quote(colName) + ":" + JSONObject.quote(values.get(COL_VALUE)) + "}";
+                condition.append("\"").append(ANNOTATIONS_COLUMN).append("\" @> '");
+                condition.append(object.replace("'", "''")).append("'");
+            }
+            else
+            {
+                condition.append("\"").append(ANNOTATIONS_COLUMN).append("\" ->> '");
+                condition.append(colName.replace("'", "''")).append("'");
+                condition.append(operator);
+                condition.append("'");
+                condition.append(values.get(COL_VALUE));
+                condition.append("'");
+            }
+            condition.append(" ");
+            String boolOperator = values.get(BOOLEAN_OPERATOR);
+            if (boolOperator != null)
+                condition.append(boolOperator).append(" ");
+        }
+
+        return condition.toString();
+    }
+
     public static Graph constructGraphFromLineageMap(Map<String, Set<String>> lineageMap, String direction)
     {
         Graph result = new Graph();
@@ -37,6 +37,7 @@ import spade.core.AbstractVertex;
 import spade.core.Graph;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Method;
@@ -58,6 +59,7 @@ import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
 import static spade.core.AbstractStorage.MAX_DEPTH;
 import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
 import static spade.core.AbstractStorage.PRIMARY_KEY;
+import static spade.core.AbstractStorage.SCAFFOLD_SNAPSHOT;
 
 
 /**
@@ -137,6 +139,10 @@ public class BerkeleyDB extends Scaffold
 
             globalTxCheckin(true);
             start_time = System.nanoTime();
+            if(SCAFFOLD_SNAPSHOT)
+            {
+                loadSnapshot();
+            }
 
             return true;
         }
@@ -148,6 +154,83 @@ public class BerkeleyDB extends Scaffold
         return false;
     }
 
+    /**
+     * Gives every hash in the database an id in an in-memory dictionary and
+     * reads the edges into the snapshot. Hashes that are not 32 hex characters
+     * cannot get an id and are left out, along with their edges.
+     */
+    private void loadSnapshot() throws IOException
+    {
+        dictionary = new VertexDictionary();
+        int skipped = 0;
+        Cursor cursor = scaffoldDatabase.openCursor(null, null);
+        try
+        {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            while(cursor.getNext(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS)
+            {
+                if(dictionary.getOrCreateId(new String(key.getData(), "UTF-8")) < 0)
+                {
+                    skipped++;
+                }
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        if(skipped > 0)
+        {
+            logger.log(Level.WARNING, skipped + " hashes left out of the scaffold snapshot");
+        }
+        buildSnapshot();
+    }
+
+    private void addToSnapshot(String childHash, String parentHash)
+    {
+        try
+        {
+            long childId = dictionary.getOrCreateId(childHash);
+            long parentId = dictionary.getOrCreateId(parentHash);
+            if(childId < 0 || parentId < 0)
+            {
+                logger.log(Level.WARNING, "Edge from " + childHash + " to " + parentHash +
+                        " left out of the scaffold snapshot");
+                return;
+            }
+            snapshot.addEdge(childId, parentId);
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, "Error adding edge to the scaffold snapshot!", ex);
+        }
+    }
+
+    /**
+     * Only called while the snapshot is built. The snapshot is read instead
+     * once it exists.
+     */
+    @Override
+    protected long[] getParentIds(long id)
+    {
+        Set<String> parents = getParents(dictionary.getHash(id));
+        if(parents == null)
+        {
+            return null;
+        }
+        LongList parentIds = new LongList();
+        for(String parent : parents)
+        {
+            long parentId = dictionary.getId(parent);
+            if(parentId >= 0)
+            {
+                parentIds.add(parentId);
+            }
+        }
+        return parentIds.size() == 0 ? null : parentIds.toArray();
+    }
+
     @Override
     protected void globalTxCheckin(boolean forcedFlush)
     {
@@ -268,10 +351,6 @@ public class BerkeleyDB extends Scaffold
     {
         try
         {
-            // Instantiate class catalog
-            StoredClassCatalog neighborCatalog = new StoredClassCatalog(neighborDatabase);
-            // Create the binding
-            EntryBinding<Neighbors> neighborBinding = new SerialBinding<>(neighborCatalog, Neighbors.class);
             // Create DatabaseEntry for the key
             DatabaseEntry key = new DatabaseEntry(hash.getBytes("UTF-8"));
             // Create the DatabaseEntry for the data.
@@ -280,41 +359,19 @@ public class BerkeleyDB extends Scaffold
             OperationStatus operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
             if(operationStatus != OperationStatus.NOTFOUND)
             {
-                Set<String> remainingVertices = new HashSet<>();
-                Set<String> visitedVertices = new HashSet<>();
-                Map<String, Set<String>> lineageMap = new HashMap<>();
-                remainingVertices.add(hash);
-                int current_depth = 0;
-                while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+                if(snapshot != null)
                 {
-                    visitedVertices.addAll(remainingVertices);
-                    Set<String> currentSet = new HashSet<>();
-                    for(String current_hash: remainingVertices)
-                    {
-                        Set<String> neighbors = null;
-                        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                            neighbors = getParents(current_hash);
-                        else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
-                            neighbors = getChildren(current_hash);
-
-                        if(neighbors != null)
-                        {
-                            lineageMap.put(current_hash, neighbors);
-                            for(String vertexHash: neighbors)
-                            {
-                                if(!visitedVertices.contains(vertexHash))
-                                {
-                                    currentSet.addAll(neighbors);
-                                }
-                            }
-                        }
-                    }
-                    remainingVertices.clear();
-                    remainingVertices.addAll(currentSet);
-                    current_depth++;
+                    return getLineageByIds(hash, direction, maxDepth);
                 }
-
-                return lineageMap;
+                if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+                {
+                    return traverseHashes(hash, true, maxDepth);
+                }
+                else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
+                {
+                    return traverseHashes(hash, false, maxDepth);
+                }
+                return new HashMap<>();
             }
         }
         catch(UnsupportedEncodingException ex)
@@ -328,25 +385,7 @@ public class BerkeleyDB extends Scaffold
     @Override
     public Map<String, Set<String>> getPaths(String source_hash, String destination_hash, int maxLength)
     {
-
-        Map<String, Set<String>> lineageUp = getLineage(source_hash, DIRECTION_ANCESTORS, maxLength);
-        Map<String, Set<String>> lineageDown = getLineage(destination_hash, DIRECTION_DESCENDANTS, maxLength);
-        Map<String, Set<String>> paths = new HashMap<>();
-        Set<String> keys = lineageUp.keySet();
-        keys.retainAll(lineageDown.keySet());
-
-        for(String key: keys)
-        {
-            Set<String> pathEntry = paths.get(key);
-            if(pathEntry == null)
-            {
-                pathEntry = new HashSet<>();
-            }
-            pathEntry.addAll(lineageUp.get(key));
-            pathEntry.addAll(lineageDown.get(key));
-        }
-
-        return paths;
+        return searchPaths(source_hash, destination_hash, maxLength);
     }
 
     public boolean flushBulkEntries(boolean forcedFlush)
@@ -508,6 +547,10 @@ public class BerkeleyDB extends Scaffold
             data = new DatabaseEntry();
             operationStatus = scaffoldDatabase.get(null, key, data, LockMode.DEFAULT);
             addItem(operationStatus, CHILDREN, key, data, neighborBinding, childHash);
+            if(snapshot != null)
+            {
+                addToSnapshot(childHash, parentHash);
+            }
 
             // stats calculation
             serial_number++;
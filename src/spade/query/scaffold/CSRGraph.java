@@ -0,0 +1,368 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.scaffold;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Adjacency of vertex ids in compressed sparse row form.
+ *
+ * The children of vertex v are children[childOffsets[v] .. childOffsets[v + 1])
+ * and the parents are stored the same way in the reverse arrays. The lists are
+ * sorted and free of duplicates. The arrays can be kept on the heap or in
+ * direct buffers outside of it.
+ *
+ * Edges added after the arrays were built go to a small overlay of per vertex
+ * lists. Lookups read both. Once the overlay holds more than an eighth of the
+ * edges in the arrays it is merged into new arrays, so an edge is copied a
+ * constant number of times on average.
+ *
+ * Ids must be less than Integer.MAX_VALUE. Direct buffers hold at most
+ * Integer.MAX_VALUE / 4 neighbors per direction.
+ */
+public class CSRGraph
+{
+    private static final int MIN_OVERLAY_EDGES = 1 << 16;
+
+    private final boolean offHeap;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    // Number of vertices covered by the arrays
+    private int vertexCount = 0;
+    private IntBuffer childOffsets, children, parentOffsets, parents;
+
+    private final Map<Integer, LongList> childOverlay = new HashMap<>();
+    private final Map<Integer, LongList> parentOverlay = new HashMap<>();
+    private int overlayEdges = 0;
+    private int maxOverlayId = -1;
+
+    /**
+     * @param offHeap true to keep the arrays in direct buffers
+     */
+    public CSRGraph(boolean offHeap)
+    {
+        this.offHeap = offHeap;
+        childOffsets = allocate(1);
+        parentOffsets = allocate(1);
+        children = allocate(0);
+        parents = allocate(0);
+    }
+
+    /**
+     * Builds the arrays from a scaffold that keeps a VertexDictionary.
+     *
+     * @param scaffold scaffold to read the neighbors of every id from
+     * @param offHeap true to keep the arrays in direct buffers
+     * @return graph with all the edges of the scaffold
+     */
+    public static CSRGraph fromScaffold(Scaffold scaffold, boolean offHeap)
+    {
+        CSRGraph graph = new CSRGraph(offHeap);
+        long size = scaffold.dictionary.size();
+        for(long id = 0; id < size; id++)
+        {
+            long[] parentIds = scaffold.getParentIds(id);
+            if(parentIds != null)
+            {
+                for(long parentId : parentIds)
+                {
+                    graph.addEdge(id, parentId);
+                }
+            }
+        }
+        graph.merge();
+        return graph;
+    }
+
+    private IntBuffer allocate(int size)
+    {
+        if(offHeap)
+        {
+            return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+        }
+        return IntBuffer.allocate(size);
+    }
+
+    /**
+     * Adds the edge to the overlay and merges the overlay if it has grown too big
+     *
+     * @param childId id of the child vertex
+     * @param parentId id of the parent vertex
+     */
+    public void addEdge(long childId, long parentId)
+    {
+        lock.writeLock().lock();
+        try
+        {
+            addToOverlay(parentOverlay, (int) childId, parentId);
+            addToOverlay(childOverlay, (int) parentId, childId);
+            maxOverlayId = (int) Math.max(maxOverlayId, Math.max(childId, parentId));
+            overlayEdges++;
+            if(overlayEdges > Math.max(MIN_OVERLAY_EDGES, children.capacity() / 8))
+            {
+                mergeOverlay();
+            }
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void addToOverlay(Map<Integer, LongList> overlay, int id, long neighborId)
+    {
+        LongList list = overlay.get(id);
+        if(list == null)
+        {
+            list = new LongList(2);
+            overlay.put(id, list);
+        }
+        list.addCompacting(neighborId);
+    }
+
+    /**
+     * Merges the overlay into new arrays
+     */
+    public void merge()
+    {
+        lock.writeLock().lock();
+        try
+        {
+            mergeOverlay();
+        }
+        finally
+        {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void mergeOverlay()
+    {
+        if(overlayEdges == 0)
+        {
+            return;
+        }
+        int newVertexCount = Math.max(vertexCount, maxOverlayId + 1);
+        IntBuffer[] merged = mergeDirection(childOffsets, children, childOverlay, newVertexCount);
+        childOffsets = merged[0];
+        children = merged[1];
+        merged = mergeDirection(parentOffsets, parents, parentOverlay, newVertexCount);
+        parentOffsets = merged[0];
+        parents = merged[1];
+        vertexCount = newVertexCount;
+        childOverlay.clear();
+        parentOverlay.clear();
+        overlayEdges = 0;
+    }
+
+    private IntBuffer[] mergeDirection(IntBuffer offsets, IntBuffer neighbors, Map<Integer, LongList> overlay,
+                                       int newVertexCount)
+    {
+        int[] newOffsets = new int[newVertexCount + 1];
+        int[] newNeighbors = new int[neighbors.capacity() + overlayEdges];
+        int size = 0;
+        LongList scratch = new LongList();
+        for(int id = 0; id < newVertexCount; id++)
+        {
+            newOffsets[id] = size;
+            LongList added = overlay.get(id);
+            if(added == null)
+            {
+                if(id < vertexCount)
+                {
+                    // Already sorted and unique
+                    for(int i = offsets.get(id); i < offsets.get(id + 1); i++)
+                    {
+                        newNeighbors[size++] = neighbors.get(i);
+                    }
+                }
+                continue;
+            }
+            scratch.clear();
+            if(id < vertexCount)
+            {
+                for(int i = offsets.get(id); i < offsets.get(id + 1); i++)
+                {
+                    scratch.add(neighbors.get(i));
+                }
+            }
+            for(int i = 0; i < added.size(); i++)
+            {
+                scratch.add(added.get(i));
+            }
+            scratch.sortUnique();
+            for(int i = 0; i < scratch.size(); i++)
+            {
+                newNeighbors[size++] = (int) scratch.get(i);
+            }
+        }
+        newOffsets[newVertexCount] = size;
+
+        IntBuffer offsetsBuffer = allocate(newOffsets.length);
+        offsetsBuffer.put(newOffsets).flip();
+        IntBuffer neighborsBuffer = allocate(size);
+        neighborsBuffer.put(newNeighbors, 0, size).flip();
+        return new IntBuffer[]{offsetsBuffer, neighborsBuffer};
+    }
+
+    // Caller must hold the lock
+    private long[] readIds(IntBuffer offsets, IntBuffer neighbors, Map<Integer, LongList> overlay, long id)
+    {
+        int start = 0, end = 0;
+        if(id < vertexCount)
+        {
+            start = offsets.get((int) id);
+            end = offsets.get((int) id + 1);
+        }
+        LongList added = overlay.isEmpty() ? null : overlay.get((int) id);
+        int addedSize = added == null ? 0 : added.size();
+        if(end == start && addedSize == 0)
+        {
+            return null;
+        }
+        long[] ids = new long[end - start + addedSize];
+        for(int i = start; i < end; i++)
+        {
+            ids[i - start] = neighbors.get(i);
+        }
+        for(int i = 0; i < addedSize; i++)
+        {
+            ids[end - start + i] = added.get(i);
+        }
+        return ids;
+    }
+
+    private long[] getIds(boolean parentIds, long id)
+    {
+        lock.readLock().lock();
+        try
+        {
+            return parentIds ? readIds(parentOffsets, parents, parentOverlay, id)
+                    : readIds(childOffsets, children, childOverlay, id);
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param id vertex id
+     * @return ids of the children or null if there are none. May contain duplicates.
+     */
+    public long[] getChildIds(long id)
+    {
+        return getIds(false, id);
+    }
+
+    /**
+     * @param id vertex id
+     * @return ids of the parents or null if there are none. May contain duplicates.
+     */
+    public long[] getParentIds(long id)
+    {
+        return getIds(true, id);
+    }
+
+    /**
+     * Breadth first search that reads the arrays directly. Same result as
+     * Scaffold.traverse.
+     *
+     * @param id id of the start vertex
+     * @param ancestors true to follow parents and false to follow children
+     * @param maxDepth number of levels to expand
+     * @param visitedOrder receives the ids of the expanded vertices that have neighbors
+     * @param neighborLists receives the neighbors of each of those ids in the same order
+     */
+    public void traverse(long id, boolean ancestors, int maxDepth, LongList visitedOrder, List<long[]> neighborLists)
+    {
+        lock.readLock().lock();
+        try
+        {
+            IntBuffer offsets = ancestors ? parentOffsets : childOffsets;
+            IntBuffer neighbors = ancestors ? parents : children;
+            Map<Integer, LongList> overlay = ancestors ? parentOverlay : childOverlay;
+            BitSet visited = new BitSet();
+            int[] frontier = new int[16];
+            int[] next = new int[16];
+            int frontierSize = 1;
+            frontier[0] = (int) id;
+            visited.set((int) id);
+            int currentDepth = 0;
+            while(frontierSize > 0 && currentDepth < maxDepth)
+            {
+                int nextSize = 0;
+                for(int f = 0; f < frontierSize; f++)
+                {
+                    long[] currentNeighbors = readIds(offsets, neighbors, overlay, frontier[f]);
+                    if(currentNeighbors == null)
+                    {
+                        continue;
+                    }
+                    visitedOrder.add(frontier[f]);
+                    neighborLists.add(currentNeighbors);
+                    for(long neighbor : currentNeighbors)
+                    {
+                        if(!visited.get((int) neighbor))
+                        {
+                            visited.set((int) neighbor);
+                            if(nextSize == next.length)
+                            {
+                                next = Arrays.copyOf(next, next.length * 2);
+                            }
+                            next[nextSize++] = (int) neighbor;
+                        }
+                    }
+                }
+                int[] swap = frontier;
+                frontier = next;
+                next = swap;
+                frontierSize = nextSize;
+                currentDepth++;
+            }
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of distinct edges in the arrays plus the edges in the overlay
+     */
+    public long getEdgeCount()
+    {
+        lock.readLock().lock();
+        try
+        {
+            return (long) children.capacity() + overlayEdges;
+        }
+        finally
+        {
+            lock.readLock().unlock();
+        }
+    }
+}
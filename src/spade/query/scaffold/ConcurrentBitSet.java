@@ -0,0 +1,72 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.scaffold;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bitmap of vertex ids that several threads can set at the same time.
+ *
+ * The words cover the ids that existed when the bitmap was created. Ids added
+ * to the dictionary later are kept in a synchronized set, since there are few
+ * of them during one traversal.
+ */
+class ConcurrentBitSet
+{
+    private final AtomicLongArray words;
+    private final long capacity;
+    private final Set<Long> overflow = Collections.synchronizedSet(new HashSet<Long>());
+
+    /**
+     * @param capacity number of ids to keep in the words
+     */
+    ConcurrentBitSet(long capacity)
+    {
+        this.capacity = Math.min(Math.max(capacity, 1), (long) Integer.MAX_VALUE * 64);
+        words = new AtomicLongArray((int) ((this.capacity + 63) >>> 6));
+    }
+
+    /**
+     * Sets the bit of the id.
+     *
+     * @return true if this call set it and false if it was already set
+     */
+    boolean set(long id)
+    {
+        if(id < 0 || id >= capacity)
+        {
+            return overflow.add(id);
+        }
+        int index = (int) (id >>> 6);
+        long mask = 1L << id;
+        while(true)
+        {
+            long word = words.get(index);
+            if((word & mask) != 0)
+            {
+                return false;
+            }
+            if(words.compareAndSet(index, word, word | mask))
+            {
+                return true;
+            }
+        }
+    }
+}
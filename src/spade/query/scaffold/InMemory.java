@@ -20,11 +20,6 @@ package spade.query.scaffold;
 import spade.core.AbstractEdge;
 import spade.core.Graph;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -32,21 +27,18 @@ import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static spade.core.AbstractStorage.SCAFFOLD_PATH;
+import static spade.core.AbstractStorage.SCAFFOLD_OFF_HEAP;
 
 
+/**
+ * Scaffold kept in memory. Vertices are stored by their dictionary id and the
+ * edges in a CSRGraph, so lineage queries run over int arrays. The arrays are
+ * kept off the heap if scaffold_off_heap is set in the storage config.
+ */
 public class InMemory extends Scaffold
 {
-    private static final int INITIAL_CACHE_CAPACITY = 500;
-    private static final int DEFAULT_ENTRY_SIZE = 200;
-    private Map<String, StringBuilder> scaffold = new HashMap<>(INITIAL_CACHE_CAPACITY);
-    private Map<String, StringBuilder> childScaffold = new HashMap<>(INITIAL_CACHE_CAPACITY);
-    private Map<String, StringBuilder> parentScaffold = new HashMap<>(INITIAL_CACHE_CAPACITY);
-    private static final String LIST_SEPARATOR = "-";
-    private static final String HASH_SEPARATOR = ",";
-
-    private static Map<String, Set<String>> childList = new HashMap<>();
-    private static Map<String, Set<String>> parentList = new HashMap<>();
+    private static final long STATS_INTERVAL = 1000000;
+    private CSRGraph graph;
     private static Logger logger = Logger.getLogger(InMemory.class.getName());
 
     /**
@@ -58,6 +50,9 @@ public class InMemory extends Scaffold
     @Override
     public boolean initialize(String arguments)
     {
+        directoryPath = arguments;
+        dictionary = new VertexDictionary();
+        graph = new CSRGraph(SCAFFOLD_OFF_HEAP);
         logger.log(Level.INFO, "Scaffold initialized");
         return true;
     }
@@ -76,157 +71,70 @@ public class InMemory extends Scaffold
     @Override
     public boolean shutdown()
     {
-        // store scaffold
-        String file_name = SCAFFOLD_PATH + "scaffold";
-        File file = new File(file_name);
-        try
-        {
-            FileOutputStream fos = new FileOutputStream(file);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-            oos.writeObject(scaffold);
-            oos.flush();
-            oos.close();
-            fos.close();
-            logger.log(Level.INFO, "Scaffold persisted for future usage.");
-        }
-        catch(IOException ex)
-        {
-            logger.log(Level.WARNING, "Unable to store scaffold to file!", ex);
-            return false;
-        }
-
         return true;
     }
 
     @Override
-    public Set<String> getChildren(String parentHash)
+    protected long[] getChildIds(long id)
     {
-        return null;
+        return graph.getChildIds(id);
     }
 
     @Override
-    public Set<String> getParents(String childHash)
+    protected long[] getParentIds(long id)
     {
-        return null;
+        return graph.getParentIds(id);
     }
 
     @Override
-    public Set<String> getNeighbors(String hash)
+    protected boolean traverse(long id, boolean ancestors, int maxDepth, LongList visitedOrder,
+                               List<long[]> neighborLists)
     {
-        return null;
+        graph.traverse(id, ancestors, maxDepth, visitedOrder, neighborLists);
+        return true;
     }
 
     @Override
-    public Map<String, Set<String>> getLineage(String hash, String direction, int maxDepth)
+    public Set<String> getChildren(String parentHash)
     {
-        return null;
+        long id = dictionary.getId(parentHash);
+        return id < 0 ? null : toHashes(getChildIds(id));
     }
 
     @Override
-    public Map<String, Set<String>> getPaths(String source_hash, String destination_hash, int maxLength)
+    public Set<String> getParents(String childHash)
     {
-        return null;
+        long id = dictionary.getId(childHash);
+        return id < 0 ? null : toHashes(getParentIds(id));
     }
 
-    public boolean insertEntry2(AbstractEdge incomingEdge)
+    @Override
+    public Set<String> getNeighbors(String hash)
     {
-        try
+        Set<String> neighbors = new HashSet<>();
+        Set<String> children = getChildren(hash);
+        if(children != null)
         {
-            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-            /*
-                processing child vertex
-            */
-            StringBuilder childEntry = childScaffold.get(childVertexHash);
-            if(childEntry == null)
-            {
-                childEntry = new StringBuilder(DEFAULT_ENTRY_SIZE);
-            }
-            childEntry.append(parentVertexHash);
-            childScaffold.put(childVertexHash, childEntry);
-            /*
-                processing parent vertex
-            */
-            StringBuilder parentEntry = parentScaffold.get(parentVertexHash);
-            if(parentEntry == null)
-            {
-                parentEntry = new StringBuilder(DEFAULT_ENTRY_SIZE);
-            }
-            parentEntry.append(childVertexHash);
-            parentScaffold.put(parentVertexHash, parentEntry);
+            neighbors.addAll(children);
         }
-        catch(Exception ex)
+        Set<String> parents = getParents(hash);
+        if(parents != null)
         {
-            logger.log(Level.SEVERE, "Scaffold entry insertion not successful!", ex);
-            return false;
+            neighbors.addAll(parents);
         }
-
-        return true;
+        return neighbors;
     }
 
-    public boolean insertEntry1(AbstractEdge incomingEdge)
+    @Override
+    public Map<String, Set<String>> getLineage(String hash, String direction, int maxDepth)
     {
-        try
-        {
-            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-            /*
-                processing child vertex
-            */
-            StringBuilder childEntry = scaffold.get(childVertexHash);
-            if(childEntry == null)
-            {
-                childEntry = new StringBuilder(DEFAULT_ENTRY_SIZE);
-                childEntry.append(LIST_SEPARATOR).append(parentVertexHash);
-                scaffold.put(childVertexHash, childEntry);
-            }
-            else
-            {
-                String[] neighborList = childEntry.toString().split(LIST_SEPARATOR, -1);
-                String parentHashList = neighborList[1];
-                if(parentHashList.isEmpty())
-                {
-                    childEntry.append(parentVertexHash);
-                } else
-                {
-                    childEntry.append(HASH_SEPARATOR).append(parentVertexHash);
-                }
-            }
-
-            /*
-                processing parent vertex
-            */
-            StringBuilder parentEntry = scaffold.get(parentVertexHash);
-            if(parentEntry == null)
-            {
-                parentEntry = new StringBuilder(DEFAULT_ENTRY_SIZE);
-                parentEntry.append(childVertexHash).append(LIST_SEPARATOR);
-                scaffold.put(parentVertexHash, parentEntry);
-            }
-            else
-            {
-                String[] neighborList = parentEntry.toString().split(LIST_SEPARATOR, -1);
-                String childHashList = neighborList[0];
-                if(childHashList.isEmpty())
-                {
-                    // insert childVertexHash in the beginning
-                    parentEntry.insert(0, childVertexHash);
-                } else
-                {
-                    // insert childVertexHash at the end of existing childList,
-                    // or before the LIST_SEPARATOR
-                    int separatorIndex = parentEntry.indexOf(LIST_SEPARATOR);
-                    parentEntry.insert(separatorIndex, HASH_SEPARATOR + childVertexHash);
-                }
-            }
-        }
-        catch(Exception ex)
-        {
-            logger.log(Level.SEVERE, "Scaffold entry insertion not successful!", ex);
-            return false;
-        }
+        return getLineageByIds(hash, direction, maxDepth);
+    }
 
-        return true;
+    @Override
+    public Map<String, Set<String>> getPaths(String source_hash, String destination_hash, int maxLength)
+    {
+        return searchPaths(source_hash, destination_hash, maxLength);
     }
 
     /**
@@ -238,46 +146,22 @@ public class InMemory extends Scaffold
      * not successful if the vertex is already present in the storage.
      */
     @Override
-    public boolean insertEntry(AbstractEdge incomingEdge)
+    public synchronized boolean insertEntry(AbstractEdge incomingEdge)
     {
-        String childHash = incomingEdge.getChildVertex().bigHashCode();
-        String parentHash = incomingEdge.getParentVertex().bigHashCode();
         try
         {
-            /*
-                processing child vertex
-             */
-            Set<String> childEntry = childList.get(childHash);
-            if(childEntry == null)
-            {
-                childEntry = new HashSet<>();
-                childList.put(childHash, childEntry);
-            }
-            childEntry.add(parentHash);
-            /*
-                processing parent vertex
-             */
-            Set<String> parentEntry = parentList.get(parentHash);
-            if(parentEntry == null)
-            {
-                parentEntry = new HashSet<>();
-                parentList.put(parentHash, parentEntry);
-            }
-            parentEntry.add(childHash);
+            long vertexCount = dictionary.size();
+            long childId = dictionary.getOrCreateId(incomingEdge.getChildVertex().bigHashCodeBytes());
+            long parentId = dictionary.getOrCreateId(incomingEdge.getParentVertex().bigHashCodeBytes());
+            graph.addEdge(childId, parentId);
 
             // stats computation
-            long size = 1000000;
-            if(childList.size() % size == 0)
+            if(vertexCount / STATS_INTERVAL != dictionary.size() / STATS_INTERVAL)
             {
                 Runtime runtime = Runtime.getRuntime();
                 long usedMemoryMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024*1024);
-                logger.log(Level.INFO, "childList size: " + childList.size() + ". JVM memory in use: "+ usedMemoryMB + " MB");
-            }
-            if(parentList.size() % size == 0)
-            {
-                Runtime runtime = Runtime.getRuntime();
-                long usedMemoryMB = (runtime.totalMemory() - runtime.freeMemory()) / (1024*1024);
-                logger.log(Level.INFO, "parentList size: " + parentList.size() + ". JVM memory in use: "+ usedMemoryMB);
+                logger.log(Level.INFO, "Scaffold vertices: " + dictionary.size() + ", edges: " + graph.getEdgeCount() +
+                        ". JVM memory in use: "+ usedMemoryMB + " MB");
             }
         }
         catch(Exception ex)
@@ -295,28 +179,3 @@ public class InMemory extends Scaffold
         return null;
     }
 }
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
-
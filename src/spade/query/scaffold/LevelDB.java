@@ -1,12 +1,10 @@
 package spade.query.scaffold;
 
-import kafka.security.auth.Write;
-import org.apache.commons.lang.StringUtils;
 import org.iq80.leveldb.CompressionType;
 import org.iq80.leveldb.DB;
+import org.iq80.leveldb.DBIterator;
 import org.iq80.leveldb.Options;
 import org.iq80.leveldb.WriteBatch;
-import org.iq80.leveldb.WriteOptions;
 import spade.core.AbstractEdge;
 import spade.core.AbstractVertex;
 import spade.core.Edge;
@@ -15,37 +13,99 @@ import spade.core.Vertex;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import static org.fusesource.leveldbjni.JniDBFactory.asString;
 import static org.fusesource.leveldbjni.JniDBFactory.bytes;
 import static org.fusesource.leveldbjni.JniDBFactory.factory;
-
-import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
-import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
-
+import static spade.core.AbstractStorage.SCAFFOLD_SNAPSHOT;
+
+/**
+ * Scaffold stored in LevelDB with append-only adjacency.
+ *
+ * Vertices are stored by their id in a VertexDictionary that is kept next to
+ * the database. Ids are written as 8 byte big-endian numbers. Every edge
+ * appends one delta for each of its end points and nothing is read back on
+ * insertion:
+ * <pre>
+ * key   = &lt;vertex id&gt; &lt;direction&gt; DELTA &lt;sequence&gt;
+ * value = &lt;neighbor id&gt;
+ * </pre>
+ * where direction is CHILDREN or PARENTS and sequence is an 8 byte big-endian
+ * counter that is persisted with each batch.
+ *
+ * Once a vertex has collected enough deltas in one direction, a background
+ * thread merges them into a single block:
+ * <pre>
+ * key   = &lt;vertex id&gt; &lt;direction&gt; BLOCK
+ * value = &lt;count&gt; &lt;gaps between the sorted neighbor ids&gt;
+ * </pre>
+ * with the count and the gaps written as variable length numbers, and then
+ * deletes the deltas it merged. The block sorts before the deltas so
+ * getChildren and getParents are a single prefix scan over the block and any
+ * deltas written since the last compaction.
+ *
+ * If scaffold_snapshot is set in the storage config, all the edges are also
+ * kept in a CSRGraph that lineage and path queries read instead of the
+ * database. See Scaffold.snapshot.
+ */
 public class LevelDB extends Scaffold
 {
     private static Logger logger = Logger.getLogger(LevelDB.class.getName());
-    private static final int INITIAL_CACHE_CAPACITY = 500;
-    private static final int DEFAULT_ENTRY_SIZE = 200;
-    private Map<String, StringBuilder> childListCache = new HashMap<>(INITIAL_CACHE_CAPACITY);
-    private Map<String, StringBuilder> parentListCache = new HashMap<>(INITIAL_CACHE_CAPACITY);
-    private DB childDatabase = null;
-    private DB parentDatabase = null;
+
+    private static final int ID_LENGTH = 8;
+    private static final byte CHILDREN_LIST = 'C';
+    private static final byte PARENTS_LIST = 'P';
+    private static final byte BLOCK = 0;
+    private static final byte DELTA = 1;
+    private static final int PREFIX_LENGTH = ID_LENGTH + 1;
+    private static final int DELTA_KEY_LENGTH = PREFIX_LENGTH + 1 + 8;
+    // Holds the next sequence number. Shorter than any adjacency key so it never matches a prefix scan.
+    private static final byte[] SEQUENCE_KEY = bytes("sequence");
+
+    // Number of deltas for a vertex in one direction after which it is compacted
+    private static final int COMPACTION_THRESHOLD = 32;
+    private static final long COMPACTION_INTERVAL_SECONDS = 5;
+    // Number of vertices and directions whose deltas are counted in memory
+    private static final int MAX_COUNTED_PREFIXES = 100000;
+
     private DB scaffoldDatabase = null;
-    private WriteBatch childBatch = null;
-    private WriteBatch parentBatch = null;
     private WriteBatch batch = null;
-    private static final String LIST_SEPARATOR = "-";
-    private static final String HASH_SEPARATOR = ",";
+    private long sequence = 0;
+
+    private final Set<ByteBuffer> compactionQueue = new LinkedHashSet<>();
+    // Deltas written per vertex and direction since it was last queued for compaction.
+    // The least recently written entry is queued for compaction when the map is full.
+    private final Map<ByteBuffer, Integer> deltaCounts = new LinkedHashMap<ByteBuffer, Integer>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Integer> eldest)
+        {
+            if(size() <= MAX_COUNTED_PREFIXES)
+            {
+                return false;
+            }
+            if(eldest.getValue() > 1)
+            {
+                compactionQueue.add(eldest.getKey());
+            }
+            return true;
+        }
+    };
+    private ScheduledExecutorService compactor = null;
 
     public LevelDB()
     {
@@ -61,62 +121,53 @@ public class LevelDB extends Scaffold
     {
         try
         {
-            WriteOptions writeOptions = new WriteOptions();
-            writeOptions.sync(false);
-
             directoryPath = arguments;
             Options options = new Options();
             options.createIfMissing(true);
             options.compressionType(CompressionType.NONE);
-//            scaffoldDatabase = factory.open(new File(directoryPath), options);
-            childDatabase = factory.open(new File(directoryPath + "child"), options);
-            parentDatabase = factory.open(new File(directoryPath + "parent"), options);
-            logger.log(Level.INFO, "Scaffold initialized");
-//            globalTxCheckin(true);
-        }
-        catch(IOException ex)
-        {
-            logger.log(Level.SEVERE, null, ex);
-            return false;
-        }
-
-        return true;
-    }
-
-    protected void globalTxCheckin1(boolean forcedFlush)
-    {
-        if ((globalTxCount % GLOBAL_TX_SIZE == 0) || (forcedFlush))
-        {
-            try
+            scaffoldDatabase = factory.open(new File(directoryPath), options);
+            dictionary = VertexDictionary.open(getDictionaryFile());
+            byte[] sequenceBytes = scaffoldDatabase.get(SEQUENCE_KEY);
+            if(sequenceBytes != null)
+            {
+                sequence = ByteBuffer.wrap(sequenceBytes).getLong();
+            }
+            batch = scaffoldDatabase.createWriteBatch();
+            compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
             {
-                if(childBatch != null)
+                @Override
+                public Thread newThread(Runnable runnable)
                 {
-                    childDatabase.write(childBatch);
-                    childBatch.close();
+                    Thread thread = new Thread(runnable, "LevelDB-scaffold-compactor");
+                    thread.setDaemon(true);
+                    return thread;
                 }
-                if(parentBatch != null)
+            });
+            compactor.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
                 {
-                    parentDatabase.write(parentBatch);
-                    parentBatch.close();
+                    compactQueued();
                 }
-                globalTxCount = 0;
-                childBatch = childDatabase.createWriteBatch();
-                parentBatch = parentDatabase.createWriteBatch();
-            }
-            catch(Exception ex)
+            }, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+            if(SCAFFOLD_SNAPSHOT)
             {
-                logger.log(Level.SEVERE, "Error committing transactions!", ex);
+                buildSnapshot();
             }
+            logger.log(Level.INFO, "Scaffold initialized");
         }
-        else
+        catch(IOException ex)
         {
-            globalTxCount++;
+            logger.log(Level.SEVERE, null, ex);
+            return false;
         }
-    }
 
+        return true;
+    }
 
     @Override
-    protected void globalTxCheckin(boolean forcedFlush)
+    protected synchronized void globalTxCheckin(boolean forcedFlush)
     {
         if ((globalTxCount % GLOBAL_TX_SIZE == 0) || (forcedFlush))
         {
@@ -124,6 +175,9 @@ public class LevelDB extends Scaffold
             {
                 if(batch != null)
                 {
+                    // The ids in the batch must be in the dictionary file before the batch is stored
+                    dictionary.flush();
+                    batch.put(SEQUENCE_KEY, ByteBuffer.allocate(8).putLong(sequence).array());
                     scaffoldDatabase.write(batch);
                     batch.close();
                 }
@@ -147,9 +201,17 @@ public class LevelDB extends Scaffold
         {
             try
             {
+                compactor.shutdown();
+                compactor.awaitTermination(1, TimeUnit.MINUTES);
+                globalTxCheckin(true);
+                compactQueued();
+                batch.close();
                 scaffoldDatabase.close();
+                scaffoldDatabase = null;
+                dictionary.close();
+                snapshot = null;
             }
-            catch(IOException ex)
+            catch(Exception ex)
             {
                 logger.log(Level.SEVERE, null, ex);
                 return false;
@@ -158,427 +220,396 @@ public class LevelDB extends Scaffold
         return true;
     }
 
-    @Override
-    public Set<String> getChildren(String parentHash)
+    private File getDictionaryFile()
     {
-        byte[] scaffoldEntryBytes = scaffoldDatabase.get(bytes(parentHash));
-        Set<String> childrenHashesSet = null;
-        if(scaffoldEntryBytes != null)
+        String path = directoryPath;
+        while(path.endsWith(File.separator))
         {
-            String scaffoldEntry = asString(scaffoldEntryBytes);
-            String[] neighborHashList = scaffoldEntry.split(LIST_SEPARATOR, -1);
-            String childrenHashList = neighborHashList[0];
-            String[] childrenHashes = childrenHashList.split(HASH_SEPARATOR);
-            if(childrenHashes.length > 0)
-            {
-                childrenHashesSet = new HashSet<>(Arrays.asList(childrenHashes));
-            }
+            path = path.substring(0, path.length() - 1);
         }
+        return new File(path + ".dictionary");
+    }
 
-        return childrenHashesSet;
+    private static byte[] listPrefix(long id, byte direction)
+    {
+        byte[] prefix = new byte[PREFIX_LENGTH];
+        writeId(id, prefix, 0);
+        prefix[ID_LENGTH] = direction;
+        return prefix;
     }
 
-    @Override
-    public Set<String> getParents(String childHash)
+    private static void writeId(long id, byte[] bytes, int offset)
     {
-        byte[] scaffoldEntryBytes = scaffoldDatabase.get(bytes(childHash));
-        Set<String> parentHashesSet = null;
-        if(scaffoldEntryBytes != null)
+        for(int i = ID_LENGTH - 1; i >= 0; i--)
         {
-            String scaffoldEntry = asString(scaffoldEntryBytes);
-            String[] neighborHashList = scaffoldEntry.split(LIST_SEPARATOR, -1);
-            String parentHashList = neighborHashList[1];
-            String[] parentHashes = parentHashList.split(HASH_SEPARATOR);
-            if(parentHashes.length > 0)
-            {
-                parentHashesSet = new HashSet<>(Arrays.asList(parentHashes));
-            }
+            bytes[offset + i] = (byte) id;
+            id >>>= 8;
         }
-
-        return parentHashesSet;
     }
 
-    @Override
-    public Set<String> getNeighbors(String hash)
+    private static long readId(byte[] bytes)
     {
-        Set<String> neighbors = getChildren(hash);
-        neighbors.addAll(getParents(hash));
+        long id = 0;
+        for(int i = 0; i < ID_LENGTH; i++)
+        {
+            id = (id << 8) | (bytes[i] & 0xff);
+        }
+        return id;
+    }
 
-        return neighbors;
+    private static boolean startsWith(byte[] key, byte[] prefix)
+    {
+        if(key.length < prefix.length)
+        {
+            return false;
+        }
+        for(int i = 0; i < prefix.length; i++)
+        {
+            if(key[i] != prefix[i])
+            {
+                return false;
+            }
+        }
+        return true;
     }
 
-    @Override
-    public Map<String, Set<String>> getLineage(String hash, String direction, int maxDepth)
+    /**
+     * Reads the block and all deltas of the vertex in the given direction.
+     *
+     * @param prefix vertex id followed by the direction
+     * @param neighbors receives the neighbor ids
+     * @param deltaKeys receives the keys of the deltas read. Can be null.
+     * @return false if there was nothing stored for the prefix
+     */
+    private boolean readList(byte[] prefix, LongList neighbors, List<byte[]> deltaKeys) throws IOException
     {
+        DBIterator iterator = scaffoldDatabase.iterator();
         try
         {
-            byte[] scaffoldEntry = scaffoldDatabase.get(bytes(hash));
-            if(scaffoldEntry != null)
+            return readList(iterator, prefix, neighbors, deltaKeys);
+        }
+        finally
+        {
+            iterator.close();
+        }
+    }
+
+    /**
+     * Same as above with an iterator that is already open, so that one
+     * iterator can read many lists.
+     */
+    private static boolean readList(DBIterator iterator, byte[] prefix, LongList neighbors, List<byte[]> deltaKeys)
+    {
+        boolean found = false;
+        for(iterator.seek(prefix); iterator.hasNext(); iterator.next())
+        {
+            Map.Entry<byte[], byte[]> entry = iterator.peekNext();
+            byte[] key = entry.getKey();
+            if(!startsWith(key, prefix))
+            {
+                break;
+            }
+            found = true;
+            if(key[PREFIX_LENGTH] == BLOCK)
+            {
+                decodeBlock(entry.getValue(), neighbors);
+            }
+            else
             {
-                Set<String> remainingVertices = new HashSet<>();
-                Set<String> visitedVertices = new HashSet<>();
-                Map<String, Set<String>> lineageMap = new HashMap<>();
-                remainingVertices.add(hash);
-                int current_depth = 0;
-                while(!remainingVertices.isEmpty() && current_depth < maxDepth)
+                neighbors.add(readId(entry.getValue()));
+                if(deltaKeys != null)
                 {
-                    visitedVertices.addAll(remainingVertices);
-                    Set<String> currentSet = new HashSet<>();
-                    for(String current_hash: remainingVertices)
-                    {
-                        Set<String> neighbors = null;
-                        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
-                            neighbors = getParents(current_hash);
-                        else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
-                            neighbors = getChildren(current_hash);
-
-                        if(neighbors != null)
-                        {
-                            lineageMap.put(current_hash, neighbors);
-                            for(String vertexHash: neighbors)
-                            {
-                                if(!visitedVertices.contains(vertexHash))
-                                {
-                                    currentSet.add(vertexHash);
-                                }
-                            }
-                        }
-                    }
-                    remainingVertices.clear();
-                    remainingVertices.addAll(currentSet);
-                    current_depth++;
+                    deltaKeys.add(key);
                 }
-
-                return lineageMap;
             }
         }
-        catch(Exception ex)
+        return found;
+    }
+
+    /**
+     * Block layout: number of ids, then the first id and the difference of
+     * every next id from the one before it, all as variable length numbers.
+     *
+     * @param sortedIds distinct ids in increasing order
+     */
+    private static byte[] encodeBlock(LongList sortedIds)
+    {
+        ByteBuffer block = ByteBuffer.allocate(10 * (sortedIds.size() + 1));
+        writeVarLong(block, sortedIds.size());
+        long previous = 0;
+        for(int i = 0; i < sortedIds.size(); i++)
         {
-            logger.log(Level.SEVERE, "Scaffold Get Lineage error!", ex);
+            writeVarLong(block, sortedIds.get(i) - previous);
+            previous = sortedIds.get(i);
         }
+        return Arrays.copyOf(block.array(), block.position());
+    }
 
-        return null;
+    private static void decodeBlock(byte[] blockBytes, LongList ids)
+    {
+        ByteBuffer block = ByteBuffer.wrap(blockBytes);
+        long count = readVarLong(block);
+        long id = 0;
+        for(long i = 0; i < count; i++)
+        {
+            id += readVarLong(block);
+            ids.add(id);
+        }
     }
 
-    @Override
-    public Map<String, Set<String>> getPaths(String source_hash, String destination_hash, int maxLength)
+    private static void writeVarLong(ByteBuffer buffer, long value)
     {
-        return null;
+        while((value & ~0x7FL) != 0)
+        {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
     }
 
-    private boolean flushBulkEntries(boolean forcedFlush)
+    private static long readVarLong(ByteBuffer buffer)
     {
-        try
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do
         {
-            if((globalTxCount % GLOBAL_TX_SIZE == 0) || forcedFlush)
+            b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Merges the block and deltas of every queued vertex and direction into a
+     * new block. Only the deltas that were read are deleted so that deltas
+     * appended in the meantime are kept.
+     */
+    private void compactQueued()
+    {
+        List<ByteBuffer> prefixes;
+        synchronized(this)
+        {
+            prefixes = new ArrayList<>(compactionQueue);
+            compactionQueue.clear();
+        }
+        for(ByteBuffer prefix : prefixes)
+        {
+            try
             {
-                /*
-                    processing child vertex
-                 */
-                WriteBatch childBatch = childDatabase.createWriteBatch();
-                for(Map.Entry<String, StringBuilder> childCacheEntry : childListCache.entrySet())
+                LongList neighbors = new LongList();
+                List<byte[]> deltaKeys = new ArrayList<>();
+                readList(prefix.array(), neighbors, deltaKeys);
+                if(deltaKeys.isEmpty())
                 {
-                    String childVertexHash = childCacheEntry.getKey();
-                    byte[] childVertexHashBytes = bytes(childVertexHash);
-                    byte[] currentChildEntryBytes = childDatabase.get(childVertexHashBytes);
-                    String newChildEntry;
-                    if(currentChildEntryBytes == null)
-                    {
-                        newChildEntry = childCacheEntry.getValue().toString();
-                    } else
-                    {
-                        String currentChildEntry = asString(currentChildEntryBytes);
-                        newChildEntry = currentChildEntry + HASH_SEPARATOR + childCacheEntry.getValue();
-                    }
-                    childBatch.put(childVertexHashBytes, bytes(newChildEntry));
+                    continue;
                 }
-                childDatabase.write(childBatch);
-                childBatch.close();
-                childListCache.clear();
-
-                /*
-                    processing parent vertex
-                 */
-                WriteBatch parentBatch = parentDatabase.createWriteBatch();
-                for(Map.Entry<String, StringBuilder> parentCacheEntry : parentListCache.entrySet())
+                neighbors.sortUnique();
+                byte[] blockKey = Arrays.copyOf(prefix.array(), PREFIX_LENGTH + 1);
+                blockKey[PREFIX_LENGTH] = BLOCK;
+                WriteBatch compactionBatch = scaffoldDatabase.createWriteBatch();
+                try
                 {
-                    String parentVertexHash = parentCacheEntry.getKey();
-                    byte[] parentVertexHashBytes = bytes(parentVertexHash);
-                    byte[] currentParentEntryBytes = parentDatabase.get(parentVertexHashBytes);
-                    String newParentEntry;
-                    if(currentParentEntryBytes == null)
-                    {
-                        newParentEntry = parentCacheEntry.getValue().toString();
-                    } else
+                    compactionBatch.put(blockKey, encodeBlock(neighbors));
+                    for(byte[] deltaKey : deltaKeys)
                     {
-                        String currentParentEntry = asString(currentParentEntryBytes);
-                        newParentEntry = currentParentEntry + HASH_SEPARATOR + parentCacheEntry.getValue().toString();
+                        compactionBatch.delete(deltaKey);
                     }
-                    parentBatch.put(parentVertexHashBytes, bytes(newParentEntry));
+                    scaffoldDatabase.write(compactionBatch);
                 }
-                parentDatabase.write(parentBatch);
-                parentBatch.close();
-                parentListCache.clear();
+                finally
+                {
+                    compactionBatch.close();
+                }
+            }
+            catch(Exception ex)
+            {
+                logger.log(Level.SEVERE, "Error compacting scaffold entry!", ex);
             }
         }
-        catch(Exception ex)
+    }
+
+    // Makes the batched deltas visible to the scans
+    private void flushBatch()
+    {
+        synchronized(this)
         {
-            logger.log(Level.SEVERE, "Error bulk flushing cached entries to scaffold!", ex);
-            return false;
+            if(globalTxCount > 0)
+            {
+                globalTxCheckin(true);
+            }
         }
-
-        return true;
     }
 
-    public boolean flushBulkEntries1(boolean forcedFlush)
+    private long[] getIds(long id, byte direction)
     {
         try
         {
-            if((globalTxCount % GLOBAL_TX_SIZE == 0) || forcedFlush)
+            flushBatch();
+            LongList neighbors = new LongList();
+            if(!readList(listPrefix(id, direction), neighbors, null))
             {
-                WriteBatch batch = scaffoldDatabase.createWriteBatch();
-                Set<String> hashList = new HashSet<>(childListCache.keySet());
-                hashList.addAll(parentListCache.keySet());
-                for(String hash: hashList)
-                {
-                    byte[] hashBytes = bytes(hash);
-                    StringBuilder childCacheBuilder = childListCache.get(hash);
-                    String childCache = "";
-                    if(childCacheBuilder != null)
-                    {
-                        childCache = childCacheBuilder.toString();
-                    }
-                    StringBuilder parentCacheBuilder = parentListCache.get(hash);
-                    String parentCache = "";
-                    if(parentCacheBuilder != null)
-                    {
-                        parentCache = parentCacheBuilder.toString();
-                    }
-                    byte[] currentScaffoldEntryBytes = scaffoldDatabase.get(hashBytes);
-                    String newScaffoldEntry;
-                    if(currentScaffoldEntryBytes == null)
-                    {
-                        Set<String> childHashSet = new HashSet<>(Arrays.asList(childCache.split(HASH_SEPARATOR)));
-                        Set<String> parentHashSet = new HashSet<>(Arrays.asList(parentCache.split(HASH_SEPARATOR)));
-                        newScaffoldEntry = StringUtils.join(childHashSet, HASH_SEPARATOR) + LIST_SEPARATOR +
-                                StringUtils.join(parentHashSet, HASH_SEPARATOR);
-                    }
-                    else
-                    {
-                        String currentScaffoldEntry = asString(currentScaffoldEntryBytes);
-                        String[] neighborHashList = currentScaffoldEntry.split(LIST_SEPARATOR, -1);
-                        String childrenHashList = neighborHashList[0];
-                        String parentHashList = neighborHashList[1];
-                        Set<String> cachedChildrenHashSet = new HashSet<>(Arrays.asList(childCache.split(HASH_SEPARATOR)));
-                        Set<String> cachedParentHashSet = new HashSet<>(Arrays.asList(parentCache.split(HASH_SEPARATOR)));
-
-                        Set<String> currentChildrenHashSet = new HashSet<>(Arrays.asList(childrenHashList.split(HASH_SEPARATOR)));
-                        Set<String> currentParentHashSet = new HashSet<>(Arrays.asList(parentHashList.split(HASH_SEPARATOR)));
-                        currentChildrenHashSet.addAll(cachedChildrenHashSet);
-                        currentParentHashSet.addAll(cachedParentHashSet);
-
-                        newScaffoldEntry = StringUtils.join(currentChildrenHashSet, HASH_SEPARATOR) + LIST_SEPARATOR +
-                                StringUtils.join(currentParentHashSet, HASH_SEPARATOR);
-                    }
-                    batch.put(hashBytes, bytes(newScaffoldEntry));
-                }
-                childListCache.clear();
-                parentListCache.clear();
-                scaffoldDatabase.write(batch);
-                batch.close();
+                return null;
             }
+            return neighbors.toArray();
         }
         catch(Exception ex)
         {
-            logger.log(Level.SEVERE, "Error bulk flushing cached entries to scaffold!", ex);
-            return false;
+            logger.log(Level.SEVERE, "Error reading scaffold entry!", ex);
+            return null;
         }
+    }
 
-        return true;
+    @Override
+    protected long[] getChildIds(long id)
+    {
+        return getIds(id, CHILDREN_LIST);
+    }
+
+    @Override
+    protected long[] getParentIds(long id)
+    {
+        return getIds(id, PARENTS_LIST);
     }
 
-    public boolean insertEntry2(AbstractEdge incomingEdge)
+    /**
+     * Reads all the lists with one iterator. The ids are in increasing order,
+     * so every seek moves forward over the keys.
+     */
+    @Override
+    protected long[][] getNeighborIds(long[] ids, int from, int to, boolean ancestors)
     {
+        long[][] neighborIds = new long[to - from][];
+        byte direction = ancestors ? PARENTS_LIST : CHILDREN_LIST;
         try
         {
-            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-            /*
-                processing child vertex
-             */
-            StringBuilder childList = childListCache.get(childVertexHash);
-            if(childList == null)
-            {
-                childList = new StringBuilder(DEFAULT_ENTRY_SIZE);
-                childList.append(parentVertexHash);
-                childListCache.put(childVertexHash, childList);
-            }
-            else
-            {
-                childList.append(HASH_SEPARATOR).append(parentVertexHash);
-            }
-
-            /*
-                processing parent vertex
-             */
-            StringBuilder parentList = parentListCache.get(parentVertexHash);
-            if(parentList == null)
+            flushBatch();
+            DBIterator iterator = scaffoldDatabase.iterator();
+            try
             {
-                parentList = new StringBuilder(DEFAULT_ENTRY_SIZE);
-                parentList.append(childVertexHash);
-                parentListCache.put(parentVertexHash, parentList);
+                LongList neighbors = new LongList();
+                for(int i = from; i < to; i++)
+                {
+                    neighbors.clear();
+                    if(readList(iterator, listPrefix(ids[i], direction), neighbors, null))
+                    {
+                        neighborIds[i - from] = neighbors.toArray();
+                    }
+                }
             }
-            else
+            finally
             {
-                parentList.append(HASH_SEPARATOR).append(childVertexHash);
+                iterator.close();
             }
-
-            // increment count
-            globalTxCount++;
-            flushBulkEntries(false);
         }
         catch(Exception ex)
         {
-            logger.log(Level.SEVERE, "Error committing transactions!", ex);
-            return false;
+            logger.log(Level.SEVERE, "Error reading scaffold entries!", ex);
+            return null;
         }
+        return neighborIds;
+    }
 
-        return true;
+    @Override
+    public Set<String> getChildren(String parentHash)
+    {
+        long id = dictionary.getId(parentHash);
+        return id < 0 ? null : toHashes(getChildIds(id));
     }
 
-    public boolean insertEntry1(AbstractEdge incomingEdge)
+    @Override
+    public Set<String> getParents(String childHash)
     {
-        try
-        {
-            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-            byte[] childVertexHashBytes = bytes(childVertexHash);
-            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-            byte[] parentVertexHashBytes = bytes(parentVertexHash);
-            /*
-                processing child vertex
-             */
-            byte[] childEntryBytes = childDatabase.get(childVertexHashBytes);
-            String childEntry = asString(childEntryBytes);
-            String newChildEntry;
-            if(childEntryBytes == null)
-            {
-                newChildEntry = parentVertexHash;
-            }
-            else
-            {
-                newChildEntry = childEntry + HASH_SEPARATOR + parentVertexHash;
-            }
-            childDatabase.put(childVertexHashBytes, bytes(newChildEntry));
-
-            /*
-                processing parent vertex
-             */
-            byte[] parentEntryBytes = parentDatabase.get(parentVertexHashBytes);
-            String parentEntry = asString(parentEntryBytes);
-            String newParentEntry;
-            if(parentEntryBytes == null)
-            {
-                newParentEntry = childVertexHash;
-            }
-            else
-            {
-                newParentEntry = parentEntry + HASH_SEPARATOR + childVertexHash;
-            }
-            parentDatabase.put(parentVertexHashBytes, bytes(newParentEntry));
+        long id = dictionary.getId(childHash);
+        return id < 0 ? null : toHashes(getParentIds(id));
+    }
 
+    @Override
+    public Set<String> getNeighbors(String hash)
+    {
+        Set<String> neighbors = new HashSet<>();
+        Set<String> children = getChildren(hash);
+        if(children != null)
+        {
+            neighbors.addAll(children);
         }
-        catch(Exception ex)
+        Set<String> parents = getParents(hash);
+        if(parents != null)
         {
-            logger.log(Level.SEVERE, null, ex);
-            return false;
+            neighbors.addAll(parents);
         }
 
-        return true;
+        return neighbors;
+    }
+
+    @Override
+    public Map<String, Set<String>> getLineage(String hash, String direction, int maxDepth)
+    {
+        return getLineageByIds(hash, direction, maxDepth);
+    }
+
+    @Override
+    public Map<String, Set<String>> getPaths(String source_hash, String destination_hash, int maxLength)
+    {
+        return searchPaths(source_hash, destination_hash, maxLength);
+    }
+
+    private void appendDelta(long id, byte direction, long neighborId)
+    {
+        byte[] key = new byte[DELTA_KEY_LENGTH];
+        writeId(id, key, 0);
+        key[ID_LENGTH] = direction;
+        key[PREFIX_LENGTH] = DELTA;
+        long deltaSequence = sequence++;
+        for(int i = 0; i < 8; i++)
+        {
+            key[DELTA_KEY_LENGTH - 1 - i] = (byte) (deltaSequence >>> (i * 8));
+        }
+        byte[] value = new byte[ID_LENGTH];
+        writeId(neighborId, value, 0);
+        batch.put(key, value);
+
+        ByteBuffer prefix = ByteBuffer.wrap(listPrefix(id, direction));
+        Integer count = deltaCounts.get(prefix);
+        count = count == null ? 1 : count + 1;
+        if(count >= COMPACTION_THRESHOLD)
+        {
+            deltaCounts.remove(prefix);
+            compactionQueue.add(prefix);
+        }
+        else
+        {
+            deltaCounts.put(prefix, count);
+        }
     }
 
     /**
      * This function inserts hashes of the end vertices of given edge
      * into the scaffold storage.
      *
+     * The parent is appended to the parents of the child and the child to the
+     * children of the parent. Nothing is read so the cost does not depend on
+     * the number of neighbors the vertices already have.
+     *
      * @param incomingEdge edge whose end points to insert into the storage
      * @return returns true if the insertion is successful.
-     * format of one (<key>,<value>) entry in scaffold is as follows:
-     * <key> = <vertex hash>
-     * <value> = <children hashes separated by HASH_SEPARATOR> <LIST_SEPARATOR> <parent hashes by HASH_SEPARATOR>
-     * for example:
-     * hash1,hash2,hash3,hash4-hash10,hash11,hash12,hash13,hash14
      */
     @Override
-    public boolean insertEntry(AbstractEdge incomingEdge)
+    public synchronized boolean insertEntry(AbstractEdge incomingEdge)
     {
         try
         {
-            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-            byte[] childVertexHashBytes = bytes(childVertexHash);
-            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-            byte[] parentVertexHashBytes = bytes(parentVertexHash);
-
-            /*
-                processing child vertex
-             */
-            byte[] currentChildEntryBytes = scaffoldDatabase.get(childVertexHashBytes);
-            String newChildEntry;
-            // if key is not present
-            if(currentChildEntryBytes == null)
-            {
-                newChildEntry = LIST_SEPARATOR + parentVertexHash;
-            }
-            // append to existing list
-            else
-            {
-                String currentChildEntry = asString(currentChildEntryBytes);
-                String[] neighborHashList = currentChildEntry.split(LIST_SEPARATOR, -1);
-                String childrenHashList = neighborHashList[0];
-                String parentHashList = neighborHashList[1];
-                if(parentHashList.isEmpty())
-                {
-                    newChildEntry = currentChildEntry + parentVertexHash;
-                }
-                else
-                {
-                    Set<String> parentHashSet = new HashSet<>(Arrays.asList(parentHashList.split(HASH_SEPARATOR)));
-                    parentHashSet.add(parentVertexHash);
-                    newChildEntry = childrenHashList + LIST_SEPARATOR + StringUtils.join(parentHashSet, HASH_SEPARATOR);
-                }
-            }
-            scaffoldDatabase.put(childVertexHashBytes, bytes(newChildEntry));
-//            globalTxCheckin(false);
-
-            /*
-                processing parent vertex
-             */
-            byte[] currentParentEntryBytes = scaffoldDatabase.get(parentVertexHashBytes);
-            String newParentEntry;
-            // if key is not present
-            if(currentParentEntryBytes == null)
+            long childId = dictionary.getOrCreateId(incomingEdge.getChildVertex().bigHashCodeBytes());
+            long parentId = dictionary.getOrCreateId(incomingEdge.getParentVertex().bigHashCodeBytes());
+            appendDelta(childId, PARENTS_LIST, parentId);
+            appendDelta(parentId, CHILDREN_LIST, childId);
+            if(snapshot != null)
             {
-                newParentEntry = childVertexHash + LIST_SEPARATOR;
+                snapshot.addEdge(childId, parentId);
             }
-            // append to existing list
-            else
-            {
-                String currentParentEntry = asString(currentParentEntryBytes);
-                String[] neighborHashList  = currentParentEntry.split(LIST_SEPARATOR, -1);
-                String childrenHashList = neighborHashList[0];
-                String parentHashList = neighborHashList[1];
-                if(childrenHashList.isEmpty())
-                {
-                    newParentEntry = childVertexHash + currentParentEntry;
-                }
-                else
-                {
-                    Set<String> childrenHashSet = new HashSet<>(Arrays.asList(childrenHashList.split(HASH_SEPARATOR)));
-                    childrenHashSet.add(childVertexHash);
-                    newParentEntry = StringUtils.join(childrenHashSet, HASH_SEPARATOR) + LIST_SEPARATOR + parentHashList;
-                }
-            }
-            scaffoldDatabase.put(parentVertexHashBytes, bytes(newParentEntry));
-//            globalTxCheckin(false);
+            globalTxCheckin(false);
         }
         catch(Exception ex)
         {
@@ -656,12 +687,14 @@ public class LevelDB extends Scaffold
         e6.addAnnotation("type", "WasControlledBy");
         e6.addAnnotation("edgeid", "6");
 
-        System.out.println(levelDB.insertEntry2(e1));
-        System.out.println(levelDB.insertEntry2(e2));
-        System.out.println(levelDB.insertEntry2(e3));
-        System.out.println(levelDB.insertEntry2(e4));
-        System.out.println(levelDB.insertEntry2(e5));
-        System.out.println(levelDB.insertEntry2(e6));
-
+        System.out.println(levelDB.insertEntry(e1));
+        System.out.println(levelDB.insertEntry(e2));
+        System.out.println(levelDB.insertEntry(e3));
+        System.out.println(levelDB.insertEntry(e4));
+        System.out.println(levelDB.insertEntry(e5));
+        System.out.println(levelDB.insertEntry(e6));
+        System.out.println(levelDB.getParents(v2.bigHashCode()));
+        System.out.println(levelDB.getChildren(v2.bigHashCode()));
+        levelDB.shutdown();
     }
 }
@@ -0,0 +1,101 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.scaffold;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of longs used for vertex ids.
+ */
+class LongList
+{
+    private long[] values;
+    private int size = 0;
+
+    LongList()
+    {
+        this(4);
+    }
+
+    LongList(int capacity)
+    {
+        values = new long[Math.max(capacity, 1)];
+    }
+
+    void add(long value)
+    {
+        if(size == values.length)
+        {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Adds the value. Whenever the array is full the duplicates are removed
+     * first, so repeated values take at most as much space as the distinct ones.
+     */
+    void addCompacting(long value)
+    {
+        if(size == values.length)
+        {
+            sortUnique();
+            if(size * 2 > values.length)
+            {
+                values = Arrays.copyOf(values, values.length * 2);
+            }
+        }
+        values[size++] = value;
+    }
+
+    long get(int index)
+    {
+        return values[index];
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    void clear()
+    {
+        size = 0;
+    }
+
+    /**
+     * Sorts the values and removes duplicates
+     */
+    void sortUnique()
+    {
+        Arrays.sort(values, 0, size);
+        int unique = 0;
+        for(int i = 0; i < size; i++)
+        {
+            if(unique == 0 || values[unique - 1] != values[i])
+            {
+                values[unique++] = values[i];
+            }
+        }
+        size = unique;
+    }
+
+    long[] toArray()
+    {
+        return Arrays.copyOf(values, size);
+    }
+}
@@ -21,11 +21,33 @@ import spade.core.AbstractVertex;
 import spade.core.Edge;
 import spade.core.Graph;
 import spade.core.Vertex;
+import spade.query.common.PathSearch;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
+import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
+import static spade.core.AbstractStorage.PATH_MAX_VERTICES;
+import static spade.core.AbstractStorage.SCAFFOLD_OFF_HEAP;
+import static spade.core.AbstractStorage.SCAFFOLD_TRAVERSAL_THREADS;
 
 
 /**
@@ -41,6 +63,27 @@ public abstract class Scaffold
     protected static int globalTxCount = 0;
     protected int MAX_WAIT_TIME_BEFORE_FLUSH = 15000; // ms
     protected Date lastFlushTime;
+    /**
+     * Dense ids of the vertex hashes. Set by the scaffolds that store ids
+     * instead of hashes.
+     */
+    protected VertexDictionary dictionary;
+    /**
+     * Edges of a disk scaffold kept in memory if scaffold_snapshot is set.
+     * Built from the store by buildSnapshot and kept current by adding every
+     * new edge to its overlay. traverse and the path search read it instead
+     * of the store. Null otherwise.
+     */
+    protected volatile CSRGraph snapshot;
+
+    private static final Logger logger = Logger.getLogger(Scaffold.class.getName());
+    // Frontiers smaller than this are expanded by the calling thread
+    private static final int PARALLEL_FRONTIER_SIZE = 256;
+    // Fewest vertices in one chunk of a frontier
+    private static final int MIN_CHUNK_SIZE = 64;
+    // 0 until read from the configuration
+    private static int traversalThreads = 0;
+    private static ExecutorService traversalExecutor = null;
 
     public void setGLOBAL_TX_SIZE(int globalTxSize)
     {
@@ -86,6 +129,616 @@ public abstract class Scaffold
 
     public abstract Graph queryManager(Map<String, List<String>> params);
 
+    /**
+     * Returns the ids of the children of the vertex. Scaffolds that keep a
+     * dictionary override this and the parents variant.
+     *
+     * @param id id of the vertex in the dictionary
+     * @return ids of the children or null if the vertex has none. May contain duplicates.
+     */
+    protected long[] getChildIds(long id)
+    {
+        return null;
+    }
+
+    /**
+     * @param id id of the vertex in the dictionary
+     * @return ids of the parents or null if the vertex has none. May contain duplicates.
+     */
+    protected long[] getParentIds(long id)
+    {
+        return null;
+    }
+
+    /**
+     * Reads all the edges of the store into the snapshot. Call from
+     * initialize once the dictionary is open.
+     */
+    protected void buildSnapshot()
+    {
+        long start = System.currentTimeMillis();
+        snapshot = CSRGraph.fromScaffold(this, SCAFFOLD_OFF_HEAP);
+        logger.log(Level.INFO, "Scaffold snapshot of " + dictionary.size() + " vertices and " +
+                snapshot.getEdgeCount() + " edges built in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Converts the ids to hashes
+     *
+     * @param ids ids in the dictionary. Can be null.
+     * @return set of the hashes or null if ids is null
+     */
+    protected Set<String> toHashes(long[] ids)
+    {
+        if(ids == null)
+        {
+            return null;
+        }
+        Set<String> hashes = new HashSet<>(ids.length * 2);
+        for(long id : ids)
+        {
+            hashes.add(dictionary.getHash(id));
+        }
+        return hashes;
+    }
+
+    /**
+     * Reads the neighbors of ids[from .. to). traverse passes the ids in
+     * increasing order and calls this from several threads at once. Scaffolds
+     * that can read many lists together more cheaply than one at a time
+     * override this.
+     *
+     * @param ids ids in the dictionary
+     * @param ancestors true to read the parents and false to read the children
+     * @return neighbors of each id in the same order, null for an id without any. Null if the
+     * lists could not be read.
+     */
+    protected long[][] getNeighborIds(long[] ids, int from, int to, boolean ancestors)
+    {
+        long[][] neighborIds = new long[to - from][];
+        for(int i = from; i < to; i++)
+        {
+            neighborIds[i - from] = ancestors ? getParentIds(ids[i]) : getChildIds(ids[i]);
+        }
+        return neighborIds;
+    }
+
+    /**
+     * Sets the number of threads that expand the frontiers of traversals. With
+     * 1 every frontier is expanded by the calling thread. Call while no
+     * traversal is running.
+     */
+    public static synchronized void setTraversalThreads(int threads)
+    {
+        if(traversalExecutor != null)
+        {
+            traversalExecutor.shutdown();
+            traversalExecutor = null;
+        }
+        traversalThreads = Math.max(1, threads);
+    }
+
+    /**
+     * @return shared threads for expanding frontiers or null if there is only one
+     */
+    private static synchronized ExecutorService getTraversalExecutor()
+    {
+        if(traversalThreads == 0)
+        {
+            traversalThreads = Math.max(1, SCAFFOLD_TRAVERSAL_THREADS);
+        }
+        if(traversalThreads == 1)
+        {
+            return null;
+        }
+        if(traversalExecutor == null)
+        {
+            traversalExecutor = Executors.newFixedThreadPool(traversalThreads, new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable)
+                {
+                    Thread thread = new Thread(runnable, "scaffold-traversal-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return traversalExecutor;
+    }
+
+    /**
+     * Splits a frontier into chunks so that every thread gets a few of them.
+     */
+    private static int chunkSize(int frontierSize)
+    {
+        return Math.max(MIN_CHUNK_SIZE, frontierSize / (traversalThreads * 4) + 1);
+    }
+
+    /**
+     * Runs the tasks on the traversal threads.
+     *
+     * @return results in the order of the tasks or null if a task failed or returned null
+     */
+    private static <T> List<T> runAll(ExecutorService executor, List<Callable<T>> tasks)
+    {
+        try
+        {
+            List<T> results = new ArrayList<>(tasks.size());
+            for(Future<T> future : executor.invokeAll(tasks))
+            {
+                T result = future.get();
+                if(result == null)
+                {
+                    return null;
+                }
+                results.add(result);
+            }
+            return results;
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Traversal interrupted", ex);
+        }
+        catch(ExecutionException ex)
+        {
+            logger.log(Level.SEVERE, "Error expanding traversal frontier", ex);
+        }
+        return null;
+    }
+
+    /**
+     * Vertices expanded by one chunk of a frontier.
+     */
+    private static class ExpandedIds
+    {
+        private final LongList expanded = new LongList();
+        private final List<long[]> neighborLists = new ArrayList<>();
+        private final LongList next = new LongList();
+    }
+
+    // Returns false if the neighbors could not be read
+    private boolean expand(long[] frontier, int from, int to, boolean ancestors, ConcurrentBitSet visited,
+                           ExpandedIds result)
+    {
+        long[][] neighborIds = getNeighborIds(frontier, from, to, ancestors);
+        if(neighborIds == null)
+        {
+            return false;
+        }
+        for(int i = from; i < to; i++)
+        {
+            long[] neighbors = neighborIds[i - from];
+            if(neighbors != null && neighbors.length > 0)
+            {
+                result.expanded.add(frontier[i]);
+                result.neighborLists.add(neighbors);
+                for(long neighbor : neighbors)
+                {
+                    if(visited.set(neighbor))
+                    {
+                        result.next.add(neighbor);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Level by level breadth first search over the ids. The visited vertices
+     * are kept in a bitmap, so no hash is created before the result is
+     * returned. Frontiers of at least PARALLEL_FRONTIER_SIZE ids are split into
+     * chunks that the traversal threads read at the same time. Runs over the
+     * snapshot instead if there is one.
+     *
+     * @param id id of the start vertex
+     * @param ancestors true to follow parents and false to follow children
+     * @param maxDepth number of levels to expand
+     * @param visitedOrder receives the ids of the expanded vertices that have neighbors
+     * @param neighborLists receives the neighbors of each of those ids in the same order
+     * @return false if a frontier could not be read, in which case the lists hold only part of the lineage
+     */
+    protected boolean traverse(long id, boolean ancestors, int maxDepth, LongList visitedOrder,
+                               List<long[]> neighborLists)
+    {
+        CSRGraph currentSnapshot = snapshot;
+        if(currentSnapshot != null)
+        {
+            currentSnapshot.traverse(id, ancestors, maxDepth, visitedOrder, neighborLists);
+            return true;
+        }
+        ExecutorService executor = getTraversalExecutor();
+        final ConcurrentBitSet visited = new ConcurrentBitSet(dictionary == null ? 0 : dictionary.size());
+        visited.set(id);
+        long[] frontier = new long[]{id};
+        int currentDepth = 0;
+        while(frontier.length > 0 && currentDepth < maxDepth)
+        {
+            // increasing ids let the stores read the lists in key order
+            Arrays.sort(frontier);
+            List<ExpandedIds> chunks;
+            if(executor == null || frontier.length < PARALLEL_FRONTIER_SIZE)
+            {
+                ExpandedIds chunk = new ExpandedIds();
+                if(!expand(frontier, 0, frontier.length, ancestors, visited, chunk))
+                {
+                    return false;
+                }
+                chunks = Collections.singletonList(chunk);
+            }
+            else
+            {
+                final long[] currentFrontier = frontier;
+                final boolean currentAncestors = ancestors;
+                int chunkSize = chunkSize(frontier.length);
+                List<Callable<ExpandedIds>> tasks = new ArrayList<>();
+                for(int from = 0; from < frontier.length; from += chunkSize)
+                {
+                    final int start = from;
+                    final int end = Math.min(frontier.length, from + chunkSize);
+                    tasks.add(new Callable<ExpandedIds>()
+                    {
+                        @Override
+                        public ExpandedIds call()
+                        {
+                            ExpandedIds chunk = new ExpandedIds();
+                            boolean read = expand(currentFrontier, start, end, currentAncestors, visited, chunk);
+                            return read ? chunk : null;
+                        }
+                    });
+                }
+                chunks = runAll(executor, tasks);
+                if(chunks == null)
+                {
+                    return false;
+                }
+            }
+            LongList next = new LongList();
+            for(ExpandedIds chunk : chunks)
+            {
+                for(int i = 0; i < chunk.expanded.size(); i++)
+                {
+                    visitedOrder.add(chunk.expanded.get(i));
+                }
+                neighborLists.addAll(chunk.neighborLists);
+                for(int i = 0; i < chunk.next.size(); i++)
+                {
+                    next.add(chunk.next.get(i));
+                }
+            }
+            frontier = next.toArray();
+            currentDepth++;
+        }
+        return true;
+    }
+
+    /**
+     * getLineage for scaffolds that keep a dictionary.
+     *
+     * @return map of each vertex reached to its neighbors in the given direction, or null if
+     * the vertex is not in the scaffold or the traversal failed
+     */
+    protected Map<String, Set<String>> getLineageByIds(String hash, String direction, int maxDepth)
+    {
+        long id = dictionary.getId(hash);
+        if(id < 0)
+        {
+            return null;
+        }
+        boolean ancestors;
+        if(DIRECTION_ANCESTORS.startsWith(direction.toLowerCase()))
+        {
+            ancestors = true;
+        }
+        else if(DIRECTION_DESCENDANTS.startsWith(direction.toLowerCase()))
+        {
+            ancestors = false;
+        }
+        else
+        {
+            return null;
+        }
+        LongList visitedOrder = new LongList();
+        List<long[]> neighborLists = new ArrayList<>();
+        if(!traverse(id, ancestors, maxDepth, visitedOrder, neighborLists))
+        {
+            return null;
+        }
+        Map<String, Set<String>> lineageMap = new HashMap<>(visitedOrder.size() * 2);
+        for(int i = 0; i < visitedOrder.size(); i++)
+        {
+            lineageMap.put(dictionary.getHash(visitedOrder.get(i)), toHashes(neighborLists.get(i)));
+        }
+        return lineageMap;
+    }
+
+    /**
+     * getLineage for scaffolds that keep hashes instead of ids. Expands the
+     * frontiers the same way as traverse, with the visited hashes in a
+     * concurrent set.
+     *
+     * @param hash hash of the start vertex
+     * @param ancestors true to follow parents and false to follow children
+     * @param maxDepth number of levels to expand
+     * @return map of each vertex reached that has neighbors to its neighbors in the given direction,
+     * or null if a frontier could not be read
+     */
+    protected Map<String, Set<String>> traverseHashes(String hash, boolean ancestors, int maxDepth)
+    {
+        ExecutorService executor = getTraversalExecutor();
+        final Set<String> visited = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final boolean currentAncestors = ancestors;
+        Map<String, Set<String>> lineageMap = new HashMap<>();
+        visited.add(hash);
+        List<String> frontier = Collections.singletonList(hash);
+        int currentDepth = 0;
+        while(!frontier.isEmpty() && currentDepth < maxDepth)
+        {
+            List<Map<String, Set<String>>> chunks;
+            if(executor == null || frontier.size() < PARALLEL_FRONTIER_SIZE)
+            {
+                chunks = Collections.singletonList(expandHashes(frontier, ancestors));
+            }
+            else
+            {
+                int chunkSize = chunkSize(frontier.size());
+                List<Callable<Map<String, Set<String>>>> tasks = new ArrayList<>();
+                for(int from = 0; from < frontier.size(); from += chunkSize)
+                {
+                    final List<String> chunk = frontier.subList(from, Math.min(frontier.size(), from + chunkSize));
+                    tasks.add(new Callable<Map<String, Set<String>>>()
+                    {
+                        @Override
+                        public Map<String, Set<String>> call()
+                        {
+                            return expandHashes(chunk, currentAncestors);
+                        }
+                    });
+                }
+                chunks = runAll(executor, tasks);
+                if(chunks == null)
+                {
+                    return null;
+                }
+            }
+            List<String> next = new ArrayList<>();
+            for(Map<String, Set<String>> chunk : chunks)
+            {
+                lineageMap.putAll(chunk);
+                for(Set<String> neighbors : chunk.values())
+                {
+                    for(String neighbor : neighbors)
+                    {
+                        if(visited.add(neighbor))
+                        {
+                            next.add(neighbor);
+                        }
+                    }
+                }
+            }
+            frontier = next;
+            currentDepth++;
+        }
+        return lineageMap;
+    }
+
+    private Map<String, Set<String>> expandHashes(List<String> hashes, boolean ancestors)
+    {
+        Map<String, Set<String>> neighborMap = new HashMap<>(hashes.size() * 2);
+        for(String hash : hashes)
+        {
+            Set<String> neighbors = ancestors ? getParents(hash) : getChildren(hash);
+            if(neighbors != null)
+            {
+                neighborMap.put(hash, neighbors);
+            }
+        }
+        return neighborMap;
+    }
+
+    /**
+     * Reads the neighbors of all the ids from the snapshot if there is one.
+     * Otherwise reads them from the store, in chunks on the traversal threads
+     * if there are at least PARALLEL_FRONTIER_SIZE of them.
+     *
+     * @param ids ids in increasing order
+     * @return neighbors of each id in the same order, null for an id without any. Null if a chunk
+     * could not be read.
+     */
+    private long[][] readNeighborIds(final long[] ids, final boolean ancestors)
+    {
+        CSRGraph currentSnapshot = snapshot;
+        if(currentSnapshot != null)
+        {
+            long[][] neighborIds = new long[ids.length][];
+            for(int i = 0; i < ids.length; i++)
+            {
+                neighborIds[i] = ancestors ? currentSnapshot.getParentIds(ids[i]) :
+                        currentSnapshot.getChildIds(ids[i]);
+            }
+            return neighborIds;
+        }
+        ExecutorService executor = getTraversalExecutor();
+        if(executor == null || ids.length < PARALLEL_FRONTIER_SIZE)
+        {
+            return getNeighborIds(ids, 0, ids.length, ancestors);
+        }
+        int chunkSize = chunkSize(ids.length);
+        List<Callable<long[][]>> tasks = new ArrayList<>();
+        for(int from = 0; from < ids.length; from += chunkSize)
+        {
+            final int start = from;
+            final int end = Math.min(ids.length, from + chunkSize);
+            tasks.add(new Callable<long[][]>()
+            {
+                @Override
+                public long[][] call()
+                {
+                    return getNeighborIds(ids, start, end, ancestors);
+                }
+            });
+        }
+        List<long[][]> chunks = runAll(executor, tasks);
+        if(chunks == null)
+        {
+            return null;
+        }
+        long[][] neighborIds = new long[ids.length][];
+        int position = 0;
+        for(long[][] chunk : chunks)
+        {
+            System.arraycopy(chunk, 0, neighborIds, position, chunk.length);
+            position += chunk.length;
+        }
+        return neighborIds;
+    }
+
+    /**
+     * getPaths for all scaffolds. Scaffolds that keep a dictionary search
+     * over the ids, reading the neighbors of each level like traverse, and
+     * only the vertices on a path get their hashes. The others search over
+     * the parents and children of each hash. See PathSearch.
+     *
+     * @return map of each vertex on a path to its parents and children on a path, or null if the
+     * neighbors of a level could not be read
+     */
+    protected Map<String, Set<String>> searchPaths(String source_hash, String destination_hash, int maxLength)
+    {
+        if(dictionary == null)
+        {
+            return searchPathsByHashes(source_hash, destination_hash, maxLength);
+        }
+        long sourceId = dictionary.getId(source_hash);
+        long destinationId = dictionary.getId(destination_hash);
+        if(sourceId < 0 || destinationId < 0)
+        {
+            return new HashMap<>();
+        }
+        PathSearch<Long> pathSearch = new PathSearch<Long>(maxLength, PATH_MAX_VERTICES)
+        {
+            @Override
+            protected Map<Long, Set<Long>> expand(Set<Long> idSet, boolean ancestors)
+            {
+                long[] ids = new long[idSet.size()];
+                int i = 0;
+                for(Long id : idSet)
+                {
+                    ids[i++] = id;
+                }
+                // increasing ids let the stores read the lists in key order
+                Arrays.sort(ids);
+                long[][] neighborIds = readNeighborIds(ids, ancestors);
+                if(neighborIds == null)
+                {
+                    return null;
+                }
+                Map<Long, Set<Long>> neighbors = new HashMap<>(ids.length * 2);
+                for(i = 0; i < ids.length; i++)
+                {
+                    if(neighborIds[i] != null)
+                    {
+                        Set<Long> neighborSet = new HashSet<>(neighborIds[i].length * 2);
+                        for(long neighbor : neighborIds[i])
+                        {
+                            neighborSet.add(neighbor);
+                        }
+                        neighbors.put(ids[i], neighborSet);
+                    }
+                }
+                return neighbors;
+            }
+        };
+        Map<Long, Set<Long>> pathParents = pathSearch.search(sourceId, destinationId);
+        if(pathParents == null)
+        {
+            return null;
+        }
+        logTruncated(pathSearch);
+        Map<Long, String> hashes = new HashMap<>(pathParents.size() * 2);
+        for(Long id : pathParents.keySet())
+        {
+            hashes.put(id, dictionary.getHash(id));
+        }
+        Map<String, Set<String>> hashParents = new HashMap<>(pathParents.size() * 2);
+        for(Map.Entry<Long, Set<Long>> entry : pathParents.entrySet())
+        {
+            Set<String> parents = new HashSet<>(entry.getValue().size() * 2);
+            for(Long parent : entry.getValue())
+            {
+                String parentHash = hashes.get(parent);
+                parents.add(parentHash != null ? parentHash : dictionary.getHash(parent));
+            }
+            hashParents.put(hashes.get(entry.getKey()), parents);
+        }
+        return toPathNeighbors(hashParents);
+    }
+
+    private Map<String, Set<String>> searchPathsByHashes(String source_hash, String destination_hash, int maxLength)
+    {
+        PathSearch<String> pathSearch = new PathSearch<String>(maxLength, PATH_MAX_VERTICES)
+        {
+            @Override
+            protected Map<String, Set<String>> expand(Set<String> hashes, boolean ancestors)
+            {
+                Map<String, Set<String>> neighbors = new HashMap<>(hashes.size() * 2);
+                for(String hash : hashes)
+                {
+                    neighbors.put(hash, ancestors ? getParents(hash) : getChildren(hash));
+                }
+                return neighbors;
+            }
+        };
+        Map<String, Set<String>> pathParents = pathSearch.search(source_hash, destination_hash);
+        if(pathParents == null)
+        {
+            return null;
+        }
+        logTruncated(pathSearch);
+        return toPathNeighbors(pathParents);
+    }
+
+    private static void logTruncated(PathSearch<?> pathSearch)
+    {
+        if(pathSearch.isTruncated())
+        {
+            logger.log(Level.WARNING, "Path search stopped after visiting " + PATH_MAX_VERTICES + " vertices");
+        }
+    }
+
+    /**
+     * @param pathParents map of each vertex on a path to its parents on a path
+     * @return map of each vertex on a path to its parents and children on a path
+     */
+    private static Map<String, Set<String>> toPathNeighbors(Map<String, Set<String>> pathParents)
+    {
+        Map<String, Set<String>> paths = new HashMap<>(pathParents.size() * 2);
+        for(Map.Entry<String, Set<String>> entry : pathParents.entrySet())
+        {
+            Set<String> pathEntry = paths.get(entry.getKey());
+            if(pathEntry == null)
+            {
+                pathEntry = new HashSet<>();
+                paths.put(entry.getKey(), pathEntry);
+            }
+            pathEntry.addAll(entry.getValue());
+            for(String parent : entry.getValue())
+            {
+                Set<String> parentEntry = paths.get(parent);
+                if(parentEntry == null)
+                {
+                    parentEntry = new HashSet<>();
+                    paths.put(parent, parentEntry);
+                }
+                parentEntry.add(entry.getKey());
+            }
+        }
+        return paths;
+    }
+
     public static void main(String args[])
     {
         // testing code
@@ -0,0 +1,301 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.query.scaffold;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Maps the 128-bit vertex hashes (bigHashCode) to dense ids starting at 0.
+ *
+ * Ids are assigned in insertion order and never change, so a scaffold can
+ * store ids instead of hashes and translate back only when returning results.
+ * The hashes are kept as two longs per id and looked up through an open
+ * addressing table of ids, so no object is created per vertex.
+ *
+ * A persistent dictionary appends the 16 bytes of every new hash to its file.
+ * The id of a hash is its position in the file.
+ */
+public class VertexDictionary
+{
+    private static final int HASH_LENGTH = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // hashes[2 * id] and hashes[2 * id + 1] are the two halves of the hash of id
+    private long[] hashes = new long[2 * INITIAL_CAPACITY];
+    // id + 1 of the hash in each slot. 0 means empty.
+    private int[] table = new int[2 * INITIAL_CAPACITY];
+    private int size = 0;
+    private DataOutputStream output = null;
+
+    /**
+     * Creates a dictionary that is only kept in memory
+     */
+    public VertexDictionary()
+    {
+    }
+
+    /**
+     * Opens the dictionary stored in the given file. The file is created if
+     * it does not exist.
+     *
+     * @param file file of the dictionary
+     * @return the dictionary with all the ids stored in the file
+     * @throws IOException if the file cannot be read or opened for appending
+     */
+    public static VertexDictionary open(File file) throws IOException
+    {
+        VertexDictionary dictionary = new VertexDictionary();
+        if(file.exists())
+        {
+            DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try
+            {
+                // A record cut short by a crash is ignored and cut off below
+                long records = file.length() / HASH_LENGTH;
+                for(long i = 0; i < records; i++)
+                {
+                    dictionary.add(input.readLong(), input.readLong());
+                }
+            }
+            catch(EOFException ex)
+            {
+                // file was shorter than its length said
+            }
+            finally
+            {
+                input.close();
+            }
+        }
+        FileOutputStream fileOutput = new FileOutputStream(file, true);
+        try
+        {
+            // new hashes have to start at the position of their id
+            fileOutput.getChannel().truncate((long) dictionary.size * HASH_LENGTH);
+        }
+        catch(IOException ex)
+        {
+            fileOutput.close();
+            throw ex;
+        }
+        dictionary.output = new DataOutputStream(new BufferedOutputStream(fileOutput));
+        return dictionary;
+    }
+
+    private static int slot(long high, long low, int mask)
+    {
+        long mixed = (high ^ (low * 0x9e3779b97f4a7c15L));
+        return (int) (mixed ^ (mixed >>> 32)) & mask;
+    }
+
+    private int find(long high, long low)
+    {
+        int mask = table.length - 1;
+        for(int slot = slot(high, low, mask); ; slot = (slot + 1) & mask)
+        {
+            int entry = table[slot];
+            if(entry == 0)
+            {
+                return -1;
+            }
+            int id = entry - 1;
+            if(hashes[2 * id] == high && hashes[2 * id + 1] == low)
+            {
+                return id;
+            }
+        }
+    }
+
+    private int add(long high, long low)
+    {
+        if(size == Integer.MAX_VALUE - 1)
+        {
+            throw new IllegalStateException("Vertex dictionary is full");
+        }
+        if(2 * size + 2 > hashes.length)
+        {
+            long[] grown = new long[hashes.length * 2];
+            System.arraycopy(hashes, 0, grown, 0, 2 * size);
+            hashes = grown;
+        }
+        int id = size++;
+        hashes[2 * id] = high;
+        hashes[2 * id + 1] = low;
+        if(size * 2 > table.length)
+        {
+            table = new int[table.length * 2];
+            for(int i = 0; i < size; i++)
+            {
+                insertSlot(i);
+            }
+        }
+        else
+        {
+            insertSlot(id);
+        }
+        return id;
+    }
+
+    private void insertSlot(int id)
+    {
+        int mask = table.length - 1;
+        int slot = slot(hashes[2 * id], hashes[2 * id + 1], mask);
+        while(table[slot] != 0)
+        {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    private synchronized long getOrCreateId(long high, long low) throws IOException
+    {
+        int id = find(high, low);
+        if(id == -1)
+        {
+            id = add(high, low);
+            if(output != null)
+            {
+                output.writeLong(high);
+                output.writeLong(low);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * @param hash the 16 bytes of a vertex hash
+     * @return id of the hash. A new id is assigned if the hash is not known.
+     * @throws IOException if the new hash cannot be written to the file
+     */
+    public long getOrCreateId(byte[] hash) throws IOException
+    {
+        long high = 0, low = 0;
+        for(int i = 0; i < 8; i++)
+        {
+            high = (high << 8) | (hash[i] & 0xff);
+            low = (low << 8) | (hash[i + 8] & 0xff);
+        }
+        return getOrCreateId(high, low);
+    }
+
+    /**
+     * @param hash vertex hash as 32 hex characters
+     * @return id of the hash or -1 if the hash is not known or not valid
+     */
+    public synchronized long getId(String hash)
+    {
+        long[] halves = parseHash(hash);
+        return halves == null ? -1 : find(halves[0], halves[1]);
+    }
+
+    /**
+     * @param hash vertex hash as 32 hex characters
+     * @return id of the hash or -1 if the hash is not valid. A new id is assigned if the hash is not known.
+     * @throws IOException if the new hash cannot be written to the file
+     */
+    public long getOrCreateId(String hash) throws IOException
+    {
+        long[] halves = parseHash(hash);
+        return halves == null ? -1 : getOrCreateId(halves[0], halves[1]);
+    }
+
+    /**
+     * @return the two halves of the hash or null if it is not 32 hex characters
+     */
+    private static long[] parseHash(String hash)
+    {
+        if(hash == null || hash.length() != 2 * HASH_LENGTH)
+        {
+            return null;
+        }
+        long high = 0, low = 0;
+        for(int i = 0; i < HASH_LENGTH; i++)
+        {
+            int digit = Character.digit(hash.charAt(i), 16);
+            int lowDigit = Character.digit(hash.charAt(i + HASH_LENGTH), 16);
+            if(digit < 0 || lowDigit < 0)
+            {
+                return null;
+            }
+            high = (high << 4) | digit;
+            low = (low << 4) | lowDigit;
+        }
+        return new long[]{high, low};
+    }
+
+    /**
+     * @param id id returned by this dictionary
+     * @return the hash of the id as 32 lowercase hex characters (the format of bigHashCode)
+     */
+    public synchronized String getHash(long id)
+    {
+        if(id < 0 || id >= size)
+        {
+            return null;
+        }
+        char[] hex = new char[2 * HASH_LENGTH];
+        writeHex(hashes[2 * (int) id], hex, 0);
+        writeHex(hashes[2 * (int) id + 1], hex, HASH_LENGTH);
+        return new String(hex);
+    }
+
+    private static void writeHex(long value, char[] hex, int offset)
+    {
+        for(int i = HASH_LENGTH - 1; i >= 0; i--)
+        {
+            hex[offset + i] = Character.forDigit((int) (value & 0xf), 16);
+            value >>>= 4;
+        }
+    }
+
+    /**
+     * @return number of ids assigned. Ids are 0 to size() - 1.
+     */
+    public synchronized long size()
+    {
+        return size;
+    }
+
+    /**
+     * Writes the buffered new hashes to the file
+     *
+     * @throws IOException if writing fails
+     */
+    public synchronized void flush() throws IOException
+    {
+        if(output != null)
+        {
+            output.flush();
+        }
+    }
+
+    public synchronized void close() throws IOException
+    {
+        if(output != null)
+        {
+            output.close();
+            output = null;
+        }
+    }
+}
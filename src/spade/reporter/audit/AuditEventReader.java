@@ -30,6 +30,15 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
@@ -136,7 +145,8 @@ public class AuditEventReader {
 	private boolean reportingEnabled = false;
 	private long reportEveryMs;
 	private long startTime, lastReportedTime;
-	private long lastReportedRecordCount, recordCount;
+	private long lastReportedRecordCount;
+	private volatile long recordCount;
 
 	// Group 1: pid
 	// Group 2: unitid
@@ -146,18 +156,31 @@ public class AuditEventReader {
 	private final Pattern pattern_unit = 
 			Pattern.compile("\\(pid=(\\d+) thread_time=(\\d+\\.\\d+) unitid=(\\d+) iteration=(\\d+) time=(\\d+\\.\\d+) count=(\\d+)\\)");
 	
-	// Group 1: key
-	// Group 2: value
-	private final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
-
 	// Group 1: node
 	// Group 2: type
 	// Group 3: time
 	// Group 4: recordid
 	private final static Pattern pattern_message_start = Pattern.compile("(?:node=(\\S+) )?type=(.+) msg=audit\\(([0-9\\.]+)\\:([0-9]+)\\):\\s*");
 	
-	// Group 1: cwd
-	//cwd is either a quoted string or an unquoted string in which case it is in hex format
+	// Group 1: key
+	// Group 2: value
+	private final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
+	
+	/**
+	 * True to split key value pairs with pattern_key_value instead of KeyValueTokenizer
+	 */
+	private boolean regexParser = false;
+	
+	/**
+	 * One tokenizer per parsing thread so that its buffers are reused across records
+	 */
+	private final ThreadLocal<KeyValueTokenizer> tokenizers = new ThreadLocal<KeyValueTokenizer>(){
+		@Override
+		protected KeyValueTokenizer initialValue(){
+			return new KeyValueTokenizer();
+		}
+	};
+
 	private final Pattern pattern_cwd = Pattern.compile("cwd=(\".+\"|[a-zA-Z0-9]+)");
 
 	// Group 1: item number
@@ -203,6 +226,24 @@ public class AuditEventReader {
 	 */
 	private boolean EOF = false;
 	
+	/**
+	 * Set by the thread grouping the records once the stream has no more records
+	 */
+	private boolean streamEnded = false;
+	
+	/**
+	 * Number of threads parsing events. 0 to read and parse on the thread calling readEventData.
+	 */
+	private int parserThreads = 0;
+	
+	/**
+	 * Parsed events in the order in which they were read. Bounds the number of events in flight.
+	 */
+	private BlockingQueue<Future<Map<String, String>>> parsedEvents;
+	private ExecutorService parserPool;
+	private Thread readerThread;
+	private volatile boolean pipelineStopped = false;
+	
 	/**
 	 * Flag to tell the reader how to behave in case of unexpected data format.
 	 * if true then throw an exception.
@@ -238,6 +279,14 @@ public class AuditEventReader {
 			if(new File(defaultConfigFilePath).exists()){
 				Map<String, String> properties = FileUtility.readConfigFileAsKeyValueMap(defaultConfigFilePath, "=");
 				if(properties != null && properties.size() > 0){
+					regexParser = "regex".equalsIgnoreCase(properties.get("keyValueParser"));
+					Integer threads = CommonFunctions.parseInt(properties.get("parserThreads"), null);
+					if(threads != null && threads > 0){
+						parserThreads = threads;
+						Integer queueSize = CommonFunctions.parseInt(properties.get("parserQueueSize"), null);
+						parsedEvents = new ArrayBlockingQueue<Future<Map<String, String>>>(
+								queueSize == null || queueSize < 1 ? 10000 : queueSize);
+					}
 					Long reportingInterval = CommonFunctions.parseLong(properties.get("reportingIntervalSeconds"), null);
 					if(reportingInterval != null){
 						if(reportingInterval < 1){ //at least 1 ms
@@ -350,6 +399,10 @@ public class AuditEventReader {
 	 * 
 	 * Reads on the assumption that all records for an event are contiguously placed
 	 * 
+	 * If parser threads are configured then the records are read and grouped into events by a 
+	 * separate thread and parsed by a pool of threads. The events are still returned in the 
+	 * order in which they were read.
+	 * 
 	 * @return map of key values of the read audit event
 	 * @throws Exception IOException
 	 */
@@ -363,6 +416,108 @@ public class AuditEventReader {
 				lastReportedRecordCount = recordCount;
 			}
 		}
+		
+		if(parserThreads < 1){
+			Set<String> records = readEventRecords();
+			return records == null ? null : getEventMap(records);
+		}
+		
+		if(EOF){
+			return null;
+		}
+		if(readerThread == null){
+			startPipeline();
+		}
+		Future<Map<String, String>> parsedEvent = parsedEvents.take();
+		try{
+			Map<String, String> eventData = parsedEvent.get();
+			if(eventData == null){
+				EOF = true;
+			}
+			return eventData;
+		}catch(ExecutionException e){
+			if(e.getCause() instanceof Exception){
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
+	}
+	
+	/**
+	 * Starts the thread that reads the records and groups them into events. Each event is handed 
+	 * to the parser pool and its future is queued in the order read.
+	 */
+	private void startPipeline(){
+		parserPool = Executors.newFixedThreadPool(parserThreads, new ThreadFactory(){
+			private int count = 0;
+			@Override
+			public synchronized Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "AuditEventReader-parser-" + (count++));
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		readerThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					while(!pipelineStopped){
+						final Set<String> records;
+						try{
+							records = readEventRecords();
+						}catch(final Exception e){
+							parsedEvents.put(failedEvent(e));
+							return;
+						}
+						if(records == null){
+							parsedEvents.put(endOfEvents());
+							return;
+						}
+						parsedEvents.put(parserPool.submit(new Callable<Map<String, String>>(){
+							@Override
+							public Map<String, String> call() throws Exception{
+								return getEventMap(records);
+							}
+						}));
+					}
+				}catch(InterruptedException e){
+					// Stopped by close
+				}
+			}
+		}, "AuditEventReader-reader");
+		readerThread.setDaemon(true);
+		readerThread.start();
+	}
+	
+	private static Future<Map<String, String>> endOfEvents(){
+		FutureTask<Map<String, String>> future = new FutureTask<Map<String, String>>(new Callable<Map<String, String>>(){
+			@Override
+			public Map<String, String> call(){
+				return null;
+			}
+		});
+		future.run();
+		return future;
+	}
+	
+	private static Future<Map<String, String>> failedEvent(final Exception exception){
+		FutureTask<Map<String, String>> future = new FutureTask<Map<String, String>>(new Callable<Map<String, String>>(){
+			@Override
+			public Map<String, String> call() throws Exception{
+				throw exception;
+			}
+		});
+		future.run();
+		return future;
+	}
+	
+	/**
+	 * Reads the records of the next event from the stream
+	 * 
+	 * @return records of the event. Null on EOF.
+	 * @throws Exception IOException or invalid record (if failfast)
+	 */
+	private Set<String> readEventRecords() throws Exception{
 
 		/*
 		 * Logic:
@@ -382,10 +537,10 @@ public class AuditEventReader {
 		 * 
 		 */
 		
-		if(EOF){
+		if(streamEnded){
 			return null;
 		}else{
-			Map<String, String> eventData = null;
+			Set<String> eventRecords = null;
 			
 			if(pendingUBSIEvent){
 				Set<String> copy = new HashSet<String>();
@@ -393,7 +548,7 @@ public class AuditEventReader {
 				currentEventRecords.clear();
 				currentEventId = -1L;
 				pendingUBSIEvent = false;
-				eventData = getEventMap(copy);
+				eventRecords = copy;
 			}else{
 				String line = null;
 				
@@ -437,7 +592,7 @@ public class AuditEventReader {
 									Set<String> records = new HashSet<String>(currentEventRecords);
 									currentEventRecords.clear();
 									currentEventRecords.add(line); //add the next event record
-									eventData = getEventMap(records);
+									eventRecords = records;
 									break;
 								}else{ //if they are equal
 									currentEventRecords.add(line);
@@ -451,7 +606,7 @@ public class AuditEventReader {
 							records.add(UBSIRecord);
 							currentEventId = -1L;
 							pendingUBSIEvent = false;
-							eventData = getEventMap(records);
+							eventRecords = records;
 							break;
 						}else if(UBSIRecord != null && !currentEventRecords.isEmpty()){
 							// Has a pending event. add the UBSI record to pending and return the existing event
@@ -460,14 +615,14 @@ public class AuditEventReader {
 							currentEventRecords.add(UBSIRecord);
 							currentEventId = -1L;
 							pendingUBSIEvent = true;
-							eventData = getEventMap(records);
+							eventRecords = records;
 							break;
 						}
 					}
 				}
 				// EOF
 				if(line == null){
-					EOF = true;
+					streamEnded = true;
 					if(currentEventRecords.isEmpty()){
 						return null;
 					}else{
@@ -475,11 +630,11 @@ public class AuditEventReader {
 						currentEventRecords.clear();
 						currentEventId = -1L;
 						pendingUBSIEvent = false;
-						return getEventMap(records);
+						return records;
 					}
 				}
 			}
-			return eventData;
+			return eventRecords;
 		}
 	}
 	
@@ -504,6 +659,11 @@ public class AuditEventReader {
 	}
 
 	public void close(){
+		if(readerThread != null){
+			pipelineStopped = true;
+			readerThread.interrupt();
+			parserPool.shutdownNow();
+		}
 		if(reportingEnabled){
 			printStats();
 		}
@@ -632,7 +792,7 @@ public class AuditEventReader {
 			auditRecordKeyValues.put(EVENT_ID, String.valueOf(UBSIEntryEventId));
 			
 			String msgData = line.substring(line.indexOf(" ppid="));
-			auditRecordKeyValues.putAll(CommonFunctions.parseKeyValPairs(msgData));
+			auditRecordKeyValues.putAll(parseKeyValPairs(msgData));
 			
 		}else{
 		
@@ -662,19 +822,14 @@ public class AuditEventReader {
 					if(indexOfData != -1){
 						String data = messageData.substring(indexOfData + KMODULE_DATA_KEY.length() + 1);
 						data = data.substring(1, data.length() - 1);// remove quotes
-						Map<String, String> eventData = CommonFunctions.parseKeyValPairs(data);
+						Map<String, String> eventData = parseKeyValPairs(data);
 						eventData.put(RECORD_TYPE_KEY, KMODULE_RECORD_TYPE);
 						eventData.put(COMM, CommonFunctions.decodeHex(eventData.get(COMM)));
 						eventData.put(TIME, time);
 						auditRecordKeyValues.putAll(eventData);
 					}
 				}else if (type.equals(RECORD_TYPE_SYSCALL)) {
-					Map<String, String> eventData = CommonFunctions.parseKeyValPairs(messageData);
-					if(messageData.contains(COMM + "=") && !messageData.contains(COMM + "=\"")
-							&& !"(null)".equals(eventData.get(COMM))){ // comm has a hex encoded value
-						// decode and replace value
-						eventData.put(COMM, CommonFunctions.decodeHex(eventData.get(COMM)));
-					}
+					Map<String, String> eventData = parseKeyValPairs(messageData, COMM); // comm can have a hex encoded value
 					eventData.put(TIME, time);
 					auditRecordKeyValues.putAll(eventData);
 				} else if (type.equals(RECORD_TYPE_CWD)) {
@@ -694,61 +849,32 @@ public class AuditEventReader {
 						auditRecordKeyValues.put(CWD, cwd);
 					}
 				} else if (type.equals(RECORD_TYPE_PATH)) {
-					Map<String, String> pathKeyValues = CommonFunctions.parseKeyValPairs(messageData);
+					Map<String, String> pathKeyValues = parseKeyValPairs(messageData, "name"); // name can have a hex encoded value
 					String itemNumber = pathKeyValues.get("item");
 					String name = pathKeyValues.get("name");
 					String mode = pathKeyValues.get("mode");
 					mode = mode == null ? "0" : mode;
 					String nametype = pathKeyValues.get("nametype");
 					
-					name = name.trim();
-					if(messageData.contains(" name=") && 
-							!messageData.contains(" name=\"") &&
-							!messageData.contains(" name=(null)")){ 
-						//is a hex path if the value of the key name doesn't start with double quotes
-						try{
-							name = CommonFunctions.decodeHex(name);
-						}catch(Exception e){
-							//failed to parse
-						}
-					}
-					
+
 					auditRecordKeyValues.put(PATH_PREFIX + itemNumber, name);
 					auditRecordKeyValues.put(NAMETYPE_PREFIX + itemNumber, nametype);
 					auditRecordKeyValues.put(MODE_PREFIX + itemNumber, mode);
 				} else if (type.equals(RECORD_TYPE_EXECVE)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(EXECVE_PREFIX + key_value_matcher.group(1), key_value_matcher.group(2));
-					}
+					putKeyValues(messageData, EXECVE_PREFIX, auditRecordKeyValues);
 				} else if (type.equals(RECORD_TYPE_FD_PAIR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
+					putKeyValues(messageData, null, auditRecordKeyValues);
 				} else if (type.equals(RECORD_TYPE_SOCKETCALL)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put("socketcall_" + key_value_matcher.group(1), key_value_matcher.group(2));
-					}
+					putKeyValues(messageData, "socketcall_", auditRecordKeyValues);
 				} else if (type.equals(RECORD_TYPE_SOCKADDR)) {
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
+					putKeyValues(messageData, null, auditRecordKeyValues);
 				} else if(type.equals(RECORD_TYPE_NETFILTER_PKT)){
 					auditRecordKeyValues.put(TIME, time); // add time
 					auditRecordKeyValues.put(RECORD_TYPE_KEY, RECORD_TYPE_NETFILTER_PKT); // type
 					// rest of the keys as is below
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
+					putKeyValues(messageData, null, auditRecordKeyValues);
 				} else if (type.equals(RECORD_TYPE_MMAP)){
-					Matcher key_value_matcher = pattern_key_value.matcher(messageData);
-					while (key_value_matcher.find()) {
-						auditRecordKeyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
-					}
+					putKeyValues(messageData, null, auditRecordKeyValues);
 				} else{
 					             
 				}
@@ -761,6 +887,53 @@ public class AuditEventReader {
 		return auditRecordKeyValues;
 	}
 
+	private Map<String, String> parseKeyValPairs(String messageData){
+		return parseKeyValPairs(messageData, null);
+	}
+	
+	/**
+	 * Same as CommonFunctions.parseKeyValPairs but also decodes the value of the given key if
+	 * it is hex encoded i.e. not in quotes and not '(null)'. The value is null if it is not valid hex.
+	 * 
+	 * @param messageData key value pairs
+	 * @param hexEncodedKey key with a possibly hex encoded value. Can be null.
+	 * @return map of key values
+	 */
+	private Map<String, String> parseKeyValPairs(String messageData, String hexEncodedKey){
+		if(regexParser){
+			Map<String, String> keyValPairs = CommonFunctions.parseKeyValPairs(messageData);
+			if(hexEncodedKey != null && messageData.contains(" " + hexEncodedKey + "=") 
+					&& !messageData.contains(" " + hexEncodedKey + "=\"")
+					&& !"(null)".equals(keyValPairs.get(hexEncodedKey))){
+				keyValPairs.put(hexEncodedKey, CommonFunctions.decodeHex(keyValPairs.get(hexEncodedKey)));
+			}
+			return keyValPairs;
+		}else{
+			Map<String, String> keyValPairs = new HashMap<String, String>();
+			tokenizers.get().tokenize(messageData, null, true, hexEncodedKey, keyValPairs);
+			return keyValPairs;
+		}
+	}
+	
+	/**
+	 * Adds the key value pairs in the message data to the map without trimming the values
+	 * 
+	 * @param messageData key value pairs
+	 * @param keyPrefix prepended to every key. Can be null.
+	 * @param keyValues map to add the pairs to
+	 */
+	private void putKeyValues(String messageData, String keyPrefix, Map<String, String> keyValues){
+		if(regexParser){
+			Matcher key_value_matcher = pattern_key_value.matcher(messageData);
+			while (key_value_matcher.find()) {
+				keyValues.put(keyPrefix == null ? key_value_matcher.group(1) : keyPrefix + key_value_matcher.group(1), 
+						key_value_matcher.group(2));
+			}
+		}else{
+			tokenizers.get().tokenize(messageData, keyPrefix, false, null, keyValues);
+		}
+	}
+
 	// Pubali : Parses log message
     // Assumes the log message will always be between "]" and "exe"
     private Map<String,String> parseApplogMsg(String messageData) {
@@ -0,0 +1,292 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.reporter.audit;
+
+import java.util.Map;
+
+/**
+ * Splits the key value part of an audit record without regular expressions.
+ *
+ * Gives the same pairs as the pattern (\w+)="*((?<=")[^"]+(?=")|([^\s]+))"* applied with find():
+ *
+ * 1) A key is the run of word characters right before an '='
+ * 2) If the value starts with quotes and a closing quote follows then the value is the text between them
+ * 3) Otherwise the value is everything up to the next whitespace
+ *
+ * The record is copied once into a buffer that is reused across records and the pairs are
+ * scanned in place. Only offsets are kept while scanning. Keys that appear in most records
+ * are returned as shared constants and hex values are only decoded when asked for.
+ *
+ * Not thread-safe. Use one instance per thread.
+ */
+public class KeyValueTokenizer{
+
+	/**
+	 * Keys returned without allocating a new string
+	 */
+	private static final String[] KNOWN_KEYS = {
+		"a0", "a1", "a2", "a3", "arch", "argc", "auid", "comm", "cwd", "dev", "egid", "euid", "exe",
+		"exit", "fd0", "fd1", "flags", "fsgid", "fsuid", "gid", "inode", "item", "items", "key", "len",
+		"mode", "name", "nametype", "ogid", "ouid", "pid", "ppid", "prot", "rdev", "saddr", "ses", "sgid",
+		"success", "suid", "syscall", "tty", "uid", "unitid", "iteration", "time", "count", "type"
+	};
+
+	private static final String[] knownKeysTable = new String[256];
+
+	static{
+		for(String key : KNOWN_KEYS){
+			int slot = key.hashCode() & (knownKeysTable.length - 1);
+			while(knownKeysTable[slot] != null){
+				slot = (slot + 1) & (knownKeysTable.length - 1);
+			}
+			knownKeysTable[slot] = key;
+		}
+	}
+
+	private char[] buffer = new char[1024];
+	private byte[] decodeBuffer = new byte[256];
+	private int length;
+	private int position;
+
+	// Offsets of the current pair in the buffer
+	private int keyStart, keyEnd, valueStart, valueEnd;
+	private boolean quoted;
+
+	/**
+	 * Starts scanning the given data. Pairs of the previous data are discarded.
+	 *
+	 * @param data text to tokenize. Null is treated as empty.
+	 * @return this
+	 */
+	public KeyValueTokenizer reset(String data){
+		length = data == null ? 0 : data.length();
+		if(buffer.length < length){
+			buffer = new char[Math.max(length, buffer.length * 2)];
+		}
+		if(length > 0){
+			data.getChars(0, length, buffer, 0);
+		}
+		position = 0;
+		return this;
+	}
+
+	private static boolean isWordChar(char c){
+		return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+	}
+
+	private static boolean isWhitespace(char c){
+		return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+	}
+
+	private int indexOf(char c, int from){
+		for(int i = from; i < length; i++){
+			if(buffer[i] == c){
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Moves to the next key value pair
+	 *
+	 * @return false if there are no more pairs
+	 */
+	public boolean next(){
+		while(position < length){
+			int equals = indexOf('=', position);
+			if(equals == -1){
+				position = length;
+				return false;
+			}
+			int start = equals;
+			while(start > position && isWordChar(buffer[start - 1])){
+				start--;
+			}
+			if(start == equals){ // no key before this '='
+				position = equals + 1;
+				continue;
+			}
+
+			int afterEquals = equals + 1;
+			int quotesEnd = afterEquals;
+			while(quotesEnd < length && buffer[quotesEnd] == '"'){
+				quotesEnd++;
+			}
+			quoted = quotesEnd > afterEquals;
+			if(quoted){
+				int closingQuote = indexOf('"', quotesEnd);
+				if(closingQuote > quotesEnd){ // non-empty quoted value
+					valueStart = quotesEnd;
+					valueEnd = closingQuote;
+					position = closingQuote;
+					while(position < length && buffer[position] == '"'){
+						position++;
+					}
+					keyStart = start;
+					keyEnd = equals;
+					return true;
+				}
+			}
+			// Unquoted value. Leading quotes are not part of it unless nothing else is left.
+			int end = quotesEnd;
+			while(end < length && !isWhitespace(buffer[end])){
+				end++;
+			}
+			if(end > quotesEnd){
+				valueStart = quotesEnd;
+			}else if(quoted){
+				valueStart = quotesEnd - 1;
+			}else{ // nothing after '='
+				position = afterEquals;
+				continue;
+			}
+			valueEnd = end;
+			position = end;
+			keyStart = start;
+			keyEnd = equals;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return key of the current pair
+	 */
+	public String key(){
+		int hash = 0;
+		for(int i = keyStart; i < keyEnd; i++){
+			hash = 31 * hash + buffer[i];
+		}
+		int slot = hash & (knownKeysTable.length - 1);
+		String known;
+		while((known = knownKeysTable[slot]) != null){
+			if(regionEquals(known, keyStart, keyEnd)){
+				return known;
+			}
+			slot = (slot + 1) & (knownKeysTable.length - 1);
+		}
+		return new String(buffer, keyStart, keyEnd - keyStart);
+	}
+
+	private boolean regionEquals(String string, int start, int end){
+		if(string.length() != end - start){
+			return false;
+		}
+		for(int i = start; i < end; i++){
+			if(buffer[i] != string.charAt(i - start)){
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param string string to compare with
+	 * @return true if the key of the current pair is equal to the string
+	 */
+	public boolean keyEquals(String string){
+		return regionEquals(string, keyStart, keyEnd);
+	}
+
+	/**
+	 * @return value of the current pair
+	 */
+	public String value(){
+		return new String(buffer, valueStart, valueEnd - valueStart);
+	}
+
+	/**
+	 * @return value of the current pair without leading and trailing whitespace
+	 */
+	public String trimmedValue(){
+		int start = valueStart, end = valueEnd;
+		while(start < end && buffer[start] <= ' '){
+			start++;
+		}
+		while(end > start && buffer[end - 1] <= ' '){
+			end--;
+		}
+		return new String(buffer, start, end - start);
+	}
+
+	/**
+	 * @return true if the value of the current pair was in quotes
+	 */
+	public boolean isQuoted(){
+		return quoted;
+	}
+
+	/**
+	 * Decodes the value of the current pair as hex. Audit writes values that contain special
+	 * characters as hex instead of in quotes.
+	 *
+	 * @return decoded value or null if the value is not valid hex
+	 */
+	public String hexDecodedValue(){
+		int start = valueStart, end = valueEnd;
+		while(start < end && buffer[start] <= ' '){
+			start++;
+		}
+		while(end > start && buffer[end - 1] <= ' '){
+			end--;
+		}
+		int chars = end - start;
+		if((chars & 1) != 0){
+			return null;
+		}
+		int bytes = chars / 2;
+		if(decodeBuffer.length < bytes){
+			decodeBuffer = new byte[Math.max(bytes, decodeBuffer.length * 2)];
+		}
+		for(int i = 0; i < bytes; i++){
+			int high = Character.digit(buffer[start + 2 * i], 16);
+			int low = Character.digit(buffer[start + 2 * i + 1], 16);
+			if(high < 0 || low < 0){
+				return null;
+			}
+			decodeBuffer[i] = (byte)((high << 4) | low);
+		}
+		return new String(decodeBuffer, 0, bytes);
+	}
+
+	/**
+	 * Adds all key value pairs found in the data to the map
+	 *
+	 * @param data text to tokenize
+	 * @param keyPrefix prepended to every key. Can be null.
+	 * @param trim true to trim values (as CommonFunctions.parseKeyValPairs does)
+	 * @param hexEncodedKey key whose value is hex decoded if it is not in quotes and not '(null)'. Can be null.
+	 * @param keyValues map to add the pairs to
+	 */
+	public void tokenize(String data, String keyPrefix, boolean trim, String hexEncodedKey, Map<String, String> keyValues){
+		reset(data);
+		while(next()){
+			String key = keyPrefix == null ? key() : keyPrefix + key();
+			String value;
+			if(hexEncodedKey != null && !quoted && keyEquals(hexEncodedKey) && !"(null)".equals(trimmedValue())){
+				value = hexDecodedValue();
+			}else{
+				value = trim ? trimmedValue() : value();
+			}
+			keyValues.put(key, value);
+		}
+	}
+}
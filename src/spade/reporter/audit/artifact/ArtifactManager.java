@@ -75,7 +75,8 @@ public class ArtifactManager{
 								return DigestUtils.sha256Hex("(null)");
 							}
 						}
-					}
+					},
+					configMap.get("storeType"), ArtifactState.codec
 			);
 		}else{
 			artifactsMap = null;
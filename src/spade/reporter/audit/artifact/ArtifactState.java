@@ -19,11 +19,16 @@
  */
 package spade.reporter.audit.artifact;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 import java.math.BigInteger;
 import java.util.HashSet;
 import java.util.Set;
 
+import spade.utility.ValueCodec;
+
 public class ArtifactState implements Serializable{
 
 	private static final long serialVersionUID = 909107620949664529L;
@@ -33,6 +38,80 @@ public class ArtifactState implements Serializable{
 	private String permissions, lastPutPermissions;
 	private Set<String> previousPutPermissions = new HashSet<String>();
 	
+	/**
+	 * Compact binary form used when the artifacts map spills to a MappedFileStore
+	 */
+	public static final ValueCodec<ArtifactState> codec = new ValueCodec<ArtifactState>(){
+		@Override
+		public void encode(ArtifactState state, DataOutput out) throws IOException{
+			out.writeBoolean(state.hasBeenPut);
+			writeBigInteger(state.epoch, out);
+			writeBigInteger(state.version, out);
+			writeBigInteger(state.lastPutEpoch, out);
+			writeBigInteger(state.lastPutVersion, out);
+			writeString(state.permissions, out);
+			writeString(state.lastPutPermissions, out);
+			out.writeInt(state.previousPutPermissions.size());
+			for(String permissions : state.previousPutPermissions){
+				writeString(permissions, out);
+			}
+		}
+		
+		@Override
+		public ArtifactState decode(DataInput in) throws IOException{
+			ArtifactState state = new ArtifactState();
+			state.hasBeenPut = in.readBoolean();
+			state.epoch = readBigInteger(in);
+			state.version = readBigInteger(in);
+			state.lastPutEpoch = readBigInteger(in);
+			state.lastPutVersion = readBigInteger(in);
+			state.permissions = readString(in);
+			state.lastPutPermissions = readString(in);
+			int count = in.readInt();
+			for(int i = 0; i < count; i++){
+				state.previousPutPermissions.add(readString(in));
+			}
+			return state;
+		}
+		
+		// Epochs and versions are small so they are written as a long when they fit
+		private void writeBigInteger(BigInteger value, DataOutput out) throws IOException{
+			if(value == null){
+				out.writeByte(0);
+			}else if(value.bitLength() < 64){
+				out.writeByte(1);
+				out.writeLong(value.longValue());
+			}else{
+				byte[] bytes = value.toByteArray();
+				out.writeByte(2);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		}
+		
+		private BigInteger readBigInteger(DataInput in) throws IOException{
+			switch(in.readByte()){
+				case 0: return null;
+				case 1: return BigInteger.valueOf(in.readLong());
+				default:
+					byte[] bytes = new byte[in.readInt()];
+					in.readFully(bytes);
+					return new BigInteger(bytes);
+			}
+		}
+		
+		private void writeString(String value, DataOutput out) throws IOException{
+			out.writeBoolean(value != null);
+			if(value != null){
+				out.writeUTF(value);
+			}
+		}
+		
+		private String readString(DataInput in) throws IOException{
+			return in.readBoolean() ? in.readUTF() : null;
+		}
+	};
+	
 	// Resets version to initial value
 	// Resets permissions to null
 	public void incrementEpoch(){
@@ -157,7 +157,7 @@ public abstract class ProcessManager extends ProcessStateManager{
 								return t.pid + ":" + t.time;
 							}
 						}
-					});
+					}, configMap.get("storeType"), null);
 		}
 	}
 	
@@ -0,0 +1,504 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.storage.archive.Condition;
+import spade.storage.archive.Segment;
+import spade.storage.archive.Segment.EdgeRecord;
+import spade.storage.archive.SegmentView;
+import spade.storage.archive.SegmentWriter;
+import spade.utility.CommonFunctions;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Keeps provenance in a directory of immutable, compressed, column oriented
+ * segment files for long term storage.
+ *
+ * Elements are collected in memory and written as one segment once there are
+ * segmentElements of them or the segment is segmentSeconds old. Each segment
+ * stores the range of the time annotation and a Bloom filter of its vertex
+ * hashes, so queries bounded in time or looking for given vertices only
+ * decode the segments that can have them. Queries also see the elements not
+ * written yet. See {@link SegmentWriter} for the encoding.
+ *
+ * Arguments: the directory and optionally the keys of
+ * cfg/spade.storage.Archive.config as key=value pairs.
+ */
+public class Archive extends AbstractStorage
+{
+    private File directory;
+    private String timeKey;
+    private double bloomFalsePositive;
+    private int compressionLevel;
+    private int segmentElements;
+    private long segmentMillis;
+
+    // oldest first
+    private final List<Segment> segments = new ArrayList<>();
+    private SegmentWriter openSegment;
+    private int nextSegmentNumber = 0;
+    // after a segment fails to be written, the next try waits this long, doubling up to MAX_SEAL_RETRY_MILLIS
+    private long sealRetryMillis = 0;
+    private long nextSealMillis = 0;
+    private static final long MIN_SEAL_RETRY_MILLIS = 1000;
+    private static final long MAX_SEAL_RETRY_MILLIS = 300000;
+    private long archivedBytes = 0;
+
+    public Archive()
+    {
+        logger = Logger.getLogger(Archive.class.getName());
+    }
+
+    @Override
+    public boolean initialize(String arguments)
+    {
+        try
+        {
+            if(arguments == null || arguments.trim().isEmpty())
+            {
+                logger.log(Level.SEVERE, "Missing archive directory");
+                return false;
+            }
+            directory = new File(arguments.trim().split("\\s+")[0]);
+            Map<String, String> configMap = CommonFunctions.getGlobalsMapFromConfigAndArguments(Archive.class,
+                    arguments);
+            timeKey = configMap.containsKey("timeAnnotation") ? configMap.get("timeAnnotation") : "time";
+            bloomFalsePositive = CommonFunctions.parseDouble(configMap.get("bloomFalsePositive"), 0.01);
+            compressionLevel = CommonFunctions.parseInt(configMap.get("compressionLevel"), Deflater.DEFAULT_COMPRESSION);
+            segmentElements = CommonFunctions.parseInt(configMap.get("segmentElements"), 1000000);
+            segmentMillis = CommonFunctions.parseLong(configMap.get("segmentSeconds"), 0L) * 1000;
+            long reportingSeconds = CommonFunctions.parseLong(configMap.get("reportingIntervalSeconds"), 0L);
+            if(segmentElements <= 0 || bloomFalsePositive <= 0 || bloomFalsePositive >= 1)
+            {
+                logger.log(Level.SEVERE, "segmentElements must be positive and bloomFalsePositive between 0 and 1");
+                return false;
+            }
+
+            if(!directory.isDirectory() && !directory.mkdirs())
+            {
+                logger.log(Level.SEVERE, "Unable to create archive directory: " + directory);
+                return false;
+            }
+            openSegments();
+            openSegment = new SegmentWriter(timeKey, bloomFalsePositive);
+            if(reportingSeconds > 0)
+            {
+                reportingEnabled = true;
+                reportingInterval = reportingSeconds;
+                reportEveryMs = reportingSeconds * 1000;
+                startTime = lastReportedTime = System.currentTimeMillis();
+                lastReportedVertexCount = lastReportedEdgeCount = 0;
+            }
+            logger.log(Level.INFO, "Opened archive " + directory + " with " + segments.size() + " segments");
+
+            return true;
+        }
+        catch(Exception exception)
+        {
+            logger.log(Level.SEVERE, null, exception);
+            return false;
+        }
+    }
+
+    private void openSegments()
+    {
+        File[] files = directory.listFiles();
+        if(files == null)
+        {
+            return;
+        }
+        Arrays.sort(files);
+        for(File file : files)
+        {
+            String name = file.getName();
+            if(!name.startsWith(Segment.FILE_PREFIX))
+            {
+                continue;
+            }
+            if(name.endsWith(Segment.FILE_SUFFIX + ".tmp"))
+            {
+                // left by a segment that was not completely written
+                if(!file.delete())
+                {
+                    logger.log(Level.WARNING, "Unable to delete incomplete segment: " + file);
+                }
+                continue;
+            }
+            if(!name.endsWith(Segment.FILE_SUFFIX))
+            {
+                continue;
+            }
+            try
+            {
+                String number = name.substring(Segment.FILE_PREFIX.length(), name.length() - Segment.FILE_SUFFIX.length());
+                nextSegmentNumber = Math.max(nextSegmentNumber, Integer.parseInt(number) + 1);
+                Segment segment = Segment.open(file);
+                segments.add(segment);
+                archivedBytes += segment.getSize();
+            }
+            catch(IOException | NumberFormatException ex)
+            {
+                logger.log(Level.WARNING, "Skipping unreadable segment: " + file, ex);
+            }
+        }
+    }
+
+    @Override
+    public synchronized boolean putVertex(AbstractVertex incomingVertex)
+    {
+        openSegment.addVertex(incomingVertex);
+        afterPut();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean putEdge(AbstractEdge incomingEdge)
+    {
+        openSegment.addEdge(incomingEdge);
+        afterPut();
+        return true;
+    }
+
+    /**
+     * Seals the open segment if it is full or expired. The element is kept
+     * in the open segment either way, so a failure to seal only delays it.
+     */
+    private void afterPut()
+    {
+        if(reportingEnabled)
+        {
+            computeStats();
+        }
+        if((openSegment.getVertexCount() + openSegment.getEdgeCount() >= segmentElements || isOpenSegmentExpired())
+                && System.currentTimeMillis() >= nextSealMillis)
+        {
+            sealOpenSegment();
+        }
+    }
+
+    private boolean isOpenSegmentExpired()
+    {
+        return segmentMillis > 0 && !openSegment.isEmpty()
+                && System.currentTimeMillis() - openSegment.getCreatedMillis() >= segmentMillis;
+    }
+
+    /**
+     * Writes the open segment to a file and starts a new one. The elements
+     * stay in memory to be written again later if that fails, after a delay
+     * that doubles with every failure.
+     */
+    private boolean sealOpenSegment()
+    {
+        if(openSegment.isEmpty())
+        {
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        File file = new File(directory, String.format("%s%08d%s", Segment.FILE_PREFIX, nextSegmentNumber,
+                Segment.FILE_SUFFIX));
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try
+        {
+            FileOutputStream fileStream = new FileOutputStream(temporaryFile);
+            try(OutputStream out = new BufferedOutputStream(fileStream, 1 << 16))
+            {
+                openSegment.write(out, compressionLevel);
+                out.flush();
+                // the segment is never written again, so make sure it is on disk before it is used
+                fileStream.getFD().sync();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Segment segment = Segment.open(file);
+            segments.add(segment);
+            archivedBytes += segment.getSize();
+            nextSegmentNumber++;
+            openSegment = new SegmentWriter(timeKey, bloomFalsePositive);
+            sealRetryMillis = 0;
+            nextSealMillis = 0;
+            logger.log(Level.INFO, "Wrote " + file.getName() + " with " + segment.getVertexCount() + " vertices and "
+                    + segment.getEdgeCount() + " edges in " + segment.getSize() + " bytes and "
+                    + (System.currentTimeMillis() - start) + " ms");
+            return true;
+        }
+        catch(IOException ex)
+        {
+            sealRetryMillis = Math.min(MAX_SEAL_RETRY_MILLIS, Math.max(MIN_SEAL_RETRY_MILLIS, 2 * sealRetryMillis));
+            nextSealMillis = System.currentTimeMillis() + sealRetryMillis;
+            logger.log(Level.SEVERE, "Unable to write segment " + file + ". Retrying in " + sealRetryMillis + " ms with "
+                    + (openSegment.getVertexCount() + openSegment.getEdgeCount()) + " elements in memory", ex);
+            temporaryFile.delete();
+            return false;
+        }
+    }
+
+    /**
+     * @return the segments to query, newest first, with the open segment if it has elements
+     */
+    private List<SegmentView> getQuerySegments()
+    {
+        List<SegmentView> querySegments = new ArrayList<>(segments.size() + 1);
+        if(!openSegment.isEmpty())
+        {
+            // queried from memory, so it does not have to be encoded
+            querySegments.add(openSegment);
+        }
+        for(int i = segments.size() - 1; i >= 0; i--)
+        {
+            querySegments.add(segments.get(i));
+        }
+        return querySegments;
+    }
+
+    /**
+     * Finds the vertices matching the constraints of a query. Constraints on
+     * the hash annotation compare the hash of the vertex.
+     *
+     * @param limit most vertices to return. null for all.
+     */
+    public synchronized Set<AbstractVertex> findVertices(Map<String, List<String>> parameters, Integer limit)
+            throws IOException
+    {
+        List<Condition> conditions = Condition.fromParameters(parameters, DIRECTION, MAX_DEPTH);
+        int remaining = limit == null ? Integer.MAX_VALUE : limit;
+        Set<AbstractVertex> vertices = new LinkedHashSet<>();
+        for(SegmentView segment : getQuerySegments())
+        {
+            if(vertices.size() >= remaining)
+            {
+                break;
+            }
+            vertices.addAll(segment.findVertices(conditions, remaining - vertices.size()));
+        }
+        return vertices;
+    }
+
+    /**
+     * Finds the edges matching the constraints of a query. Constraints on
+     * childVertexHash and parentVertexHash compare the hashes of the end
+     * points. Edges whose end points are not archived are left out.
+     *
+     * @param limit most edges to return. null for all.
+     */
+    public synchronized Set<AbstractEdge> findEdges(Map<String, List<String>> parameters, Integer limit)
+            throws IOException
+    {
+        List<Condition> conditions = Condition.fromParameters(parameters, DIRECTION, MAX_DEPTH);
+        int remaining = limit == null ? Integer.MAX_VALUE : limit;
+        List<EdgeRecord> records = new ArrayList<>();
+        for(SegmentView segment : getQuerySegments())
+        {
+            if(records.size() >= remaining)
+            {
+                break;
+            }
+            records.addAll(segment.findEdges(conditions, remaining - records.size()));
+        }
+        return toEdges(records);
+    }
+
+    /**
+     * Finds the parents or children of the vertices and the edges to them.
+     *
+     * @param ancestors true for the parents, false for the children
+     */
+    public synchronized Graph getNeighbors(Collection<String> hashes, boolean ancestors) throws IOException
+    {
+        List<EdgeRecord> records = new ArrayList<>();
+        for(SegmentView segment : getQuerySegments())
+        {
+            records.addAll(segment.getEdges(hashes, ancestors));
+        }
+        Graph neighbors = new Graph();
+        for(AbstractEdge edge : toEdges(records))
+        {
+            neighbors.putVertex(ancestors ? edge.getParentVertex() : edge.getChildVertex());
+            neighbors.putEdge(edge);
+        }
+        return neighbors;
+    }
+
+    private Set<AbstractEdge> toEdges(List<EdgeRecord> records) throws IOException
+    {
+        Set<String> hashes = new HashSet<>();
+        for(EdgeRecord record : records)
+        {
+            hashes.add(record.getChildHash());
+            hashes.add(record.getParentHash());
+        }
+        Map<String, AbstractVertex> vertices = getVertices(hashes);
+        Set<AbstractEdge> edges = new LinkedHashSet<>();
+        for(EdgeRecord record : records)
+        {
+            AbstractVertex child = vertices.get(record.getChildHash());
+            AbstractVertex parent = vertices.get(record.getParentHash());
+            if(child == null || parent == null)
+            {
+                continue;
+            }
+            AbstractEdge edge = new Edge(child, parent);
+            edge.addAnnotations(record.getAnnotations());
+            edges.add(edge);
+        }
+        return edges;
+    }
+
+    private Map<String, AbstractVertex> getVertices(Set<String> hashes) throws IOException
+    {
+        Map<String, AbstractVertex> vertices = new HashMap<>();
+        Set<String> missing = new HashSet<>(hashes);
+        for(SegmentView segment : getQuerySegments())
+        {
+            if(missing.isEmpty())
+            {
+                break;
+            }
+            for(String hash : new ArrayList<>(missing))
+            {
+                AbstractVertex vertex = segment.getVertex(hash);
+                if(vertex != null)
+                {
+                    vertices.put(hash, vertex);
+                    missing.remove(hash);
+                }
+            }
+        }
+        return vertices;
+    }
+
+    @Override
+    public synchronized AbstractVertex getVertex(String vertexHash)
+    {
+        try
+        {
+            Map<String, AbstractVertex> vertices = getVertices(Collections.singleton(vertexHash));
+            return vertices.get(vertexHash);
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public synchronized AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
+    {
+        try
+        {
+            Map<String, List<String>> parameters = new HashMap<>();
+            parameters.put(CHILD_VERTEX_KEY, Arrays.asList("=", childVertexHash, null));
+            parameters.put(PARENT_VERTEX_KEY, Arrays.asList("=", parentVertexHash, null));
+            Set<AbstractEdge> edges = findEdges(parameters, 1);
+            return edges.isEmpty() ? null : edges.iterator().next();
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public Graph getChildren(String parentHash)
+    {
+        try
+        {
+            return getNeighbors(Collections.singleton(parentHash), false);
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public Graph getParents(String childVertexHash)
+    {
+        try
+        {
+            return getNeighbors(Collections.singleton(childVertexHash), true);
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public Object executeQuery(String query)
+    {
+        return null;
+    }
+
+    @Override
+    protected void printStats()
+    {
+        super.printStats();
+        logger.log(Level.INFO, "Archive => segments: " + segments.size() + ", bytes: " + archivedBytes
+                + ", open segment: " + openSegment.getVertexCount() + " vertices and " + openSegment.getEdgeCount()
+                + " edges");
+    }
+
+    @Override
+    public synchronized boolean flushTransactions()
+    {
+        if(isOpenSegmentExpired())
+        {
+            return sealOpenSegment();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean shutdown()
+    {
+        boolean sealed = sealOpenSegment();
+        if(reportingEnabled)
+        {
+            printStats();
+        }
+        segments.clear();
+        return sealed;
+    }
+}
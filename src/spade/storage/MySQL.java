@@ -17,9 +17,6 @@
 package spade.storage;
 
 
-import spade.core.AbstractEdge;
-import spade.core.AbstractVertex;
-import spade.core.Cache;
 import spade.utility.CommonFunctions;
 
 import java.io.FileInputStream;
@@ -52,6 +49,7 @@ public class MySQL extends SQL
             String msg  = "Loading H2 configurations from file unsuccessful! Unexpected behavior might follow";
             logger.log(Level.SEVERE, msg, ex);
         }
+        loadInsertBatchConfigs();
     }
 
     /**
@@ -159,6 +157,7 @@ public class MySQL extends SQL
     {
         try
         {
+            closeInserts();
             dbConnection.commit();
             dbConnection.close();
             return true;
@@ -238,191 +237,21 @@ public class MySQL extends SQL
     }
 
     /**
-     * This function inserts the given edge into the underlying storage(s) and
-     * updates the cache(s) accordingly.
-     *
-     * @param incomingEdge edge to insert into the storage
-     * @return returns true if the insertion is successful. Insertion is considered
-     * not successful if the edge is already present in the storage.
+     * MySQL quotes identifiers with backticks.
      */
     @Override
-    public boolean putEdge(AbstractEdge incomingEdge)
+    protected String quoteColumn(String column)
     {
-        String edgeHash = incomingEdge.bigHashCode();
-        if(Cache.isPresent(edgeHash))
-            return true;
-
-        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-
-        // Use StringBuilder to build the MySQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder(200);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(EDGE_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append(CHILD_VERTEX_KEY);
-            insertStringBuilder.append(", ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append(PARENT_VERTEX_KEY);
-            insertStringBuilder.append(", ");
-        }
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey;
-            if(ENABLE_SANITIZATION)
-            {
-                newAnnotationKey = sanitizeColumn(annotationKey);
-            }
-            else
-                newAnnotationKey = annotationKey;
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table_name if they do not already exist
-            addColumn(EDGE_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(", ");
-        }
-
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES ('");
-        // Add the hash code, and source and destination vertex Ids
-        insertStringBuilder.append(edgeHash);
-        insertStringBuilder.append("', ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(childVertexHash);
-            insertStringBuilder.append("', ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(parentVertexHash);
-            insertStringBuilder.append("', ");
-        }
-
-        // Add the annotation values
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingEdge.getAnnotation(annotationKey).replace("'", "\"") : incomingEdge.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
-        try
-        {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            if(BUILD_SCAFFOLD)
-            {
-                insertScaffoldEntry(incomingEdge);
-            }
-            s.close();
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, null, e);
-        }
-
-        return true;
+        return "`" + column + "`";
     }
 
     /**
-     * This function inserts the given vertex into the underlying storage(s) and
-     * updates the cache(s) accordingly.
-     *
-     * @param incomingVertex vertex to insert into the storage
-     * @return returns true if the insertion is successful. Insertion is considered
-     * not successful if the vertex is already present in the storage.
+     * INSERT IGNORE skips rows whose hash is already present.
      */
     @Override
-    public boolean putVertex(AbstractVertex incomingVertex)
+    protected String getInsertString(String table, String columns, String values)
     {
-        String vertexHash = incomingVertex.bigHashCode();
-        if(Cache.isPresent(vertexHash))
-            return true;
-
-        // Use StringBuilder to build the MySQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder( 100);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(VERTEX_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append(", ");
-        for (String annotationKey : incomingVertex.getAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey;
-            if(ENABLE_SANITIZATION)
-            {
-                newAnnotationKey = sanitizeColumn(annotationKey);
-            }
-            else
-                newAnnotationKey = annotationKey;
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table if they do not already exist
-            addColumn(VERTEX_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("`");
-            insertStringBuilder.append(", ");
-        }
-
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES (");
-
-        // Add the hash code primary key
-        insertStringBuilder.append("'");
-        insertStringBuilder.append(vertexHash);
-        insertStringBuilder.append("', ");
-
-        // Add the annotation values
-        for (String annotationKey : incomingVertex.getAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingVertex.getAnnotation(annotationKey).replace("'", "\"") :
-                    incomingVertex.getAnnotation(annotationKey);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
-        try
-        {
-            dbConnection.commit();
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, null, e);
-            return false;
-        }
-
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingVertex);
-
-
-        return true;
+        return "INSERT IGNORE INTO " + table + " (" + columns + ") VALUES (" + values + ")";
     }
 
     @Override
@@ -431,7 +260,7 @@ public class MySQL extends SQL
         ResultSet result = null;
         try
         {
-            dbConnection.commit();
+            flushInserts();
             Statement queryStatement = dbConnection.createStatement();
             if(CURSOR_FETCH_SIZE > 0)
                 queryStatement.setFetchSize(CURSOR_FETCH_SIZE);
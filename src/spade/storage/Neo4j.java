@@ -21,14 +21,12 @@ package spade.storage;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
@@ -48,6 +46,7 @@ import org.neo4j.graphdb.GraphDatabaseService;
 import org.neo4j.graphdb.Label;
 import org.neo4j.graphdb.Node;
 import org.neo4j.graphdb.Path;
+import org.neo4j.graphdb.PropertyContainer;
 import org.neo4j.graphdb.QueryExecutionException;
 import org.neo4j.graphdb.Relationship;
 import org.neo4j.graphdb.RelationshipType;
@@ -70,7 +69,7 @@ import spade.core.Edge;
 import spade.core.Graph;
 import spade.core.Settings;
 import spade.core.Vertex;
-import spade.core.BloomFilter;
+import spade.core.ConcurrentBloomFilter;
 import spade.utility.CommonFunctions;
 
 import static spade.core.Kernel.CONFIG_PATH;
@@ -108,8 +107,8 @@ public class Neo4j extends AbstractStorage
     // Performance tuning note: Set this to higher value (up to Integer.MAX_VALUE) to reduce db hit rate.
     // Downside: This would eat more heap at start time.
   	private int expectedNumberOfElements = 1000000;
-    private BloomFilter<String> nodeBloomFilter;
-    private BloomFilter<String> edgeBloomFilter;
+    private ConcurrentBloomFilter<String> nodeBloomFilter;
+    private ConcurrentBloomFilter<String> edgeBloomFilter;
     private LinkedList<String> localNodeHashQueue = new LinkedList<String>();
     private HashMap<String, Node> localNodeCache = new HashMap<String, Node>();
 
@@ -204,8 +203,8 @@ public class Neo4j extends AbstractStorage
                 tx.success();
             }
 
-            nodeBloomFilter = loadBloomFilter(NODE_BLOOMFILTER);
-            edgeBloomFilter = loadBloomFilter(EDGE_BLOOMFILTER);
+            nodeBloomFilter = loadBloomFilter(NODE_BLOOMFILTER, true);
+            edgeBloomFilter = loadBloomFilter(EDGE_BLOOMFILTER, false);
 
             if (LOG_PERFORMANCE_STATS==true)
             {
@@ -223,44 +222,55 @@ public class Neo4j extends AbstractStorage
         }
     }
 
-    private BloomFilter loadBloomFilter(String fileName) {
+    private ConcurrentBloomFilter<String> loadBloomFilter(String fileName, boolean forNodes) {
 
-    	try {
-    		File filePath = new File(databasePath, fileName);
-    		if (filePath.exists()) {
-	    		FileInputStream fileInputStream = new FileInputStream(
-	    			filePath.toString()
-				);
-	    		ObjectInputStream objectInputStream = new ObjectInputStream(fileInputStream);
-	    		BloomFilter bloomFilter = (BloomFilter<Integer>) objectInputStream.readObject();
-	    		objectInputStream.close();
-	    		fileInputStream.close();
-	    		return bloomFilter;
-	    	}
-    	} catch (IOException exception) {
-    		logger.log(Level.SEVERE, "Failed to load Bloom filter cache", exception);
-    	} catch(ClassNotFoundException exception) {
-        	exception.printStackTrace();
-      	}
-      	return new BloomFilter<Integer>(falsePositiveProbability, expectedNumberOfElements);
+    	File filePath = new File(databasePath, fileName);
+    	if (filePath.exists()) {
+    		try {
+    			return ConcurrentBloomFilter.load(filePath);
+    		} catch (IOException exception) {
+    			// Also the case for filters saved with Java serialization by older versions
+    			logger.log(Level.WARNING, "Failed to load Bloom filter cache. Rebuilding it from the database", exception);
+    		}
+    	}
+    	ConcurrentBloomFilter<String> bloomFilter = new ConcurrentBloomFilter<String>(falsePositiveProbability, expectedNumberOfElements);
+    	if (filePath.exists()) {
+    		rebuildBloomFilter(bloomFilter, forNodes);
+    	}
+    	return bloomFilter;
     }
 
-    private void saveBloomFilter(String fileName, BloomFilter bloomFilter) {
+    private void rebuildBloomFilter(ConcurrentBloomFilter<String> bloomFilter, boolean forNodes) {
+
+    	try (Transaction tx = graphDb.beginTx()) {
+    		Iterable<? extends PropertyContainer> elements =
+    				forNodes ? graphDb.getAllNodes() : graphDb.getAllRelationships();
+    		for (PropertyContainer element : elements) {
+    			Object hash = element.getProperty(PRIMARY_KEY, null);
+    			if (hash != null) {
+    				bloomFilter.add(hash.toString());
+    			}
+    		}
+    		tx.success();
+    	}
+    }
+
+    private void saveBloomFilter(String fileName, ConcurrentBloomFilter<String> bloomFilter) {
 
     	try {
-    		FileOutputStream fileOutputStream = new FileOutputStream(
-    			new File(databasePath, fileName).toString()
-			);
-    		ObjectOutputStream objectOutputStream = new ObjectOutputStream(fileOutputStream);
-    		objectOutputStream.writeObject(bloomFilter);
-    		objectOutputStream.close();
-    		fileOutputStream.close();
+    		bloomFilter.save(new File(databasePath, fileName));
     	} catch (IOException exception) {
     		logger.log(Level.SEVERE, "Failed to save Bloom filter cache", exception);
     	}
 
     }
 
+    @Override
+    public boolean isThreadAffine() {
+        // The global transaction is bound to the thread that opened it
+        return true;
+    }
+
     @Override
     public boolean flushTransactions() {
         if (Calendar.getInstance().getTime().getTime() - lastFlushTime.getTime() > MAX_WAIT_TIME_BEFORE_FLUSH) {
@@ -373,6 +383,53 @@ public class Neo4j extends AbstractStorage
         }
     }
 
+    /**
+     * This function finds the parents or children of a set of vertices with a
+     * single Cypher query.
+     *
+     * @param vertexHashes hashes of the vertices to expand
+     * @param ancestors true to find the parents and false to find the children
+     * @param limit maximum number of edges to return OR NULL for no limit
+     * @return returns graph object containing the neighbors and the edges to them.
+     */
+    public Graph getNeighbors(List<String> vertexHashes, boolean ancestors, Integer limit)
+    {
+        StringBuilder query = new StringBuilder(150);
+        query.append("UNWIND $hashes AS h MATCH (v:").append(NodeTypes.VERTEX).append(" {");
+        query.append(PRIMARY_KEY).append(": h})");
+        query.append(ancestors ? "-[e:" : "<-[e:").append(RelationshipTypes.EDGE);
+        query.append(ancestors ? "]->(n) " : "]-(n) ");
+        query.append("RETURN e, n");
+        if(limit != null)
+        {
+            query.append(" LIMIT ").append(limit);
+        }
+        Map<String, Object> parameters = new HashMap<>();
+        parameters.put("hashes", vertexHashes);
+
+        Graph neighbors = new Graph();
+        try ( Transaction tx = graphDb.beginTx() )
+        {
+            Result result = graphDb.execute(query.toString(), parameters);
+            while(result.hasNext())
+            {
+                Map<String, Object> row = result.next();
+                neighbors.putVertex(convertNodeToVertex((Node) row.get("n")));
+                neighbors.putEdge(convertRelationshipToEdge((Relationship) row.get("e")));
+            }
+            result.close();
+            tx.success();
+        }
+        catch(QueryExecutionException ex)
+        {
+            logger.log(Level.SEVERE, "Neo4j Cypher query execution not successful!", ex);
+            return null;
+        }
+        neighbors.commitIndex();
+
+        return neighbors;
+    }
+
     @Override
     public boolean shutdown() {
         if (LOG_PERFORMANCE_STATS==true) {
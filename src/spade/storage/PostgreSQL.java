@@ -19,40 +19,49 @@
  */
 package spade.storage;
 
+import org.json.JSONObject;
 import spade.core.AbstractEdge;
 import spade.core.AbstractVertex;
-import spade.core.Cache;
+import spade.storage.postgresql.CopyLoader;
 
-import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.ArrayList;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.List;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import static spade.core.Kernel.CONFIG_PATH;
 import static spade.core.Kernel.FILE_SEPARATOR;
 
-import au.com.bytecode.opencsv.CSVWriter;
 import spade.utility.CommonFunctions;
 
 /**
  * Basic PostgreSQL storage implementation.
  *
+ * By default every annotation key is a column of the vertex or edge table.
+ * With annotationSchema = jsonb the tables only have the hash, type and end
+ * point columns, and the other annotations are one JSONB object per row. The
+ * schema can also be given as an annotationSchema=... argument.
+ *
  * @author Dawood Tariq, Hasanat Kazmi and Raza Ahmad
  */
 public class PostgreSQL extends SQL
 {
+    public static final String ANNOTATIONS_COLUMN = "annotations";
+    private static final String TYPE = "type";
     // Performance tuning note: Set this to higher value (e.g. 100000) to commit less often to db - This increases ingestion rate.
     // Downside: Any external (non atomic) quering to database won't report non-committed data.
     private final int GLOBAL_TX_SIZE = 1000;
@@ -61,15 +70,24 @@ public class PostgreSQL extends SQL
     private int globalTxCount = 0;
     private final int MAX_WAIT_TIME_BEFORE_FLUSH = 15000; // ms
     private Date lastFlushTime;
-    private long edgeBatches = 0;
-    private long vertexBatches = 0;
     private boolean bulkUpload = false;
+    // use the binary format of COPY instead of CSV in bulk upload
+    private boolean bulkBinaryFormat = false;
+    // number of rows that bulk upload copies at a time
+    private int bulkBatchSize = 10000;
     private boolean setPrimaryKey = false;
     private boolean buildSecondaryIndexes = false;
-    private List<Map<String, String>> edgeList = new ArrayList<>();
-    private List<Map<String, String>> vertexList = new ArrayList<>();
-    private ArrayList<String> edgeColumnNames = new ArrayList<>();
-    private ArrayList<String> vertexColumnNames = new ArrayList<>();
+    // covering indexes for walking the edge table in both directions
+    private boolean buildLineageIndexes = true;
+    private Set<String> uuidColumns = new HashSet<>();
+    private Set<String> jsonbColumns = new HashSet<>();
+    // keep the annotations other than the type in one JSONB column instead of a column per key
+    private boolean jsonAnnotations = false;
+    // Bulk upload copies on its own connection from a background thread
+    private Connection copyConnection;
+    private ExecutorService copyExecutor;
+    private CopyLoader vertexLoader;
+    private CopyLoader edgeLoader;
 
 
     public PostgreSQL()
@@ -90,9 +108,16 @@ public class PostgreSQL extends SQL
                 String.valueOf(setPrimaryKey)));
         buildSecondaryIndexes = Boolean.parseBoolean(databaseConfigs.getProperty("buildSecondaryIndexes",
                 String.valueOf(buildSecondaryIndexes)));
+        buildLineageIndexes = Boolean.parseBoolean(databaseConfigs.getProperty("buildLineageIndexes",
+                String.valueOf(buildLineageIndexes)));
         bulkUpload = Boolean.parseBoolean(databaseConfigs.getProperty("bulkUpload", String.valueOf(bulkUpload)));
+        bulkBinaryFormat = Boolean.parseBoolean(databaseConfigs.getProperty("bulkBinaryFormat",
+                String.valueOf(bulkBinaryFormat)));
+        bulkBatchSize = Integer.parseInt(databaseConfigs.getProperty("bulkBatchSize", String.valueOf(bulkBatchSize)));
+        jsonAnnotations = "jsonb".equalsIgnoreCase(databaseConfigs.getProperty("annotationSchema", "columns").trim());
         reportingEnabled = Boolean.parseBoolean(databaseConfigs.getProperty("reportingEnabled",
                 String.valueOf(reportingEnabled)));
+        loadInsertBatchConfigs();
         if(reportingEnabled)
         {
             reportingInterval = 120;
@@ -134,11 +159,21 @@ public class PostgreSQL extends SQL
             String databasePassword = (argsMap.get("databasePassword") != null) ? argsMap.get("databasePassword") :
                     databaseConfigs.getProperty("databasePassword");
 
+            if(argsMap.get("annotationSchema") != null)
+            {
+                jsonAnnotations = "jsonb".equalsIgnoreCase(argsMap.get("annotationSchema").trim());
+            }
+
             String databaseURL = databaseConfigs.getProperty("databaseURLPrefix") + databasePath;
 
             Class.forName(databaseConfigs.getProperty("databaseDriver")).newInstance();
             dbConnection = DriverManager.getConnection(databaseURL, databaseUsername, databasePassword);
             dbConnection.setAutoCommit(false);
+            if(bulkUpload)
+            {
+                copyConnection = DriverManager.getConnection(databaseURL, databaseUsername, databasePassword);
+                copyConnection.setAutoCommit(false);
+            }
         }
         catch(Exception ex)
         {
@@ -160,6 +195,10 @@ public class PostgreSQL extends SQL
                     + "\"type\" VARCHAR(32) NOT NULL "
                     + ")";
             dbStatement.execute(createVertexTable);
+            if(jsonAnnotations)
+            {
+                addAnnotationsColumn(dbStatement, VERTEX_TABLE);
+            }
             String query = "SELECT * FROM " + VERTEX_TABLE + " WHERE false;";
             dbStatement.execute(query);
             ResultSet result = dbStatement.executeQuery(query);
@@ -168,8 +207,15 @@ public class PostgreSQL extends SQL
             for(int i = 1; i <= columnCount; i++)
             {
                 String colName = metadata.getColumnLabel(i);
-                vertexColumnNames.add(colName);
                 vertexAnnotations.add(colName);
+                if("uuid".equalsIgnoreCase(metadata.getColumnTypeName(i)))
+                {
+                    uuidColumns.add(colName);
+                }
+                else if("jsonb".equalsIgnoreCase(metadata.getColumnTypeName(i)))
+                {
+                    jsonbColumns.add(colName);
+                }
             }
 
             String createEdgeTable = "CREATE TABLE IF NOT EXISTS "
@@ -184,6 +230,10 @@ public class PostgreSQL extends SQL
                     + "\"parentVertexHash\" UUID NOT NULL "
                     + ")";
             dbStatement.execute(createEdgeTable);
+            if(jsonAnnotations)
+            {
+                addAnnotationsColumn(dbStatement, EDGE_TABLE);
+            }
             query = "SELECT * FROM " + EDGE_TABLE + " WHERE false;";
             dbStatement.execute(query);
             result = dbStatement.executeQuery(query);
@@ -192,8 +242,15 @@ public class PostgreSQL extends SQL
             for(int i = 1; i <= columnCount; i++)
             {
                 String colName = metadata.getColumnLabel(i);
-                edgeColumnNames.add(colName);
                 edgeAnnotations.add(colName);
+                if("uuid".equalsIgnoreCase(metadata.getColumnTypeName(i)))
+                {
+                    uuidColumns.add(colName);
+                }
+                else if("jsonb".equalsIgnoreCase(metadata.getColumnTypeName(i)))
+                {
+                    jsonbColumns.add(colName);
+                }
             }
 
             if(buildSecondaryIndexes)
@@ -205,10 +262,41 @@ public class PostgreSQL extends SQL
                 dbStatement.execute(createEdgeParentHashIndex);
                 dbStatement.execute(createEdgeChildHashIndex);
             }
+            if(buildLineageIndexes)
+            {
+                // Lineage and path queries join the edge table on one end point and read the other,
+                // so these are enough for index-only scans in either direction
+                String createEdgeChildParentIndex = "CREATE INDEX IF NOT EXISTS child_parent_index ON edge (\"childVertexHash\", \"parentVertexHash\")";
+                String createEdgeParentChildIndex = "CREATE INDEX IF NOT EXISTS parent_child_index ON edge (\"parentVertexHash\", \"childVertexHash\")";
+                String createVertexHashIndex = "CREATE INDEX IF NOT EXISTS hash_index ON vertex USING hash(\"hash\")";
+                dbStatement.execute(createVertexHashIndex);
+                dbStatement.execute(createEdgeChildParentIndex);
+                dbStatement.execute(createEdgeParentChildIndex);
+            }
 
             dbStatement.close();
             globalTxCheckin(true);
 
+            if(bulkUpload)
+            {
+                copyExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable runnable)
+                    {
+                        Thread thread = new Thread(runnable, "PostgreSQL-copy");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+                vertexLoader = new CopyLoader(VERTEX_TABLE, uuidColumns, jsonbColumns, bulkBinaryFormat,
+                        bulkBatchSize, MAX_WAIT_TIME_BEFORE_FLUSH, copyExecutor, copyConnection, PRIMARY_KEY,
+                        elementCache);
+                edgeLoader = new CopyLoader(EDGE_TABLE, uuidColumns, jsonbColumns, bulkBinaryFormat,
+                        bulkBatchSize, MAX_WAIT_TIME_BEFORE_FLUSH, copyExecutor, copyConnection, PRIMARY_KEY,
+                        elementCache);
+            }
+
             return true;
 
         }
@@ -219,6 +307,27 @@ public class PostgreSQL extends SQL
         }
     }
 
+    /**
+     * Adds the JSONB column of the annotations to the table, along with a GIN
+     * index for containment queries on it.
+     */
+    private void addAnnotationsColumn(Statement dbStatement, String table) throws SQLException
+    {
+        dbStatement.execute("ALTER TABLE " + table + " ADD COLUMN IF NOT EXISTS \"" + ANNOTATIONS_COLUMN
+                + "\" JSONB");
+        dbStatement.execute("CREATE INDEX IF NOT EXISTS " + table + "_annotations_index ON " + table
+                + " USING gin (\"" + ANNOTATIONS_COLUMN + "\" jsonb_path_ops)");
+    }
+
+    /**
+     * @return true if the annotations other than the type are kept in the
+     * JSONB column ANNOTATIONS_COLUMN
+     */
+    public boolean hasJsonAnnotations()
+    {
+        return jsonAnnotations;
+    }
+
     private void globalTxCheckin(boolean forcedFlush)
     {
         if ((globalTxCount % GLOBAL_TX_SIZE == 0) || (forcedFlush))
@@ -250,11 +359,15 @@ public class PostgreSQL extends SQL
     {
         try
         {
+            closeInserts();
             dbConnection.commit();
             if(bulkUpload)
             {
-                flushBulkEdges(true);
-                flushBulkVertices(true);
+                flushBulkUpload();
+                copyExecutor.shutdown();
+                copyConnection.close();
+                logger.log(Level.INFO, vertexLoader.getStatistics());
+                logger.log(Level.INFO, edgeLoader.getStatistics());
             }
             dbConnection.close();
         }
@@ -266,6 +379,59 @@ public class PostgreSQL extends SQL
         return true;
     }
 
+    /**
+     * Hashes are stored in uuid columns, which do not take a string parameter.
+     */
+    @Override
+    protected String getParameter(String column)
+    {
+        if(uuidColumns.contains(column))
+        {
+            return "CAST(? AS UUID)";
+        }
+        return jsonbColumns.contains(column) ? "CAST(? AS JSONB)" : "?";
+    }
+
+    /**
+     * Skips rows whose hash is already present when the hash is the primary key.
+     */
+    @Override
+    protected String getInsertString(String table, String columns, String values)
+    {
+        return "INSERT INTO " + table + " (" + columns + ") VALUES (" + values + ") ON CONFLICT DO NOTHING";
+    }
+
+    /**
+     * With JSONB annotations the row has the type column and one JSON object
+     * with the other annotations, so new keys never alter the table.
+     */
+    @Override
+    protected Map<String, String> toRow(String table, Map<String, String> annotations)
+    {
+        if(!jsonAnnotations)
+        {
+            return super.toRow(table, annotations);
+        }
+        Map<String, String> row = new TreeMap<>();
+        StringBuilder json = new StringBuilder(32 * annotations.size() + 2);
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            if(TYPE.equals(annotation.getKey()))
+            {
+                row.put(TYPE, annotation.getValue());
+                continue;
+            }
+            json.append(json.length() == 0 ? '{' : ',');
+            json.append(JSONObject.quote(annotation.getKey())).append(':');
+            json.append(JSONObject.quote(annotation.getValue()));
+        }
+        if(json.length() > 0)
+        {
+            row.put(ANNOTATIONS_COLUMN, json.append('}').toString());
+        }
+        return row;
+    }
+
     /**
      *  adds a new column in the database table,
      * if it is not already present.
@@ -350,286 +516,84 @@ public class PostgreSQL extends SQL
     {
         if(bulkUpload)
         {
-            processBulkEdges(incomingEdge);
-            return true;
-        }
-        String edgeHash = incomingEdge.bigHashCode();
-        if(Cache.isPresent(edgeHash))
-            return true;
-
-        String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-        String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-
-        // Use StringBuilder to build the PostgreSQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder(200);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(EDGE_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append("\"");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append("\"");
-        insertStringBuilder.append(", ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(CHILD_VERTEX_KEY);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
-        {
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(PARENT_VERTEX_KEY);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
-        }
-        for (String annotationKey : incomingEdge.getAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey;
-            if(ENABLE_SANITIZATION)
-            {
-                newAnnotationKey = sanitizeColumn(annotationKey);
-            }
-            else
-                newAnnotationKey = annotationKey;
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table_name if they do not already exist
-            addColumn(EDGE_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
+            return processBulkEdge(incomingEdge);
         }
+        return super.putEdge(incomingEdge);
+    }
 
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES ('");
-        // Add the hash code, and source and destination vertex Ids
-        insertStringBuilder.append(edgeHash);
-        insertStringBuilder.append("', ");
-        if(!incomingEdge.getAnnotations().containsKey(CHILD_VERTEX_KEY))
-        {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(childVertexHash);
-            insertStringBuilder.append("', ");
-        }
-        if(!incomingEdge.getAnnotations().containsKey(PARENT_VERTEX_KEY))
+    /**
+     * Adds the edge to the rows that the edge loader copies in the background.
+     */
+    private boolean processBulkEdge(AbstractEdge incomingEdge)
+    {
+        String edgeHash = incomingEdge.bigHashCode();
+        if(elementCache.isPresent(edgeHash) || edgeLoader.isPending(edgeHash))
         {
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(parentVertexHash);
-            insertStringBuilder.append("', ");
+            return true;
         }
-
-        // Add the annotation values
-        for (String annotationValue : incomingEdge.getAnnotations().keySet())
+        Map<String, String> row = toRow(EDGE_TABLE, incomingEdge.getAnnotations());
+        row.put(PRIMARY_KEY, edgeHash);
+        row.put(CHILD_VERTEX_KEY, incomingEdge.getChildVertex().bigHashCode());
+        row.put(PARENT_VERTEX_KEY, incomingEdge.getParentVertex().bigHashCode());
+        if(!edgeLoader.addRow(row))
         {
-            String value = (ENABLE_SANITIZATION) ? incomingEdge.getAnnotation(annotationValue).replace("'", "\"") : incomingEdge.getAnnotation(annotationValue);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
-        try
-        {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-            globalTxCheckin(false);
-
-            if(BUILD_SCAFFOLD)
-            {
-                insertScaffoldEntry(incomingEdge);
-            }
+            return false;
         }
-        catch (Exception e)
+        if(BUILD_SCAFFOLD)
         {
-            logger.log(Level.SEVERE, null, e);
+            insertScaffoldEntry(incomingEdge);
         }
-
         if(reportingEnabled)
         {
             computeStats();
         }
-
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingEdge);
-
-
         return true;
     }
 
-    private void processBulkEdges(AbstractEdge incomingEdge)
+    /**
+     * Adds the vertex to the rows that the vertex loader copies in the background.
+     */
+    private boolean processBulkVertex(AbstractVertex incomingVertex)
     {
-        Map<String, String> annotations = new HashMap<>(incomingEdge.getAnnotations());
-        annotations.put(PRIMARY_KEY, incomingEdge.bigHashCode());
-        annotations.put(CHILD_VERTEX_KEY, incomingEdge.getChildVertex().bigHashCode());
-        annotations.put(PARENT_VERTEX_KEY, incomingEdge.getParentVertex().bigHashCode());
-        edgeList.add(annotations);
-        for(String annotationKey: annotations.keySet())
-        {
-            if(!edgeColumnNames.contains(annotationKey))
-            {
-                edgeColumnNames.add(sanitizeColumn(annotationKey));
-                addColumn(EDGE_TABLE, annotationKey);
-            }
+        String vertexHash = incomingVertex.bigHashCode();
+        if(elementCache.isPresent(vertexHash) || vertexLoader.isPending(vertexHash))
+        {
+            return true;
         }
-
-        if(BUILD_SCAFFOLD)
+        Map<String, String> row = toRow(VERTEX_TABLE, incomingVertex.getAnnotations());
+        row.put(PRIMARY_KEY, vertexHash);
+        if(!vertexLoader.addRow(row))
         {
-            insertScaffoldEntry(incomingEdge);
+            return false;
         }
-        flushBulkEdges(false);
-    }
-
-    private void flushBulkEdges(boolean forcedFlush)
-    {
-        if(( (edgeCount > 0) && (edgeCount % GLOBAL_TX_SIZE == 0) ) || forcedFlush)
+        if(reportingEnabled)
         {
-            String edgeFileName = "/tmp/bulk_edges.csv";
-            try
-            {
-                File file = new File(edgeFileName);
-                file.createNewFile();
-                if(!(file.setWritable(true, false)
-                    && file.setReadable(true, false)))
-                {
-                    logger.log(Level.SEVERE, "Permission denied to read/write from edge buffer files!");
-                    return;
-                }
-                FileWriter fileWriter = new FileWriter(file);
-
-                CSVWriter writer = new CSVWriter(fileWriter);
-                writer.writeNext(edgeColumnNames.toArray(new String[edgeColumnNames.size()]));
-                for(Map<String, String> edge: edgeList)
-                {
-                    ArrayList<String> annotationValues = new ArrayList<>();
-                    for(String edgeColumnName : edgeColumnNames)
-                    {
-                        annotationValues.add(edge.get(edgeColumnName));
-                    }
-                    writer.writeNext(annotationValues.toArray(new String[annotationValues.size()]));
-                }
-                writer.close();
-            }
-            catch(Exception ex)
-            {
-                logger.log(Level.SEVERE, "Error writing edges to file", ex);
-            }
-
-            String copyTableString = "COPY "
-                    + EDGE_TABLE
-                    + " FROM '"
-                    + edgeFileName
-                    + "' CSV HEADER";
-            try
-            {
-                Statement s = dbConnection.createStatement();
-                s.execute(copyTableString);
-                s.close();
-                globalTxCheckin(true);
-                edgeList.clear();
-                logger.log(Level.INFO, "Bulk uploaded " + GLOBAL_TX_SIZE + " edges to databases. Total edges: " + edgeCount);
-                edgeBatches++;
-                long currentTime = System.currentTimeMillis();
-                if((currentTime - lastReportedTime) >= reportEveryMs)
-                {
-                    lastReportedTime = currentTime;
-                    logger.log(Level.INFO, "edge batches flushed per " + reportingInterval + "sec: " + edgeBatches);
-                    edgeBatches = 0;
-                }
-            }
-            catch (Exception ex)
-            {
-                logger.log(Level.SEVERE, null, ex);
-            }
+            computeStats();
         }
+        return true;
     }
 
-    private void processBulkVertices(AbstractVertex incomingVertex)
+    /**
+     * Hands the rows that bulk upload has not copied yet to the background
+     * thread and waits until they are committed.
+     */
+    private void flushBulkUpload()
     {
-        Map<String, String> annotations = new HashMap<>(incomingVertex.getAnnotations());
-        annotations.put(PRIMARY_KEY, incomingVertex.bigHashCode());
-        vertexList.add(annotations);
-        for(String annotationKey: annotations.keySet())
-        {
-            if(!vertexColumnNames.contains(annotationKey))
-            {
-                vertexColumnNames.add(sanitizeColumn(annotationKey));
-                addColumn(VERTEX_TABLE, annotationKey);
-            }
-        }
-        flushBulkVertices(false);
+        vertexLoader.flush(true);
+        edgeLoader.flush(true);
     }
 
-    private void flushBulkVertices(boolean forcedFlush)
+    @Override
+    protected void printStats()
     {
-        if(( (vertexCount > 0) && (vertexCount % GLOBAL_TX_SIZE == 0) ) || forcedFlush)
+        super.printStats();
+        if(bulkUpload)
         {
-            String vertexFileName = "/tmp/bulk_vertices.csv";
-            try
-            {
-                File file = new File(vertexFileName);
-                file.createNewFile();
-                if(!(file.setWritable(true, false)
-                        && file.setReadable(true, false)))
-                {
-                    logger.log(Level.SEVERE, "Permission denied to read/write from vertex buffer files!");
-                    return;
-                }
-                FileWriter fileWriter = new FileWriter(file);
-                CSVWriter writer = new CSVWriter(fileWriter);
-                writer.writeNext(vertexColumnNames.toArray(new String[vertexColumnNames.size()]));
-                for(Map<String, String> vertex: vertexList)
-                {
-                    ArrayList<String> annotationValues = new ArrayList<>();
-                    for(String vertexColumnName : vertexColumnNames)
-                    {
-                        annotationValues.add(vertex.get(vertexColumnName));
-                    }
-                    writer.writeNext(annotationValues.toArray(new String[annotationValues.size()]));
-                }
-                writer.close();
-            }
-            catch(Exception ex)
-            {
-                logger.log(Level.SEVERE, "Error writing vertices to file", ex);
-            }
-
-            String copyTableString = "COPY "
-                    + VERTEX_TABLE
-                    + " FROM '"
-                    + vertexFileName
-                    + "' CSV HEADER";
-            try
-            {
-                Statement s = dbConnection.createStatement();
-                s.execute(copyTableString);
-                s.close();
-                globalTxCheckin(true);
-                vertexList.clear();
-                logger.log(Level.INFO, "Bulk uploaded " + GLOBAL_TX_SIZE + " vertices to databases. Total vertices: " + vertexCount);
-                vertexBatches++;
-                long currentTime = System.currentTimeMillis();
-                if((currentTime - lastReportedTime) >= reportEveryMs)
-                {
-                    lastReportedTime = currentTime;
-                    logger.log(Level.INFO, "vertex batches flushed per " + reportingInterval + "sec: " + vertexBatches);
-                    vertexBatches = 0;
-                }
-            }
-            catch (Exception ex)
-            {
-                logger.log(Level.SEVERE, null, ex);
-            }
+            logger.log(Level.INFO, vertexLoader.getStatistics());
+            logger.log(Level.INFO, edgeLoader.getStatistics());
         }
     }
 
-
     /**
      * This function inserts the given vertex into the underlying storage(s) and
      * updates the cache(s) accordingly.
@@ -643,87 +607,9 @@ public class PostgreSQL extends SQL
     {
         if(bulkUpload)
         {
-            processBulkVertices(incomingVertex);
-            return true;
-        }
-        String vertexHash = incomingVertex.bigHashCode();
-        if(Cache.isPresent(vertexHash))
-            return true;
-
-        // Use StringBuilder to build the PostgreSQL insert statement
-        StringBuilder insertStringBuilder = new StringBuilder( 100);
-        insertStringBuilder.append("INSERT INTO ");
-        insertStringBuilder.append(VERTEX_TABLE);
-        insertStringBuilder.append(" (");
-        insertStringBuilder.append("\"");
-        insertStringBuilder.append(PRIMARY_KEY);
-        insertStringBuilder.append("\"");
-        insertStringBuilder.append(", ");
-        for (String annotationKey : incomingVertex.getAnnotations().keySet())
-        {
-            // Sanitize column name to remove special characters
-            String newAnnotationKey;
-            if(ENABLE_SANITIZATION)
-            {
-                newAnnotationKey = sanitizeColumn(annotationKey);
-            }
-            else
-                newAnnotationKey = annotationKey;
-
-            // As the annotation keys are being iterated, add them as new
-            // columns to the table if they do not already exist
-            addColumn(VERTEX_TABLE, newAnnotationKey);
-
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(newAnnotationKey);
-            insertStringBuilder.append("\"");
-            insertStringBuilder.append(", ");
+            return processBulkVertex(incomingVertex);
         }
-
-        // Eliminate the last 2 characters from the string (", ") and begin adding values
-        String insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2);
-        insertStringBuilder = new StringBuilder(insertString + ") VALUES (");
-
-        // Add the hash code primary key
-        insertStringBuilder.append("'");
-        insertStringBuilder.append(vertexHash);
-        insertStringBuilder.append("', ");
-
-        // Add the annotation values
-        for (String annotationValue : incomingVertex.getAnnotations().keySet())
-        {
-            String value = (ENABLE_SANITIZATION) ? incomingVertex.getAnnotation(annotationValue).replace("'", "\"") :
-                    incomingVertex.getAnnotation(annotationValue);
-
-            insertStringBuilder.append("'");
-            insertStringBuilder.append(value);
-            insertStringBuilder.append("', ");
-        }
-        insertString = insertStringBuilder.substring(0, insertStringBuilder.length() - 2) + ")";
-
-        try
-        {
-            Statement s = dbConnection.createStatement();
-            s.execute(insertString);
-            s.close();
-            globalTxCheckin(false);
-        }
-        catch (Exception e)
-        {
-            logger.log(Level.SEVERE, null, e);
-            return false;
-        }
-
-        if(reportingEnabled)
-        {
-            computeStats();
-        }
-
-        // cache the vertex successfully inserted in the storage
-        Cache.addItem(incomingVertex);
-
-
-        return true;
+        return super.putVertex(incomingVertex);
     }
 
     @Override
@@ -732,6 +618,11 @@ public class PostgreSQL extends SQL
         ResultSet result = null;
         try
         {
+            if(bulkUpload)
+            {
+                flushBulkUpload();
+            }
+            flushInserts();
             globalTxCheckin(true);
             Statement queryStatement = dbConnection.createStatement();
             if(CURSOR_FETCH_SIZE > 0)
@@ -30,15 +30,25 @@ import spade.core.Vertex;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -61,12 +71,29 @@ public abstract class SQL extends AbstractStorage
     protected String DUPLICATE_COLUMN_ERROR_CODE;
     protected int CURSOR_FETCH_SIZE = 0;
     public int MAX_COLUMN_VALUE_LENGTH = 256;
+    // number of inserted rows and milliseconds after which the batched inserts are executed
+    protected int INSERT_BATCH_SIZE = 1000;
+    protected long INSERT_BATCH_MILLIS = 1000;
+    private static final int MAX_INSERT_STATEMENTS = 64;
+
+    // column of every annotation key seen so far, per table
+    private final Map<String, Map<String, String>> columnCatalog = new HashMap<>();
+    // prepared inserts by table and column list, least recently used first
+    private final LinkedHashMap<String, PreparedStatement> insertStatements = new LinkedHashMap<>(16, 0.75f, true);
+    // rows in the batch of each prepared insert, kept to retry them one at a time if the batch fails
+    private final Map<PreparedStatement, List<PendingRow>> pendingStatements = new LinkedHashMap<>();
+    private final Set<String> pendingHashes = new HashSet<>();
+    private int pendingRows = 0;
+    private long firstPendingTime = 0;
+    private long failedRows = 0;
+    private ScheduledExecutorService flushTimer;
 
     public SQL()
     {
         logger = Logger.getLogger(SQL.class.getName());
         vertexAnnotations = new HashSet<>();
         edgeAnnotations = new HashSet<>();
+        elementCache = new Cache<>(ELEMENT_CACHE_SIZE);
     }
 
     public int getCursorFetchSize()
@@ -78,6 +105,18 @@ public abstract class SQL extends AbstractStorage
     {
         CURSOR_FETCH_SIZE = cursorFetchSize;
     }
+
+    /**
+     * Reads insertBatchSize and insertBatchMillis. Called by the subclasses
+     * after they load their configuration.
+     */
+    protected void loadInsertBatchConfigs()
+    {
+        INSERT_BATCH_SIZE = Integer.parseInt(databaseConfigs.getProperty("insertBatchSize",
+                String.valueOf(INSERT_BATCH_SIZE)));
+        INSERT_BATCH_MILLIS = Long.parseLong(databaseConfigs.getProperty("insertBatchMillis",
+                String.valueOf(INSERT_BATCH_MILLIS)));
+    }
     /**
      *  initializes the database and creates the necessary tables
      * if not already present. The necessary tables include VERTEX and EDGE tables
@@ -170,13 +209,10 @@ public abstract class SQL extends AbstractStorage
     @Override
     public AbstractEdge getEdge(String childVertexHash, String parentVertexHash)
     {
-        if(!Cache.isPresent(childVertexHash) || !Cache.isPresent(parentVertexHash))
-        return null;
-
     AbstractEdge edge = null;
         try
     {
-        dbConnection.commit();
+        flushInserts();
         AbstractVertex childVertex = getVertex(childVertexHash);
         AbstractVertex parentVertex = getVertex(parentVertexHash);
 
@@ -232,9 +268,6 @@ public abstract class SQL extends AbstractStorage
     @Override
     public AbstractVertex getVertex(String vertexHash)
     {
-        if(!Cache.isPresent(vertexHash))
-            return null;
-
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
                 " WHERE " +
@@ -263,9 +296,6 @@ public abstract class SQL extends AbstractStorage
     @Override
     public Graph getChildren(String parentHash)
     {
-        if(!Cache.isPresent(parentHash))
-            return null;
-
         Graph children = null;
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
@@ -297,7 +327,7 @@ public abstract class SQL extends AbstractStorage
         Set<AbstractVertex> vertexSet = new HashSet<>();
         try
         {
-            dbConnection.commit();
+            flushInserts();
             Statement vertexStatement = dbConnection.createStatement();
             ResultSet result = vertexStatement.executeQuery(query);
             ResultSetMetaData metadata = result.getMetaData();
@@ -343,9 +373,6 @@ public abstract class SQL extends AbstractStorage
     @Override
     public Graph getParents(String childVertexHash)
     {
-        if(!Cache.isPresent(childVertexHash))
-            return null;
-
         Graph parents = null;
         String query = "SELECT * FROM " +
                 VERTEX_TABLE +
@@ -364,6 +391,354 @@ public abstract class SQL extends AbstractStorage
         return parents;
     }
 
+    /**
+     * @return the column name quoted for use in a statement
+     */
+    protected String quoteColumn(String column)
+    {
+        return "\"" + column + "\"";
+    }
+
+    /**
+     * @return the placeholder for a value of the column in an insert
+     */
+    protected String getParameter(String column)
+    {
+        return "?";
+    }
+
+    /**
+     * Returns the column that the annotation key is stored in. The column is
+     * added to the table the first time the key is seen, so the database is
+     * only asked for keys that are new.
+     *
+     * @param table table of the column
+     * @param annotationKey annotation key
+     * @return name of the column or null if it could not be added
+     */
+    protected String toColumn(String table, String annotationKey)
+    {
+        Map<String, String> columns = columnCatalog.get(table);
+        if(columns == null)
+        {
+            columns = new HashMap<>();
+            columnCatalog.put(table, columns);
+        }
+        String column = columns.get(annotationKey);
+        if(column == null)
+        {
+            column = ENABLE_SANITIZATION ? sanitizeColumn(annotationKey) : annotationKey;
+            Set<String> tableColumns = table.equalsIgnoreCase(VERTEX_TABLE) ? vertexAnnotations : edgeAnnotations;
+            if(!tableColumns.contains(column))
+            {
+                // altering the table commits on some databases and can invalidate the prepared inserts
+                flushInserts();
+                if(!addColumn(table, column))
+                {
+                    return null;
+                }
+            }
+            columns.put(annotationKey, column);
+        }
+        return column;
+    }
+
+    /**
+     * @return values of the annotations by column, sorted by column so that
+     * elements with the same keys share one prepared insert
+     */
+    protected Map<String, String> toRow(String table, Map<String, String> annotations)
+    {
+        Map<String, String> row = new TreeMap<>();
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            String column = toColumn(table, annotation.getKey());
+            if(column != null)
+            {
+                row.put(column, annotation.getValue());
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Adds the row to the batch of the prepared insert for its table and
+     * columns. The batches are executed and committed once they hold
+     * INSERT_BATCH_SIZE rows or the oldest row is INSERT_BATCH_MILLIS old,
+     * and the hash in the PRIMARY_KEY column is cached once its row is
+     * committed.
+     *
+     * @param table table to insert into
+     * @param row values by column
+     * @return false if the row could not be added to a batch
+     */
+    protected synchronized boolean insertRow(String table, Map<String, String> row)
+    {
+        StringBuilder signature = new StringBuilder(table);
+        for(String column : row.keySet())
+        {
+            signature.append('\0').append(column);
+        }
+        try
+        {
+            PreparedStatement statement = insertStatements.get(signature.toString());
+            if(statement == null)
+            {
+                statement = dbConnection.prepareStatement(getInsertString(table, row.keySet()));
+                insertStatements.put(signature.toString(), statement);
+                if(insertStatements.size() > MAX_INSERT_STATEMENTS)
+                {
+                    flushInserts();
+                    Iterator<PreparedStatement> eldest = insertStatements.values().iterator();
+                    eldest.next().close();
+                    eldest.remove();
+                }
+            }
+            String[] values = row.values().toArray(new String[row.size()]);
+            setValues(statement, values);
+            statement.addBatch();
+            List<PendingRow> rows = pendingStatements.get(statement);
+            if(rows == null)
+            {
+                rows = new ArrayList<>();
+                pendingStatements.put(statement, rows);
+            }
+            String hash = row.get(PRIMARY_KEY);
+            rows.add(new PendingRow(hash, values));
+            if(hash != null)
+            {
+                pendingHashes.add(hash);
+            }
+            if(pendingRows++ == 0)
+            {
+                firstPendingTime = System.currentTimeMillis();
+                startFlushTimer();
+            }
+            if(pendingRows >= INSERT_BATCH_SIZE || System.currentTimeMillis() - firstPendingTime >= INSERT_BATCH_MILLIS)
+            {
+                flushInserts();
+            }
+            return true;
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.SEVERE, "Unable to insert into " + table, ex);
+            return false;
+        }
+    }
+
+    private static void setValues(PreparedStatement statement, String[] values) throws SQLException
+    {
+        for(int i = 0; i < values.length; i++)
+        {
+            statement.setString(i + 1, values[i]);
+        }
+    }
+
+    /**
+     * @return true if the element is in a batch that is not committed yet
+     */
+    protected synchronized boolean isInsertPending(String hash)
+    {
+        return pendingHashes.contains(hash);
+    }
+
+    // Commits the rows that are left in the batches when no more rows come
+    private void startFlushTimer()
+    {
+        if(flushTimer != null)
+        {
+            return;
+        }
+        flushTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable runnable)
+            {
+                Thread thread = new Thread(runnable, getClass().getSimpleName() + "-insert-flush");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        long period = Math.max(1, INSERT_BATCH_MILLIS);
+        flushTimer.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                flushExpiredInserts();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void flushExpiredInserts()
+    {
+        if(pendingRows > 0 && System.currentTimeMillis() - firstPendingTime >= INSERT_BATCH_MILLIS)
+        {
+            flushInserts();
+        }
+    }
+
+    private String getInsertString(String table, Set<String> columns)
+    {
+        StringBuilder names = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for(String column : columns)
+        {
+            if(names.length() > 0)
+            {
+                names.append(", ");
+                values.append(", ");
+            }
+            names.append(quoteColumn(column));
+            values.append(getParameter(column));
+        }
+        return getInsertString(table, names.toString(), values.toString());
+    }
+
+    /**
+     * Returns the insert of one row. Elements are inserted again after they
+     * are evicted from the cache or when the storage is restarted on an
+     * existing database, so the insert must skip rows whose hash is already
+     * in the table instead of failing.
+     *
+     * @param table table to insert into
+     * @param columns quoted columns separated by commas
+     * @param values parameters of the columns separated by commas
+     */
+    protected abstract String getInsertString(String table, String columns, String values);
+
+    /**
+     * Executes the batched inserts and commits them. If a batch fails, its
+     * rows are inserted one at a time so that a bad row does not take the
+     * others with it.
+     */
+    protected synchronized void flushInserts()
+    {
+        if(pendingRows == 0)
+        {
+            return;
+        }
+        try
+        {
+            for(PreparedStatement statement : pendingStatements.keySet())
+            {
+                statement.executeBatch();
+            }
+            dbConnection.commit();
+            for(List<PendingRow> rows : pendingStatements.values())
+            {
+                for(PendingRow row : rows)
+                {
+                    cacheInserted(row);
+                }
+            }
+        }
+        catch(SQLException ex)
+        {
+            SQLException cause = ex.getNextException() != null ? ex.getNextException() : ex;
+            logger.log(Level.WARNING, "Unable to insert batch of " + pendingRows + " rows. Inserting them one at a time",
+                    cause);
+            try
+            {
+                for(PreparedStatement statement : pendingStatements.keySet())
+                {
+                    statement.clearBatch();
+                }
+                dbConnection.rollback();
+                insertOneByOne();
+            }
+            catch(SQLException e)
+            {
+                failedRows += pendingRows;
+                logger.log(Level.SEVERE, "Error in rollback after failed batch! Lost " + pendingRows + " rows", e);
+            }
+        }
+        finally
+        {
+            pendingStatements.clear();
+            pendingHashes.clear();
+            pendingRows = 0;
+        }
+    }
+
+    private void insertOneByOne() throws SQLException
+    {
+        int failed = 0;
+        for(Map.Entry<PreparedStatement, List<PendingRow>> entry : pendingStatements.entrySet())
+        {
+            PreparedStatement statement = entry.getKey();
+            for(PendingRow row : entry.getValue())
+            {
+                try
+                {
+                    setValues(statement, row.values);
+                    statement.executeUpdate();
+                    dbConnection.commit();
+                    cacheInserted(row);
+                }
+                catch(SQLException ex)
+                {
+                    dbConnection.rollback();
+                    failed++;
+                    logger.log(Level.SEVERE, "Unable to insert row with " + PRIMARY_KEY + " " + row.hash + ": "
+                            + ex.getMessage());
+                }
+            }
+        }
+        failedRows += failed;
+        logger.log(Level.WARNING, "Inserted " + (pendingRows - failed) + " of " + pendingRows
+                + " rows of the failed batch. Rows failed since start: " + failedRows);
+    }
+
+    private void cacheInserted(PendingRow row)
+    {
+        if(row.hash != null)
+        {
+            elementCache.put(row.hash, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return number of rows that could not be inserted
+     */
+    public synchronized long getFailedRows()
+    {
+        return failedRows;
+    }
+
+    @Override
+    public boolean flushTransactions()
+    {
+        flushInserts();
+        return true;
+    }
+
+    /**
+     * Executes the batched inserts and closes the prepared statements.
+     */
+    protected synchronized void closeInserts()
+    {
+        if(flushTimer != null)
+        {
+            flushTimer.shutdown();
+            flushTimer = null;
+        }
+        flushInserts();
+        for(PreparedStatement statement : insertStatements.values())
+        {
+            try
+            {
+                statement.close();
+            }
+            catch(SQLException ex)
+            {
+                logger.log(Level.WARNING, "Unable to close prepared insert", ex);
+            }
+        }
+        insertStatements.clear();
+    }
+
     /**
      * This function inserts the given edge into the underlying storage(s) and
      * updates the cache(s) accordingly.
@@ -373,7 +748,38 @@ public abstract class SQL extends AbstractStorage
      * not successful if the edge is already present in the storage.
      */
     @Override
-    public abstract boolean putEdge(AbstractEdge incomingEdge);
+    public boolean putEdge(AbstractEdge incomingEdge)
+    {
+        String edgeHash = incomingEdge.bigHashCode();
+        if(elementCache.isPresent(edgeHash) || isInsertPending(edgeHash))
+        {
+            return true;
+        }
+        Map<String, String> row = toRow(EDGE_TABLE, incomingEdge.getAnnotations());
+        row.put(PRIMARY_KEY, edgeHash);
+        if(!row.containsKey(CHILD_VERTEX_KEY))
+        {
+            row.put(CHILD_VERTEX_KEY, incomingEdge.getChildVertex().bigHashCode());
+        }
+        if(!row.containsKey(PARENT_VERTEX_KEY))
+        {
+            row.put(PARENT_VERTEX_KEY, incomingEdge.getParentVertex().bigHashCode());
+        }
+        if(!insertRow(EDGE_TABLE, row))
+        {
+            return false;
+        }
+        if(BUILD_SCAFFOLD)
+        {
+            insertScaffoldEntry(incomingEdge);
+        }
+        if(reportingEnabled)
+        {
+            computeStats();
+        }
+        // the edge is cached once its batch is committed
+        return true;
+    }
 
     /**
      * This function inserts the given vertex into the underlying storage(s) and
@@ -384,11 +790,45 @@ public abstract class SQL extends AbstractStorage
      * not successful if the vertex is already present in the storage.
      */
     @Override
-    public abstract boolean putVertex(AbstractVertex incomingVertex);
+    public boolean putVertex(AbstractVertex incomingVertex)
+    {
+        String vertexHash = incomingVertex.bigHashCode();
+        if(elementCache.isPresent(vertexHash) || isInsertPending(vertexHash))
+        {
+            return true;
+        }
+        Map<String, String> row = toRow(VERTEX_TABLE, incomingVertex.getAnnotations());
+        row.put(PRIMARY_KEY, vertexHash);
+        if(!insertRow(VERTEX_TABLE, row))
+        {
+            return false;
+        }
+        if(reportingEnabled)
+        {
+            computeStats();
+        }
+        // the vertex is cached once its batch is committed
+        return true;
+    }
 
     @Override
     public abstract ResultSet executeQuery(String query);
 
+    /**
+     * Values of a batched row and the hash to cache once it is committed
+     */
+    private static class PendingRow
+    {
+        private final String hash;
+        private final String[] values;
+
+        private PendingRow(String hash, String[] values)
+        {
+            this.hash = hash;
+            this.values = values;
+        }
+    }
+
     public boolean vertexAnnotationIsPresent(String annotation)
     {
         if(vertexAnnotations.contains(annotation))
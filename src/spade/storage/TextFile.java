@@ -19,27 +19,40 @@
  */
 package spade.storage;
 
-import org.apache.commons.codec.digest.DigestUtils;
 import spade.core.AbstractEdge;
 import spade.core.AbstractStorage;
 import spade.core.AbstractVertex;
 import spade.core.Graph;
+import spade.storage.textfile.AsyncFileWriter;
+import spade.utility.CommonFunctions;
 
-import java.io.FileWriter;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * A storage implementation that simply outputs plain text to a file.
+ *
+ * Arguments are the file path, optionally followed by true to append to it,
+ * and any of the keys in the config file as key=value. The text of every
+ * element is built in a reused buffer and written by a background thread,
+ * optionally compressed with gzip and rolled over to a new file by size or
+ * time.
+ *
  * @author Armando Caro
  */
 public class TextFile extends AbstractStorage
 {
-
-    private FileWriter outputFile;
+    private AsyncFileWriter outputFile;
     private String filePath;
     private boolean appendMode = false;
+    // Reused to build the text of every element
+    private final StringBuilder elementString = new StringBuilder(512);
+
+    public TextFile()
+    {
+        logger = Logger.getLogger(TextFile.class.getName());
+    }
 
     @Override
     public boolean initialize(String arguments)
@@ -50,57 +63,96 @@ public class TextFile extends AbstractStorage
             {
                 return false;
             }
-            String[] tokens = arguments.split("\\s+");
+            String[] tokens = arguments.trim().split("\\s+");
             filePath = tokens[0];
-            if(tokens.length > 1)
+            if(tokens.length > 1 && !tokens[1].contains("="))
             {
                 appendMode = Boolean.parseBoolean(tokens[1]);
             }
-            outputFile = new FileWriter(filePath, appendMode);
-            if(!appendMode)
+            Map<String, String> configMap = CommonFunctions.getGlobalsMapFromConfigAndArguments(TextFile.class,
+                    arguments);
+            if(configMap.containsKey("append"))
+            {
+                appendMode = Boolean.parseBoolean(configMap.get("append"));
+            }
+            String compression = configMap.containsKey("compression") ? configMap.get("compression") : "none";
+            boolean gzip = compression.equalsIgnoreCase("gzip");
+            if(!gzip && !compression.equalsIgnoreCase("none"))
+            {
+                logger.log(Level.SEVERE, "Unsupported compression: " + compression + ". Expected none or gzip");
+                return false;
+            }
+            int bufferSize = CommonFunctions.parseInt(configMap.get("bufferSize"), 1 << 20);
+            int buffers = CommonFunctions.parseInt(configMap.get("buffers"), 8);
+            // a buffer must hold the longest UTF-8 encoded character
+            if(bufferSize < 4 || buffers < 1)
+            {
+                logger.log(Level.SEVERE, "Invalid buffers: " + buffers + " of size: " + bufferSize
+                        + ". Expected at least 1 buffer of 4 bytes");
+                return false;
+            }
+            long rollBytes = CommonFunctions.parseLong(configMap.get("rollBytes"), 0L);
+            long rollSeconds = CommonFunctions.parseLong(configMap.get("rollSeconds"), 0L);
+            long flushMillis = CommonFunctions.parseLong(configMap.get("flushMillis"), 1000L);
+            long reportingSeconds = CommonFunctions.parseLong(configMap.get("reportingIntervalSeconds"), 0L);
+
+            outputFile = new AsyncFileWriter(filePath, appendMode, gzip, bufferSize, buffers, rollBytes,
+                    rollSeconds * 1000, flushMillis, "[BEGIN]\n", "[END]\n");
+            if(reportingSeconds > 0)
             {
-                outputFile.write("[BEGIN]\n");
+                reportingEnabled = true;
+                reportingInterval = reportingSeconds;
+                reportEveryMs = reportingSeconds * 1000;
+                startTime = lastReportedTime = System.currentTimeMillis();
+                lastReportedVertexCount = lastReportedEdgeCount = 0;
             }
 
             return true;
         }
         catch (Exception exception)
         {
-            Logger.getLogger(TextFile.class.getName()).log(Level.SEVERE, null, exception);
+            logger.log(Level.SEVERE, null, exception);
             return false;
         }
     }
 
+    private void appendAnnotations(Map<String, String> annotations)
+    {
+        for (Map.Entry<String, String> currentEntry : annotations.entrySet())
+        {
+            String key = currentEntry.getKey();
+            String value = currentEntry.getValue();
+            if (key == null || value == null)
+            {
+                continue;
+            }
+            elementString.append(key);
+            elementString.append(':');
+            elementString.append(value);
+            elementString.append(',');
+        }
+        elementString.append("}\n");
+    }
+
     @Override
-    public boolean putVertex(AbstractVertex incomingVertex)
+    public synchronized boolean putVertex(AbstractVertex incomingVertex)
     {
         try
         {
-            String vertexHash = incomingVertex.bigHashCode();
-            StringBuilder annotationString = new StringBuilder();
-            annotationString.append("VERTEX (" + vertexHash + "): {");
-            for (Map.Entry<String, String> currentEntry : incomingVertex.getAnnotations().entrySet())
+            elementString.setLength(0);
+            elementString.append("VERTEX (").append(incomingVertex.bigHashCode()).append("): {");
+            appendAnnotations(incomingVertex.getAnnotations());
+            outputFile.write(elementString);
+            if(reportingEnabled)
             {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key == null || value == null)
-                {
-                    continue;
-                }
-                annotationString.append(key);
-                annotationString.append(":");
-                annotationString.append(value);
-                annotationString.append(",");
+                computeStats();
             }
-            annotationString.append("}\n");
-            String vertexString = annotationString.toString();
-            outputFile.write(vertexString);
 
             return true;
         }
         catch (Exception exception)
         {
-            Logger.getLogger(TextFile.class.getName()).log(Level.SEVERE, null, exception);
+            logger.log(Level.SEVERE, null, exception);
             return false;
         }
     }
@@ -112,35 +164,47 @@ public class TextFile extends AbstractStorage
     }
 
     @Override
-    public boolean putEdge(AbstractEdge incomingEdge)
+    public synchronized boolean putEdge(AbstractEdge incomingEdge)
     {
-        try {
-            String childVertexHash = incomingEdge.getChildVertex().bigHashCode();
-            String parentVertexHash = incomingEdge.getParentVertex().bigHashCode();
-            StringBuilder annotationString = new StringBuilder();
-            annotationString.append("EDGE (" + childVertexHash + " -> " + parentVertexHash + "): {");
-            for (Map.Entry<String, String> currentEntry : incomingEdge.getAnnotations().entrySet())
+        try
+        {
+            elementString.setLength(0);
+            elementString.append("EDGE (").append(incomingEdge.getChildVertex().bigHashCode());
+            elementString.append(" -> ").append(incomingEdge.getParentVertex().bigHashCode()).append("): {");
+            appendAnnotations(incomingEdge.getAnnotations());
+            outputFile.write(elementString);
+            if(reportingEnabled)
             {
-                String key = currentEntry.getKey();
-                String value = currentEntry.getValue();
-                if (key == null || value == null)
-                {
-                    continue;
-                }
-                annotationString.append(key);
-                annotationString.append(":");
-                annotationString.append(value);
-                annotationString.append(",");
+                computeStats();
             }
-            annotationString.append("}\n");
-            String edgeString = annotationString.toString();
-            outputFile.write(edgeString);
 
             return true;
         }
         catch (Exception exception)
         {
-            Logger.getLogger(TextFile.class.getName()).log(Level.SEVERE, null, exception);
+            logger.log(Level.SEVERE, null, exception);
+            return false;
+        }
+    }
+
+    @Override
+    protected void printStats()
+    {
+        super.printStats();
+        logger.log(Level.INFO, outputFile.getStatistics());
+    }
+
+    @Override
+    public boolean flushTransactions()
+    {
+        try
+        {
+            outputFile.flush();
+            return true;
+        }
+        catch (Exception exception)
+        {
+            logger.log(Level.SEVERE, null, exception);
             return false;
         }
     }
@@ -150,14 +214,17 @@ public class TextFile extends AbstractStorage
     {
         try
         {
-            outputFile.write("[END]\n");
             outputFile.close();
+            if(reportingEnabled)
+            {
+                logger.log(Level.INFO, outputFile.getStatistics());
+            }
 
             return true;
         }
         catch (Exception exception)
         {
-            Logger.getLogger(TextFile.class.getName()).log(Level.SEVERE, null, exception);
+            logger.log(Level.SEVERE, null, exception);
             return false;
         }
     }
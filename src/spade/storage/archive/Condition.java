@@ -0,0 +1,270 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import spade.core.AbstractQuery.OPERATORS;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One comparison of an annotation with a value, as given to the queries.
+ *
+ * Equality compares the text of the values. The other comparisons are
+ * numeric if both values are numbers and compare the text otherwise. A
+ * missing annotation matches nothing. The conditions of a query are combined
+ * from left to right with the boolean operator after each of them.
+ */
+public class Condition
+{
+    // positions in the lists of the query parameters
+    private static final int COMPARISON_OPERATOR = 0;
+    private static final int VALUE = 1;
+    private static final int BOOLEAN_OPERATOR = 2;
+
+    private final String key;
+    private final String operator;
+    private final String value;
+    private final boolean or;
+    // null if the value is not a number
+    private final BigDecimal number;
+
+    public Condition(String key, String operator, String value, String booleanOperator)
+    {
+        this.key = key;
+        this.operator = operator.trim();
+        this.value = value;
+        this.or = booleanOperator != null && booleanOperator.trim().equalsIgnoreCase("or");
+        this.number = Encoding.toDecimal(value);
+        if(!(isEquality() || this.operator.equals(OPERATORS.LESS_THAN)
+                || this.operator.equals(OPERATORS.LESS_THAN_EQUALS) || this.operator.equals(OPERATORS.GREATER_THAN)
+                || this.operator.equals(OPERATORS.GREATER_THAN_EQUALS)))
+        {
+            throw new IllegalArgumentException("Unsupported operator: " + operator);
+        }
+    }
+
+    /**
+     * @param parameters annotation to the comparison operator, value and boolean operator
+     * @param ignoredKeys keys that are not annotations, like the direction of a lineage query
+     */
+    public static List<Condition> fromParameters(Map<String, List<String>> parameters, String... ignoredKeys)
+    {
+        List<Condition> conditions = new ArrayList<>();
+        outer:
+        for(Map.Entry<String, List<String>> entry : parameters.entrySet())
+        {
+            for(String ignoredKey : ignoredKeys)
+            {
+                if(ignoredKey.equals(entry.getKey()))
+                {
+                    continue outer;
+                }
+            }
+            List<String> values = entry.getValue();
+            conditions.add(new Condition(entry.getKey(), values.get(COMPARISON_OPERATOR), values.get(VALUE),
+                    values.size() > BOOLEAN_OPERATOR ? values.get(BOOLEAN_OPERATOR) : null));
+        }
+        return conditions;
+    }
+
+    public String getKey()
+    {
+        return key;
+    }
+
+    public String getValue()
+    {
+        return value;
+    }
+
+    BigDecimal getNumber()
+    {
+        return number;
+    }
+
+    boolean isEquality()
+    {
+        return operator.equals(OPERATORS.EQUALS) || operator.equals(OPERATORS.NOT_EQUALS);
+    }
+
+    /**
+     * @return true if the condition is an equality, which only holds for one value
+     */
+    public boolean isEquals()
+    {
+        return operator.equals(OPERATORS.EQUALS);
+    }
+
+    public boolean test(String actual)
+    {
+        if(actual == null || value == null)
+        {
+            return false;
+        }
+        if(isEquality())
+        {
+            return actual.equals(value) == isEquals();
+        }
+        if(number != null)
+        {
+            BigDecimal actualNumber = Encoding.toDecimal(actual);
+            if(actualNumber != null)
+            {
+                return holds(actualNumber.compareTo(number));
+            }
+        }
+        return holds(actual.compareTo(value));
+    }
+
+    /**
+     * @param comparison the sign of the actual value compared with the value of the condition
+     */
+    boolean holds(int comparison)
+    {
+        switch(operator)
+        {
+            case OPERATORS.EQUALS:
+                return comparison == 0;
+            case OPERATORS.NOT_EQUALS:
+                return comparison != 0;
+            case OPERATORS.LESS_THAN:
+                return comparison < 0;
+            case OPERATORS.LESS_THAN_EQUALS:
+                return comparison <= 0;
+            case OPERATORS.GREATER_THAN:
+                return comparison > 0;
+            default:
+                return comparison >= 0;
+        }
+    }
+
+    /**
+     * @return true if the conditions are only combined with and
+     */
+    public static boolean isConjunction(List<Condition> conditions)
+    {
+        for(int i = 0; i < conditions.size() - 1; i++)
+        {
+            if(conditions.get(i).or)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Combines the rows matching each condition.
+     *
+     * @param matches rows matching each of the conditions, in the same order
+     * @return rows matching the combined conditions
+     */
+    static BitSet combine(List<Condition> conditions, List<BitSet> matches)
+    {
+        BitSet result = (BitSet) matches.get(0).clone();
+        for(int i = 1; i < conditions.size(); i++)
+        {
+            if(conditions.get(i - 1).or)
+            {
+                result.or(matches.get(i));
+            }
+            else
+            {
+                result.and(matches.get(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Combines whether each condition holds for one row, in the same way as
+     * the rows of all conditions are combined.
+     *
+     * @param holds whether each of the conditions holds, in the same order
+     */
+    static boolean combine(List<Condition> conditions, boolean[] holds)
+    {
+        boolean result = holds[0];
+        for(int i = 1; i < conditions.size(); i++)
+        {
+            result = conditions.get(i - 1).or ? result || holds[i] : result && holds[i];
+        }
+        return result;
+    }
+
+    /**
+     * Finds the range of numbers the given annotation must be in for the
+     * conditions to hold.
+     *
+     * @return the lowest and highest number, which are infinite if unbounded,
+     * or null if the conditions do not bound the annotation
+     */
+    public static double[] getBounds(List<Condition> conditions, String key)
+    {
+        if(key == null || !isConjunction(conditions))
+        {
+            return null;
+        }
+        double[] bounds = null;
+        for(Condition condition : conditions)
+        {
+            if(!key.equals(condition.key) || condition.number == null
+                    || condition.operator.equals(OPERATORS.NOT_EQUALS))
+            {
+                continue;
+            }
+            if(bounds == null)
+            {
+                bounds = new double[]{Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+            }
+            double bound = condition.number.doubleValue();
+            if(!condition.operator.startsWith(OPERATORS.GREATER_THAN))
+            {
+                bounds[1] = Math.min(bounds[1], bound);
+            }
+            if(!condition.operator.startsWith(OPERATORS.LESS_THAN))
+            {
+                bounds[0] = Math.max(bounds[0], bound);
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * @return the value the annotation has to equal for the conditions to
+     * hold, or null if there is none
+     */
+    public static String getRequiredValue(List<Condition> conditions, String key)
+    {
+        if(!isConjunction(conditions))
+        {
+            return null;
+        }
+        for(Condition condition : conditions)
+        {
+            if(key.equals(condition.key) && condition.isEquals())
+            {
+                return condition.value;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Variable length integers, front coded strings, scaled decimals and the
+ * compression of blocks in segment files.
+ */
+final class Encoding
+{
+    // Numbers are only delta encoded below this size so that the deltas fit in a long
+    static final long MAX_NUMBER = 1L << 61;
+
+    private Encoding()
+    {
+    }
+
+    static void writeVarLong(ByteArrayOutputStream out, long value)
+    {
+        while((value & ~0x7FL) != 0)
+        {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarLong(ByteBuffer in)
+    {
+        long value = 0;
+        int shift = 0;
+        while(true)
+        {
+            byte b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            if(b >= 0)
+            {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+
+    static int readVarInt(ByteBuffer in)
+    {
+        return (int) readVarLong(in);
+    }
+
+    static long zigZag(long value)
+    {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long unZigZag(long value)
+    {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    static int varLongLength(long value)
+    {
+        int length = 1;
+        while((value & ~0x7FL) != 0)
+        {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes sorted strings, each as the length of the prefix it shares with
+     * the previous one and the rest of its UTF-8 bytes.
+     */
+    static void writeStrings(ByteArrayOutputStream out, String[] sortedStrings)
+    {
+        writeVarLong(out, sortedStrings.length);
+        byte[] previous = new byte[0];
+        for(String string : sortedStrings)
+        {
+            byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+            int shared = 0;
+            int limit = Math.min(previous.length, bytes.length);
+            while(shared < limit && previous[shared] == bytes[shared])
+            {
+                shared++;
+            }
+            writeVarLong(out, shared);
+            writeVarLong(out, bytes.length - shared);
+            out.write(bytes, shared, bytes.length - shared);
+            previous = bytes;
+        }
+    }
+
+    static String[] readStrings(ByteBuffer in)
+    {
+        String[] strings = new String[readVarInt(in)];
+        byte[] bytes = new byte[64];
+        for(int i = 0; i < strings.length; i++)
+        {
+            int shared = readVarInt(in);
+            int length = shared + readVarInt(in);
+            if(length > bytes.length)
+            {
+                byte[] larger = new byte[Math.max(length, 2 * bytes.length)];
+                System.arraycopy(bytes, 0, larger, 0, shared);
+                bytes = larger;
+            }
+            in.get(bytes, shared, length - shared);
+            strings[i] = new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    /**
+     * @return the digits of a decimal with exactly the given number of
+     * fraction digits as a long, or null if the value is not written the way
+     * {@link #formatNumber(long, int)} would write it
+     */
+    static Long parseNumber(String value, int scale)
+    {
+        int length = value.length();
+        int point = value.indexOf('.');
+        if(length == 0 || length > 18 || (scale == 0 ? point != -1 : point != length - scale - 1))
+        {
+            return null;
+        }
+        int start = value.charAt(0) == '-' ? 1 : 0;
+        int integerDigits = (point == -1 ? length : point) - start;
+        if(integerDigits == 0 || (integerDigits > 1 && value.charAt(start) == '0'))
+        {
+            return null;
+        }
+        long number = 0;
+        for(int i = start; i < length; i++)
+        {
+            if(i == point)
+            {
+                continue;
+            }
+            char c = value.charAt(i);
+            if(c < '0' || c > '9')
+            {
+                return null;
+            }
+            number = number * 10 + (c - '0');
+        }
+        if(number >= MAX_NUMBER || (start == 1 && number == 0))
+        {
+            return null;
+        }
+        return start == 1 ? -number : number;
+    }
+
+    /**
+     * @return the number of fraction digits of a plain decimal, or -1 if the
+     * value is not one
+     */
+    static int scaleOf(String value)
+    {
+        int point = value.indexOf('.');
+        int scale = point == -1 ? 0 : value.length() - point - 1;
+        return parseNumber(value, scale) == null ? -1 : scale;
+    }
+
+    /**
+     * @return the value as a decimal, or null if it is not a number
+     */
+    static BigDecimal toDecimal(String value)
+    {
+        if(value == null || value.isEmpty())
+        {
+            return null;
+        }
+        char first = value.charAt(0);
+        if(!(first == '-' || first == '+' || first == '.' || (first >= '0' && first <= '9')))
+        {
+            return null;
+        }
+        try
+        {
+            return new BigDecimal(value);
+        }
+        catch(NumberFormatException ex)
+        {
+            return null;
+        }
+    }
+
+    static String formatNumber(long number, int scale)
+    {
+        if(scale == 0)
+        {
+            return Long.toString(number);
+        }
+        return BigDecimal.valueOf(number, scale).toPlainString();
+    }
+
+    static byte[] deflate(ByteArrayOutputStream raw, Deflater deflater)
+    {
+        deflater.reset();
+        deflater.setInput(raw.toByteArray());
+        deflater.finish();
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(Math.max(64, raw.size() / 4));
+        byte[] chunk = new byte[64 * 1024];
+        while(!deflater.finished())
+        {
+            int length = deflater.deflate(chunk);
+            compressed.write(chunk, 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    static ByteBuffer inflate(ByteBuffer compressed, int rawLength) throws IOException
+    {
+        byte[] input = new byte[compressed.remaining()];
+        compressed.get(input);
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try
+        {
+            inflater.setInput(input);
+            int length = 0;
+            while(length < rawLength && !inflater.finished())
+            {
+                int read = inflater.inflate(raw, length, rawLength - length);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                {
+                    break;
+                }
+                length += read;
+            }
+            if(length != rawLength)
+            {
+                throw new IOException("Corrupt block: expected " + rawLength + " bytes but got " + length);
+            }
+        }
+        catch(DataFormatException ex)
+        {
+            throw new IOException("Corrupt block", ex);
+        }
+        finally
+        {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of ints used for the ids and codes of a segment.
+ */
+class IntList
+{
+    private int[] values;
+    private int size = 0;
+
+    IntList()
+    {
+        this(16);
+    }
+
+    IntList(int capacity)
+    {
+        values = new int[Math.max(capacity, 1)];
+    }
+
+    void add(int value)
+    {
+        if(size == values.length)
+        {
+            values = Arrays.copyOf(values, values.length * 2);
+        }
+        values[size++] = value;
+    }
+
+    /**
+     * Adds zeros until the list has the given size.
+     */
+    void padTo(int newSize)
+    {
+        if(newSize > values.length)
+        {
+            values = Arrays.copyOf(values, Math.max(newSize, values.length * 2));
+        }
+        // the array beyond size is only ever zero, so there is nothing to fill
+        size = Math.max(size, newSize);
+    }
+
+    void set(int index, int value)
+    {
+        values[index] = value;
+    }
+
+    int get(int index)
+    {
+        return values[index];
+    }
+
+    int size()
+    {
+        return size;
+    }
+}
@@ -0,0 +1,846 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import spade.core.AbstractVertex;
+import spade.core.ConcurrentBloomFilter;
+import spade.core.Vertex;
+import spade.storage.archive.SegmentWriter.Block;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.SoftReference;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * An immutable file of vertices and edges written by {@link SegmentWriter}.
+ *
+ * Layout, with big-endian numbers:
+ * <pre>
+ * MAGIC VERSION
+ * blocks, each deflated on its own
+ * footer:
+ *   vertex count, edge count, hash count, created and sealed time in ms
+ *   hash block: 16 bytes per hash if they are all 32 hex digits, front coded strings otherwise
+ *   vertex id block: differences between the sorted ids of the vertices
+ *   vertex table
+ *   child id block: differences between the sorted child ids of the edges
+ *   parent id block: parent id of each edge
+ *   edge table
+ *   Bloom filter of the hashes
+ * footer length, MAGIC
+ * </pre>
+ * A table has the key of the time annotation, its lowest and highest value and
+ * then the key, encoding and blocks of each column. Dictionary columns have a
+ * block of front coded sorted values and a block with the code of every row,
+ * 0 if the row does not have the key. Number columns have one block with,
+ * for every row, 0 if it does not have the key or 1 plus the zigzag encoded
+ * difference to the previous number.
+ *
+ * Only the footer is read when a segment is opened. The blocks are decoded
+ * when a query needs them and are kept until memory runs low.
+ */
+public class Segment implements SegmentView
+{
+    public static final String FILE_PREFIX = "segment-";
+    public static final String FILE_SUFFIX = ".seg";
+
+    static final int MAGIC = 0x53415231; // "SAR1"
+    static final int VERSION = 1;
+    static final int HEX_HASH_LENGTH = 32;
+    static final byte DICTIONARY = 0;
+    static final byte NUMBERS = 1;
+
+    // Below this many candidate rows the conditions are tested row by row
+    private static final int ROW_TEST_LIMIT = 64;
+
+    private final String name;
+    private final ByteBuffer data;
+    private final int vertexCount;
+    private final int edgeCount;
+    private final int hashCount;
+    private final long createdMillis;
+    private final long sealedMillis;
+    private final boolean hexHashes;
+    private final Block hashBlock;
+    private final Block vertexIdBlock;
+    private final Table vertices;
+    private final Block childBlock;
+    private final Block parentBlock;
+    private final Table edges;
+    private final ConcurrentBloomFilter<String> bloomFilter;
+    private final Map<Block, SoftReference<Object>> decoded = new ConcurrentHashMap<>();
+
+    /**
+     * Maps the segment in the file.
+     */
+    public static Segment open(File file) throws IOException
+    {
+        try(RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r"))
+        {
+            // the mapping stays valid after the file is closed
+            ByteBuffer data = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                    randomAccessFile.length());
+            return new Segment(file.getName(), data);
+        }
+    }
+
+    /**
+     * @param name shown in messages
+     * @param data complete segment as written by {@link SegmentWriter}
+     */
+    public Segment(String name, ByteBuffer data) throws IOException
+    {
+        this.name = name;
+        this.data = data;
+        int length = data.limit();
+        if(length < 16 || data.getInt(0) != MAGIC || data.getInt(length - 4) != MAGIC)
+        {
+            throw new IOException("Not a complete segment: " + name);
+        }
+        if(data.getInt(4) != VERSION)
+        {
+            throw new IOException("Unsupported segment version " + data.getInt(4) + ": " + name);
+        }
+        int footerLength = data.getInt(length - 8);
+        if(footerLength < 0 || footerLength > length - 16)
+        {
+            throw new IOException("Corrupt segment footer: " + name);
+        }
+        byte[] footerBytes = new byte[footerLength];
+        ByteBuffer footerBuffer = data.duplicate();
+        footerBuffer.position(length - 8 - footerLength);
+        footerBuffer.get(footerBytes);
+        DataInputStream footer = new DataInputStream(new ByteArrayInputStream(footerBytes));
+        vertexCount = footer.readInt();
+        edgeCount = footer.readInt();
+        hashCount = footer.readInt();
+        createdMillis = footer.readLong();
+        sealedMillis = footer.readLong();
+        hexHashes = footer.readBoolean();
+        hashBlock = readBlock(footer);
+        vertexIdBlock = readBlock(footer);
+        vertices = new Table(footer, vertexCount);
+        childBlock = readBlock(footer);
+        parentBlock = readBlock(footer);
+        edges = new Table(footer, edgeCount);
+        bloomFilter = ConcurrentBloomFilter.read(footer);
+    }
+
+    private static Block readBlock(DataInputStream footer) throws IOException
+    {
+        return new Block(footer.readLong(), footer.readInt(), footer.readInt());
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int getVertexCount()
+    {
+        return vertexCount;
+    }
+
+    public int getEdgeCount()
+    {
+        return edgeCount;
+    }
+
+    public long getCreatedMillis()
+    {
+        return createdMillis;
+    }
+
+    public long getSealedMillis()
+    {
+        return sealedMillis;
+    }
+
+    public long getSize()
+    {
+        return data.limit();
+    }
+
+    /**
+     * @return false if no vertex or edge in the segment has the hash
+     */
+    public boolean mightContain(String hash)
+    {
+        return bloomFilter.contains(hash);
+    }
+
+    /**
+     * @return the lowest and highest time of the vertices or edges, NaN if
+     * none has a time
+     */
+    public double[] getTimeRange(boolean edgeTable)
+    {
+        Table table = edgeTable ? edges : vertices;
+        return new double[]{table.minTime, table.maxTime};
+    }
+
+    /**
+     * @param bounds lowest and highest time, or null if not bounded
+     * @return false if no vertex or edge with a time between the bounds is in the segment
+     */
+    public boolean overlaps(boolean edgeTable, double[] bounds)
+    {
+        if(bounds == null)
+        {
+            return true;
+        }
+        Table table = edgeTable ? edges : vertices;
+        // NaN if nothing has a time, which also fails both comparisons
+        return table.maxTime >= bounds[0] && table.minTime <= bounds[1];
+    }
+
+    /**
+     * @return the vertex with the hash or null if it is not in the segment
+     */
+    @Override
+    public AbstractVertex getVertex(String hash) throws IOException
+    {
+        if(!mightContain(hash))
+        {
+            return null;
+        }
+        int row = getVertexRow(hash);
+        return row < 0 ? null : toVertex(row);
+    }
+
+    /**
+     * @return vertices matching the conditions
+     */
+    @Override
+    public List<AbstractVertex> findVertices(List<Condition> conditions, int limit) throws IOException
+    {
+        List<AbstractVertex> result = new ArrayList<>();
+        if(!overlaps(false, Condition.getBounds(conditions, vertices.timeKey)))
+        {
+            return result;
+        }
+        BitSet candidates = null;
+        String hash = Condition.getRequiredValue(conditions, PRIMARY_KEY);
+        if(hash != null)
+        {
+            candidates = new BitSet();
+            int row = mightContain(hash) ? getVertexRow(hash) : -1;
+            if(row >= 0)
+            {
+                candidates.set(row);
+            }
+        }
+        BitSet rows = match(false, conditions, candidates, vertexCount);
+        for(int row = rows.nextSetBit(0); row >= 0 && result.size() < limit; row = rows.nextSetBit(row + 1))
+        {
+            result.add(toVertex(row));
+        }
+        return result;
+    }
+
+    /**
+     * @param byChild true to find the edges from the vertices, false to find the edges to them
+     * @return edges from or to any of the vertices
+     */
+    @Override
+    public List<EdgeRecord> getEdges(Collection<String> hashes, boolean byChild) throws IOException
+    {
+        List<EdgeRecord> result = new ArrayList<>();
+        BitSet ids = new BitSet();
+        for(String hash : hashes)
+        {
+            int id = mightContain(hash) ? getId(hash) : -1;
+            if(id >= 0)
+            {
+                ids.set(id);
+            }
+        }
+        if(ids.isEmpty())
+        {
+            return result;
+        }
+        BitSet rows = new BitSet();
+        if(byChild)
+        {
+            int[] children = getIds(childBlock, edgeCount, true);
+            for(int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1))
+            {
+                for(int row = firstRow(children, id); row < edgeCount && children[row] == id; row++)
+                {
+                    rows.set(row);
+                }
+            }
+        }
+        else
+        {
+            int[] parents = getIds(parentBlock, edgeCount, false);
+            for(int row = 0; row < edgeCount; row++)
+            {
+                if(ids.get(parents[row]))
+                {
+                    rows.set(row);
+                }
+            }
+        }
+        for(int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+        {
+            result.add(toEdge(row));
+        }
+        return result;
+    }
+
+    /**
+     * @return edges matching the conditions
+     */
+    @Override
+    public List<EdgeRecord> findEdges(List<Condition> conditions, int limit) throws IOException
+    {
+        List<EdgeRecord> result = new ArrayList<>();
+        if(!overlaps(true, Condition.getBounds(conditions, edges.timeKey)))
+        {
+            return result;
+        }
+        BitSet candidates = null;
+        String childHash = Condition.getRequiredValue(conditions, CHILD_VERTEX_KEY);
+        if(childHash != null)
+        {
+            candidates = new BitSet();
+            int id = mightContain(childHash) ? getId(childHash) : -1;
+            if(id >= 0)
+            {
+                int[] children = getIds(childBlock, edgeCount, true);
+                for(int row = firstRow(children, id); row < edgeCount && children[row] == id; row++)
+                {
+                    candidates.set(row);
+                }
+            }
+        }
+        else
+        {
+            String parentHash = Condition.getRequiredValue(conditions, PARENT_VERTEX_KEY);
+            if(parentHash != null && !mightContain(parentHash))
+            {
+                return result;
+            }
+        }
+        BitSet rows = match(true, conditions, candidates, edgeCount);
+        for(int row = rows.nextSetBit(0); row >= 0 && result.size() < limit; row = rows.nextSetBit(row + 1))
+        {
+            result.add(toEdge(row));
+        }
+        return result;
+    }
+
+    /**
+     * @param candidates the only rows that can match, or null if all can
+     */
+    private BitSet match(boolean edgeTable, List<Condition> conditions, BitSet candidates, int rowCount)
+            throws IOException
+    {
+        if(candidates == null)
+        {
+            candidates = new BitSet(rowCount);
+            candidates.set(0, rowCount);
+        }
+        if(conditions.isEmpty() || candidates.isEmpty())
+        {
+            return candidates;
+        }
+        List<BitSet> matches = new ArrayList<>(conditions.size());
+        if(candidates.cardinality() <= ROW_TEST_LIMIT)
+        {
+            for(Condition condition : conditions)
+            {
+                BitSet conditionMatches = new BitSet();
+                for(int row = candidates.nextSetBit(0); row >= 0; row = candidates.nextSetBit(row + 1))
+                {
+                    if(condition.test(getValue(edgeTable, condition.getKey(), row)))
+                    {
+                        conditionMatches.set(row);
+                    }
+                }
+                matches.add(conditionMatches);
+            }
+        }
+        else
+        {
+            for(Condition condition : conditions)
+            {
+                matches.add(matchColumn(edgeTable, condition, rowCount));
+            }
+        }
+        BitSet result = Condition.combine(conditions, matches);
+        result.and(candidates);
+        return result;
+    }
+
+    private BitSet matchColumn(boolean edgeTable, Condition condition, int rowCount) throws IOException
+    {
+        String key = condition.getKey();
+        int[] rowIds = null;
+        if(!edgeTable && key.equals(PRIMARY_KEY))
+        {
+            rowIds = getIds(vertexIdBlock, vertexCount, true);
+        }
+        else if(edgeTable && key.equals(CHILD_VERTEX_KEY))
+        {
+            rowIds = getIds(childBlock, edgeCount, true);
+        }
+        else if(edgeTable && key.equals(PARENT_VERTEX_KEY))
+        {
+            rowIds = getIds(parentBlock, edgeCount, false);
+        }
+        BitSet result = new BitSet(rowCount);
+        if(rowIds != null)
+        {
+            String[] hashes = getHashes();
+            BitSet matchingIds = new BitSet(hashCount);
+            if(condition.isEquals())
+            {
+                int id = Arrays.binarySearch(hashes, condition.getValue());
+                if(id >= 0)
+                {
+                    matchingIds.set(id);
+                }
+            }
+            else
+            {
+                for(int id = 0; id < hashCount; id++)
+                {
+                    if(condition.test(hashes[id]))
+                    {
+                        matchingIds.set(id);
+                    }
+                }
+            }
+            for(int row = 0; row < rowCount; row++)
+            {
+                if(matchingIds.get(rowIds[row]))
+                {
+                    result.set(row);
+                }
+            }
+            return result;
+        }
+        Column column = (edgeTable ? edges : vertices).columns.get(key);
+        if(column != null)
+        {
+            column.decode().match(condition, rowCount, result);
+        }
+        return result;
+    }
+
+    private String getValue(boolean edgeTable, String key, int row) throws IOException
+    {
+        if(!edgeTable && key.equals(PRIMARY_KEY))
+        {
+            return getHashes()[getIds(vertexIdBlock, vertexCount, true)[row]];
+        }
+        if(edgeTable && key.equals(CHILD_VERTEX_KEY))
+        {
+            return getHashes()[getIds(childBlock, edgeCount, true)[row]];
+        }
+        if(edgeTable && key.equals(PARENT_VERTEX_KEY))
+        {
+            return getHashes()[getIds(parentBlock, edgeCount, false)[row]];
+        }
+        Column column = (edgeTable ? edges : vertices).columns.get(key);
+        return column == null ? null : column.decode().get(row);
+    }
+
+    private int getId(String hash) throws IOException
+    {
+        return Arrays.binarySearch(getHashes(), hash);
+    }
+
+    private int getVertexRow(String hash) throws IOException
+    {
+        int id = getId(hash);
+        if(id < 0)
+        {
+            return -1;
+        }
+        int row = Arrays.binarySearch(getIds(vertexIdBlock, vertexCount, true), id);
+        return row < 0 ? -1 : row;
+    }
+
+    private static int firstRow(int[] sortedIds, int id)
+    {
+        int low = 0;
+        int high = sortedIds.length;
+        while(low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if(sortedIds[middle] < id)
+            {
+                low = middle + 1;
+            }
+            else
+            {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private AbstractVertex toVertex(int row) throws IOException
+    {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotations(getRow(vertices, row));
+        return vertex;
+    }
+
+    private EdgeRecord toEdge(int row) throws IOException
+    {
+        String[] hashes = getHashes();
+        return new EdgeRecord(hashes[getIds(childBlock, edgeCount, true)[row]],
+                hashes[getIds(parentBlock, edgeCount, false)[row]], getRow(edges, row));
+    }
+
+    private Map<String, String> getRow(Table table, int row) throws IOException
+    {
+        Map<String, String> annotations = new HashMap<>();
+        for(Column column : table.columns.values())
+        {
+            String value = column.decode().get(row);
+            if(value != null)
+            {
+                annotations.put(column.key, value);
+            }
+        }
+        return annotations;
+    }
+
+    private ByteBuffer readBlock(Block block) throws IOException
+    {
+        ByteBuffer compressed = data.duplicate();
+        compressed.limit((int) block.offset + block.length);
+        compressed.position((int) block.offset);
+        return Encoding.inflate(compressed, block.rawLength);
+    }
+
+    private Object getDecoded(Block block)
+    {
+        SoftReference<Object> reference = decoded.get(block);
+        return reference == null ? null : reference.get();
+    }
+
+    private String[] getHashes() throws IOException
+    {
+        String[] hashes = (String[]) getDecoded(hashBlock);
+        if(hashes == null)
+        {
+            ByteBuffer raw = readBlock(hashBlock);
+            if(hexHashes)
+            {
+                hashes = new String[hashCount];
+                char[] hex = new char[HEX_HASH_LENGTH];
+                for(int id = 0; id < hashCount; id++)
+                {
+                    for(int i = 0; i < HEX_HASH_LENGTH; i += 2)
+                    {
+                        int b = raw.get() & 0xFF;
+                        hex[i] = Character.forDigit(b >>> 4, 16);
+                        hex[i + 1] = Character.forDigit(b & 0xF, 16);
+                    }
+                    hashes[id] = new String(hex);
+                }
+            }
+            else
+            {
+                hashes = Encoding.readStrings(raw);
+            }
+            decoded.put(hashBlock, new SoftReference<Object>(hashes));
+        }
+        return hashes;
+    }
+
+    /**
+     * @param delta true if the block has the differences between sorted ids
+     */
+    private int[] getIds(Block block, int count, boolean delta) throws IOException
+    {
+        int[] ids = (int[]) getDecoded(block);
+        if(ids == null)
+        {
+            ByteBuffer raw = readBlock(block);
+            ids = new int[count];
+            int previous = 0;
+            for(int i = 0; i < count; i++)
+            {
+                ids[i] = delta ? previous + Encoding.readVarInt(raw) : Encoding.readVarInt(raw);
+                previous = ids[i];
+            }
+            decoded.put(block, new SoftReference<Object>(ids));
+        }
+        return ids;
+    }
+
+    /**
+     * Edge found in a segment. The end points are only known by their hashes
+     * since the vertices can be in other segments.
+     */
+    public static class EdgeRecord
+    {
+        private final String childHash;
+        private final String parentHash;
+        private final Map<String, String> annotations;
+
+        EdgeRecord(String childHash, String parentHash, Map<String, String> annotations)
+        {
+            this.childHash = childHash;
+            this.parentHash = parentHash;
+            this.annotations = annotations;
+        }
+
+        public String getChildHash()
+        {
+            return childHash;
+        }
+
+        public String getParentHash()
+        {
+            return parentHash;
+        }
+
+        public Map<String, String> getAnnotations()
+        {
+            return annotations;
+        }
+    }
+
+    private class Table
+    {
+        private final String timeKey;
+        private final double minTime;
+        private final double maxTime;
+        private final Map<String, Column> columns = new LinkedHashMap<>();
+
+        Table(DataInputStream footer, int rowCount) throws IOException
+        {
+            timeKey = footer.readUTF();
+            minTime = footer.readDouble();
+            maxTime = footer.readDouble();
+            int columnCount = footer.readInt();
+            for(int i = 0; i < columnCount; i++)
+            {
+                Column column = new Column(footer, rowCount);
+                columns.put(column.key, column);
+            }
+        }
+    }
+
+    private class Column
+    {
+        private final String key;
+        private final byte encoding;
+        private final int scale;
+        private final int rowCount;
+        private final Block dictionaryBlock;
+        private final Block valueBlock;
+
+        Column(DataInputStream footer, int rowCount) throws IOException
+        {
+            key = footer.readUTF();
+            encoding = footer.readByte();
+            scale = footer.readByte();
+            footer.readInt();
+            this.rowCount = rowCount;
+            if(encoding == DICTIONARY)
+            {
+                dictionaryBlock = readBlock(footer);
+            }
+            else if(encoding == NUMBERS)
+            {
+                dictionaryBlock = null;
+            }
+            else
+            {
+                throw new IOException("Unknown encoding " + encoding + " of column " + key + " in " + name);
+            }
+            valueBlock = readBlock(footer);
+        }
+
+        ColumnValues decode() throws IOException
+        {
+            ColumnValues values = (ColumnValues) getDecoded(valueBlock);
+            if(values == null)
+            {
+                ByteBuffer raw = readBlock(valueBlock);
+                if(encoding == DICTIONARY)
+                {
+                    String[] dictionary = Encoding.readStrings(readBlock(dictionaryBlock));
+                    int[] codes = new int[rowCount];
+                    for(int row = 0; row < rowCount; row++)
+                    {
+                        codes[row] = Encoding.readVarInt(raw);
+                    }
+                    values = new ColumnValues(dictionary, codes);
+                }
+                else
+                {
+                    long[] numbers = new long[rowCount];
+                    BitSet present = new BitSet(rowCount);
+                    long previous = 0;
+                    for(int row = 0; row < rowCount; row++)
+                    {
+                        long encoded = Encoding.readVarLong(raw);
+                        if(encoded != 0)
+                        {
+                            previous += Encoding.unZigZag(encoded - 1);
+                            numbers[row] = previous;
+                            present.set(row);
+                        }
+                    }
+                    values = new ColumnValues(numbers, present, scale);
+                }
+                decoded.put(valueBlock, new SoftReference<Object>(values));
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Decoded values of one column.
+     */
+    private static class ColumnValues
+    {
+        private final String[] dictionary;
+        private final int[] codes;
+        private final long[] numbers;
+        private final BitSet present;
+        private final int scale;
+
+        ColumnValues(String[] dictionary, int[] codes)
+        {
+            this.dictionary = dictionary;
+            this.codes = codes;
+            this.numbers = null;
+            this.present = null;
+            this.scale = 0;
+        }
+
+        ColumnValues(long[] numbers, BitSet present, int scale)
+        {
+            this.dictionary = null;
+            this.codes = null;
+            this.numbers = numbers;
+            this.present = present;
+            this.scale = scale;
+        }
+
+        String get(int row)
+        {
+            if(dictionary != null)
+            {
+                int code = codes[row];
+                return code == 0 ? null : dictionary[code - 1];
+            }
+            return present.get(row) ? Encoding.formatNumber(numbers[row], scale) : null;
+        }
+
+        void match(Condition condition, int rowCount, BitSet result)
+        {
+            if(dictionary != null)
+            {
+                // each value is only tested once
+                boolean[] matchingCodes = new boolean[dictionary.length + 1];
+                for(int i = 0; i < dictionary.length; i++)
+                {
+                    matchingCodes[i + 1] = condition.test(dictionary[i]);
+                }
+                for(int row = 0; row < rowCount; row++)
+                {
+                    if(matchingCodes[codes[row]])
+                    {
+                        result.set(row);
+                    }
+                }
+            }
+            else if(condition.isEquality())
+            {
+                // equal text means equal digits since numbers are always written the same way
+                Long target = condition.getValue() == null ? null
+                        : Encoding.parseNumber(condition.getValue(), scale);
+                for(int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1))
+                {
+                    if((target != null && numbers[row] == target) == condition.isEquals())
+                    {
+                        result.set(row);
+                    }
+                }
+            }
+            else if(condition.getNumber() != null)
+            {
+                // compare the digits with the value scaled to the same number of fraction digits
+                BigDecimal scaled = condition.getNumber().movePointRight(scale);
+                BigDecimal floor = scaled.setScale(0, RoundingMode.FLOOR);
+                boolean exact = floor.compareTo(scaled) == 0;
+                boolean tooLarge = floor.compareTo(BigDecimal.valueOf(Long.MAX_VALUE)) > 0;
+                boolean tooSmall = floor.compareTo(BigDecimal.valueOf(Long.MIN_VALUE)) < 0;
+                long bound = tooLarge || tooSmall ? 0 : floor.longValueExact();
+                for(int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1))
+                {
+                    long number = numbers[row];
+                    int comparison;
+                    if(tooLarge || tooSmall)
+                    {
+                        comparison = tooLarge ? -1 : 1;
+                    }
+                    else
+                    {
+                        comparison = number < bound ? -1 : number > bound ? 1 : exact ? 0 : -1;
+                    }
+                    if(condition.holds(comparison))
+                    {
+                        result.set(row);
+                    }
+                }
+            }
+            else
+            {
+                for(int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1))
+                {
+                    if(condition.test(Encoding.formatNumber(numbers[row], scale)))
+                    {
+                        result.set(row);
+                    }
+                }
+            }
+        }
+    }
+}
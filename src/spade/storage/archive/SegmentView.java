@@ -0,0 +1,52 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import spade.core.AbstractVertex;
+import spade.storage.archive.Segment.EdgeRecord;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The queries that a segment answers, whether it is sealed in a file or still
+ * being collected in memory.
+ */
+public interface SegmentView
+{
+    /**
+     * @return the vertex with the hash or null if it is not in the segment
+     */
+    AbstractVertex getVertex(String hash) throws IOException;
+
+    /**
+     * @return vertices matching the conditions
+     */
+    List<AbstractVertex> findVertices(List<Condition> conditions, int limit) throws IOException;
+
+    /**
+     * @param byChild true to find the edges from the vertices, false to find the edges to them
+     * @return edges from or to any of the vertices
+     */
+    List<EdgeRecord> getEdges(Collection<String> hashes, boolean byChild) throws IOException;
+
+    /**
+     * @return edges matching the conditions
+     */
+    List<EdgeRecord> findEdges(List<Condition> conditions, int limit) throws IOException;
+}
@@ -0,0 +1,716 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.archive;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.ConcurrentBloomFilter;
+import spade.core.Vertex;
+import spade.storage.archive.Segment.EdgeRecord;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Collects vertices and edges in memory and writes them as one segment.
+ *
+ * Every vertex hash in the segment, including those only seen as end points
+ * of edges, gets a dense id in the sorted order of the hashes. Vertices are
+ * stored by id and edges by the id of their child, so both can be found with
+ * a binary search. Each annotation key becomes a column of each table, kept
+ * either as codes into a sorted dictionary of its values or, if all values
+ * are decimals with the same number of fraction digits, as the differences
+ * between consecutive values, whichever is smaller. See {@link Segment} for
+ * the layout of the file.
+ *
+ * Until it is written, the segment answers queries from memory. Vertices are
+ * found by their id and edges through lists of the edges of each end point,
+ * which are kept up to date as elements are added.
+ */
+public class SegmentWriter implements SegmentView
+{
+    private final String timeKey;
+    private final double bloomFalsePositive;
+    private final long createdMillis = System.currentTimeMillis();
+
+    private final Map<String, Integer> hashIds = new HashMap<>();
+    private final List<String> hashes = new ArrayList<>();
+    private final BitSet vertexIds = new BitSet();
+    private final Table vertices = new Table();
+    private final IntList vertexRows = new IntList();
+    private final Table edges = new Table();
+    private final IntList edgeChildren = new IntList();
+    private final IntList edgeParents = new IntList();
+    // row + 1 of the vertex with each id, 0 if the vertex is only an end point
+    private final IntList vertexRowOfId = new IntList();
+    // row + 1 of the last edge from and to each id, and of the edge before it with the same end point
+    private final IntList lastEdgeOfChild = new IntList();
+    private final IntList lastEdgeOfParent = new IntList();
+    private final IntList previousEdgeOfChild = new IntList();
+    private final IntList previousEdgeOfParent = new IntList();
+
+    public SegmentWriter(String timeKey, double bloomFalsePositive)
+    {
+        this.timeKey = timeKey;
+        this.bloomFalsePositive = bloomFalsePositive;
+    }
+
+    /**
+     * @return false if the segment already has the vertex
+     */
+    public boolean addVertex(AbstractVertex vertex)
+    {
+        int id = getId(vertex.bigHashCode());
+        if(vertexIds.get(id))
+        {
+            return false;
+        }
+        vertexIds.set(id);
+        vertexRows.add(id);
+        vertexRowOfId.set(id, vertexRows.size());
+        vertices.addRow(vertex.getAnnotations());
+        return true;
+    }
+
+    public void addEdge(AbstractEdge edge)
+    {
+        int child = getId(edge.getChildVertex().bigHashCode());
+        int parent = getId(edge.getParentVertex().bigHashCode());
+        edgeChildren.add(child);
+        edgeParents.add(parent);
+        previousEdgeOfChild.add(lastEdgeOfChild.get(child));
+        previousEdgeOfParent.add(lastEdgeOfParent.get(parent));
+        lastEdgeOfChild.set(child, edgeChildren.size());
+        lastEdgeOfParent.set(parent, edgeChildren.size());
+        edges.addRow(edge.getAnnotations());
+    }
+
+    private int getId(String hash)
+    {
+        Integer id = hashIds.get(hash);
+        if(id == null)
+        {
+            id = hashes.size();
+            hashIds.put(hash, id);
+            hashes.add(hash);
+            vertexRowOfId.add(0);
+            lastEdgeOfChild.add(0);
+            lastEdgeOfParent.add(0);
+        }
+        return id;
+    }
+
+    @Override
+    public AbstractVertex getVertex(String hash)
+    {
+        int row = getVertexRow(hash);
+        return row < 0 ? null : toVertex(row);
+    }
+
+    @Override
+    public List<AbstractVertex> findVertices(List<Condition> conditions, int limit)
+    {
+        List<AbstractVertex> result = new ArrayList<>();
+        String hash = Condition.getRequiredValue(conditions, PRIMARY_KEY);
+        if(hash != null)
+        {
+            int row = getVertexRow(hash);
+            if(row >= 0 && matches(false, conditions, row, new boolean[conditions.size()]))
+            {
+                result.add(toVertex(row));
+            }
+            return result;
+        }
+        boolean[] holds = new boolean[conditions.size()];
+        for(int row = 0; row < vertexRows.size() && result.size() < limit; row++)
+        {
+            if(matches(false, conditions, row, holds))
+            {
+                result.add(toVertex(row));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public List<EdgeRecord> getEdges(Collection<String> hashes, boolean byChild)
+    {
+        BitSet rows = new BitSet();
+        for(String hash : hashes)
+        {
+            addEdgeRows(hash, byChild, rows);
+        }
+        List<EdgeRecord> result = new ArrayList<>(rows.cardinality());
+        for(int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+        {
+            result.add(toEdge(row));
+        }
+        return result;
+    }
+
+    @Override
+    public List<EdgeRecord> findEdges(List<Condition> conditions, int limit)
+    {
+        List<EdgeRecord> result = new ArrayList<>();
+        BitSet candidates = null;
+        String childHash = Condition.getRequiredValue(conditions, CHILD_VERTEX_KEY);
+        String parentHash = Condition.getRequiredValue(conditions, PARENT_VERTEX_KEY);
+        if(childHash != null || parentHash != null)
+        {
+            candidates = new BitSet();
+            addEdgeRows(childHash != null ? childHash : parentHash, childHash != null, candidates);
+        }
+        boolean[] holds = new boolean[conditions.size()];
+        int rowCount = edgeChildren.size();
+        for(int row = candidates == null ? 0 : candidates.nextSetBit(0); row >= 0 && row < rowCount
+                && result.size() < limit; row = candidates == null ? row + 1 : candidates.nextSetBit(row + 1))
+        {
+            if(matches(true, conditions, row, holds))
+            {
+                result.add(toEdge(row));
+            }
+        }
+        return result;
+    }
+
+    private int getVertexRow(String hash)
+    {
+        Integer id = hashIds.get(hash);
+        return id == null ? -1 : vertexRowOfId.get(id) - 1;
+    }
+
+    private void addEdgeRows(String hash, boolean byChild, BitSet rows)
+    {
+        Integer id = hashIds.get(hash);
+        if(id == null)
+        {
+            return;
+        }
+        IntList previous = byChild ? previousEdgeOfChild : previousEdgeOfParent;
+        for(int row = (byChild ? lastEdgeOfChild : lastEdgeOfParent).get(id); row > 0; row = previous.get(row - 1))
+        {
+            rows.set(row - 1);
+        }
+    }
+
+    private boolean matches(boolean edgeTable, List<Condition> conditions, int row, boolean[] holds)
+    {
+        if(conditions.isEmpty())
+        {
+            return true;
+        }
+        for(int i = 0; i < holds.length; i++)
+        {
+            Condition condition = conditions.get(i);
+            holds[i] = condition.test(getValue(edgeTable, condition.getKey(), row));
+        }
+        return Condition.combine(conditions, holds);
+    }
+
+    private String getValue(boolean edgeTable, String key, int row)
+    {
+        if(!edgeTable && key.equals(PRIMARY_KEY))
+        {
+            return hashes.get(vertexRows.get(row));
+        }
+        if(edgeTable && key.equals(CHILD_VERTEX_KEY))
+        {
+            return hashes.get(edgeChildren.get(row));
+        }
+        if(edgeTable && key.equals(PARENT_VERTEX_KEY))
+        {
+            return hashes.get(edgeParents.get(row));
+        }
+        return (edgeTable ? edges : vertices).get(key, row);
+    }
+
+    private AbstractVertex toVertex(int row)
+    {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotations(vertices.getRow(row));
+        return vertex;
+    }
+
+    private EdgeRecord toEdge(int row)
+    {
+        return new EdgeRecord(hashes.get(edgeChildren.get(row)), hashes.get(edgeParents.get(row)), edges.getRow(row));
+    }
+
+    public int getVertexCount()
+    {
+        return vertexRows.size();
+    }
+
+    public int getEdgeCount()
+    {
+        return edgeChildren.size();
+    }
+
+    public boolean isEmpty()
+    {
+        return hashes.isEmpty();
+    }
+
+    public long getCreatedMillis()
+    {
+        return createdMillis;
+    }
+
+    /**
+     * Writes the segment.
+     *
+     * @param compressionLevel deflate level of the blocks
+     * @return number of bytes written
+     */
+    public long write(OutputStream outputStream, int compressionLevel) throws IOException
+    {
+        Deflater deflater = new Deflater(compressionLevel);
+        try
+        {
+            BlockOutput out = new BlockOutput(outputStream, deflater);
+            out.writeInt(Segment.MAGIC);
+            out.writeInt(Segment.VERSION);
+
+            // dense ids in the order of the hashes
+            Integer[] order = new Integer[hashes.size()];
+            for(int i = 0; i < order.length; i++)
+            {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer first, Integer second)
+                {
+                    return hashes.get(first).compareTo(hashes.get(second));
+                }
+            });
+            String[] sortedHashes = new String[order.length];
+            int[] ids = new int[order.length];
+            for(int i = 0; i < order.length; i++)
+            {
+                sortedHashes[i] = hashes.get(order[i]);
+                ids[order[i]] = i;
+            }
+
+            ByteArrayOutputStream footerBytes = new ByteArrayOutputStream();
+            DataOutputStream footer = new DataOutputStream(footerBytes);
+            footer.writeInt(vertexRows.size());
+            footer.writeInt(edgeChildren.size());
+            footer.writeInt(sortedHashes.length);
+            footer.writeLong(createdMillis);
+            footer.writeLong(System.currentTimeMillis());
+
+            boolean hex = isHex(sortedHashes);
+            footer.writeBoolean(hex);
+            ByteArrayOutputStream raw = new ByteArrayOutputStream(sortedHashes.length * 17 + 16);
+            if(hex)
+            {
+                for(String hash : sortedHashes)
+                {
+                    for(int i = 0; i < Segment.HEX_HASH_LENGTH; i += 2)
+                    {
+                        raw.write(Character.digit(hash.charAt(i), 16) << 4 | Character.digit(hash.charAt(i + 1), 16));
+                    }
+                }
+            }
+            else
+            {
+                Encoding.writeStrings(raw, sortedHashes);
+            }
+            out.writeBlock(raw).writeTo(footer);
+
+            // vertices in the order of their ids
+            int[] vertexOrder = new int[vertexRows.size()];
+            int vertexCount = 0;
+            int[] rowOfId = new int[sortedHashes.length];
+            for(int row = 0; row < vertexRows.size(); row++)
+            {
+                rowOfId[ids[vertexRows.get(row)]] = row;
+            }
+            raw = new ByteArrayOutputStream(vertexOrder.length + 16);
+            int previousId = 0;
+            for(int id = 0; id < sortedHashes.length; id++)
+            {
+                if(vertexIds.get(order[id]))
+                {
+                    vertexOrder[vertexCount++] = rowOfId[id];
+                    Encoding.writeVarLong(raw, id - previousId);
+                    previousId = id;
+                }
+            }
+            out.writeBlock(raw).writeTo(footer);
+            vertices.write(out, footer, vertexOrder, timeKey);
+
+            // edges in the order of their child ids, keeping the order of the edges of each child
+            int edgeCount = edgeChildren.size();
+            int[] start = new int[sortedHashes.length + 1];
+            for(int row = 0; row < edgeCount; row++)
+            {
+                start[ids[edgeChildren.get(row)] + 1]++;
+            }
+            for(int id = 0; id < sortedHashes.length; id++)
+            {
+                start[id + 1] += start[id];
+            }
+            int[] edgeOrder = new int[edgeCount];
+            for(int row = 0; row < edgeCount; row++)
+            {
+                edgeOrder[start[ids[edgeChildren.get(row)]]++] = row;
+            }
+            ByteArrayOutputStream children = new ByteArrayOutputStream(edgeCount + 16);
+            ByteArrayOutputStream parents = new ByteArrayOutputStream(edgeCount * 3 + 16);
+            previousId = 0;
+            for(int row : edgeOrder)
+            {
+                int childId = ids[edgeChildren.get(row)];
+                Encoding.writeVarLong(children, childId - previousId);
+                previousId = childId;
+                Encoding.writeVarLong(parents, ids[edgeParents.get(row)]);
+            }
+            out.writeBlock(children).writeTo(footer);
+            out.writeBlock(parents).writeTo(footer);
+            edges.write(out, footer, edgeOrder, timeKey);
+
+            ConcurrentBloomFilter<String> bloomFilter =
+                    new ConcurrentBloomFilter<>(bloomFalsePositive, Math.max(1, sortedHashes.length));
+            for(String hash : sortedHashes)
+            {
+                bloomFilter.add(hash);
+            }
+            bloomFilter.write(footer);
+
+            footer.flush();
+            out.writeBytes(footerBytes.toByteArray());
+            out.writeInt(footerBytes.size());
+            out.writeInt(Segment.MAGIC);
+            return out.position;
+        }
+        finally
+        {
+            deflater.end();
+        }
+    }
+
+    private static boolean isHex(String[] hashes)
+    {
+        for(String hash : hashes)
+        {
+            if(hash.length() != Segment.HEX_HASH_LENGTH)
+            {
+                return false;
+            }
+            for(int i = 0; i < hash.length(); i++)
+            {
+                char c = hash.charAt(i);
+                if(!((c >= '0' && c <= '9') || (c >= 'a' && c <= 'f')))
+                {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Location of a compressed block in the segment.
+     */
+    static class Block
+    {
+        final long offset;
+        final int length;
+        final int rawLength;
+
+        Block(long offset, int length, int rawLength)
+        {
+            this.offset = offset;
+            this.length = length;
+            this.rawLength = rawLength;
+        }
+
+        void writeTo(DataOutputStream footer) throws IOException
+        {
+            footer.writeLong(offset);
+            footer.writeInt(length);
+            footer.writeInt(rawLength);
+        }
+    }
+
+    private static class BlockOutput
+    {
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final byte[] intBytes = new byte[4];
+        long position = 0;
+
+        BlockOutput(OutputStream out, Deflater deflater)
+        {
+            this.out = out;
+            this.deflater = deflater;
+        }
+
+        Block writeBlock(ByteArrayOutputStream raw) throws IOException
+        {
+            byte[] compressed = Encoding.deflate(raw, deflater);
+            Block block = new Block(position, compressed.length, raw.size());
+            writeBytes(compressed);
+            return block;
+        }
+
+        void writeBytes(byte[] bytes) throws IOException
+        {
+            out.write(bytes);
+            position += bytes.length;
+        }
+
+        void writeInt(int value) throws IOException
+        {
+            intBytes[0] = (byte) (value >>> 24);
+            intBytes[1] = (byte) (value >>> 16);
+            intBytes[2] = (byte) (value >>> 8);
+            intBytes[3] = (byte) value;
+            writeBytes(intBytes);
+        }
+    }
+
+    /**
+     * Annotations of the vertices or edges, one column for each key.
+     */
+    private static class Table
+    {
+        private final Map<String, ColumnBuilder> columns = new LinkedHashMap<>();
+        private int rows = 0;
+
+        void addRow(Map<String, String> annotations)
+        {
+            for(Map.Entry<String, String> annotation : annotations.entrySet())
+            {
+                if(annotation.getKey() == null || annotation.getValue() == null)
+                {
+                    continue;
+                }
+                ColumnBuilder column = columns.get(annotation.getKey());
+                if(column == null)
+                {
+                    column = new ColumnBuilder();
+                    columns.put(annotation.getKey(), column);
+                }
+                column.add(rows, annotation.getValue());
+            }
+            rows++;
+        }
+
+        String get(String key, int row)
+        {
+            ColumnBuilder column = columns.get(key);
+            return column == null ? null : column.get(row);
+        }
+
+        Map<String, String> getRow(int row)
+        {
+            Map<String, String> annotations = new HashMap<>();
+            for(Map.Entry<String, ColumnBuilder> column : columns.entrySet())
+            {
+                String value = column.getValue().get(row);
+                if(value != null)
+                {
+                    annotations.put(column.getKey(), value);
+                }
+            }
+            return annotations;
+        }
+
+        void write(BlockOutput out, DataOutputStream footer, int[] rowOrder, String timeKey) throws IOException
+        {
+            ColumnBuilder time = columns.get(timeKey);
+            double[] range = time == null ? new double[]{Double.NaN, Double.NaN} : time.getRange();
+            footer.writeUTF(timeKey);
+            footer.writeDouble(range[0]);
+            footer.writeDouble(range[1]);
+            footer.writeInt(columns.size());
+            for(Map.Entry<String, ColumnBuilder> column : columns.entrySet())
+            {
+                footer.writeUTF(column.getKey());
+                column.getValue().write(out, footer, rowOrder, rows);
+            }
+        }
+    }
+
+    private static class ColumnBuilder
+    {
+        // codes start at 1, 0 means the row does not have the annotation
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final List<String> values = new ArrayList<>();
+        private final IntList rowCodes = new IntList();
+
+        void add(int row, String value)
+        {
+            Integer code = codes.get(value);
+            if(code == null)
+            {
+                values.add(value);
+                code = values.size();
+                codes.put(value, code);
+            }
+            rowCodes.padTo(row);
+            rowCodes.add(code);
+        }
+
+        String get(int row)
+        {
+            int code = row < rowCodes.size() ? rowCodes.get(row) : 0;
+            return code == 0 ? null : values.get(code - 1);
+        }
+
+        /**
+         * @return the lowest and highest value that is a number, widened to
+         * make up for rounding. Infinite if some value is not a number and
+         * NaN if there are none.
+         */
+        double[] getRange()
+        {
+            double min = Double.NaN;
+            double max = Double.NaN;
+            for(String value : values)
+            {
+                BigDecimal decimal = Encoding.toDecimal(value);
+                if(decimal == null)
+                {
+                    return new double[]{Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY};
+                }
+                double number = decimal.doubleValue();
+                min = Double.isNaN(min) ? number : Math.min(min, number);
+                max = Double.isNaN(max) ? number : Math.max(max, number);
+            }
+            return new double[]{Math.nextDown(min), Math.nextUp(max)};
+        }
+
+        void write(BlockOutput out, DataOutputStream footer, int[] rowOrder, int rows) throws IOException
+        {
+            rowCodes.padTo(rows);
+            long[] numbers = toNumbers();
+            int scale = numbers == null ? 0 : Encoding.scaleOf(values.get(0));
+
+            // sorted dictionary
+            Integer[] order = new Integer[values.size()];
+            for(int i = 0; i < order.length; i++)
+            {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer first, Integer second)
+                {
+                    return values.get(first).compareTo(values.get(second));
+                }
+            });
+            String[] dictionary = new String[order.length];
+            int[] sortedCodes = new int[order.length + 1];
+            for(int i = 0; i < order.length; i++)
+            {
+                dictionary[i] = values.get(order[i]);
+                sortedCodes[order[i] + 1] = i + 1;
+            }
+
+            ByteArrayOutputStream dictionaryBytes = new ByteArrayOutputStream();
+            Encoding.writeStrings(dictionaryBytes, dictionary);
+            ByteArrayOutputStream codeBytes = new ByteArrayOutputStream(rowOrder.length + 16);
+            for(int row : rowOrder)
+            {
+                Encoding.writeVarLong(codeBytes, sortedCodes[rowCodes.get(row)]);
+            }
+
+            ByteArrayOutputStream numberBytes = null;
+            if(numbers != null)
+            {
+                numberBytes = new ByteArrayOutputStream(rowOrder.length * 2 + 16);
+                long previous = 0;
+                for(int row : rowOrder)
+                {
+                    int code = rowCodes.get(row);
+                    if(code == 0)
+                    {
+                        Encoding.writeVarLong(numberBytes, 0);
+                    }
+                    else
+                    {
+                        long number = numbers[code - 1];
+                        Encoding.writeVarLong(numberBytes, Encoding.zigZag(number - previous) + 1);
+                        previous = number;
+                    }
+                }
+            }
+
+            if(numberBytes != null && numberBytes.size() < dictionaryBytes.size() + codeBytes.size())
+            {
+                footer.writeByte(Segment.NUMBERS);
+                footer.writeByte(scale);
+                footer.writeInt(values.size());
+                out.writeBlock(numberBytes).writeTo(footer);
+            }
+            else
+            {
+                footer.writeByte(Segment.DICTIONARY);
+                footer.writeByte(0);
+                footer.writeInt(values.size());
+                out.writeBlock(dictionaryBytes).writeTo(footer);
+                out.writeBlock(codeBytes).writeTo(footer);
+            }
+        }
+
+        /**
+         * @return the values as numbers with the same number of fraction digits, or null if they are not
+         */
+        private long[] toNumbers()
+        {
+            int scale = Encoding.scaleOf(values.get(0));
+            if(scale < 0)
+            {
+                return null;
+            }
+            long[] numbers = new long[values.size()];
+            for(int i = 0; i < numbers.length; i++)
+            {
+                Long number = Encoding.parseNumber(values.get(i), scale);
+                if(number == null)
+                {
+                    return null;
+                }
+                numbers[i] = number;
+            }
+            return numbers;
+        }
+    }
+}
@@ -0,0 +1,566 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.postgresql;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+import spade.core.Cache;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads rows into one table with COPY FROM STDIN.
+ *
+ * Rows are encoded into a buffer in memory as they are added. A full buffer is
+ * handed to a background thread that streams it to the server over its own
+ * connection and commits, while the next rows go to a second buffer. The
+ * thread adding rows only waits when a buffer fills before the previous one
+ * has been copied.
+ *
+ * If the copy of a batch fails, its rows are copied again one at a time, each
+ * in its own transaction, so a bad row only loses itself. The key of a row is
+ * pending from when it is added until its row is committed, and is then put
+ * in the cache of committed keys. The keys of rows that still fail are
+ * dropped, so the rows can be added again.
+ *
+ * The text format is CSV. The binary format sends uuid columns as 16 bytes,
+ * jsonb columns as text after the version byte and every other column as text.
+ */
+public class CopyLoader
+{
+    private static final Logger logger = Logger.getLogger(CopyLoader.class.getName());
+    // A buffer is handed off at this size even if it has fewer rows than a batch
+    private static final int MAX_BUFFER_BYTES = 8 << 20;
+    private static final byte[] BINARY_HEADER = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0,
+            0, 0, 0, 0, 0, 0, 0, 0};
+    private static final byte[] BINARY_TRAILER = {(byte) 0xff, (byte) 0xff};
+    private static final int JSONB_VERSION = 1;
+
+    private final String table;
+    private final Set<String> uuidColumns;
+    private final Set<String> jsonbColumns;
+    private final boolean binary;
+    private final int batchSize;
+    private final long maxBatchAgeMillis;
+    private final ExecutorService executor;
+    private final Connection connection;
+    private final CopyManager copyManager;
+    private final String keyColumn;
+    private final Cache<String, Boolean> committedKeys;
+    // Keys of the rows added but not committed yet
+    private final Set<String> pendingKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    // Columns of the rows in the buffer being filled, in the order they are encoded
+    private final List<String> columns = new ArrayList<>();
+    private final Set<String> columnSet = new HashSet<>();
+    private CopyBuffer active = new CopyBuffer();
+    private CopyBuffer spare = new CopyBuffer();
+    private Future<?> pending = null;
+
+    private final AtomicLong batches = new AtomicLong();
+    private final AtomicLong rowsCopied = new AtomicLong();
+    private final AtomicLong rowsFailed = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private long waitNanos = 0;
+
+    /**
+     * @param table table to copy into
+     * @param uuidColumns columns of type uuid
+     * @param jsonbColumns columns of type jsonb
+     * @param binary true for the binary format and false for CSV
+     * @param batchSize number of rows in a buffer before it is handed off
+     * @param maxBatchAgeMillis age of the oldest row in a buffer after which the next row hands it off
+     * @param executor single background thread that runs the copies of all loaders on the connection
+     * @param connection connection used only by the background thread, with auto commit off
+     * @param keyColumn column that identifies a row
+     * @param committedKeys cache that receives the key of every row once it is committed
+     */
+    public CopyLoader(String table, Set<String> uuidColumns, Set<String> jsonbColumns, boolean binary, int batchSize,
+                      long maxBatchAgeMillis, ExecutorService executor, Connection connection, String keyColumn,
+                      Cache<String, Boolean> committedKeys) throws SQLException
+    {
+        this.table = table;
+        this.uuidColumns = uuidColumns;
+        this.jsonbColumns = jsonbColumns;
+        this.binary = binary;
+        this.batchSize = Math.max(1, batchSize);
+        this.maxBatchAgeMillis = maxBatchAgeMillis;
+        this.executor = executor;
+        this.connection = connection;
+        this.copyManager = connection.unwrap(PGConnection.class).getCopyAPI();
+        this.keyColumn = keyColumn;
+        this.committedKeys = committedKeys;
+    }
+
+    /**
+     * @return true if a row with the key was added and its batch is not committed yet
+     */
+    public boolean isPending(String key)
+    {
+        return pendingKeys.contains(key);
+    }
+
+    /**
+     * Encodes the row into the buffer being filled. Columns that were not seen
+     * before must already exist in the table.
+     *
+     * @param row values by column name. Missing columns are NULL.
+     * @return false if the row could not be encoded
+     */
+    public synchronized boolean addRow(Map<String, String> row)
+    {
+        for(String column : row.keySet())
+        {
+            if(!columnSet.contains(column))
+            {
+                // the rows already in the buffer were encoded without this column
+                handOff();
+                columnSet.add(column);
+                columns.add(column);
+            }
+        }
+        if(active.size == 0)
+        {
+            active.startTime = System.currentTimeMillis();
+            if(binary)
+            {
+                active.write(BINARY_HEADER, 0, BINARY_HEADER.length);
+            }
+        }
+        int mark = active.size;
+        try
+        {
+            if(binary)
+            {
+                encodeBinary(row);
+            }
+            else
+            {
+                encodeText(row);
+            }
+        }
+        catch(IllegalArgumentException ex)
+        {
+            active.size = mark;
+            rowsFailed.incrementAndGet();
+            logger.log(Level.WARNING, "Unable to encode row for table " + table, ex);
+            return false;
+        }
+        String key = row.get(keyColumn);
+        active.endRow(key);
+        if(key != null)
+        {
+            pendingKeys.add(key);
+        }
+        if(active.rows >= batchSize || active.size >= MAX_BUFFER_BYTES
+                || System.currentTimeMillis() - active.startTime >= maxBatchAgeMillis)
+        {
+            handOff();
+        }
+        return true;
+    }
+
+    private void encodeText(Map<String, String> row)
+    {
+        for(int i = 0; i < columns.size(); i++)
+        {
+            if(i > 0)
+            {
+                active.write(',');
+            }
+            String column = columns.get(i);
+            String value = row.get(column);
+            // an unquoted empty field is NULL and a quoted one is an empty string
+            if(value != null)
+            {
+                if(uuidColumns.contains(column))
+                {
+                    // the server would reject the whole batch for one bad value
+                    toUuid(value);
+                }
+                active.write('"');
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                for(byte b : bytes)
+                {
+                    if(b == '"')
+                    {
+                        active.write('"');
+                    }
+                    active.write(b);
+                }
+                active.write('"');
+            }
+        }
+        active.write('\n');
+    }
+
+    private void encodeBinary(Map<String, String> row)
+    {
+        active.writeShort(columns.size());
+        for(String column : columns)
+        {
+            String value = row.get(column);
+            if(value == null)
+            {
+                active.writeInt(-1);
+            }
+            else if(uuidColumns.contains(column))
+            {
+                active.writeInt(16);
+                active.write(toUuid(value), 0, 16);
+            }
+            else if(jsonbColumns.contains(column))
+            {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                active.writeInt(bytes.length + 1);
+                active.write(JSONB_VERSION);
+                active.write(bytes, 0, bytes.length);
+            }
+            else
+            {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                active.writeInt(bytes.length);
+                active.write(bytes, 0, bytes.length);
+            }
+        }
+    }
+
+    // Accepts the 32 hex digits of a hash with or without dashes
+    private static byte[] toUuid(String value)
+    {
+        byte[] uuid = new byte[16];
+        int digits = 0;
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if(c == '-')
+            {
+                continue;
+            }
+            int digit = Character.digit(c, 16);
+            if(digit < 0 || digits == 32)
+            {
+                throw new IllegalArgumentException("Not a uuid: " + value);
+            }
+            uuid[digits / 2] |= (digits % 2 == 0) ? digit << 4 : digit;
+            digits++;
+        }
+        if(digits != 32)
+        {
+            throw new IllegalArgumentException("Not a uuid: " + value);
+        }
+        return uuid;
+    }
+
+    /**
+     * Hands the buffer being filled to the background thread.
+     *
+     * @param wait true to also wait until everything handed off is committed
+     */
+    public synchronized void flush(boolean wait)
+    {
+        handOff();
+        if(wait)
+        {
+            waitForPending();
+        }
+    }
+
+    private void handOff()
+    {
+        if(active.rows == 0)
+        {
+            return;
+        }
+        // the spare buffer is free again once the previous copy is done
+        waitForPending();
+        if(binary)
+        {
+            active.write(BINARY_TRAILER, 0, BINARY_TRAILER.length);
+        }
+        final CopyBuffer full = active;
+        final String statement = copyStatement();
+        spare.reset();
+        active = spare;
+        spare = full;
+        full.handOffTime = System.nanoTime();
+        pending = executor.submit(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                copy(statement, full);
+            }
+        });
+    }
+
+    private void waitForPending()
+    {
+        if(pending == null)
+        {
+            return;
+        }
+        long start = System.nanoTime();
+        try
+        {
+            pending.get();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            logger.log(Level.WARNING, "Interrupted while waiting for copy into " + table, ex);
+        }
+        catch(ExecutionException ex)
+        {
+            logger.log(Level.SEVERE, "Copy into " + table + " failed", ex);
+        }
+        pending = null;
+        waitNanos += System.nanoTime() - start;
+    }
+
+    private String copyStatement()
+    {
+        StringBuilder statement = new StringBuilder("COPY ");
+        statement.append(table).append(" (");
+        for(int i = 0; i < columns.size(); i++)
+        {
+            if(i > 0)
+            {
+                statement.append(", ");
+            }
+            statement.append('"').append(columns.get(i)).append('"');
+        }
+        statement.append(") FROM STDIN WITH (FORMAT ").append(binary ? "binary" : "csv").append(')');
+        return statement.toString();
+    }
+
+    // Runs on the background thread
+    private void copy(String statement, CopyBuffer buffer)
+    {
+        try
+        {
+            copyBytes(statement, buffer.data, 0, buffer.size);
+            connection.commit();
+            rowsCopied.addAndGet(buffer.rows);
+            for(String key : buffer.keys)
+            {
+                commitKey(key);
+            }
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.WARNING, "Unable to copy " + buffer.rows + " rows into " + table +
+                    ". Copying them one by one", ex);
+            try
+            {
+                connection.rollback();
+                copyOneByOne(statement, buffer);
+            }
+            catch(SQLException e)
+            {
+                rowsFailed.addAndGet(buffer.rows);
+                logger.log(Level.SEVERE, "Error in rollback after failed copy! Lost " + buffer.rows + " rows", e);
+            }
+        }
+        for(String key : buffer.keys)
+        {
+            if(key != null)
+            {
+                pendingKeys.remove(key);
+            }
+        }
+        long latency = System.nanoTime() - buffer.handOffTime;
+        batches.incrementAndGet();
+        totalLatencyNanos.addAndGet(latency);
+        long max = maxLatencyNanos.get();
+        while(latency > max && !maxLatencyNanos.compareAndSet(max, latency))
+        {
+            max = maxLatencyNanos.get();
+        }
+    }
+
+    private void copyBytes(String statement, byte[] data, int offset, int length) throws SQLException
+    {
+        CopyIn copyIn = copyManager.copyIn(statement);
+        try
+        {
+            copyIn.writeToCopy(data, offset, length);
+            copyIn.endCopy();
+        }
+        finally
+        {
+            if(copyIn.isActive())
+            {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+
+    // Copies and commits each row of a batch whose copy failed
+    private void copyOneByOne(String statement, CopyBuffer buffer)
+    {
+        int copied = 0;
+        int start = binary ? BINARY_HEADER.length : 0;
+        try
+        {
+            for(int i = 0; i < buffer.rows; i++)
+            {
+                int end = buffer.rowEnds[i];
+                String key = buffer.keys.get(i);
+                try
+                {
+                    if(binary)
+                    {
+                        byte[] row = new byte[BINARY_HEADER.length + end - start + BINARY_TRAILER.length];
+                        System.arraycopy(BINARY_HEADER, 0, row, 0, BINARY_HEADER.length);
+                        System.arraycopy(buffer.data, start, row, BINARY_HEADER.length, end - start);
+                        System.arraycopy(BINARY_TRAILER, 0, row, row.length - BINARY_TRAILER.length,
+                                BINARY_TRAILER.length);
+                        copyBytes(statement, row, 0, row.length);
+                    }
+                    else
+                    {
+                        copyBytes(statement, buffer.data, start, end - start);
+                    }
+                    connection.commit();
+                    copied++;
+                    commitKey(key);
+                }
+                catch(SQLException ex)
+                {
+                    logger.log(Level.SEVERE, "Unable to copy row with " + keyColumn + " " + key + " into " + table +
+                            ": " + ex.getMessage());
+                    connection.rollback();
+                }
+                start = end;
+            }
+        }
+        catch(SQLException ex)
+        {
+            logger.log(Level.SEVERE, "Error in rollback after failed copy!", ex);
+        }
+        rowsCopied.addAndGet(copied);
+        rowsFailed.addAndGet(buffer.rows - copied);
+        logger.log(Level.WARNING, "Copied " + copied + " of " + buffer.rows + " rows of the failed batch into " +
+                table + ". Rows failed since start: " + rowsFailed.get());
+    }
+
+    private void commitKey(String key)
+    {
+        if(key != null)
+        {
+            committedKeys.put(key, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * @return batches and rows copied, rows that failed, average and maximum time
+     * from hand off to commit, and the time spent waiting for a free buffer
+     */
+    public synchronized String getStatistics()
+    {
+        long batchCount = batches.get();
+        return String.format("%s: batches=%d, rows=%d, failed rows=%d, flush latency avg=%.1f ms max=%.1f ms, " +
+                        "waited for buffer=%d ms", table, batchCount, rowsCopied.get(), rowsFailed.get(),
+                batchCount > 0 ? totalLatencyNanos.get() / 1e6 / batchCount : 0.0, maxLatencyNanos.get() / 1e6,
+                waitNanos / 1000000);
+    }
+
+    /**
+     * Growable byte array holding the encoded rows of one batch
+     */
+    private static class CopyBuffer
+    {
+        private byte[] data = new byte[1 << 16];
+        private int size = 0;
+        private int rows = 0;
+        // End of each row in data, after the header in the binary format
+        private int[] rowEnds = new int[1024];
+        // Key of each row, null for a row without one
+        private final List<String> keys = new ArrayList<>();
+        private long startTime;
+        private long handOffTime;
+
+        private void ensure(int extra)
+        {
+            if(size + extra > data.length)
+            {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+            }
+        }
+
+        private void write(int b)
+        {
+            ensure(1);
+            data[size++] = (byte) b;
+        }
+
+        private void write(byte[] bytes, int offset, int length)
+        {
+            ensure(length);
+            System.arraycopy(bytes, offset, data, size, length);
+            size += length;
+        }
+
+        private void endRow(String key)
+        {
+            if(rows == rowEnds.length)
+            {
+                rowEnds = Arrays.copyOf(rowEnds, rows * 2);
+            }
+            rowEnds[rows++] = size;
+            keys.add(key);
+        }
+
+        private void writeShort(int value)
+        {
+            write(value >>> 8);
+            write(value);
+        }
+
+        private void writeInt(int value)
+        {
+            writeShort(value >>> 16);
+            writeShort(value);
+        }
+
+        private void reset()
+        {
+            size = 0;
+            rows = 0;
+            keys.clear();
+        }
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package spade.storage.textfile;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes text to a file from a background thread.
+ *
+ * Text is encoded as UTF-8 straight into a buffer from a fixed pool. A full
+ * buffer is queued for the writer thread, which writes it to the file channel,
+ * through gzip if asked to, and returns it to the pool. The thread adding text
+ * only waits when every buffer is queued. The writer thread also queues a
+ * partly filled buffer once nothing has been added for the flush interval.
+ *
+ * The file can be rolled over to a new one after a number of bytes or seconds.
+ * The first file is the given path and the n-th after it is path.n, or
+ * name.n.gz for a path ending with .gz. Every file starts with the header,
+ * unless the first one is appended to, and ends with the footer. Lines are
+ * never split between files unless a line is bigger than a buffer.
+ */
+public class AsyncFileWriter
+{
+    private static final Logger logger = Logger.getLogger(AsyncFileWriter.class.getName());
+    private static final String GZIP_SUFFIX = ".gz";
+    // Queued after the buffers to flush the file or to close it
+    private static final ByteBuffer FLUSH = ByteBuffer.allocate(0);
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final String path;
+    private final boolean append;
+    private final boolean gzip;
+    private final long rollBytes;
+    private final long rollMillis;
+    private final long flushMillis;
+    private final byte[] header;
+    private final byte[] footer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private final BlockingQueue<ByteBuffer> pool;
+    private final BlockingQueue<ByteBuffer> queue;
+    private final Thread writerThread;
+    private ByteBuffer active;
+    // The text is copied here first since the encoder is much faster on arrays
+    private char[] characters = new char[1024];
+    private long lastWriteTime;
+    private CountDownLatch flushed;
+    private volatile IOException failure;
+
+    // Only used by the writer thread
+    private FileChannel channel;
+    private GZIPOutputStream gzipStream;
+    private volatile int fileIndex = 0;
+    private long fileBytes;
+    private long fileOpenTime;
+
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong backlogBytes = new AtomicLong();
+    private final AtomicLong filesWritten = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private long lastStatsTime = System.currentTimeMillis();
+    private long lastStatsBytes = 0;
+
+    /**
+     * Opens the first file and starts the writer thread.
+     *
+     * @param path path of the first file
+     * @param append true to append to the first file if it exists
+     * @param gzip true to compress the files with gzip
+     * @param bufferSize size of every buffer in bytes. At least 4 to hold any UTF-8 encoded character.
+     * @param bufferCount number of buffers, which bounds the text waiting to be written
+     * @param rollBytes bytes of text in a file after which the next file is started. 0 to never roll by size.
+     * @param rollMillis age of a file after which the next file is started. 0 to never roll by time.
+     * @param flushMillis time without new text after which a partly filled buffer is written
+     * @param header text at the start of every file
+     * @param footer text at the end of every file
+     */
+    public AsyncFileWriter(String path, boolean append, boolean gzip, int bufferSize, int bufferCount,
+                           long rollBytes, long rollMillis, long flushMillis, String header, String footer)
+            throws IOException
+    {
+        if(bufferSize < 4)
+        {
+            throw new IllegalArgumentException("Buffer size must be at least 4 bytes: " + bufferSize);
+        }
+        this.path = path;
+        this.append = append;
+        this.gzip = gzip;
+        this.rollBytes = rollBytes;
+        this.rollMillis = rollMillis;
+        this.flushMillis = Math.max(1, flushMillis);
+        this.header = header.getBytes(StandardCharsets.UTF_8);
+        this.footer = footer.getBytes(StandardCharsets.UTF_8);
+        bufferCount = Math.max(2, bufferCount);
+        pool = new ArrayBlockingQueue<>(bufferCount);
+        // room for every buffer and the markers
+        queue = new ArrayBlockingQueue<>(bufferCount + 2);
+        for(int i = 1; i < bufferCount; i++)
+        {
+            pool.add(ByteBuffer.allocate(bufferSize));
+        }
+        active = ByteBuffer.allocate(bufferSize);
+        lastWriteTime = System.currentTimeMillis();
+        openFile();
+        writerThread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "TextFile-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Encodes the text into the buffer being filled.
+     *
+     * @throws IOException if an earlier write to the file failed
+     */
+    public void write(CharSequence text) throws IOException
+    {
+        lock.lock();
+        try
+        {
+            checkFailure();
+            CharBuffer chars = toChars(text);
+            int mark = active.position();
+            while(true)
+            {
+                CoderResult result = encoder.encode(chars, active, true);
+                if(!result.isOverflow())
+                {
+                    break;
+                }
+                if(mark > 0)
+                {
+                    // start the text in an empty buffer instead of splitting it
+                    active.position(mark);
+                    handOff();
+                    chars.rewind();
+                    encoder.reset();
+                    mark = 0;
+                }
+                else
+                {
+                    handOff();
+                }
+            }
+            encoder.flush(active);
+            encoder.reset();
+            lastWriteTime = System.currentTimeMillis();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Called with the lock held
+    private CharBuffer toChars(CharSequence sequence)
+    {
+        int length = sequence.length();
+        if(characters.length < length)
+        {
+            characters = new char[Math.max(length, 2 * characters.length)];
+        }
+        if(sequence instanceof String)
+        {
+            ((String) sequence).getChars(0, length, characters, 0);
+        }
+        else if(sequence instanceof StringBuilder)
+        {
+            ((StringBuilder) sequence).getChars(0, length, characters, 0);
+        }
+        else
+        {
+            for(int i = 0; i < length; i++)
+            {
+                characters[i] = sequence.charAt(i);
+            }
+        }
+        return CharBuffer.wrap(characters, 0, length);
+    }
+
+    // Called with the lock held
+    private void handOff() throws IOException
+    {
+        if(active.position() == 0)
+        {
+            return;
+        }
+        ByteBuffer next = pool.poll();
+        if(next == null)
+        {
+            long start = System.nanoTime();
+            try
+            {
+                next = pool.take();
+            }
+            catch(InterruptedException ex)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for a buffer");
+            }
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        active.flip();
+        backlogBytes.addAndGet(active.remaining());
+        queue.add(active);
+        active = next;
+    }
+
+    /**
+     * Writes everything added so far to the file and waits until it is done.
+     *
+     * @throws IOException if writing to the file failed
+     */
+    public void flush() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            checkFailure();
+            handOff();
+            flushed = new CountDownLatch(1);
+            queue.add(FLUSH);
+            flushed.await();
+            checkFailure();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the file to be flushed");
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes everything added so far, ends the file with the footer and stops
+     * the writer thread.
+     *
+     * @throws IOException if writing to the file failed
+     */
+    public void close() throws IOException
+    {
+        lock.lock();
+        try
+        {
+            if(failure == null)
+            {
+                handOff();
+            }
+            queue.add(CLOSE);
+            writerThread.join();
+            checkFailure();
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the file to be closed");
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void checkFailure() throws IOException
+    {
+        if(failure != null)
+        {
+            throw new IOException("Unable to write to " + path, failure);
+        }
+    }
+
+    private void writeLoop()
+    {
+        try
+        {
+            while(true)
+            {
+                ByteBuffer buffer = queue.poll(flushMillis, TimeUnit.MILLISECONDS);
+                if(buffer == null)
+                {
+                    flushIdle();
+                }
+                else if(buffer == CLOSE)
+                {
+                    closeFile();
+                    return;
+                }
+                else if(buffer == FLUSH)
+                {
+                    flushFile();
+                    flushed.countDown();
+                }
+                else
+                {
+                    int size = buffer.remaining();
+                    writeBytes(buffer);
+                    bytesWritten.addAndGet(size);
+                    backlogBytes.addAndGet(-size);
+                    buffer.clear();
+                    pool.add(buffer);
+                    if(rollBytes > 0 && fileBytes >= rollBytes)
+                    {
+                        rollFile();
+                    }
+                }
+                if(rollMillis > 0 && System.currentTimeMillis() - fileOpenTime >= rollMillis
+                        && fileBytes > header.length)
+                {
+                    rollFile();
+                }
+            }
+        }
+        catch(IOException | InterruptedException ex)
+        {
+            failure = ex instanceof IOException ? (IOException) ex : new InterruptedIOException(ex.getMessage());
+            logger.log(Level.SEVERE, "Unable to write to " + path, ex);
+            drainAfterFailure();
+        }
+    }
+
+    /**
+     * Queues the partly filled buffer if nothing was added for the flush
+     * interval. Skipped if the thread adding text holds the lock, since it
+     * may be waiting for this thread to free a buffer.
+     */
+    private void flushIdle() throws IOException
+    {
+        if(!lock.tryLock())
+        {
+            return;
+        }
+        try
+        {
+            if(active.position() > 0 && System.currentTimeMillis() - lastWriteTime >= flushMillis
+                    && !pool.isEmpty())
+            {
+                handOff();
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    // Keeps freeing buffers so that the callers see the failure instead of waiting
+    private void drainAfterFailure()
+    {
+        try
+        {
+            while(true)
+            {
+                ByteBuffer buffer = queue.take();
+                if(buffer == CLOSE)
+                {
+                    closeQuietly();
+                    return;
+                }
+                else if(buffer == FLUSH)
+                {
+                    flushed.countDown();
+                }
+                else
+                {
+                    backlogBytes.addAndGet(-buffer.remaining());
+                    buffer.clear();
+                    pool.add(buffer);
+                }
+            }
+        }
+        catch(InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String getFilePath(int index)
+    {
+        if(index == 0)
+        {
+            return path;
+        }
+        if(path.endsWith(GZIP_SUFFIX))
+        {
+            return path.substring(0, path.length() - GZIP_SUFFIX.length()) + "." + index + GZIP_SUFFIX;
+        }
+        return path + "." + index;
+    }
+
+    private void openFile() throws IOException
+    {
+        boolean appendToFile = append && fileIndex == 0;
+        channel = FileChannel.open(Paths.get(getFilePath(fileIndex)), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, appendToFile ? StandardOpenOption.APPEND :
+                        StandardOpenOption.TRUNCATE_EXISTING);
+        if(gzip)
+        {
+            // a gzip member appended to a file is read as part of it
+            gzipStream = new GZIPOutputStream(Channels.newOutputStream(channel), 1 << 16, true);
+        }
+        fileBytes = 0;
+        fileOpenTime = System.currentTimeMillis();
+        if(!appendToFile)
+        {
+            writeBytes(ByteBuffer.wrap(header));
+        }
+    }
+
+    private void writeBytes(ByteBuffer buffer) throws IOException
+    {
+        fileBytes += buffer.remaining();
+        if(gzipStream != null)
+        {
+            gzipStream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            buffer.position(buffer.limit());
+        }
+        else
+        {
+            while(buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    private void flushFile() throws IOException
+    {
+        if(gzipStream != null)
+        {
+            gzipStream.flush();
+        }
+    }
+
+    private void closeFile() throws IOException
+    {
+        writeBytes(ByteBuffer.wrap(footer));
+        if(gzipStream != null)
+        {
+            gzipStream.close();
+            gzipStream = null;
+        }
+        else
+        {
+            channel.close();
+        }
+        filesWritten.incrementAndGet();
+    }
+
+    private void closeQuietly()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch(IOException ex)
+        {
+            logger.log(Level.WARNING, "Unable to close " + getFilePath(fileIndex), ex);
+        }
+    }
+
+    private void rollFile() throws IOException
+    {
+        closeFile();
+        fileIndex++;
+        openFile();
+        logger.log(Level.INFO, "Rolled over to " + getFilePath(fileIndex));
+    }
+
+    /**
+     * @return bytes of text written, the rate since the previous call, text
+     * waiting to be written, files completed and the time spent waiting for a
+     * free buffer
+     */
+    public String getStatistics()
+    {
+        long now = System.currentTimeMillis();
+        long bytes = bytesWritten.get();
+        double rate;
+        synchronized(this)
+        {
+            rate = now > lastStatsTime ? (bytes - lastStatsBytes) * 1000.0 / (now - lastStatsTime) : 0.0;
+            lastStatsTime = now;
+            lastStatsBytes = bytes;
+        }
+        return String.format("%s: written=%d bytes, rate=%.1f KB/s, backlog=%d bytes, files completed=%d, " +
+                "waited for buffer=%d ms", getFilePath(fileIndex), bytes, rate / 1024, backlogBytes.get(),
+                filesWritten.get(), waitNanos.get() / 1000000);
+    }
+}
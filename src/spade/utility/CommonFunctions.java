@@ -263,6 +263,21 @@ public class CommonFunctions {
     		String cacheSizeValue, String bloomfilterFalsePositiveProbValue, String bloomfilterExpectedElementsCountValue,
     		String parentDBDirPathValue, String dbDirAndNameValue, String reportingIntervalSecondsValue,
     		Hasher<X> hasher) throws Exception{
+    	return createExternalMemoryMapInstance(id, cacheSizeValue, bloomfilterFalsePositiveProbValue, 
+    			bloomfilterExpectedElementsCountValue, parentDBDirPathValue, dbDirAndNameValue, 
+    			reportingIntervalSecondsValue, hasher, null, null);
+    }
+
+    /**
+     * Same as above but lets the caller pick the external store.
+     * 
+     * @param storeTypeValue 'berkeleydb' (default if null or empty) or 'mapped' for MappedFileStore
+     * @param codec Codec for the values in a MappedFileStore. Java serialization is used if null.
+     */
+    public static <X, Y extends Serializable> ExternalMemoryMap<X, Y> createExternalMemoryMapInstance(String id,
+    		String cacheSizeValue, String bloomfilterFalsePositiveProbValue, String bloomfilterExpectedElementsCountValue,
+    		String parentDBDirPathValue, String dbDirAndNameValue, String reportingIntervalSecondsValue,
+    		Hasher<X> hasher, String storeTypeValue, ValueCodec<Y> codec) throws Exception{
 
     	String exceptionPrefix = id + ": ExternalMemoryMap creation: ";
 
@@ -328,6 +343,11 @@ public class CommonFunctions {
     		throw new Exception(exceptionPrefix + 
     				"Reporting interval cannot be less than 0: "+reporterInterval+".");
     	}
+    	String storeType = isNullOrEmpty(storeTypeValue) ? "berkeleydb" : storeTypeValue.trim().toLowerCase();
+    	if(!storeType.equals("berkeleydb") && !storeType.equals("mapped")){
+    		throw new Exception(exceptionPrefix + 
+    				"Invalid store type (must be 'berkeleydb' or 'mapped'): "+storeTypeValue+".");
+    	}
     	if(dbDirAndNameValue.contains(File.separator)){
     		throw new Exception(exceptionPrefix + 
     				"Invalid '"+File.separator+"' character in external DB name: "+dbDirAndNameValue+".");
@@ -361,7 +381,12 @@ public class CommonFunctions {
     	}
 
     	try{
-    		ExternalStore<Y> db = new BerkeleyDB<Y>(dbPath, dbDirAndNameValue);
+    		ExternalStore<Y> db;
+    		if(storeType.equals("mapped")){
+    			db = new MappedFileStore<Y>(dbPath, codec != null ? codec : new SerializableCodec<Y>());
+    		}else{
+    			db = new BerkeleyDB<Y>(dbPath, dbDirAndNameValue);
+    		}
     		ExternalMemoryMap<X, Y> map = new ExternalMemoryMap<X, Y>(
     				id, cacheSize, db, falsePositiveProb, expectedNumberOfElements);
     		if(reporterInterval != null){
@@ -373,9 +398,9 @@ public class CommonFunctions {
     		}
     		logger.log(Level.INFO, id+": ExternalMemoryMap created with params: cache size={0}, "
     				+ "db path={1}, db name={2}, false positive prob={3}, expected number of elements={4}, "
-    				+ "reporting interval in millis={5}", new Object[]{
+    				+ "reporting interval in millis={5}, store type={6}", new Object[]{
     						cacheSize, dbPath, dbDirAndNameValue, falsePositiveProb, expectedNumberOfElements,
-    						reporterInterval
+    						reporterInterval, storeType
     		});
     		return map;
     	}catch(Exception e){
@@ -22,12 +22,16 @@ package spade.utility;
 
 import java.io.Serializable;
 import java.math.BigInteger;
+import java.util.ArrayDeque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-import spade.core.BloomFilter;
+import spade.core.ConcurrentBloomFilter;
 
 /**
  * A map that keeps specified number of elements in memory and kicks out the least recently
@@ -37,6 +41,16 @@ import spade.core.BloomFilter;
  * This class uses a bloomfilter to keep a track of elements that have been added. This avoids
  * the expensive calls to disk to get an element if the element wasn't found in memory.
  * 
+ * The in-memory part is split into segments by the hash code of the key. Each segment has its
+ * own lock which is only taken to add, remove or load elements. Hits in memory do not lock: they
+ * only mark the element as referenced. Elements are evicted with the CLOCK policy (an approximation
+ * of LRU) which skips over referenced elements once before evicting them.
+ * 
+ * Evicted elements are collected per segment and written to the external storage in batches. An
+ * element that is accessed again before its batch is written is taken back without a disk access.
+ * 
+ * The map is safe for use by multiple threads. Keys must implement equals and hashCode.
+ * 
  * @params <K> Any object type
  * @params <V> Object type must implement the Serializable interface 
  * 
@@ -45,50 +59,165 @@ import spade.core.BloomFilter;
 public class ExternalMemoryMap<K, V extends Serializable>{
 	
 	private Logger logger = Logger.getLogger(ExternalMemoryMap.class.getName());
+	
+	// Upper bound on the number of segments
+	private static final int MAX_SEGMENTS = 16;
+	// Segments are not made smaller than this so that CLOCK has elements to choose from
+	private static final int MIN_SEGMENT_SIZE = 64;
+	// Evicted elements written to the external storage at a time by a segment
+	private static final int WRITE_BEHIND_BATCH_SIZE = 256;
 
 	//bloomfilter to check if the element exists in memory and/or external storage
-	private BloomFilter<K> bloomFilter;
+	private final ConcurrentBloomFilter<K> bloomFilter;
 	
 	//default hasher using the hashCode function.
-	private Hasher<K> keyHasher = new Hasher<K>(){
+	private volatile Hasher<K> keyHasher = new Hasher<K>(){
 		public String getHash(K k){
 			return String.valueOf(k.hashCode());
 		}
 	};
 	
-	//main in-memory map to keep items that have been used recently
-	private Map<K, Node<K, V>> leastRecentlyUsedCache;
-
-	//data structure to keep track of least recently and most recently used elements
-	private Node<K, V> head, tail;
+	//in-memory segments that keep the recently used items
+	private final Segment[] segments;
+	private final int segmentMask;
 	
-	//external storage for least recently used elements
-	private ExternalStore<V> cacheStore;
+	//external storage for evicted elements
+	private final ExternalStore<V> cacheStore;
 	
 	// Max in-memory map size
-	private int cacheMaxSize = 0;
+	private final int cacheMaxSize;
 	
 	// Print stats variables
-	private boolean printStats = false;
-	private long printStatsAfterMillis = 2 * 60 * 1000; // 2 minutes
-	private long lastRecordedTimeMillis = 0;
-	private long mapAccessesTotal = 0,
-			mapAccessesInterval = 0;
-	private long bloomfilterFalsePositivesTotal = 0,
-			bloomfilterFalsePositivesInterval = 0;
-	private long lruCacheMissesTotal = 0,
-			lruCacheMissesInterval = 0;
-	private long lruCacheHitsTotal = 0,
-			lruCacheHitsInterval = 0;
-	private long successfulDatabaseHitsTotal = 0,
-			successfulDatabaseHitsInterval = 0;
-	private long failedDatabaseHitsTotal = 0,
-			failedDatabaseHitsInterval = 0;
-	private long databaseInsertionsTotal = 0,
-			databaseInsertionsInterval = 0;
+	private volatile boolean printStats = false;
+	private volatile long printStatsAfterMillis = 2 * 60 * 1000; // 2 minutes
+	private volatile long lastRecordedTimeMillis = 0;
+	
+	// Counters since the map was created. Exported by getStats().
+	private final LongAdder mapAccesses = new LongAdder(),
+			bloomfilterFalsePositives = new LongAdder(),
+			lruCacheHits = new LongAdder(),
+			lruCacheMisses = new LongAdder(),
+			successfulDatabaseHits = new LongAdder(),
+			failedDatabaseHits = new LongAdder(),
+			databaseInsertions = new LongAdder();
+	// Counter values when stats were last printed. Used to get the interval counts.
+	private Map<String, Long> lastPrintedStats = new HashMap<String, Long>();
 	
 	private final String mapId;
 	
+	/**
+	 * An element in memory
+	 */
+	private static final class Entry<K, V>{
+		private final K key;
+		private volatile V value;
+		private volatile boolean referenced = true;
+		// Position in the clock of the segment
+		private int slot;
+		
+		private Entry(K key, V value){
+			this.key = key;
+			this.value = value;
+		}
+	}
+	
+	/**
+	 * A part of the in-memory map with its own CLOCK and lock
+	 */
+	private final class Segment{
+		private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<K, Entry<K, V>>();
+		private final Entry<K, V>[] clock;
+		private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+		private int nextUnusedSlot = 0;
+		private int hand = 0;
+		// Evicted elements that have not been written to the external storage yet
+		private final LinkedHashMap<K, V> writeBehind = new LinkedHashMap<K, V>();
+		
+		@SuppressWarnings("unchecked")
+		private Segment(int capacity){
+			clock = (Entry<K, V>[]) new Entry<?, ?>[capacity];
+		}
+		
+		/**
+		 * Adds an element that is not in memory. Must hold the segment lock.
+		 */
+		private Entry<K, V> insert(K key, V value) throws Exception{
+			int slot;
+			if(!freeSlots.isEmpty()){
+				slot = freeSlots.pop();
+			}else if(nextUnusedSlot < clock.length){
+				slot = nextUnusedSlot++;
+			}else{
+				slot = evict();
+			}
+			Entry<K, V> entry = new Entry<K, V>(key, value);
+			entry.slot = slot;
+			clock[slot] = entry;
+			entries.put(key, entry);
+			return entry;
+		}
+		
+		/**
+		 * Moves the hand to the first element that has not been referenced since the hand last
+		 * passed it and evicts it. Must hold the segment lock.
+		 * 
+		 * @return The freed slot
+		 */
+		private int evict() throws Exception{
+			while(true){
+				Entry<K, V> entry = clock[hand];
+				int slot = hand;
+				hand = (hand + 1) % clock.length;
+				if(entry.referenced){
+					entry.referenced = false;
+				}else{
+					entries.remove(entry.key);
+					clock[slot] = null;
+					writeBehind.put(entry.key, entry.value);
+					if(writeBehind.size() >= WRITE_BEHIND_BATCH_SIZE){
+						flushWriteBehind();
+					}
+					return slot;
+				}
+			}
+		}
+		
+		/**
+		 * Removes an element that is in memory. Must hold the segment lock.
+		 */
+		private void removeEntry(Entry<K, V> entry){
+			entries.remove(entry.key);
+			clock[entry.slot] = null;
+			freeSlots.push(entry.slot);
+		}
+		
+		/**
+		 * Writes all evicted elements to the external storage. Must hold the segment lock.
+		 */
+		private void flushWriteBehind(){
+			for(Map.Entry<K, V> evicted : writeBehind.entrySet()){
+				try{
+					cacheStore.put(keyHasher.getHash(evicted.getKey()), evicted.getValue());
+					databaseInsertions.increment();
+				}catch(Exception e){
+					logger.log(Level.WARNING, mapId + ": Failed to update cache element in cachestore", e);
+				}
+			}
+			writeBehind.clear();
+		}
+		
+		private void clear(){
+			entries.clear();
+			for(int i = 0; i < clock.length; i++){
+				clock[i] = null;
+			}
+			freeSlots.clear();
+			nextUnusedSlot = 0;
+			hand = 0;
+			writeBehind.clear();
+		}
+	}
+	
 	/**
 	 * Main constructor to create the map
 	 * @param cacheMaxSize Size of the in-memory map. Must be greater than 0.
@@ -100,15 +229,33 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	protected ExternalMemoryMap(String mapId, int cacheMaxSize, ExternalStore<V> cacheStore, 
 			double falsePositiveProbability, int expectedNumberOfElements) throws Exception{
 		this.mapId = mapId;
-		leastRecentlyUsedCache = new HashMap<>();
-		bloomFilter = new BloomFilter<>(falsePositiveProbability, expectedNumberOfElements);
+		bloomFilter = new ConcurrentBloomFilter<>(falsePositiveProbability, expectedNumberOfElements);
 		this.cacheMaxSize = cacheMaxSize;
 		this.cacheStore = cacheStore;
 		
-		head = new Node<K, V>(null, null);
-		tail = new Node<K, V>(null, null);
-		head.next = tail;
-		tail.previous = head;
+		int segmentCount = 1;
+		while(segmentCount < MAX_SEGMENTS && cacheMaxSize / (segmentCount * 2) >= MIN_SEGMENT_SIZE){
+			segmentCount *= 2;
+		}
+		segments = createSegments(segmentCount, cacheMaxSize);
+		segmentMask = segmentCount - 1;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private Segment[] createSegments(int segmentCount, int cacheMaxSize){
+		Segment[] segments = (Segment[]) new ExternalMemoryMap<?, ?>.Segment[segmentCount];
+		for(int i = 0; i < segmentCount; i++){
+			// Spread the remainder so that the capacities add up to cacheMaxSize
+			int capacity = cacheMaxSize / segmentCount + (i < cacheMaxSize % segmentCount ? 1 : 0);
+			segments[i] = new Segment(Math.max(1, capacity));
+		}
+		return segments;
+	}
+	
+	private Segment segmentFor(Object key){
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return segments[h & segmentMask];
 	}
 	
 	/**
@@ -137,29 +284,11 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * @return current number of key value pairs in the in-memory map
 	 */	
 	public int size() {
-		return leastRecentlyUsedCache.size();
-	}
-	
-	/**
-	 * Checks if the current number of elements exceed the max size of the in-memory map and
-	 * evicts the least recently used one from in-memory map to the external storage.
-	 * 
-	 */
-	private void evictLeastRecentlyUsed(){
-		if(size() >= getCacheMaxSize()){ //evict tail from cache if cache full. 
-			leastRecentlyUsedCache.remove(tail.previous.key);
-			Node<K, V> node = Node.removeNode(tail.previous);
-			try{
-				cacheStore.put(keyHasher.getHash(node.key), node.value); //update in db before pushing it out of memory
-				
-				if(printStats){
-					databaseInsertionsInterval++;
-				}
-				
-			}catch(Exception e){
-				logger.log(Level.WARNING, mapId + ": Failed to update cache element in cachestore", e);
-			}
+		int size = 0;
+		for(Segment segment : segments){
+			size += segment.entries.size();
 		}
+		return size;
 	}
 
 	/**
@@ -168,79 +297,70 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * @param printStatsIntervalInMillis print stats every this much time in millis. If
 	 * less than or equal to 0 then stats printing turned off
 	 */
-	public void printStats(long printStatsIntervalInMillis){
+	public synchronized void printStats(long printStatsIntervalInMillis){
 		if(printStatsIntervalInMillis > 0){
 			printStatsAfterMillis = printStatsIntervalInMillis;
-			printStats = true;
 			lastRecordedTimeMillis = System.currentTimeMillis();
-			resetTotalStats();
-			resetIntervalStats();
+			lastPrintedStats = getStats();
+			printStats = true;
 		}else{
 			printStats = false;
 		}
 	} 
 	
 	/**
-	 * Sets all interval count variables for the stats to 0
-	 */
-	private void resetIntervalStats(){
-		mapAccessesInterval = 0;
-		bloomfilterFalsePositivesInterval = 0;
-		lruCacheHitsInterval = 0;
-		lruCacheMissesInterval = 0;
-		successfulDatabaseHitsInterval = 0;
-		failedDatabaseHitsInterval = 0;
-		databaseInsertionsInterval = 0;
-	}
-	
-	/**
-	 * Sets all total count variables for the stats to 0
+	 * Returns the counters kept since the map was created
+	 * 
+	 * @return Map from counter name to value
 	 */
-	private void resetTotalStats(){
-		mapAccessesTotal = 0;
-		bloomfilterFalsePositivesTotal = 0;
-		lruCacheHitsTotal = 0;
-		lruCacheMissesTotal = 0;
-		successfulDatabaseHitsTotal = 0;
-		failedDatabaseHitsTotal = 0;
-		databaseInsertionsTotal = 0;
+	public Map<String, Long> getStats(){
+		Map<String, Long> stats = new LinkedHashMap<String, Long>();
+		stats.put("mapAccesses", mapAccesses.sum());
+		stats.put("bloomfilterFalsePositives", bloomfilterFalsePositives.sum());
+		stats.put("lruCacheHits", lruCacheHits.sum());
+		stats.put("lruCacheMisses", lruCacheMisses.sum());
+		stats.put("successfulDatabaseHits", successfulDatabaseHits.sum());
+		stats.put("failedDatabaseHits", failedDatabaseHits.sum());
+		stats.put("databaseInsertions", databaseInsertions.sum());
+		stats.put("inMemoryElements", (long)size());
+		return stats;
 	}
 	
 	/**
-	 * Prints the current count of stats variables and resets the interval counts after printing
+	 * Prints the current count of stats variables if the interval has passed
 	 */
 	private void printStats(){
 		if(System.currentTimeMillis() - lastRecordedTimeMillis >= printStatsAfterMillis){
-			lastRecordedTimeMillis = System.currentTimeMillis();
-			
-			mapAccessesTotal += mapAccessesInterval;
-			bloomfilterFalsePositivesTotal += bloomfilterFalsePositivesInterval;
-			lruCacheHitsTotal += lruCacheHitsInterval;
-			lruCacheMissesTotal += lruCacheMissesInterval;
-			successfulDatabaseHitsTotal += successfulDatabaseHitsInterval;
-			failedDatabaseHitsTotal += failedDatabaseHitsInterval;
-			databaseInsertionsTotal += databaseInsertionsInterval;
-			
-			int inMemoryMapSize = leastRecentlyUsedCache != null ? leastRecentlyUsedCache.size() : 0;
-			
-			logger.log(Level.INFO, mapId + ": Total map accesses = {0}, Interval map accesses = {1}, "
-					+ "Total Bloom filter false positives = {2}, Interval Bloom filter false positives = {3}, "
-					+ "Total LRU cache hits = {4}, Interval LRU cache hits = {5}, "
-					+ "Total LRU cache misses = {6}, Interval LRU cache misses = {7}, "
-					+ "Total successful database hits = {8}, Interval successful database hits = {9}, "
-					+ "Total failed database hits = {10}, Interval failed database hits = {11}, "
-					+ "Total database insertions = {12}, Interval database insertions = {13}, "
-					+ "Current in-memory element count = {14}",
-					new Object[]{mapAccessesTotal, mapAccessesInterval,
-							bloomfilterFalsePositivesTotal, bloomfilterFalsePositivesInterval,
-							lruCacheHitsTotal, lruCacheHitsInterval,
-							lruCacheMissesTotal, lruCacheMissesInterval,
-							successfulDatabaseHitsTotal, successfulDatabaseHitsInterval,
-							failedDatabaseHitsTotal, failedDatabaseHitsInterval,
-							databaseInsertionsTotal, databaseInsertionsInterval,
-							inMemoryMapSize});
-			
-			resetIntervalStats();
+			synchronized(this){
+				if(System.currentTimeMillis() - lastRecordedTimeMillis < printStatsAfterMillis){
+					return; // printed by another thread
+				}
+				lastRecordedTimeMillis = System.currentTimeMillis();
+				
+				Map<String, Long> stats = getStats();
+				Object[] values = new Object[15];
+				int i = 0;
+				for(Map.Entry<String, Long> stat : stats.entrySet()){
+					if(stat.getKey().equals("inMemoryElements")){
+						values[i] = stat.getValue();
+					}else{
+						Long last = lastPrintedStats.get(stat.getKey());
+						values[i++] = stat.getValue();
+						values[i++] = stat.getValue() - (last == null ? 0 : last);
+					}
+				}
+				
+				logger.log(Level.INFO, mapId + ": Total map accesses = {0}, Interval map accesses = {1}, "
+						+ "Total Bloom filter false positives = {2}, Interval Bloom filter false positives = {3}, "
+						+ "Total LRU cache hits = {4}, Interval LRU cache hits = {5}, "
+						+ "Total LRU cache misses = {6}, Interval LRU cache misses = {7}, "
+						+ "Total successful database hits = {8}, Interval successful database hits = {9}, "
+						+ "Total failed database hits = {10}, Interval failed database hits = {11}, "
+						+ "Total database insertions = {12}, Interval database insertions = {13}, "
+						+ "Current in-memory element count = {14}", values);
+				
+				lastPrintedStats = stats;
+			}
 		}
 	}
 	
@@ -250,67 +370,56 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * Pseudocode 
 	 * 
 	 * 1) exists in bloomfilter
-	 * 2) exists in in-memory map then return
-	 * 3) doesn't exist in in-memory map then check in external storage
-	 * 4) exists in external storage then return
+	 * 2) exists in in-memory map then mark it referenced and return
+	 * 3) doesn't exist in in-memory map then check the evicted elements not written yet and then the external storage
+	 * 4) exists there then move it to in-memory map and return
 	 * 5) doesn't exist in external storage so a false positive. return null 
 	 * 6) doesn't exist in bloomfilter then return null
 	 * 
 	 * @param Object to get
 	 * @return Value paired against the provided key. Null if doesn't exist
 	 */
+	@SuppressWarnings("unchecked")
 	public V get(Object key) {
 		
+		mapAccesses.increment();
 		if(printStats){
 			printStats();
-			mapAccessesInterval++;
 		}
 		
 		try{
 			K k = (K)key;
-			if(bloomFilter.contains(k)){ //bloomfilter contains the key
-				if(leastRecentlyUsedCache.get(k) != null){ //exists in cache
-					
-					if(printStats){
-						lruCacheHitsInterval++;
-					}
-					
-					Node<K, V> node = leastRecentlyUsedCache.get(k); //get from cache
-					Node.makeNodeHead(node, head); //make this node the head
-					return node.value; //return the value
-				}else{ //doesn't exist in cache
-					
-					if(printStats){
-						lruCacheMissesInterval++;
-					}
-					
-					String hash = keyHasher.getHash(k);
-					V value = cacheStore.get(hash); //get from db
+			if(!bloomFilter.contains(k)){ //not in bloomfilter so not anywhere since no false negative
+				return null;
+			}
+			Segment segment = segmentFor(k);
+			Entry<K, V> entry = segment.entries.get(k);
+			if(entry != null){ //exists in cache
+				lruCacheHits.increment();
+				entry.referenced = true;
+				return entry.value;
+			}
+			synchronized(segment){
+				entry = segment.entries.get(k); //loaded by another thread in the meantime
+				if(entry != null){
+					entry.referenced = true;
+					return entry.value;
+				}
+				
+				lruCacheMisses.increment();
+				
+				V value = segment.writeBehind.remove(k);
+				if(value == null){
+					value = cacheStore.get(keyHasher.getHash(k)); //get from db
 					if(value == null){ //if not in DB
-						
-						if(printStats){
-							bloomfilterFalsePositivesInterval++;
-							failedDatabaseHitsInterval++;
-						}
-						
+						bloomfilterFalsePositives.increment();
+						failedDatabaseHits.increment();
 						return null; //was false positive
-					}else{ //if in DB
-						
-						if(printStats){
-							successfulDatabaseHitsInterval++;
-						}
-						
-						evictLeastRecentlyUsed(); //if need be
-						
-						Node<K, V> node = new Node<>(k, value);
-						Node.makeNodeHead(node, head); //make this node the head
-						
-						leastRecentlyUsedCache.put(k, node); //put in cache
-						return value;
 					}
+					successfulDatabaseHits.increment();
 				}
-			}else{ //not in bloomfilter so not anywhere since no false negative
-				return null;
+				segment.insert(k, value); //put in cache
+				return value;
 			}
 		}catch(Exception e){
 			logger.log(Level.SEVERE, mapId + ": Failed to get value for key: " + key, e);
@@ -319,12 +428,14 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	}
 
 	/**
-	 * Inserts/Updates a key-value pair in the in-memory map as well as the external storage 
+	 * Inserts/Updates a key-value pair in the in-memory map. The value goes to the external storage
+	 * only when evicted.
+	 * 
 	 * Pseudocode:
 	 * 
 	 * 1) add in bloomfilter
-	 * 2) if doesn't exists in in-memory map
-	 * 3) if exists in map then compare values. if same then nothing. if different then update in in-memory map
+	 * 2) if exists in in-memory map then update the value
+	 * 3) if doesn't exist in in-memory map then add it (dropping any evicted copy not written yet)
 	 *  
 	 * @param Object to be used as key
 	 * @param Object to be inserted against the key
@@ -336,22 +447,18 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 		}
 		try{
 			bloomFilter.add(key);
-			Node<K, V> node = leastRecentlyUsedCache.get(key);
-//			String hash = keyHasher.getHash((K)key);
-			if(node == null){ //if not in cache
-				
-				evictLeastRecentlyUsed(); //if need be
-				
-				node = new Node<K, V>(key, value); //create the node
-				leastRecentlyUsedCache.put(key, node); //put in cache
-				//cacheStore.put(hash, value); //no need to put in db. will be put in when evicted
-			}else{ //if node exists in cache
-				if(!node.value.equals(value)){ //i.e. new value for the same key. so, update.
-					node.value = value;
-//					cacheStore.put(hash, value); //no need to put in db. will be put in when evicted
+			Segment segment = segmentFor(key);
+			synchronized(segment){
+				Entry<K, V> entry = segment.entries.get(key);
+				if(entry == null){ //if not in cache
+					segment.writeBehind.remove(key);
+					segment.insert(key, value);
+					//no need to put in db. will be put in when evicted
+				}else{ //if node exists in cache
+					entry.value = value;
+					entry.referenced = true;
 				}
 			}
-			Node.makeNodeHead(node, head);
 			return value;
 		}catch(Exception e){
 			logger.log(Level.SEVERE, mapId + ": Failed to put " + value + " for " + key, e);
@@ -364,31 +471,36 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * 
 	 * Pseudocode:
 	 * 
-	 * 1) If exists in bloomfilter then remove from in-memory map and from external storage
+	 * 1) If exists in bloomfilter then remove from in-memory map, evicted elements and from external storage
 	 * 
 	 * @param Object to be removed
 	 * @return Removed value paired against the provided key
 	 * 
 	 */
+	@SuppressWarnings("unchecked")
 	public V remove(Object key) {
 		try{
 			K k = (K)key;
+			if(!bloomFilter.contains(k)){
+				return null;
+			}
 			String hash = keyHasher.getHash(k);
-			if(bloomFilter.contains(k)){
+			Segment segment = segmentFor(k);
+			synchronized(segment){
 				V value = null;
-				if(leastRecentlyUsedCache.get(k) != null){
-					Node<K, V> node = leastRecentlyUsedCache.get(k);
-					Node.removeNode(node);
-					value = node.value;
+				Entry<K, V> entry = segment.entries.get(k);
+				if(entry != null){
+					segment.removeEntry(entry);
+					value = entry.value;
 				}else{
-					value = cacheStore.get(hash); //get from DB
+					value = segment.writeBehind.remove(k);
+					if(value == null){
+						value = cacheStore.get(hash); //get from DB
+					}
 				}
-				leastRecentlyUsedCache.remove(key);
 				//remove value from DB
 				cacheStore.remove(hash);
 				return value;
-			}else{
-				return null;
 			}
 		}catch(Exception e){
 			logger.log(Level.SEVERE, mapId + ": Failed to remove key: " + key, e);
@@ -400,15 +512,17 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 	 * Removes all key-value pairing from the bloomfilter, in-memory map and the external storage
 	 */
 	public void clear() {
-		leastRecentlyUsedCache.clear();
+		for(Segment segment : segments){
+			synchronized(segment){
+				segment.clear();
+			}
+		}
 		bloomFilter.clear();
 		try{
 			cacheStore.clear();
 		}catch(Exception e){
 			logger.log(Level.SEVERE, mapId + ": Failed to clear map", e);
 		}
-		head = new Node<K, V>(null, null);
-		tail = new Node<K, V>(null, null);
 	}
 	
 	/**
@@ -445,61 +559,3 @@ public class ExternalMemoryMap<K, V extends Serializable>{
 		}
 	}
 }
-
-/**
- * Basic node class to build a doubly linked list along with a few utility functions to act on nodes of doubly linked list
- * 
- * Note: Doubly linked list assumes that the head and tail of the linked list are dummy nodes
- *
- * @param Object key in the key-value pair
- * @param Object value in the key-value pair
- */
-
-class Node<K, V>{
-	
-	public K key;
-	public V value;
-	public Node<K, V> next, previous;
-	
-	public Node(K key, V value){
-		this.key = key;
-		this.value = value;
-	}
-		
-	/**
-	 * Removes the given node from the doubly linked list
-	 * @param node to remove
-	 * @return removed node with null next and previous pointers
-	 */	
-	public static <K, V> Node<K, V> removeNode(Node<K, V> node){
-		if(node != null){
-			if(node.previous != null){
-				node.previous.next = node.next;
-			}
-			if(node.next != null){
-				node.next.previous = node.previous;
-			}
-			node.previous = null;
-			node.next = null;
-			return node;
-		}
-		return null;
-	}
-	
-	/**
-	 * Given the head of the doubly linked list, this function makes the given node the head of the list.
-	 * 
-	 * Note: Head is a dummy node and never tinkered with.
-	 * 
-	 * @param node node to move to head
-	 * @param head the dummy head node
-	 */
-	public static <K, V> void makeNodeHead(Node<K, V> node, Node<K, V> head){
-		removeNode(node);
-		node.next = head.next;
-		node.previous = head;
-		head.next.previous = node;
-		head.next = node;
-	}
-	
-}
@@ -0,0 +1,467 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2012 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+
+ */
+
+
+package spade.utility;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class implements the ExternalStore interface with memory-mapped, append-only segment files.
+ *
+ * Every put appends a record (key chars followed by the value bytes produced by the codec) to the
+ * current segment. The location of the latest record of each key is kept in an open-addressing hash
+ * table outside of the Java heap. Records that have been overwritten or removed are reclaimed by
+ * compaction which copies the live records to new segments once they make up less than half of the
+ * written bytes.
+ *
+ * The index is not persisted. The store is meant to hold spilled state for the lifetime of one
+ * ExternalMemoryMap, like the BerkeleyDB store.
+ *
+ * @param <V> Object type to save. Encoded with the given codec.
+ */
+
+public class MappedFileStore<V extends Serializable> implements ExternalStore<V>{
+
+	public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+	
+	// Record header: key length in chars and value length in bytes
+	private static final int RECORD_HEADER_BYTES = 8;
+	// Index slot: key hash (0 means empty) and record location (segment << 32 | offset)
+	private static final int SLOT_BYTES = 16;
+	private static final int INITIAL_INDEX_SLOTS = 1 << 16;
+	private static final int MAX_INDEX_SLOTS = 1 << 26;
+	private static final double COMPACTION_DEAD_RATIO = 0.5;
+	
+	private static final class Segment{
+		private final File file;
+		private final RandomAccessFile randomAccessFile;
+		private MappedByteBuffer buffer;
+		private int writePosition = 0;
+		
+		private Segment(File file, int size) throws IOException{
+			this.file = file;
+			this.randomAccessFile = new RandomAccessFile(file, "rw");
+			try{
+				randomAccessFile.setLength(size);
+				this.buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+			}catch(IOException e){
+				randomAccessFile.close();
+				throw e;
+			}
+		}
+		
+		private int remaining(){
+			return buffer.capacity() - writePosition;
+		}
+		
+		/**
+		 * Unmaps the buffer so that the space of the file is given back right away instead of when the
+		 * buffer is collected. The buffer must not be used after this.
+		 */
+		private void close() throws IOException{
+			MappedByteBuffer mappedBuffer = buffer;
+			buffer = null;
+			if(mappedBuffer != null){
+				unmap(mappedBuffer);
+			}
+			randomAccessFile.close();
+		}
+		
+		private void closeAndDelete() throws IOException{
+			close();
+			file.delete();
+		}
+	}
+	
+	/**
+	 * Releases the mapping of the buffer with its cleaner. Through reflection since sun.nio.ch.DirectBuffer
+	 * is not accessible on Java 9 and later, where sun.misc.Unsafe.invokeCleaner does the same. If neither
+	 * is available then the mapping is released when the buffer is collected.
+	 */
+	private static void unmap(MappedByteBuffer buffer){
+		try{
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+			unsafeField.setAccessible(true);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(unsafeField.get(null), buffer);
+			return;
+		}catch(NoSuchMethodException e){
+			// Java 8
+		}catch(Exception e){
+			return;
+		}
+		try{
+			Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+			cleanerMethod.setAccessible(true);
+			Object cleaner = cleanerMethod.invoke(buffer);
+			if(cleaner != null){
+				cleaner.getClass().getMethod("clean").invoke(cleaner);
+			}
+		}catch(Exception e){
+			// Left to the garbage collector
+		}
+	}
+	
+	// Gives access to the internal array to avoid a copy per put
+	private static final class ValueBuffer extends ByteArrayOutputStream{
+		private byte[] array(){
+			return buf;
+		}
+	}
+	
+	private final String directoryPath;
+	private final int segmentSize;
+	private final ValueCodec<V> codec;
+	
+	private List<Segment> segments = new ArrayList<Segment>();
+	private int nextSegmentNumber = 0;
+	
+	private ByteBuffer index;
+	private int indexSlots;
+	private int indexSize;
+	
+	// Bytes written to the current segments and the part of them that is no longer referenced
+	private long totalBytes = 0, deadBytes = 0;
+	
+	private final Murmur3 hasher = new Murmur3();
+	private final long[] hash = new long[2];
+	private final ValueBuffer valueBuffer = new ValueBuffer();
+	private final DataOutputStream valueOutput = new DataOutputStream(valueBuffer);
+	
+	public MappedFileStore(String directoryPath, ValueCodec<V> codec) throws Exception{
+		this(directoryPath, codec, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * @param directoryPath Directory to create the segment files in
+	 * @param codec Codec for the values
+	 * @param segmentSize Size in bytes of each segment file. Records larger than this get a segment of their own.
+	 */
+	public MappedFileStore(String directoryPath, ValueCodec<V> codec, int segmentSize) throws Exception{
+		if(codec == null){
+			throw new IllegalArgumentException("NULL codec");
+		}
+		if(segmentSize < RECORD_HEADER_BYTES){
+			throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+		}
+		this.directoryPath = directoryPath;
+		this.codec = codec;
+		this.segmentSize = segmentSize;
+		if(!FileUtility.createDirectories(directoryPath)){
+			throw new Exception("Failed to create directory: " + directoryPath);
+		}
+		resetIndex();
+	}
+	
+	private void resetIndex(){
+		indexSlots = INITIAL_INDEX_SLOTS;
+		indexSize = 0;
+		index = ByteBuffer.allocateDirect(indexSlots * SLOT_BYTES);
+	}
+	
+	private long hashKey(String key){
+		long value = hasher.reset().putChars(key).hash128(hash)[0];
+		return value == 0 ? 1 : value;
+	}
+	
+	private static int slotOffset(int slot){
+		return slot * SLOT_BYTES;
+	}
+	
+	/**
+	 * @return slot of the key if present, otherwise -(empty slot + 1)
+	 */
+	private int findSlot(String key, long keyHash){
+		int mask = indexSlots - 1;
+		int slot = (int)keyHash & mask;
+		while(true){
+			long slotHash = index.getLong(slotOffset(slot));
+			if(slotHash == 0){
+				return -(slot + 1);
+			}
+			if(slotHash == keyHash && keyEquals(index.getLong(slotOffset(slot) + 8), key)){
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+	}
+	
+	private boolean keyEquals(long location, String key){
+		ByteBuffer buffer = segments.get((int)(location >>> 32)).buffer;
+		int offset = (int)location;
+		int keyLength = buffer.getInt(offset);
+		if(keyLength != key.length()){
+			return false;
+		}
+		int charOffset = offset + RECORD_HEADER_BYTES;
+		for(int i = 0; i < keyLength; i++){
+			if(buffer.getChar(charOffset + i * 2) != key.charAt(i)){
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static int recordSize(ByteBuffer buffer, int offset){
+		return RECORD_HEADER_BYTES + buffer.getInt(offset) * 2 + buffer.getInt(offset + 4);
+	}
+	
+	private int recordSize(long location){
+		return recordSize(segments.get((int)(location >>> 32)).buffer, (int)location);
+	}
+	
+	private void insertSlot(int slot, long keyHash, long location) throws IOException{
+		index.putLong(slotOffset(slot), keyHash);
+		index.putLong(slotOffset(slot) + 8, location);
+		indexSize++;
+		if(indexSize * 2 > indexSlots){
+			growIndex();
+		}
+	}
+	
+	private void growIndex() throws IOException{
+		if(indexSlots >= MAX_INDEX_SLOTS){
+			if(indexSize >= indexSlots - 1){
+				throw new IOException("Index full: " + indexSize + " keys");
+			}
+			return;
+		}
+		ByteBuffer oldIndex = index;
+		int oldSlots = indexSlots;
+		indexSlots = oldSlots * 2;
+		index = ByteBuffer.allocateDirect(indexSlots * SLOT_BYTES);
+		int mask = indexSlots - 1;
+		for(int oldSlot = 0; oldSlot < oldSlots; oldSlot++){
+			long keyHash = oldIndex.getLong(slotOffset(oldSlot));
+			if(keyHash != 0){
+				int slot = (int)keyHash & mask;
+				while(index.getLong(slotOffset(slot)) != 0){
+					slot = (slot + 1) & mask;
+				}
+				index.putLong(slotOffset(slot), keyHash);
+				index.putLong(slotOffset(slot) + 8, oldIndex.getLong(slotOffset(oldSlot) + 8));
+			}
+		}
+	}
+	
+	// Backward shift deletion so that no tombstones are needed
+	private void deleteSlot(int slot){
+		int mask = indexSlots - 1;
+		int hole = slot;
+		int next = (hole + 1) & mask;
+		while(true){
+			long keyHash = index.getLong(slotOffset(next));
+			if(keyHash == 0){
+				break;
+			}
+			int home = (int)keyHash & mask;
+			boolean homeInRange = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+			if(!homeInRange){
+				index.putLong(slotOffset(hole), keyHash);
+				index.putLong(slotOffset(hole) + 8, index.getLong(slotOffset(next) + 8));
+				hole = next;
+			}
+			next = (next + 1) & mask;
+		}
+		index.putLong(slotOffset(hole), 0);
+		index.putLong(slotOffset(hole) + 8, 0);
+		indexSize--;
+	}
+	
+	private Segment writableSegment(int recordSize) throws IOException{
+		Segment current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+		if(current == null || current.remaining() < recordSize){
+			File file = new File(directoryPath, "segment-" + (nextSegmentNumber++) + ".dat");
+			current = new Segment(file, Math.max(segmentSize, recordSize));
+			segments.add(current);
+		}
+		return current;
+	}
+	
+	// Location of a record at the given offset in the last segment
+	private long lastSegmentLocation(int offset){
+		return ((long)(segments.size() - 1) << 32) | (offset & 0xffffffffL);
+	}
+	
+	private long append(String key, byte[] value, int valueLength) throws IOException{
+		int keyLength = key.length();
+		int recordSize = RECORD_HEADER_BYTES + keyLength * 2 + valueLength;
+		Segment segment = writableSegment(recordSize);
+		int offset = segment.writePosition;
+		ByteBuffer buffer = segment.buffer;
+		buffer.position(offset);
+		buffer.putInt(keyLength);
+		buffer.putInt(valueLength);
+		for(int i = 0; i < keyLength; i++){
+			buffer.putChar(key.charAt(i));
+		}
+		buffer.put(value, 0, valueLength);
+		segment.writePosition += recordSize;
+		totalBytes += recordSize;
+		return lastSegmentLocation(offset);
+	}
+	
+	private long copyRecord(List<Segment> sourceSegments, long location) throws IOException{
+		ByteBuffer source = sourceSegments.get((int)(location >>> 32)).buffer.duplicate();
+		int sourceOffset = (int)location;
+		int recordSize = recordSize(source, sourceOffset);
+		source.limit(sourceOffset + recordSize);
+		source.position(sourceOffset);
+		Segment segment = writableSegment(recordSize);
+		int offset = segment.writePosition;
+		segment.buffer.position(offset);
+		segment.buffer.put(source);
+		segment.writePosition += recordSize;
+		totalBytes += recordSize;
+		return lastSegmentLocation(offset);
+	}
+	
+	private void compactIfNeeded() throws IOException{
+		if(deadBytes >= segmentSize && deadBytes > totalBytes * COMPACTION_DEAD_RATIO){
+			compact();
+		}
+	}
+	
+	/**
+	 * Copies all live records to new segments and deletes the old ones
+	 */
+	private void compact() throws IOException{
+		List<Segment> oldSegments = segments;
+		segments = new ArrayList<Segment>();
+		totalBytes = 0;
+		deadBytes = 0;
+		for(int slot = 0; slot < indexSlots; slot++){
+			if(index.getLong(slotOffset(slot)) != 0){
+				long location = index.getLong(slotOffset(slot) + 8);
+				index.putLong(slotOffset(slot) + 8, copyRecord(oldSegments, location));
+			}
+		}
+		for(Segment segment : oldSegments){
+			segment.closeAndDelete();
+		}
+		oldSegments.clear();
+	}
+
+	@Override
+	public synchronized V get(String key) throws Exception{
+		int slot = findSlot(key, hashKey(key));
+		if(slot < 0){
+			return null;
+		}
+		long location = index.getLong(slotOffset(slot) + 8);
+		ByteBuffer buffer = segments.get((int)(location >>> 32)).buffer;
+		int offset = (int)location;
+		int keyLength = buffer.getInt(offset);
+		byte[] valueBytes = new byte[buffer.getInt(offset + 4)];
+		buffer.position(offset + RECORD_HEADER_BYTES + keyLength * 2);
+		buffer.get(valueBytes);
+		return codec.decode(new DataInputStream(new ByteArrayInputStream(valueBytes)));
+	}
+
+	@Override
+	public synchronized void put(String key, V value) throws Exception{
+		valueBuffer.reset();
+		codec.encode(value, valueOutput);
+		valueOutput.flush();
+		long keyHash = hashKey(key);
+		int slot = findSlot(key, keyHash);
+		long location = append(key, valueBuffer.array(), valueBuffer.size());
+		if(slot >= 0){
+			deadBytes += recordSize(index.getLong(slotOffset(slot) + 8));
+			index.putLong(slotOffset(slot) + 8, location);
+		}else{
+			insertSlot(-(slot + 1), keyHash, location);
+		}
+		compactIfNeeded();
+	}
+
+	@Override
+	public synchronized void remove(String key) throws Exception{
+		int slot = findSlot(key, hashKey(key));
+		if(slot >= 0){
+			deadBytes += recordSize(index.getLong(slotOffset(slot) + 8));
+			deleteSlot(slot);
+			compactIfNeeded();
+		}
+	}
+
+	@Override
+	public synchronized void clear() throws Exception{
+		for(Segment segment : segments){
+			segment.closeAndDelete();
+		}
+		segments = new ArrayList<Segment>();
+		totalBytes = 0;
+		deadBytes = 0;
+		resetIndex();
+	}
+	
+	@Override
+	public synchronized void close() throws Exception{
+		for(Segment segment : segments){
+			segment.close();
+		}
+	}
+	
+	@Override
+	public void delete() throws Exception{
+		try{
+			if(FileUtility.doesPathExist(directoryPath)){
+				if(!FileUtility.deleteDirectory(directoryPath)){
+					throw new Exception();
+				}
+			}
+		}catch(Exception e){
+			throw new Exception(e.getMessage() + ". Path deletion failed: " + directoryPath);
+		}
+	}
+	
+	@Override
+	public BigInteger sizeInBytesOfPersistedData() throws Exception{
+		try{
+			if(FileUtility.doesPathExist(directoryPath)){
+				return FileUtility.getSizeInBytes(directoryPath);
+			}else{
+				throw new Exception("Does not exist");
+			}
+		}catch(Exception e){
+			throw new Exception(e.getMessage() + ". Failed to get size for path: " + directoryPath);
+		}
+	}
+
+}
@@ -0,0 +1,247 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2012 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+
+ */
+package spade.utility;
+
+/**
+ * Streaming implementation of the 128-bit x64 variant of MurmurHash3.
+ *
+ * Input is fed as chars, longs and bytes without building an intermediate
+ * String or byte array. Chars are consumed as two little-endian bytes, so
+ * hashing a sequence of chars gives the same result as MurmurHash3_x64_128
+ * over its UTF-16LE encoding.
+ *
+ * Not thread-safe. Create one instance per hash or call reset().
+ */
+public class Murmur3{
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private final long seed;
+	private long h1, h2;
+	// Block being filled. Bytes 0-7 go into k1 and bytes 8-15 into k2.
+	private long k1, k2;
+	private int blockLength;
+	private long totalLength;
+
+	public Murmur3(){
+		this(0);
+	}
+
+	public Murmur3(long seed){
+		this.seed = seed;
+		reset();
+	}
+
+	/**
+	 * Discards all input fed so far
+	 *
+	 * @return this
+	 */
+	public Murmur3 reset(){
+		h1 = seed;
+		h2 = seed;
+		k1 = 0;
+		k2 = 0;
+		blockLength = 0;
+		totalLength = 0;
+		return this;
+	}
+
+	public Murmur3 putByte(byte b){
+		long value = b & 0xffL;
+		if(blockLength < 8){
+			k1 |= value << (blockLength * 8);
+		}else{
+			k2 |= value << ((blockLength - 8) * 8);
+		}
+		blockLength++;
+		totalLength++;
+		if(blockLength == 16){
+			mixBlock();
+		}
+		return this;
+	}
+
+	public Murmur3 putChar(char c){
+		if((blockLength & 1) == 0 && blockLength <= 14){
+			// Fast path: both bytes fit in the current half of the block
+			long value = c & 0xffffL;
+			if(blockLength < 8){
+				k1 |= value << (blockLength * 8);
+			}else{
+				k2 |= value << ((blockLength - 8) * 8);
+			}
+			blockLength += 2;
+			totalLength += 2;
+			if(blockLength == 16){
+				mixBlock();
+			}
+		}else{
+			putByte((byte)c);
+			putByte((byte)(c >>> 8));
+		}
+		return this;
+	}
+
+	public Murmur3 putInt(int value){
+		for(int i = 0; i < 4; i++){
+			putByte((byte)(value >>> (i * 8)));
+		}
+		return this;
+	}
+
+	public Murmur3 putLong(long value){
+		for(int i = 0; i < 8; i++){
+			putByte((byte)(value >>> (i * 8)));
+		}
+		return this;
+	}
+
+	public Murmur3 putBytes(byte[] bytes){
+		for(int i = 0; i < bytes.length; i++){
+			putByte(bytes[i]);
+		}
+		return this;
+	}
+
+	/**
+	 * Feeds all chars of the string
+	 *
+	 * @param string string to hash
+	 * @return this
+	 */
+	public Murmur3 putChars(CharSequence string){
+		int length = string.length();
+		for(int i = 0; i < length; i++){
+			putChar(string.charAt(i));
+		}
+		return this;
+	}
+
+	/**
+	 * Feeds the length of the string followed by its chars. Use this when
+	 * hashing several strings one after the other so that ("ab", "c") and
+	 * ("a", "bc") hash differently.
+	 *
+	 * @param string string to hash. Null is hashed the same as an empty string.
+	 * @return this
+	 */
+	public Murmur3 putString(CharSequence string){
+		if(string == null){
+			return putInt(0);
+		}
+		putInt(string.length());
+		return putChars(string);
+	}
+
+	private void mixBlock(){
+		h1 ^= mixK1(k1);
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+
+		h2 ^= mixK2(k2);
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+
+		k1 = 0;
+		k2 = 0;
+		blockLength = 0;
+	}
+
+	private static long mixK1(long k){
+		k *= C1;
+		k = Long.rotateLeft(k, 31);
+		k *= C2;
+		return k;
+	}
+
+	private static long mixK2(long k){
+		k *= C2;
+		k = Long.rotateLeft(k, 33);
+		k *= C1;
+		return k;
+	}
+
+	private static long fmix64(long k){
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/**
+	 * Finishes the hash. The instance must be reset before it is fed again.
+	 *
+	 * @return the two 64-bit halves of the hash {h1, h2}
+	 */
+	public long[] hash128(){
+		return hash128(new long[2]);
+	}
+
+	/**
+	 * Finishes the hash into the given array so that callers hashing in a
+	 * loop do not allocate. The instance must be reset before it is fed again.
+	 *
+	 * @param result array of at least two longs that receives {h1, h2}
+	 * @return result
+	 */
+	public long[] hash128(long[] result){
+		long r1 = h1;
+		long r2 = h2;
+		if(blockLength > 8){
+			r2 ^= mixK2(k2);
+		}
+		if(blockLength > 0){
+			r1 ^= mixK1(k1);
+		}
+		r1 ^= totalLength;
+		r2 ^= totalLength;
+		r1 += r2;
+		r2 += r1;
+		r1 = fmix64(r1);
+		r2 = fmix64(r2);
+		r1 += r2;
+		r2 += r1;
+		result[0] = r1;
+		result[1] = r2;
+		return result;
+	}
+
+	/**
+	 * Finishes the hash. The instance must be reset before it is fed again.
+	 *
+	 * @return the 16 bytes of the hash in the canonical (little-endian h1, h2) order
+	 */
+	public byte[] hash128Bytes(){
+		long[] hash = hash128();
+		byte[] bytes = new byte[16];
+		for(int i = 0; i < 8; i++){
+			bytes[i] = (byte)(hash[0] >>> (i * 8));
+			bytes[i + 8] = (byte)(hash[1] >>> (i * 8));
+		}
+		return bytes;
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2012 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+
+ */
+
+
+package spade.utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+
+/**
+ * ValueCodec that uses Java serialization. Works for any Serializable value.
+ *
+ * @param <V> Serializable type of the value
+ */
+
+public class SerializableCodec<V extends Serializable> implements ValueCodec<V>{
+
+	@Override
+	public void encode(V value, DataOutput out) throws IOException{
+		ObjectOutputStream objectOutputStream = new ObjectOutputStream(asOutputStream(out));
+		objectOutputStream.writeObject(value);
+		objectOutputStream.flush();
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public V decode(DataInput in) throws IOException{
+		ObjectInputStream objectInputStream = new ObjectInputStream(asInputStream(in));
+		try{
+			return (V)objectInputStream.readObject();
+		}catch(ClassNotFoundException e){
+			throw new IOException("Failed to deserialize value", e);
+		}
+	}
+	
+	private static OutputStream asOutputStream(final DataOutput out){
+		if(out instanceof OutputStream){
+			return (OutputStream)out;
+		}
+		return new OutputStream(){
+			@Override
+			public void write(int b) throws IOException{
+				out.write(b);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException{
+				out.write(b, off, len);
+			}
+		};
+	}
+	
+	private static InputStream asInputStream(final DataInput in){
+		if(in instanceof InputStream){
+			return (InputStream)in;
+		}
+		return new InputStream(){
+			@Override
+			public int read() throws IOException{
+				try{
+					return in.readUnsignedByte();
+				}catch(EOFException e){
+					return -1;
+				}
+			}
+		};
+	}
+}
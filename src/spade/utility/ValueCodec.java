@@ -0,0 +1,55 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2012 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+
+ */
+
+
+package spade.utility;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts values to and from bytes for external stores that keep raw bytes,
+ * such as MappedFileStore.
+ *
+ * Implementations written for a specific class can be much more compact and
+ * faster than Java serialization which is used by SerializableCodec.
+ *
+ * @param <V> Type of the value
+ */
+
+public interface ValueCodec<V>{
+	
+	/**
+	 * Writes the value
+	 * @param value Value to write. Never null.
+	 * @param out Destination
+	 * @throws IOException Failed to write
+	 */
+	public void encode(V value, DataOutput out) throws IOException;
+	/**
+	 * Reads a value written by encode
+	 * @param in Source positioned at the start of the value
+	 * @return The value
+	 * @throws IOException Failed to read
+	 */
+	public V decode(DataInput in) throws IOException;
+}
@@ -0,0 +1,236 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package query;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spade.core.AbstractStorage;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.query.scaffold.CSRGraph;
+import spade.query.scaffold.LevelDB;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that spade.query.scaffold.CSRGraph returns the same neighbors whether
+ * the edges are in the overlay, in the arrays or split between both, and that
+ * a snapshot of a LevelDB scaffold holds the same edges as the database.
+ */
+public class CSRGraphTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Map<Long, Set<Long>> expectedParents = new HashMap<>();
+    private final Map<Long, Set<Long>> expectedChildren = new HashMap<>();
+
+    private static void add(Map<Long, Set<Long>> map, long key, long value)
+    {
+        Set<Long> values = map.get(key);
+        if(values == null)
+        {
+            values = new HashSet<>();
+            map.put(key, values);
+        }
+        values.add(value);
+    }
+
+    private static Set<Long> toSet(long[] ids)
+    {
+        if(ids == null)
+        {
+            return null;
+        }
+        Set<Long> set = new HashSet<>();
+        for(long id : ids)
+        {
+            set.add(id);
+        }
+        return set;
+    }
+
+    private void addEdges(CSRGraph graph, Random random, int edgeCount, int vertexCount)
+    {
+        for(int i = 0; i < edgeCount; i++)
+        {
+            long child = random.nextInt(vertexCount);
+            long parent = random.nextInt(vertexCount);
+            graph.addEdge(child, parent);
+            add(expectedParents, child, parent);
+            add(expectedChildren, parent, child);
+        }
+    }
+
+    private void checkNeighbors(CSRGraph graph, int vertexCount)
+    {
+        long edges = 0;
+        for(long id = 0; id < vertexCount + 10; id++)
+        {
+            assertEquals("parents of " + id, expectedParents.get(id), toSet(graph.getParentIds(id)));
+            assertEquals("children of " + id, expectedChildren.get(id), toSet(graph.getChildIds(id)));
+            if(expectedParents.containsKey(id))
+            {
+                edges += expectedParents.get(id).size();
+            }
+        }
+        graph.merge();
+        // the arrays hold each distinct edge once
+        assertEquals(edges, graph.getEdgeCount());
+    }
+
+    private void checkOverlayMerges(boolean offHeap)
+    {
+        CSRGraph graph = new CSRGraph(offHeap);
+        Random random = new Random(3);
+        // only the overlay
+        addEdges(graph, random, 1000, 500);
+        checkNeighbors(graph, 500);
+        // merged arrays plus an overlay with duplicates and new, higher ids
+        addEdges(graph, random, 2000, 800);
+        checkNeighbors(graph, 800);
+        // enough edges to merge the overlay while adding
+        addEdges(graph, random, 300000, 50000);
+        checkNeighbors(graph, 50000);
+    }
+
+    @Test
+    public void mergesOverlayOnHeap()
+    {
+        checkOverlayMerges(false);
+    }
+
+    @Test
+    public void mergesOverlayOffHeap()
+    {
+        checkOverlayMerges(true);
+    }
+
+    @Test
+    public void returnsNullWithoutNeighbors()
+    {
+        CSRGraph graph = new CSRGraph(false);
+        assertNull(graph.getParentIds(0));
+        graph.addEdge(1, 2);
+        graph.merge();
+        assertNull(graph.getParentIds(2));
+        assertNull(graph.getChildIds(1));
+        assertNull(graph.getParentIds(100));
+        assertEquals(1, graph.getEdgeCount());
+    }
+
+    /**
+     * @return the dictionary id of the vertex. The scaffold assigns ids in the order it first sees the vertices.
+     */
+    private static long id(Map<Integer, Long> ids, int vertex)
+    {
+        Long id = ids.get(vertex);
+        if(id == null)
+        {
+            id = (long) ids.size();
+            ids.put(vertex, id);
+        }
+        return id;
+    }
+
+    private static Map<String, Map<String, Set<String>>> lineages(LevelDB scaffold, List<AbstractVertex> vertices)
+    {
+        Map<String, Map<String, Set<String>>> lineages = new HashMap<>();
+        for(int i = 0; i < vertices.size(); i += 17)
+        {
+            String hash = vertices.get(i).bigHashCode();
+            lineages.put("ancestors of " + i, scaffold.getLineage(hash, "ancestors", 4));
+            lineages.put("descendants of " + i, scaffold.getLineage(hash, "descendants", 4));
+            lineages.put("paths from " + i, scaffold.getPaths(hash, vertices.get(i + 1).bigHashCode(), 5));
+        }
+        return lineages;
+    }
+
+    @Test
+    public void buildsSnapshotOfLevelDBScaffold() throws IOException
+    {
+        String path = folder.newFolder().getAbsolutePath();
+        List<AbstractVertex> vertices = new ArrayList<>();
+        for(int i = 0; i < 500; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("id", String.valueOf(i));
+            vertices.add(vertex);
+        }
+        Map<Integer, Long> ids = new HashMap<>();
+        Random random = new Random(5);
+        LevelDB scaffold = new LevelDB();
+        assertTrue(scaffold.initialize(path));
+        for(int i = 0; i < 3000; i++)
+        {
+            int child = random.nextInt(400);
+            int parent = random.nextInt(400);
+            assertTrue(scaffold.insertEntry(new Edge(vertices.get(child), vertices.get(parent))));
+            long childId = id(ids, child);
+            long parentId = id(ids, parent);
+            add(expectedParents, childId, parentId);
+            add(expectedChildren, parentId, childId);
+        }
+        checkNeighbors(CSRGraph.fromScaffold(scaffold, false), ids.size());
+        assertTrue(scaffold.shutdown());
+
+        // the snapshot is built at startup and gets the new edges, some of them to new vertices
+        Map<String, Map<String, Set<String>>> snapshotLineages;
+        AbstractStorage.SCAFFOLD_SNAPSHOT = true;
+        try
+        {
+            scaffold = new LevelDB();
+            assertTrue(scaffold.initialize(path));
+            for(int i = 0; i < 1000; i++)
+            {
+                int child = random.nextInt(vertices.size());
+                int parent = random.nextInt(vertices.size());
+                assertTrue(scaffold.insertEntry(new Edge(vertices.get(child), vertices.get(parent))));
+            }
+            snapshotLineages = lineages(scaffold, vertices);
+            assertTrue(scaffold.shutdown());
+        }
+        finally
+        {
+            AbstractStorage.SCAFFOLD_SNAPSHOT = false;
+        }
+
+        scaffold = new LevelDB();
+        assertTrue(scaffold.initialize(path));
+        Map<String, Map<String, Set<String>>> storeLineages = lineages(scaffold, vertices);
+        assertTrue(scaffold.shutdown());
+        for(Map.Entry<String, Map<String, Set<String>>> entry : storeLineages.entrySet())
+        {
+            assertNotNull(entry.getKey(), entry.getValue());
+            assertEquals(entry.getKey(), entry.getValue(), snapshotLineages.get(entry.getKey()));
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package query;
+
+import org.junit.After;
+import org.junit.Test;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.query.common.PathSearch;
+import spade.query.scaffold.InMemory;
+import spade.query.scaffold.Scaffold;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the paths found by spade.query.common.PathSearch and by the id
+ * search of the scaffolds with the paths computed from the distances over the
+ * whole graph.
+ */
+public class PathSearchTest
+{
+    @After
+    public void tearDown()
+    {
+        Scaffold.setTraversalThreads(1);
+    }
+
+    /**
+     * Random graph over vertices 0 to vertexCount - 1, as the parents of each vertex
+     */
+    private static Map<Integer, Set<Integer>> randomGraph(int vertexCount, int edgeCount, long seed)
+    {
+        Random random = new Random(seed);
+        Map<Integer, Set<Integer>> parents = new HashMap<>();
+        for(int i = 0; i < edgeCount; i++)
+        {
+            int child = random.nextInt(vertexCount);
+            int parent = random.nextInt(vertexCount);
+            if(child != parent)
+            {
+                get(parents, child).add(parent);
+            }
+        }
+        return parents;
+    }
+
+    private static Set<Integer> get(Map<Integer, Set<Integer>> map, int key)
+    {
+        Set<Integer> values = map.get(key);
+        if(values == null)
+        {
+            values = new HashSet<>();
+            map.put(key, values);
+        }
+        return values;
+    }
+
+    private static Map<Integer, Set<Integer>> reverse(Map<Integer, Set<Integer>> parents)
+    {
+        Map<Integer, Set<Integer>> children = new HashMap<>();
+        for(Map.Entry<Integer, Set<Integer>> entry : parents.entrySet())
+        {
+            for(int parent : entry.getValue())
+            {
+                get(children, parent).add(entry.getKey());
+            }
+        }
+        return children;
+    }
+
+    private static Map<Integer, Integer> distances(int start, Map<Integer, Set<Integer>> edges)
+    {
+        Map<Integer, Integer> distance = new HashMap<>();
+        Deque<Integer> queue = new ArrayDeque<>();
+        distance.put(start, 0);
+        queue.add(start);
+        while(!queue.isEmpty())
+        {
+            int current = queue.poll();
+            Set<Integer> neighbors = edges.get(current);
+            if(neighbors == null)
+            {
+                continue;
+            }
+            for(int neighbor : neighbors)
+            {
+                if(!distance.containsKey(neighbor))
+                {
+                    distance.put(neighbor, distance.get(current) + 1);
+                    queue.add(neighbor);
+                }
+            }
+        }
+        return distance;
+    }
+
+    /**
+     * @return each vertex on a path of at most maxLength edges to its parents on such a path
+     */
+    private static Map<Integer, Set<Integer>> expectedPaths(Map<Integer, Set<Integer>> parents, int source,
+                                                            int destination, int maxLength)
+    {
+        Map<Integer, Integer> fromSource = distances(source, parents);
+        Map<Integer, Integer> toDestination = distances(destination, reverse(parents));
+        Map<Integer, Set<Integer>> paths = new HashMap<>();
+        for(Map.Entry<Integer, Integer> entry : fromSource.entrySet())
+        {
+            Integer remaining = toDestination.get(entry.getKey());
+            if(remaining == null || entry.getValue() + remaining > maxLength)
+            {
+                continue;
+            }
+            Set<Integer> pathParents = new HashSet<>();
+            Set<Integer> vertexParents = parents.get(entry.getKey());
+            for(int parent : vertexParents == null ? new HashSet<Integer>() : vertexParents)
+            {
+                Integer parentRemaining = toDestination.get(parent);
+                if(parentRemaining != null && entry.getValue() + 1 + parentRemaining <= maxLength)
+                {
+                    pathParents.add(parent);
+                }
+            }
+            paths.put(entry.getKey(), pathParents);
+        }
+        return paths;
+    }
+
+    private static PathSearch<Integer> search(final Map<Integer, Set<Integer>> parents, int maxLength,
+                                              int maxVertices)
+    {
+        final Map<Integer, Set<Integer>> children = reverse(parents);
+        return new PathSearch<Integer>(maxLength, maxVertices)
+        {
+            @Override
+            protected Map<Integer, Set<Integer>> expand(Set<Integer> vertices, boolean ancestors)
+            {
+                Map<Integer, Set<Integer>> neighbors = new HashMap<>();
+                for(int vertex : vertices)
+                {
+                    Set<Integer> vertexNeighbors = (ancestors ? parents : children).get(vertex);
+                    if(vertexNeighbors != null)
+                    {
+                        neighbors.put(vertex, vertexNeighbors);
+                    }
+                }
+                return neighbors;
+            }
+        };
+    }
+
+    @Test
+    public void findsVerticesAndEdgesOnBoundedPaths()
+    {
+        for(long seed = 0; seed < 20; seed++)
+        {
+            Map<Integer, Set<Integer>> parents = randomGraph(40, 100, seed);
+            for(int maxLength = 0; maxLength <= 5; maxLength++)
+            {
+                for(int source = 0; source < 40; source += 7)
+                {
+                    for(int destination = 0; destination < 40; destination += 3)
+                    {
+                        PathSearch<Integer> search = search(parents, maxLength, Integer.MAX_VALUE);
+                        assertEquals("seed " + seed + ", " + source + " to " + destination + " in " + maxLength,
+                                expectedPaths(parents, source, destination, maxLength),
+                                search.search(source, destination));
+                        assertFalse(search.isTruncated());
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void findsNothingWithoutPath()
+    {
+        Map<Integer, Set<Integer>> parents = new HashMap<>();
+        get(parents, 0).add(1);
+        get(parents, 1).add(2);
+        get(parents, 3).add(2);
+        assertTrue(search(parents, 5, Integer.MAX_VALUE).search(0, 3).isEmpty());
+        // the path 0, 1, 2 is longer than one edge
+        assertTrue(search(parents, 1, Integer.MAX_VALUE).search(0, 2).isEmpty());
+        Map<Integer, Set<Integer>> paths = search(parents, 2, Integer.MAX_VALUE).search(0, 2);
+        assertEquals(Collections.singleton(1), paths.get(0));
+        assertEquals(Collections.singleton(2), paths.get(1));
+        assertEquals(Collections.<Integer>emptySet(), paths.get(2));
+    }
+
+    @Test
+    public void stopsAfterVisitingMaxVertices()
+    {
+        Map<Integer, Set<Integer>> parents = randomGraph(1000, 5000, 1);
+        PathSearch<Integer> search = search(parents, 10, 50);
+        search.search(0, 1);
+        assertTrue(search.isTruncated());
+    }
+
+    @Test
+    public void failsWhenNeighborsCannotBeRead()
+    {
+        PathSearch<Integer> search = new PathSearch<Integer>(3, Integer.MAX_VALUE)
+        {
+            @Override
+            protected Map<Integer, Set<Integer>> expand(Set<Integer> vertices, boolean ancestors)
+            {
+                return null;
+            }
+        };
+        assertNull(search.search(0, 1));
+
+        AbstractVertex child = new Vertex();
+        child.addAnnotation("id", "child");
+        AbstractVertex parent = new Vertex();
+        parent.addAnnotation("id", "parent");
+        InMemory scaffold = new InMemory()
+        {
+            @Override
+            protected long[][] getNeighborIds(long[] ids, int from, int to, boolean ancestors)
+            {
+                return null;
+            }
+        };
+        scaffold.initialize("");
+        scaffold.insertEntry(new Edge(child, parent));
+        assertNull(scaffold.getPaths(child.bigHashCode(), parent.bigHashCode(), 2));
+        scaffold.shutdown();
+    }
+
+    @Test
+    public void scaffoldSearchesPathsOverIds()
+    {
+        checkScaffoldPaths(300, 900, 1);
+    }
+
+    @Test
+    public void scaffoldSearchesLargeFrontiersInParallel()
+    {
+        Scaffold.setTraversalThreads(4);
+        checkScaffoldPaths(3000, 15000, 4);
+    }
+
+    private void checkScaffoldPaths(int vertexCount, int edgeCount, int step)
+    {
+        Map<Integer, Set<Integer>> parents = randomGraph(vertexCount, edgeCount, 7);
+        List<AbstractVertex> vertices = new ArrayList<>();
+        for(int i = 0; i < vertexCount; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("id", String.valueOf(i));
+            vertices.add(vertex);
+        }
+        InMemory scaffold = new InMemory();
+        scaffold.initialize("");
+        for(Map.Entry<Integer, Set<Integer>> entry : parents.entrySet())
+        {
+            for(int parent : entry.getValue())
+            {
+                scaffold.insertEntry(new Edge(vertices.get(entry.getKey()), vertices.get(parent)));
+            }
+        }
+        for(int source = 0; source < 40; source += step)
+        {
+            for(int destination = 1; destination < 40; destination += 3 * step)
+            {
+                for(int maxLength : Arrays.asList(1, 3, 6))
+                {
+                    Map<String, Set<String>> expected = new HashMap<>();
+                    for(Map.Entry<Integer, Set<Integer>> entry :
+                            expectedPaths(parents, source, destination, maxLength).entrySet())
+                    {
+                        String hash = vertices.get(entry.getKey()).bigHashCode();
+                        getHashes(expected, hash);
+                        for(int parent : entry.getValue())
+                        {
+                            String parentHash = vertices.get(parent).bigHashCode();
+                            getHashes(expected, hash).add(parentHash);
+                            getHashes(expected, parentHash).add(hash);
+                        }
+                    }
+                    assertEquals(source + " to " + destination + " in " + maxLength, expected,
+                            scaffold.getPaths(vertices.get(source).bigHashCode(),
+                                    vertices.get(destination).bigHashCode(), maxLength));
+                }
+            }
+        }
+        scaffold.shutdown();
+    }
+
+    private static Set<String> getHashes(Map<String, Set<String>> map, String key)
+    {
+        Set<String> values = map.get(key);
+        if(values == null)
+        {
+            values = new HashSet<>();
+            map.put(key, values);
+        }
+        return values;
+    }
+}
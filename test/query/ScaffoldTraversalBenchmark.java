@@ -0,0 +1,206 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package query;
+
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.query.scaffold.Scaffold;
+import spade.query.scaffold.ScaffoldFactory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static spade.core.AbstractStorage.DIRECTION_ANCESTORS;
+import static spade.core.AbstractStorage.DIRECTION_DESCENDANTS;
+
+/**
+ * Measures Scaffold.getLineage on a synthetic graph with power law degrees.
+ *
+ * Usage: ScaffoldTraversalBenchmark [scaffold] [vertices] [edges per vertex] [depth] [thread counts]
+ *
+ * Defaults to LevelDB, 100000 vertices, 4 edges per vertex, depth 4 and
+ * threads 1,2,4,8. Every new vertex gets its parents from the earlier ones with
+ * probability proportional to their degree, which gives a few hubs with many
+ * children like the files and processes in provenance. Half of the queries
+ * follow the ancestors of recent vertices and half the descendants of old
+ * ones. The throughput is the number of neighbor entries in the results
+ * divided by the time. The results of every thread count are compared with the
+ * results of the first.
+ */
+public class ScaffoldTraversalBenchmark
+{
+    private static final int QUERIES = 100;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int MEASURED_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception
+    {
+        String scaffoldName = args.length > 0 ? args[0] : "LevelDB";
+        int vertexCount = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        int edgesPerVertex = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 4;
+        String[] threadCounts = (args.length > 4 ? args[4] : "1,2,4,8").split(",");
+
+        // Some scaffolds keep files next to their directory, so that goes in a temporary one too
+        File directory = Files.createTempDirectory("scaffold-benchmark").toFile();
+        File scaffoldDirectory = new File(directory, "scaffold");
+        scaffoldDirectory.mkdirs();
+        Scaffold scaffold = ScaffoldFactory.createScaffold(scaffoldName);
+        if(!scaffold.initialize(scaffoldDirectory.getAbsolutePath() + File.separator))
+        {
+            System.err.println("Unable to initialize " + scaffoldName + " in " + scaffoldDirectory);
+            delete(directory);
+            return;
+        }
+        try
+        {
+            List<String> hashes = populate(scaffold, vertexCount, edgesPerVertex);
+            Random random = new Random(11);
+            List<String> starts = new ArrayList<>();
+            List<String> directions = new ArrayList<>();
+            for(int i = 0; i < QUERIES; i++)
+            {
+                if(i % 2 == 0)
+                {
+                    starts.add(hashes.get(vertexCount - 1 - random.nextInt(Math.max(1, vertexCount / 10))));
+                    directions.add(DIRECTION_ANCESTORS);
+                }
+                else
+                {
+                    starts.add(hashes.get(random.nextInt(Math.max(1, vertexCount / 100))));
+                    directions.add(DIRECTION_DESCENDANTS);
+                }
+            }
+
+            int[] expected = null;
+            for(String threadCount : threadCounts)
+            {
+                Scaffold.setTraversalThreads(Integer.parseInt(threadCount.trim()));
+                long best = Long.MAX_VALUE;
+                long edges = 0;
+                for(int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++)
+                {
+                    edges = 0;
+                    long start = System.nanoTime();
+                    for(int i = 0; i < QUERIES; i++)
+                    {
+                        Map<String, Set<String>> lineage = scaffold.getLineage(starts.get(i), directions.get(i), depth);
+                        for(Set<String> neighbors : lineage.values())
+                        {
+                            edges += neighbors.size();
+                        }
+                    }
+                    long time = System.nanoTime() - start;
+                    if(round >= WARMUP_ROUNDS)
+                    {
+                        best = Math.min(best, time);
+                    }
+                }
+                // the results can be too big to keep, so only their hash codes are compared
+                int[] results = new int[QUERIES];
+                for(int i = 0; i < QUERIES; i++)
+                {
+                    results[i] = scaffold.getLineage(starts.get(i), directions.get(i), depth).hashCode();
+                }
+                String check = "";
+                if(expected == null)
+                {
+                    expected = results;
+                }
+                else if(!Arrays.equals(expected, results))
+                {
+                    check = " MISMATCH";
+                }
+                System.out.println(String.format("threads %2s: %d ms, %d edges, %.0f edges/s%s",
+                        threadCount.trim(), best / 1000000, edges, edges * 1e9 / best, check));
+            }
+        }
+        finally
+        {
+            try
+            {
+                scaffold.shutdown();
+            }
+            finally
+            {
+                delete(directory);
+            }
+        }
+    }
+
+    /**
+     * Adds the vertices in order. Each picks its parents from the ends of the
+     * edges added so far, so the chance of a vertex to be picked grows with its
+     * degree.
+     *
+     * @return hashes of the vertices in order
+     */
+    private static List<String> populate(Scaffold scaffold, int vertexCount, int edgesPerVertex)
+    {
+        Random random = new Random(7);
+        List<AbstractVertex> vertices = new ArrayList<>(vertexCount);
+        List<String> hashes = new ArrayList<>(vertexCount);
+        int[] endpoints = new int[2 * vertexCount * edgesPerVertex + 1];
+        int endpointCount = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < vertexCount; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("id", String.valueOf(i));
+            vertices.add(vertex);
+            hashes.add(vertex.bigHashCode());
+            if(i == 0)
+            {
+                continue;
+            }
+            // picked from the edges before this vertex, so it is never its own parent
+            int previousCount = endpointCount;
+            for(int j = 0; j < edgesPerVertex; j++)
+            {
+                int parent = previousCount == 0 ? 0 : endpoints[random.nextInt(previousCount)];
+                scaffold.insertEntry(new Edge(vertex, vertices.get(parent)));
+                endpoints[endpointCount++] = parent;
+                endpoints[endpointCount++] = i;
+            }
+        }
+        // LevelDB writes its pending batch on the first read, which should not be timed
+        scaffold.getParents(hashes.get(vertexCount - 1));
+        System.out.println(String.format("%d vertices, %d edges added in %d ms", vertexCount,
+                endpointCount / 2, (System.nanoTime() - start) / 1000000));
+        return hashes;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package query;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spade.query.scaffold.VertexDictionary;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests the ids that spade.query.scaffold.VertexDictionary assigns and keeps
+ * across reopening its file.
+ */
+public class VertexDictionaryTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String hash(int i)
+    {
+        return DigestUtils.md5Hex(String.valueOf(i));
+    }
+
+    private static long add(VertexDictionary dictionary, int i) throws Exception
+    {
+        return dictionary.getOrCreateId(Hex.decodeHex(hash(i).toCharArray()));
+    }
+
+    @Test
+    public void assignsDenseIdsInInsertionOrder() throws Exception
+    {
+        VertexDictionary dictionary = new VertexDictionary();
+        for(int i = 0; i < 5000; i++)
+        {
+            assertEquals(i, add(dictionary, i));
+        }
+        // known hashes keep their ids
+        assertEquals(42, add(dictionary, 42));
+        assertEquals(5000, dictionary.size());
+        for(int i = 0; i < 5000; i++)
+        {
+            assertEquals(i, dictionary.getId(hash(i)));
+            assertEquals(hash(i), dictionary.getHash(i));
+        }
+        assertEquals(-1, dictionary.getId(hash(5000)));
+        assertEquals(-1, dictionary.getId("not a hash"));
+        assertNull(dictionary.getHash(5000));
+    }
+
+    @Test
+    public void keepsIdsAfterReopening() throws Exception
+    {
+        File file = new File(folder.getRoot(), "dictionary");
+        VertexDictionary dictionary = VertexDictionary.open(file);
+        for(int i = 0; i < 100; i++)
+        {
+            add(dictionary, i);
+        }
+        dictionary.close();
+
+        dictionary = VertexDictionary.open(file);
+        assertEquals(100, dictionary.size());
+        assertEquals(100, add(dictionary, 100));
+        assertEquals(7, add(dictionary, 7));
+        dictionary.close();
+
+        dictionary = VertexDictionary.open(file);
+        assertEquals(101, dictionary.size());
+        for(int i = 0; i <= 100; i++)
+        {
+            assertEquals(i, dictionary.getId(hash(i)));
+        }
+        dictionary.close();
+    }
+
+    @Test
+    public void dropsRecordCutShortByCrash() throws Exception
+    {
+        File file = new File(folder.getRoot(), "dictionary");
+        VertexDictionary dictionary = VertexDictionary.open(file);
+        for(int i = 0; i < 3; i++)
+        {
+            add(dictionary, i);
+        }
+        dictionary.close();
+        appendPartialRecord(file);
+
+        dictionary = VertexDictionary.open(file);
+        assertEquals(3, dictionary.size());
+        assertEquals(3, add(dictionary, 3));
+        assertEquals(4, add(dictionary, 4));
+        dictionary.close();
+        assertEquals(5 * 16, file.length());
+
+        // the ids written after the crash still match their position in the file
+        dictionary = VertexDictionary.open(file);
+        assertEquals(5, dictionary.size());
+        for(int i = 0; i < 5; i++)
+        {
+            assertEquals(i, dictionary.getId(hash(i)));
+            assertEquals(hash(i), dictionary.getHash(i));
+        }
+        dictionary.close();
+    }
+
+    private static void appendPartialRecord(File file) throws IOException
+    {
+        FileOutputStream output = new FileOutputStream(file, true);
+        try
+        {
+            output.write(new byte[]{1, 2, 3, 4, 5, 6, 7});
+        }
+        finally
+        {
+            output.close();
+        }
+    }
+}
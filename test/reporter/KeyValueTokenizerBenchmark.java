@@ -0,0 +1,149 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2015 SRI International
+
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package reporter;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import spade.reporter.audit.KeyValueTokenizer;
+
+/**
+ * Compares the regular expression previously used by AuditEventReader with KeyValueTokenizer
+ * on recorded audit logs.
+ *
+ * Usage: KeyValueTokenizerBenchmark [audit log files or directories]
+ *
+ * Defaults to the logs in test/linux/audit_cdm/checksum/input. The records are read into memory
+ * first so that only splitting the key value pairs is timed.
+ */
+public class KeyValueTokenizerBenchmark{
+
+	private static final Pattern pattern_key_value = Pattern.compile("(\\w+)=\"*((?<=\")[^\"]+(?=\")|([^\\s]+))\"*");
+
+	private static final int WARMUP_ROUNDS = 5;
+	private static final int MEASURED_ROUNDS = 10;
+	private static final int REPEAT_RECORDS = 20;
+
+	public static void main(String[] args) throws Exception{
+		if(args.length == 0){
+			args = new String[]{"test/linux/audit_cdm/checksum/input"};
+		}
+		List<String> records = new ArrayList<String>();
+		for(String arg : args){
+			readRecords(new File(arg), records);
+		}
+		if(records.isEmpty()){
+			System.err.println("No audit records found");
+			return;
+		}
+
+		// Check that both give the same pairs before timing them
+		KeyValueTokenizer tokenizer = new KeyValueTokenizer();
+		for(String record : records){
+			Map<String, String> expected = new HashMap<String, String>();
+			Map<String, String> actual = new HashMap<String, String>();
+			regex(record, expected);
+			tokenizer.tokenize(record, null, false, null, actual);
+			if(!expected.equals(actual)){
+				System.err.println("Mismatch for record: " + record);
+				System.err.println("regex:     " + expected);
+				System.err.println("tokenizer: " + actual);
+				return;
+			}
+		}
+
+		System.out.println("records: " + records.size() + " x " + REPEAT_RECORDS);
+		long regexBest = Long.MAX_VALUE, tokenizerBest = Long.MAX_VALUE;
+		for(int round = 0; round < WARMUP_ROUNDS + MEASURED_ROUNDS; round++){
+			long regexTime = timeRegex(records);
+			long tokenizerTime = timeTokenizer(records, tokenizer);
+			if(round >= WARMUP_ROUNDS){
+				regexBest = Math.min(regexBest, regexTime);
+				tokenizerBest = Math.min(tokenizerBest, tokenizerTime);
+			}
+		}
+		long total = (long)records.size() * REPEAT_RECORDS;
+		System.out.println(String.format("regex:     %d ms (%.0f ns/record)", regexBest / 1000000, (double)regexBest / total));
+		System.out.println(String.format("tokenizer: %d ms (%.0f ns/record)", tokenizerBest / 1000000, (double)tokenizerBest / total));
+		System.out.println(String.format("speedup:   %.2fx", (double)regexBest / tokenizerBest));
+	}
+
+	private static void readRecords(File file, List<String> records) throws Exception{
+		if(file.isDirectory()){
+			File[] children = file.listFiles();
+			if(children != null){
+				for(File child : children){
+					readRecords(child, records);
+				}
+			}
+		}else{
+			BufferedReader reader = new BufferedReader(new FileReader(file));
+			try{
+				String line;
+				while((line = reader.readLine()) != null){
+					int start = line.indexOf("): ");
+					if(start != -1){
+						records.add(line.substring(start + 3));
+					}
+				}
+			}finally{
+				reader.close();
+			}
+		}
+	}
+
+	private static void regex(String record, Map<String, String> keyValues){
+		Matcher key_value_matcher = pattern_key_value.matcher(record);
+		while(key_value_matcher.find()){
+			keyValues.put(key_value_matcher.group(1), key_value_matcher.group(2));
+		}
+	}
+
+	private static long timeRegex(List<String> records){
+		Map<String, String> keyValues = new HashMap<String, String>();
+		long start = System.nanoTime();
+		for(int i = 0; i < REPEAT_RECORDS; i++){
+			for(String record : records){
+				keyValues.clear();
+				regex(record, keyValues);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static long timeTokenizer(List<String> records, KeyValueTokenizer tokenizer){
+		Map<String, String> keyValues = new HashMap<String, String>();
+		long start = System.nanoTime();
+		for(int i = 0; i < REPEAT_RECORDS; i++){
+			for(String record : records){
+				keyValues.clear();
+				tokenizer.tokenize(record, null, false, null, keyValues);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,197 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractQuery;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.query.postgresql.GetVertex;
+import spade.storage.PostgreSQL;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Compares the columns and jsonb annotation schemas of the PostgreSQL storage
+ * on elements with sparse annotation keys.
+ *
+ * Usage: AnnotationSchemaBenchmark [elements] [database] [user] [password]
+ *
+ * Defaults to 20000 vertices and 20000 edges in the database spade_benchmark
+ * on localhost:5432 with the user and password of the storage config. The
+ * vertex and edge tables of the database are dropped before each schema is
+ * measured, so use a scratch database. The other options, like bulkUpload,
+ * come from cfg/spade.storage.PostgreSQL.config and are the same for both
+ * schemas.
+ *
+ * For each schema it prints the time to put all the elements and shut the
+ * storage down, the average time of an equality lookup on one annotation key
+ * through GetVertex, and the size of the tables with their indexes.
+ */
+public class AnnotationSchemaBenchmark
+{
+    private static final String URL_PREFIX = "jdbc:postgresql://localhost:5432/";
+    // Number of keys the annotations are drawn from. Every element has a few of them.
+    private static final int KEYS = 200;
+    private static final int LOOKUPS = 200;
+
+    public static void main(String[] args) throws Exception
+    {
+        int elementCount = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        String database = args.length > 1 ? args[1] : "spade_benchmark";
+        String user = args.length > 2 ? args[2] : "spade";
+        String password = args.length > 3 ? args[3] : "12345";
+        Logger.getLogger("").setLevel(Level.WARNING);
+
+        List<AbstractVertex> vertices = new ArrayList<>();
+        List<AbstractEdge> edges = new ArrayList<>();
+        generate(elementCount, vertices, edges);
+        String arguments = "databasePath=" + database + " databaseUsername=" + user +
+                " databasePassword=" + password;
+        System.out.println(String.format("%d vertices, %d edges, %d keys", vertices.size(), edges.size(), KEYS));
+        for(String schema : Arrays.asList("columns", "jsonb"))
+        {
+            dropTables(database, user, password);
+            PostgreSQL storage = new PostgreSQL();
+            if(!storage.initialize(arguments + " annotationSchema=" + schema))
+            {
+                System.err.println("Unable to initialize the storage on " + URL_PREFIX + database);
+                return;
+            }
+            long start = System.nanoTime();
+            for(AbstractVertex vertex : vertices)
+            {
+                storage.putVertex(vertex);
+            }
+            for(AbstractEdge edge : edges)
+            {
+                storage.putEdge(edge);
+            }
+            storage.shutdown();
+            long putTime = System.nanoTime() - start;
+
+            storage = new PostgreSQL();
+            storage.initialize(arguments + " annotationSchema=" + schema);
+            AbstractQuery.setCurrentStorage(storage);
+            double lookupMillis = lookup(vertices);
+            ResultSet result = storage.executeQuery("SELECT pg_total_relation_size('vertex') + " +
+                    "pg_total_relation_size('edge');");
+            result.next();
+            long size = result.getLong(1);
+            result.close();
+            storage.shutdown();
+            System.out.println(String.format("%s: put %d ms, lookup %.2f ms, %.1f MB", schema,
+                    putTime / 1000000, lookupMillis, size / (1024.0 * 1024.0)));
+        }
+    }
+
+    private static void dropTables(String database, String user, String password) throws Exception
+    {
+        Connection connection = DriverManager.getConnection(URL_PREFIX + database, user, password);
+        try
+        {
+            Statement statement = connection.createStatement();
+            statement.execute("DROP TABLE IF EXISTS vertex");
+            statement.execute("DROP TABLE IF EXISTS edge");
+            statement.close();
+        }
+        finally
+        {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return average time of a lookup of a random vertex by one of its sparse keys
+     */
+    private static double lookup(List<AbstractVertex> vertices)
+    {
+        Random random = new Random(3);
+        GetVertex getVertex = new GetVertex();
+        int mismatches = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++)
+        {
+            AbstractVertex vertex = vertices.get(random.nextInt(vertices.size()));
+            String key = null;
+            for(String annotationKey : vertex.getAnnotations().keySet())
+            {
+                if(annotationKey.startsWith("key"))
+                {
+                    key = annotationKey;
+                    break;
+                }
+            }
+            Map<String, List<String>> parameters = new HashMap<>();
+            parameters.put(key, Arrays.asList(AbstractQuery.OPERATORS.EQUALS, vertex.getAnnotation(key), null));
+            Set<AbstractVertex> found = getVertex.execute(parameters, null);
+            if(found == null || found.isEmpty())
+            {
+                mismatches++;
+            }
+        }
+        double millis = (System.nanoTime() - start) / 1e6 / LOOKUPS;
+        if(mismatches > 0)
+        {
+            System.out.println("MISMATCH: " + mismatches + " lookups found nothing");
+        }
+        return millis;
+    }
+
+    /**
+     * Every element has a type and three keys out of KEYS, most with values
+     * that are unique to it.
+     */
+    private static void generate(int elementCount, List<AbstractVertex> vertices, List<AbstractEdge> edges)
+    {
+        Random random = new Random(7);
+        for(int i = 0; i < elementCount; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("type", random.nextBoolean() ? "Process" : "Artifact");
+            for(int key = 0; key < 3; key++)
+            {
+                vertex.addAnnotation("key" + random.nextInt(KEYS), "value" + i + "." + key);
+            }
+            vertices.add(vertex);
+        }
+        for(int i = 0; i < elementCount; i++)
+        {
+            AbstractEdge edge = new Edge(vertices.get(random.nextInt(elementCount)),
+                    vertices.get(random.nextInt(elementCount)));
+            edge.addAnnotation("type", "Used");
+            for(int key = 0; key < 3; key++)
+            {
+                edge.addAnnotation("key" + random.nextInt(KEYS), "value" + i + "." + key);
+            }
+            edges.add(edge);
+        }
+    }
+}
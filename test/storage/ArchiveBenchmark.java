@@ -0,0 +1,335 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Vertex;
+import spade.storage.Archive;
+import spade.storage.TextFile;
+import spade.storage.archive.Condition;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Compares the size of the Archive storage with the TextFile storage and
+ * measures queries on it, on audit-like provenance.
+ *
+ * Usage: ArchiveBenchmark [events] [segment elements]
+ *
+ * Defaults to 500000 events and segments of 100000 elements. Every event is
+ * an edge from a process to a file or from a file to a process with an
+ * increasing time, and sometimes a new process or a new version of a file.
+ * The query results are compared with the elements that were stored.
+ */
+public class ArchiveBenchmark
+{
+    private static final int LOOKUPS = 1000;
+
+    public static void main(String[] args) throws Exception
+    {
+        int eventCount = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        int segmentElements = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        List<AbstractVertex> vertices = new ArrayList<>();
+        List<AbstractEdge> edges = new ArrayList<>();
+        generate(eventCount, vertices, edges);
+
+        File directory = Files.createTempDirectory("archive-benchmark").toFile();
+        try
+        {
+            File textFile = new File(directory, "provenance.txt");
+            TextFile text = new TextFile();
+            text.initialize(textFile.getAbsolutePath());
+            long start = System.nanoTime();
+            put(text, vertices, edges);
+            text.shutdown();
+            long textTime = System.nanoTime() - start;
+
+            File archiveDirectory = new File(directory, "archive");
+            Archive archive = new Archive();
+            archive.initialize(archiveDirectory.getAbsolutePath() + " segmentElements=" + segmentElements);
+            start = System.nanoTime();
+            put(archive, vertices, edges);
+            archive.shutdown();
+            long archiveTime = System.nanoTime() - start;
+
+            long archiveSize = 0;
+            File[] segments = archiveDirectory.listFiles();
+            for(File segment : segments)
+            {
+                archiveSize += segment.length();
+            }
+            System.out.println(String.format("%d vertices, %d edges", vertices.size(), edges.size()));
+            System.out.println(String.format("TextFile: %d bytes in %d ms", textFile.length(), textTime / 1000000));
+            System.out.println(String.format("Archive:  %d bytes in %d segments in %d ms, %.1fx smaller",
+                    archiveSize, segments.length, archiveTime / 1000000, textFile.length() / (double) archiveSize));
+
+            // queries on the archive as it is opened later
+            archive = new Archive();
+            archive.initialize(archiveDirectory.getAbsolutePath());
+            query(archive, vertices, edges);
+            archive.shutdown();
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    private static void put(spade.core.AbstractStorage storage, List<AbstractVertex> vertices,
+                            List<AbstractEdge> edges)
+    {
+        // each vertex goes right before the first edge that needs it
+        Set<AbstractVertex> added = new HashSet<>();
+        for(AbstractEdge edge : edges)
+        {
+            for(AbstractVertex vertex : Arrays.asList(edge.getChildVertex(), edge.getParentVertex()))
+            {
+                if(added.add(vertex))
+                {
+                    storage.putVertex(vertex);
+                }
+            }
+            storage.putEdge(edge);
+        }
+        // and the versions of files that were replaced before they were used
+        for(AbstractVertex vertex : vertices)
+        {
+            if(added.add(vertex))
+            {
+                storage.putVertex(vertex);
+            }
+        }
+    }
+
+    private static void query(Archive archive, List<AbstractVertex> vertices, List<AbstractEdge> edges)
+            throws Exception
+    {
+        // the queries take one condition per key, so the windows are open on one side
+        double first = Double.parseDouble(edges.get(0).getAnnotation("time"));
+        double last = Double.parseDouble(edges.get(edges.size() - 1).getAnnotation("time"));
+        String recent = String.format("%.3f", first + (last - first) * 0.99);
+        String early = String.format("%.3f", first + (last - first) * 0.01);
+        timeQuery(archive, edges, "edges after " + recent, condition("time", ">=", recent, null));
+        timeQuery(archive, edges, "edges before " + early, condition("time", "<=", early, null));
+        Map<String, List<String>> recentWrites = condition("time", ">=", recent, "and");
+        recentWrites.putAll(condition("operation", "=", "write", null));
+        timeQuery(archive, edges, "writes after " + recent, recentWrites);
+        timeQuery(archive, edges, "all writes", condition("operation", "=", "write", null));
+
+        Random random = new Random(3);
+        int mismatches = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++)
+        {
+            AbstractVertex vertex = vertices.get(random.nextInt(vertices.size()));
+            Map<String, List<String>> hash = new HashMap<>();
+            hash.put(PRIMARY_KEY, Arrays.asList("=", vertex.bigHashCode(), null));
+            Set<AbstractVertex> result = archive.findVertices(hash, null);
+            if(result.size() != 1 || !result.iterator().next().getAnnotations().equals(vertex.getAnnotations()))
+            {
+                mismatches++;
+            }
+        }
+        System.out.println(String.format("%d vertex lookups: %.2f ms each%s", LOOKUPS,
+                (System.nanoTime() - start) / 1e6 / LOOKUPS, mismatches == 0 ? "" : " MISMATCH " + mismatches));
+
+        Map<String, Integer> parentCounts = new HashMap<>();
+        for(AbstractEdge edge : edges)
+        {
+            String child = edge.getChildVertex().bigHashCode();
+            Integer count = parentCounts.get(child);
+            parentCounts.put(child, count == null ? 1 : count + 1);
+        }
+        mismatches = 0;
+        start = System.nanoTime();
+        for(int i = 0; i < LOOKUPS; i++)
+        {
+            String child = vertices.get(random.nextInt(vertices.size())).bigHashCode();
+            Graph parents = archive.getParents(child);
+            Integer count = parentCounts.get(child);
+            if(parents.edgeSet().size() != (count == null ? 0 : count))
+            {
+                mismatches++;
+            }
+        }
+        System.out.println(String.format("%d parent lookups: %.2f ms each%s", LOOKUPS,
+                (System.nanoTime() - start) / 1e6 / LOOKUPS, mismatches == 0 ? "" : " MISMATCH " + mismatches));
+    }
+
+    private static Map<String, List<String>> condition(String key, String operator, String value,
+                                                       String booleanOperator)
+    {
+        Map<String, List<String>> parameters = new HashMap<>();
+        parameters.put(key, Arrays.asList(operator, value, booleanOperator));
+        return parameters;
+    }
+
+    private static void timeQuery(Archive archive, List<AbstractEdge> edges, String description,
+                                  Map<String, List<String>> parameters) throws Exception
+    {
+        List<Condition> conditions = Condition.fromParameters(parameters);
+        int expected = 0;
+        for(AbstractEdge edge : edges)
+        {
+            boolean matches = true;
+            for(Condition condition : conditions)
+            {
+                matches &= condition.test(edge.getAnnotation(condition.getKey()));
+            }
+            if(matches)
+            {
+                expected++;
+            }
+        }
+        // the first run decodes the blocks the query needs
+        Set<AbstractEdge> found = null;
+        long time = Long.MAX_VALUE;
+        for(int round = 0; round < 2; round++)
+        {
+            long start = System.nanoTime();
+            found = archive.findEdges(parameters, null);
+            time = Math.min(time, System.nanoTime() - start);
+        }
+        System.out.println(String.format("%s: %d ms, %d edges%s", description, time / 1000000, found.size(),
+                found.size() == expected ? "" : " MISMATCH " + expected));
+    }
+
+    /**
+     * Audit-like provenance. Processes read and write a few files often and
+     * many files rarely.
+     */
+    private static void generate(int eventCount, List<AbstractVertex> vertices, List<AbstractEdge> edges)
+    {
+        Random random = new Random(7);
+        List<AbstractVertex> processes = new ArrayList<>();
+        List<AbstractVertex> files = new ArrayList<>();
+        Map<AbstractVertex, Integer> versions = new HashMap<>();
+        long time = 1522168553000L;
+        String[] operations = {"read", "write", "open", "close", "mmap", "load"};
+        for(int event = 0; event < eventCount; event++)
+        {
+            time += 1 + random.nextInt(20);
+            String eventTime = String.format("%d.%03d", time / 1000, time % 1000);
+            if(processes.isEmpty() || random.nextInt(50) == 0)
+            {
+                AbstractVertex process = new Vertex();
+                int pid = 1000 + processes.size();
+                process.addAnnotation("type", "Process");
+                process.addAnnotation("source", "syscall");
+                process.addAnnotation("pid", String.valueOf(pid));
+                process.addAnnotation("ppid", String.valueOf(pid - 1 - random.nextInt(Math.min(pid - 999, 10))));
+                process.addAnnotation("name", "proc" + random.nextInt(40));
+                process.addAnnotation("exe", "/usr/bin/proc" + random.nextInt(40));
+                process.addAnnotation("cwd", "/home/user" + random.nextInt(5));
+                process.addAnnotation("uid", String.valueOf(1000 + random.nextInt(3)));
+                process.addAnnotation("gid", String.valueOf(1000 + random.nextInt(3)));
+                process.addAnnotation("start time", eventTime);
+                if(!processes.isEmpty())
+                {
+                    AbstractEdge edge = new Edge(process, processes.get(random.nextInt(processes.size())));
+                    edge.addAnnotation("type", "WasTriggeredBy");
+                    edge.addAnnotation("operation", "fork");
+                    edge.addAnnotation("time", eventTime);
+                    edge.addAnnotation("event id", String.valueOf(event));
+                    edge.addAnnotation("source", "syscall");
+                    edges.add(edge);
+                    vertices.add(process);
+                    processes.add(process);
+                    continue;
+                }
+                vertices.add(process);
+                processes.add(process);
+            }
+            AbstractVertex process = processes.get(processes.size() - 1 - Math.min(processes.size() - 1,
+                    (int) Math.abs(random.nextGaussian() * 20)));
+            AbstractVertex file;
+            if(files.isEmpty() || random.nextInt(8) == 0)
+            {
+                file = new Vertex();
+                file.addAnnotation("type", "Artifact");
+                file.addAnnotation("subtype", "file");
+                file.addAnnotation("source", "syscall");
+                file.addAnnotation("path", "/home/user/dir" + random.nextInt(100) + "/file" + files.size());
+                file.addAnnotation("version", "0");
+                file.addAnnotation("epoch", "0");
+                vertices.add(file);
+                files.add(file);
+            }
+            else
+            {
+                // skewed towards the first files, like libraries
+                file = files.get((int) (files.size() * Math.pow(random.nextDouble(), 3)));
+            }
+            String operation = operations[random.nextInt(operations.length)];
+            AbstractEdge edge;
+            if(operation.equals("write"))
+            {
+                AbstractVertex newFile = new Vertex();
+                newFile.addAnnotations(file.getAnnotations());
+                int version = (versions.containsKey(file) ? versions.get(file) : 0) + 1;
+                newFile.addAnnotation("version", String.valueOf(version));
+                versions.put(newFile, version);
+                vertices.add(newFile);
+                files.add(newFile);
+                edge = new Edge(newFile, process);
+                edge.addAnnotation("type", "WasGeneratedBy");
+            }
+            else
+            {
+                edge = new Edge(process, file);
+                edge.addAnnotation("type", "Used");
+            }
+            edge.addAnnotation("operation", operation);
+            edge.addAnnotation("time", eventTime);
+            edge.addAnnotation("event id", String.valueOf(event));
+            edge.addAnnotation("source", "syscall");
+            if(operation.equals("read") || operation.equals("write"))
+            {
+                edge.addAnnotation("size", String.valueOf(random.nextInt(65536)));
+            }
+            edges.add(edge);
+        }
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,304 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Graph;
+import spade.core.Vertex;
+import spade.storage.Archive;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Tests that spade.storage.Archive answers queries the same way before and
+ * after the elements are written to segment files.
+ */
+public class ArchiveTest
+{
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<AbstractVertex> vertices = new ArrayList<>();
+    private final List<AbstractEdge> edges = new ArrayList<>();
+    private File directory;
+    private Archive archive;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        for(int i = 0; i < 40; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            vertex.addAnnotation("type", i % 4 == 0 ? "Process" : "Artifact");
+            vertex.addAnnotation("pid", String.valueOf(100 + i));
+            if(i % 5 != 0)
+            {
+                vertex.addAnnotation("path", "/tmp/file" + i);
+            }
+            vertices.add(vertex);
+        }
+        for(int i = 0; i < 120; i++)
+        {
+            AbstractEdge edge = new Edge(vertices.get((i * 7) % 40), vertices.get((i * 11 + 3) % 40));
+            edge.addAnnotation("type", i % 2 == 0 ? "Used" : "WasGeneratedBy");
+            edge.addAnnotation("time", String.format("%d.%03d", 1500000000 + i, i % 1000));
+            edges.add(edge);
+        }
+        directory = folder.newFolder("archive");
+        archive = open();
+        for(AbstractVertex vertex : vertices)
+        {
+            archive.putVertex(vertex);
+        }
+        for(AbstractEdge edge : edges)
+        {
+            archive.putEdge(edge);
+        }
+    }
+
+    @After
+    public void tearDown()
+    {
+        archive.shutdown();
+    }
+
+    private Archive open()
+    {
+        Archive opened = new Archive();
+        assertTrue(opened.initialize(directory.getAbsolutePath() + " segmentElements=1000000"));
+        return opened;
+    }
+
+    // Runs the checks on the open segment, then on the segment written from it
+    private void checkBeforeAndAfterSealing(Runnable check)
+    {
+        check.run();
+        archive.shutdown();
+        assertEquals(1, directory.list().length);
+        archive = open();
+        check.run();
+    }
+
+    @Test
+    public void findsVerticesByHash()
+    {
+        checkBeforeAndAfterSealing(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(AbstractVertex vertex : vertices)
+                {
+                    assertEquals(vertex.bigHashCode(), archive.getVertex(vertex.bigHashCode()).bigHashCode());
+                }
+                assertNull(archive.getVertex("0123456789abcdef0123456789abcdef"));
+            }
+        });
+    }
+
+    @Test
+    public void findsVerticesByAnnotations()
+    {
+        checkBeforeAndAfterSealing(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Map<String, List<String>> parameters = new HashMap<>();
+                parameters.put("type", Arrays.asList("=", "Process", "and"));
+                parameters.put("pid", Arrays.asList(">=", "120", null));
+                Set<String> expected = new HashSet<>();
+                for(AbstractVertex vertex : vertices)
+                {
+                    if(vertex.getAnnotation("type").equals("Process")
+                            && Integer.parseInt(vertex.getAnnotation("pid")) >= 120)
+                    {
+                        expected.add(vertex.bigHashCode());
+                    }
+                }
+                assertEquals(expected, vertexHashes(findVertices(parameters, null)));
+                assertEquals(2, findVertices(parameters, 2).size());
+
+                parameters = new HashMap<>();
+                parameters.put(PRIMARY_KEY, Arrays.asList("=", vertices.get(3).bigHashCode(), null));
+                assertEquals(Collections.singleton(vertices.get(3).bigHashCode()),
+                        vertexHashes(findVertices(parameters, null)));
+
+                // a vertex without the annotation does not match
+                parameters = new HashMap<>();
+                parameters.put("path", Arrays.asList("!=", "/tmp/file1", null));
+                assertEquals(31, findVertices(parameters, null).size());
+            }
+        });
+    }
+
+    @Test
+    public void findsEdgesByTimeAndEndPoint()
+    {
+        checkBeforeAndAfterSealing(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Map<String, List<String>> parameters = new HashMap<>();
+                parameters.put("time", Arrays.asList(">", "1500000100.050", null));
+                Set<String> expected = new HashSet<>();
+                for(AbstractEdge edge : edges)
+                {
+                    if(Double.parseDouble(edge.getAnnotation("time")) > 1500000100.050)
+                    {
+                        expected.add(edge.bigHashCode());
+                    }
+                }
+                assertEquals(expected, edgeHashes(findEdges(parameters)));
+
+                String child = vertices.get(7).bigHashCode();
+                String parent = vertices.get(14).bigHashCode();
+                parameters = new HashMap<>();
+                parameters.put(CHILD_VERTEX_KEY, Arrays.asList("=", child, "and"));
+                parameters.put(PARENT_VERTEX_KEY, Arrays.asList("=", parent, null));
+                expected = new HashSet<>();
+                for(AbstractEdge edge : edges)
+                {
+                    if(edge.getChildVertex().bigHashCode().equals(child)
+                            && edge.getParentVertex().bigHashCode().equals(parent))
+                    {
+                        expected.add(edge.bigHashCode());
+                    }
+                }
+                assertTrue(!expected.isEmpty());
+                assertEquals(expected, edgeHashes(findEdges(parameters)));
+            }
+        });
+    }
+
+    @Test
+    public void findsNeighbors()
+    {
+        checkBeforeAndAfterSealing(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for(AbstractVertex vertex : vertices)
+                {
+                    String hash = vertex.bigHashCode();
+                    Set<String> parents = new HashSet<>();
+                    Set<String> children = new HashSet<>();
+                    for(AbstractEdge edge : edges)
+                    {
+                        if(edge.getChildVertex().bigHashCode().equals(hash))
+                        {
+                            parents.add(edge.getParentVertex().bigHashCode());
+                        }
+                        if(edge.getParentVertex().bigHashCode().equals(hash))
+                        {
+                            children.add(edge.getChildVertex().bigHashCode());
+                        }
+                    }
+                    assertEquals(parents, vertexHashes(archive.getParents(hash).vertexSet()));
+                    assertEquals(children, vertexHashes(archive.getChildren(hash).vertexSet()));
+                }
+            }
+        });
+    }
+
+    @Test
+    public void keepsElementsAddedAfterQueries() throws Exception
+    {
+        Map<String, List<String>> parameters = new HashMap<>();
+        parameters.put("type", Arrays.asList("=", "Process", null));
+        int processes = findVertices(parameters, null).size();
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotation("type", "Process");
+        vertex.addAnnotation("pid", "1");
+        archive.putVertex(vertex);
+        AbstractEdge edge = new Edge(vertex, vertices.get(0));
+        edge.addAnnotation("type", "WasTriggeredBy");
+        archive.putEdge(edge);
+        assertEquals(processes + 1, findVertices(parameters, null).size());
+        Graph parents = archive.getParents(vertex.bigHashCode());
+        assertEquals(Collections.singleton(vertices.get(0).bigHashCode()), vertexHashes(parents.vertexSet()));
+    }
+
+    private Set<AbstractVertex> findVertices(Map<String, List<String>> parameters, Integer limit)
+    {
+        try
+        {
+            return archive.findVertices(parameters, limit);
+        }
+        catch(Exception ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private Set<AbstractEdge> findEdges(Map<String, List<String>> parameters)
+    {
+        try
+        {
+            return archive.findEdges(parameters, null);
+        }
+        catch(Exception ex)
+        {
+            throw new AssertionError(ex);
+        }
+    }
+
+    private static Set<String> vertexHashes(Collection<AbstractVertex> vertices)
+    {
+        Set<String> hashes = new HashSet<>();
+        for(AbstractVertex vertex : vertices)
+        {
+            hashes.add(vertex.bigHashCode());
+        }
+        return hashes;
+    }
+
+    private static Set<String> edgeHashes(Collection<AbstractEdge> edges)
+    {
+        Set<String> hashes = new HashSet<>();
+        for(AbstractEdge edge : edges)
+        {
+            hashes.add(edge.bigHashCode());
+        }
+        return hashes;
+    }
+}
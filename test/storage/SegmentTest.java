@@ -0,0 +1,431 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.archive.Condition;
+import spade.storage.archive.Segment;
+import spade.storage.archive.Segment.EdgeRecord;
+import spade.storage.archive.SegmentView;
+import spade.storage.archive.SegmentWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static spade.core.AbstractStorage.CHILD_VERTEX_KEY;
+import static spade.core.AbstractStorage.PARENT_VERTEX_KEY;
+import static spade.core.AbstractStorage.PRIMARY_KEY;
+
+/**
+ * Writes vertices and edges with spade.storage.archive.SegmentWriter and
+ * checks that the segment answers queries the same way from memory, after
+ * being read back and after its file is opened again.
+ */
+public class SegmentTest
+{
+    private static final String TIME_KEY = "time";
+    // numbers that either can not be stored as numbers or have different fraction digits
+    private static final String[] MIXED_VALUES = {"-0.5", "1.50", "1.5", "0", "-0", "007", "+3", "1e3", "12",
+            "-12.25", "abc", ""};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<AbstractVertex> vertices = new ArrayList<>();
+    private final List<AbstractEdge> edges = new ArrayList<>();
+
+    @Before
+    public void setUp()
+    {
+        for(int i = 0; i < 500; i++)
+        {
+            AbstractVertex vertex = new Vertex();
+            // same fraction digits and many distinct values, so kept as numbers
+            vertex.addAnnotation("pid", String.valueOf(100000 + i * 3));
+            // few distinct values, so kept in a dictionary
+            vertex.addAnnotation("type", i % 3 == 0 ? "Process" : "Artifact");
+            vertex.addAnnotation("value", MIXED_VALUES[i % MIXED_VALUES.length]);
+            // many distinct decimals, but with different fraction digits
+            vertex.addAnnotation("amount", i % 3 == 0 ? i + ".5" : i % 3 == 1 ? "-" + i + ".50" : String.valueOf(i));
+            if(i % 4 != 0)
+            {
+                vertex.addAnnotation("path", "/tmp/file" + (i % 50));
+            }
+            vertices.add(vertex);
+        }
+        for(int i = 0; i < 2000; i++)
+        {
+            AbstractEdge edge = new Edge(vertices.get((i * 7) % 500), vertices.get((i * 13 + 5) % 500));
+            edge.addAnnotation("type", i % 2 == 0 ? "Used" : "WasGeneratedBy");
+            if(i % 10 != 0)
+            {
+                edge.addAnnotation(TIME_KEY, String.format("%d.%03d", 1500000000 + i, (i * 37) % 1000));
+            }
+            edge.addAnnotation("size", String.valueOf(i % 17 - 8));
+            edges.add(edge);
+        }
+    }
+
+    private static SegmentWriter newWriter(List<AbstractVertex> vertices, List<AbstractEdge> edges)
+    {
+        SegmentWriter writer = new SegmentWriter(TIME_KEY, 0.0001);
+        for(AbstractVertex vertex : vertices)
+        {
+            writer.addVertex(vertex);
+        }
+        for(AbstractEdge edge : edges)
+        {
+            writer.addEdge(edge);
+        }
+        return writer;
+    }
+
+    private static byte[] toBytes(SegmentWriter writer) throws IOException
+    {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        writer.write(output, Deflater.BEST_SPEED);
+        return output.toByteArray();
+    }
+
+    private File toFile(SegmentWriter writer) throws IOException
+    {
+        File file = File.createTempFile(Segment.FILE_PREFIX, Segment.FILE_SUFFIX, folder.getRoot());
+        OutputStream output = new FileOutputStream(file);
+        try
+        {
+            writer.write(output, Deflater.DEFAULT_COMPRESSION);
+        }
+        finally
+        {
+            output.close();
+        }
+        return file;
+    }
+
+    // The writer, the segment read from its bytes and the segment opened from its file
+    private List<SegmentView> views() throws IOException
+    {
+        SegmentWriter writer = newWriter(vertices, edges);
+        Segment read = new Segment("bytes", ByteBuffer.wrap(toBytes(writer)));
+        Segment opened = Segment.open(toFile(writer));
+        return Arrays.<SegmentView>asList(writer, read, opened);
+    }
+
+    private static List<Condition> conditions(String... values)
+    {
+        List<Condition> conditions = new ArrayList<>();
+        for(int i = 0; i < values.length; i += 4)
+        {
+            conditions.add(new Condition(values[i], values[i + 1], values[i + 2], values[i + 3]));
+        }
+        return conditions;
+    }
+
+    // Tests the conditions one by one and combines them from left to right
+    private static boolean matches(String[] query, Map<String, String> annotations)
+    {
+        List<Condition> conditions = conditions(query);
+        boolean result = conditions.get(0).test(annotations.get(query[0]));
+        for(int i = 1; i < conditions.size(); i++)
+        {
+            boolean holds = conditions.get(i).test(annotations.get(query[i * 4]));
+            result = "or".equals(query[i * 4 - 1]) ? result || holds : result && holds;
+        }
+        return result;
+    }
+
+    private Set<Map<String, String>> expectedVertices(String... query)
+    {
+        Set<Map<String, String>> expected = new HashSet<>();
+        for(AbstractVertex vertex : vertices)
+        {
+            if(matches(query, vertex.getAnnotations()))
+            {
+                expected.add(vertex.getAnnotations());
+            }
+        }
+        return expected;
+    }
+
+    private Set<Map<String, String>> expectedEdges(String... query)
+    {
+        Set<Map<String, String>> expected = new HashSet<>();
+        for(AbstractEdge edge : edges)
+        {
+            if(matches(query, edge.getAnnotations()))
+            {
+                expected.add(edge.getAnnotations());
+            }
+        }
+        return expected;
+    }
+
+    private static Set<Map<String, String>> vertexAnnotations(List<AbstractVertex> vertices)
+    {
+        Set<Map<String, String>> annotations = new HashSet<>();
+        for(AbstractVertex vertex : vertices)
+        {
+            annotations.add(vertex.getAnnotations());
+        }
+        return annotations;
+    }
+
+    private static Set<Map<String, String>> edgeAnnotations(List<EdgeRecord> edges)
+    {
+        Set<Map<String, String>> annotations = new HashSet<>();
+        for(EdgeRecord edge : edges)
+        {
+            annotations.add(edge.getAnnotations());
+        }
+        return annotations;
+    }
+
+    @Test
+    public void keepsNumberAndDictionaryColumnValues() throws IOException
+    {
+        for(SegmentView view : views())
+        {
+            for(AbstractVertex vertex : vertices)
+            {
+                AbstractVertex found = view.getVertex(vertex.bigHashCode());
+                // mixed scale decimals like -0.5 and 1.50 come back as written
+                assertEquals(vertex.getAnnotations(), found.getAnnotations());
+                assertEquals(vertex.bigHashCode(), found.bigHashCode());
+            }
+            assertEquals(expectedEdges("type", "=", "Used", null),
+                    edgeAnnotations(view.findEdges(conditions("type", "=", "Used", null), Integer.MAX_VALUE)));
+            assertEquals(edges.size(), view.findEdges(new ArrayList<Condition>(), Integer.MAX_VALUE).size());
+        }
+    }
+
+    @Test
+    public void comparesNumbersInEveryColumnEncoding() throws IOException
+    {
+        checkVertexQueries(Arrays.asList(
+                new String[]{"pid", ">=", "100900", null},
+                new String[]{"pid", "<", "100010", null},
+                new String[]{"pid", "=", "100300", null},
+                new String[]{"value", ">", "0", null},
+                new String[]{"value", "<=", "1.5", null},
+                new String[]{"value", "=", "1.50", null},
+                new String[]{"value", "!=", "1.5", null},
+                new String[]{"value", "<", "-0.25", null},
+                new String[]{"amount", ">", "100.5", null},
+                new String[]{"amount", "<=", "-10.5", null},
+                new String[]{"type", "=", "Process", "and", "pid", "<=", "100150", null}));
+    }
+
+    private void checkVertexQueries(List<String[]> queries) throws IOException
+    {
+        for(SegmentView view : views())
+        {
+            for(String[] query : queries)
+            {
+                Set<Map<String, String>> expected = expectedVertices(query);
+                assertFalse(expected.isEmpty());
+                assertEquals(Arrays.toString(query), expected,
+                        vertexAnnotations(view.findVertices(conditions(query), Integer.MAX_VALUE)));
+            }
+        }
+    }
+
+    @Test
+    public void skipsRowsWithoutTheAnnotation() throws IOException
+    {
+        String[] query = {"path", "!=", "/tmp/file1", null};
+        Set<Map<String, String>> expected = expectedVertices(query);
+        for(SegmentView view : views())
+        {
+            List<AbstractVertex> found = view.findVertices(conditions(query), Integer.MAX_VALUE);
+            assertEquals(expected, vertexAnnotations(found));
+            for(AbstractVertex vertex : found)
+            {
+                assertTrue(vertex.getAnnotations().containsKey("path"));
+            }
+            // the annotation is absent rather than empty on the vertices without it
+            AbstractVertex withoutPath = view.getVertex(vertices.get(0).bigHashCode());
+            assertNull(withoutPath.getAnnotation("path"));
+            assertFalse(withoutPath.getAnnotations().containsKey("path"));
+        }
+    }
+
+    @Test
+    public void combinesConditionsWithOr() throws IOException
+    {
+        checkVertexQueries(Arrays.asList(
+                new String[]{"pid", "=", "100003", "or", "pid", "=", "100006", null},
+                new String[]{"path", "=", "/tmp/file3", "or", "value", "=", "-0.5", null},
+                new String[]{"type", "=", "Process", "or", "path", "=", "/tmp/file7", "and", "pid", ">", "100600",
+                        null}));
+        String[] edgeQuery = {"size", "=", "8", "or", TIME_KEY, "<", "1500000010", null};
+        for(SegmentView view : views())
+        {
+            assertEquals(expectedEdges(edgeQuery),
+                    edgeAnnotations(view.findEdges(conditions(edgeQuery), Integer.MAX_VALUE)));
+        }
+    }
+
+    @Test
+    public void prunesSegmentsOutsideTheTimeBounds() throws IOException
+    {
+        Segment segment = new Segment("bytes", ByteBuffer.wrap(toBytes(newWriter(vertices, edges))));
+        double[] range = segment.getTimeRange(true);
+        assertTrue(range[0] <= 1500000001.037 && range[0] > 1500000000);
+        assertTrue(range[1] >= 1500001999.0 && range[1] < 1500002000);
+        // the vertices have no time
+        assertTrue(Double.isNaN(segment.getTimeRange(false)[0]));
+
+        List<Condition> before = conditions(TIME_KEY, "<", "1500000000", null);
+        assertFalse(segment.overlaps(true, Condition.getBounds(before, TIME_KEY)));
+        assertTrue(segment.findEdges(before, Integer.MAX_VALUE).isEmpty());
+        List<Condition> after = conditions(TIME_KEY, ">=", "1500002000", null);
+        assertFalse(segment.overlaps(true, Condition.getBounds(after, TIME_KEY)));
+        String[] inside = {TIME_KEY, ">", "1500000100", "and", TIME_KEY, "<=", "1500000200.5", null};
+        assertTrue(segment.overlaps(true, Condition.getBounds(conditions(inside), TIME_KEY)));
+        assertEquals(expectedEdges(inside), edgeAnnotations(segment.findEdges(conditions(inside), Integer.MAX_VALUE)));
+        // or does not bound the time
+        assertNull(Condition.getBounds(conditions(TIME_KEY, "<", "0", "or", "type", "=", "Used", null), TIME_KEY));
+        assertTrue(segment.overlaps(true, null));
+    }
+
+    @Test
+    public void findsElementsWithHashesThatAreNotHex() throws IOException
+    {
+        List<AbstractVertex> named = new ArrayList<>();
+        for(int i = 0; i < 20; i++)
+        {
+            final String hash = "vertex:" + i;
+            AbstractVertex vertex = new Vertex()
+            {
+                @Override
+                public String bigHashCode()
+                {
+                    return hash;
+                }
+            };
+            vertex.addAnnotation("name", "v" + i);
+            named.add(vertex);
+        }
+        List<AbstractEdge> namedEdges = new ArrayList<>();
+        for(int i = 1; i < 20; i++)
+        {
+            AbstractEdge edge = new Edge(named.get(i), named.get(i / 2));
+            edge.addAnnotation("type", "WasTriggeredBy");
+            namedEdges.add(edge);
+        }
+        SegmentWriter writer = newWriter(named, namedEdges);
+        Segment segment = new Segment("bytes", ByteBuffer.wrap(toBytes(writer)));
+        for(SegmentView view : Arrays.<SegmentView>asList(writer, segment))
+        {
+            assertEquals("v7", view.getVertex("vertex:7").getAnnotation("name"));
+            assertNull(view.getVertex("vertex:20"));
+            assertEquals(1, view.findVertices(conditions(PRIMARY_KEY, "=", "vertex:12", null), 10).size());
+
+            List<EdgeRecord> children = view.getEdges(Collections.singleton("vertex:3"), false);
+            Set<String> childHashes = new HashSet<>();
+            for(EdgeRecord edge : children)
+            {
+                assertEquals("vertex:3", edge.getParentHash());
+                childHashes.add(edge.getChildHash());
+            }
+            assertEquals(new HashSet<>(Arrays.asList("vertex:6", "vertex:7")), childHashes);
+
+            List<EdgeRecord> parent = view.findEdges(conditions(CHILD_VERTEX_KEY, "=", "vertex:9", null), 10);
+            assertEquals(1, parent.size());
+            assertEquals("vertex:4", parent.get(0).getParentHash());
+        }
+    }
+
+    @Test
+    public void reopensSealedSegments() throws IOException
+    {
+        SegmentWriter writer = newWriter(vertices, edges);
+        File file = toFile(writer);
+        for(int i = 0; i < 2; i++)
+        {
+            Segment segment = Segment.open(file);
+            assertEquals(file.getName(), segment.getName());
+            assertEquals(vertices.size(), segment.getVertexCount());
+            assertEquals(edges.size(), segment.getEdgeCount());
+            assertEquals(file.length(), segment.getSize());
+            assertEquals(writer.getCreatedMillis(), segment.getCreatedMillis());
+            for(AbstractVertex vertex : vertices)
+            {
+                assertTrue(segment.mightContain(vertex.bigHashCode()));
+            }
+            AbstractVertex child = vertices.get(7);
+            Set<String> parents = new HashSet<>();
+            for(AbstractEdge edge : edges)
+            {
+                if(edge.getChildVertex().bigHashCode().equals(child.bigHashCode()))
+                {
+                    parents.add(edge.getParentVertex().bigHashCode());
+                }
+            }
+            Set<String> found = new HashSet<>();
+            for(EdgeRecord edge : segment.getEdges(Collections.singleton(child.bigHashCode()), true))
+            {
+                found.add(edge.getParentHash());
+            }
+            assertEquals(parents, found);
+            List<Condition> query = conditions(PARENT_VERTEX_KEY, "=", vertices.get(5).bigHashCode(), null);
+            for(EdgeRecord edge : segment.findEdges(query, Integer.MAX_VALUE))
+            {
+                assertEquals(vertices.get(5).bigHashCode(), edge.getParentHash());
+            }
+        }
+    }
+
+    @Test
+    public void rejectsIncompleteSegments() throws IOException
+    {
+        byte[] bytes = toBytes(newWriter(vertices, edges));
+        try
+        {
+            new Segment("cut", ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 10)));
+            fail("Opened a segment that was cut short");
+        }
+        catch(IOException ex)
+        {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,335 @@
+/*
+ --------------------------------------------------------------------------------
+ SPADE - Support for Provenance Auditing in Distributed Environments.
+ Copyright (C) 2017 SRI International
+ This program is free software: you can redistribute it and/or
+ modify it under the terms of the GNU General Public License as
+ published by the Free Software Foundation, either version 3 of the
+ License, or (at your option) any later version.
+ This program is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ General Public License for more details.
+ You should have received a copy of the GNU General Public License
+ along with this program. If not, see <http://www.gnu.org/licenses/>.
+ --------------------------------------------------------------------------------
+ */
+package storage;
+
+import spade.core.AbstractEdge;
+import spade.core.AbstractVertex;
+import spade.core.Edge;
+import spade.core.Vertex;
+import spade.storage.TextFile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Measures the TextFile storage against the writer it replaced and checks
+ * that its plain, gzip and rolled outputs hold the same text.
+ *
+ * Usage: TextFileBenchmark [elements] [roll bytes]
+ *
+ * Defaults to 1000000 elements, half vertices and half edges, with 4
+ * annotations each, and files rolled every 16 MB. The elements are generated
+ * again for every run from the same seed. The first run only generates and
+ * hashes them, so its time is the part of every other run that is not
+ * writing. The old writer builds each line with a new StringBuilder and
+ * writes it through an OutputStreamWriter in UTF-8, which is what the old
+ * FileWriter did with -Dfile.encoding=UTF-8.
+ */
+public class TextFileBenchmark
+{
+    private static final long SEED = 7;
+
+    private interface Sink
+    {
+        void vertex(AbstractVertex vertex) throws IOException;
+
+        void edge(AbstractEdge edge) throws IOException;
+
+        void close() throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int elementCount = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        long rollBytes = args.length > 1 ? Long.parseLong(args[1]) : 16 << 20;
+
+        File directory = Files.createTempDirectory("textfile-benchmark").toFile();
+        try
+        {
+            long hashTime = run(elementCount, new Sink()
+            {
+                @Override
+                public void vertex(AbstractVertex vertex)
+                {
+                    vertex.bigHashCode();
+                }
+
+                @Override
+                public void edge(AbstractEdge edge)
+                {
+                    edge.getChildVertex().bigHashCode();
+                    edge.getParentVertex().bigHashCode();
+                }
+
+                @Override
+                public void close()
+                {
+                }
+            });
+            System.out.println(String.format("%d elements. Generating and hashing only: %d ms", elementCount,
+                    hashTime / 1000000));
+
+            File oldFile = new File(directory, "old.txt");
+            long oldTime = run(elementCount, oldWriter(oldFile));
+            report("Old writer", oldTime, oldFile.length());
+
+            File plainFile = new File(directory, "plain.txt");
+            long plainTime = run(elementCount, textFile(plainFile.getAbsolutePath()));
+            report("TextFile", plainTime, plainFile.length());
+
+            File gzipFile = new File(directory, "gzip.txt.gz");
+            long gzipTime = run(elementCount, textFile(gzipFile.getAbsolutePath() + " compression=gzip"));
+            report("TextFile gzip", gzipTime, gzipFile.length());
+
+            File rolledFile = new File(directory, "rolled.txt");
+            long rolledTime = run(elementCount, textFile(rolledFile.getAbsolutePath() + " rollBytes=" + rollBytes));
+            report("TextFile rolled", rolledTime, rolledFile.length());
+
+            System.out.println("Plain output same as the old writer's: " +
+                    sameBytes(new FileInputStream(plainFile), new FileInputStream(oldFile)));
+            System.out.println(String.format("Gzip output decompresses to the plain output: %s, %.1fx smaller",
+                    sameBytes(new FileInputStream(plainFile), new GZIPInputStream(new FileInputStream(gzipFile))),
+                    plainFile.length() / (double) gzipFile.length()));
+            List<InputStream> rolledFiles = new ArrayList<>();
+            for(File file = rolledFile; file.exists();
+                file = new File(rolledFile.getPath() + "." + rolledFiles.size()))
+            {
+                rolledFiles.add(new FileInputStream(file));
+            }
+            System.out.println(String.format("%d rolled files hold the elements of the plain output: %s",
+                    rolledFiles.size(), sameElements(new FileInputStream(plainFile),
+                            new SequenceInputStream(Collections.enumeration(rolledFiles)))));
+        }
+        finally
+        {
+            delete(directory);
+        }
+    }
+
+    private static void report(String writer, long time, long bytes)
+    {
+        System.out.println(String.format("%s: %d ms, %d bytes", writer, time / 1000000, bytes));
+    }
+
+    private static Sink textFile(String arguments)
+    {
+        final TextFile storage = new TextFile();
+        if(!storage.initialize(arguments))
+        {
+            throw new IllegalStateException("Unable to initialize TextFile with " + arguments);
+        }
+        return new Sink()
+        {
+            @Override
+            public void vertex(AbstractVertex vertex)
+            {
+                storage.putVertex(vertex);
+            }
+
+            @Override
+            public void edge(AbstractEdge edge)
+            {
+                storage.putEdge(edge);
+            }
+
+            @Override
+            public void close()
+            {
+                storage.shutdown();
+            }
+        };
+    }
+
+    private static Sink oldWriter(File file) throws IOException
+    {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+        writer.write("[BEGIN]\n");
+        return new Sink()
+        {
+            @Override
+            public void vertex(AbstractVertex vertex) throws IOException
+            {
+                StringBuilder line = new StringBuilder();
+                line.append("VERTEX (" + vertex.bigHashCode() + "): {");
+                appendAnnotations(line, vertex.getAnnotations());
+                writer.write(line.toString());
+            }
+
+            @Override
+            public void edge(AbstractEdge edge) throws IOException
+            {
+                StringBuilder line = new StringBuilder();
+                line.append("EDGE (" + edge.getChildVertex().bigHashCode() + " -> " +
+                        edge.getParentVertex().bigHashCode() + "): {");
+                appendAnnotations(line, edge.getAnnotations());
+                writer.write(line.toString());
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                writer.write("[END]\n");
+                writer.close();
+            }
+        };
+    }
+
+    private static void appendAnnotations(StringBuilder line, Map<String, String> annotations)
+    {
+        for(Map.Entry<String, String> annotation : annotations.entrySet())
+        {
+            line.append(annotation.getKey());
+            line.append(":");
+            line.append(annotation.getValue());
+            line.append(",");
+        }
+        line.append("}\n");
+    }
+
+    /**
+     * Puts the same elements into the sink every time
+     *
+     * @return time from the first element until the sink is closed
+     */
+    private static long run(int elementCount, Sink sink) throws IOException
+    {
+        Random random = new Random(SEED);
+        long start = System.nanoTime();
+        for(int i = 0; i < elementCount; i++)
+        {
+            if(i % 2 == 0)
+            {
+                sink.vertex(vertex(random, i));
+            }
+            else
+            {
+                AbstractEdge edge = new Edge(vertex(random, i - 1), vertex(random, random.nextInt(i)));
+                edge.addAnnotation("type", "Used");
+                edge.addAnnotation("operation", random.nextBoolean() ? "read" : "write");
+                edge.addAnnotation("time", String.valueOf(1522168553000L + i));
+                edge.addAnnotation("size", String.valueOf(random.nextInt(65536)));
+                sink.edge(edge);
+            }
+        }
+        sink.close();
+        return System.nanoTime() - start;
+    }
+
+    private static AbstractVertex vertex(Random random, int id)
+    {
+        AbstractVertex vertex = new Vertex();
+        vertex.addAnnotation("type", "Artifact");
+        vertex.addAnnotation("path", "/home/user/dir" + (id % 100) + "/file" + id);
+        vertex.addAnnotation("version", String.valueOf(random.nextInt(4)));
+        vertex.addAnnotation("source", "syscall");
+        return vertex;
+    }
+
+    private static boolean sameBytes(InputStream first, InputStream second) throws IOException
+    {
+        InputStream one = new BufferedInputStream(first);
+        InputStream other = new BufferedInputStream(second);
+        try
+        {
+            int read;
+            do
+            {
+                read = one.read();
+                if(read != other.read())
+                {
+                    return false;
+                }
+            }
+            while(read != -1);
+            return true;
+        }
+        finally
+        {
+            one.close();
+            other.close();
+        }
+    }
+
+    /**
+     * @return true if both hold the same lines apart from the [BEGIN] and [END] lines
+     */
+    private static boolean sameElements(InputStream first, InputStream second) throws IOException
+    {
+        BufferedReader one = new BufferedReader(new InputStreamReader(first, StandardCharsets.UTF_8));
+        BufferedReader other = new BufferedReader(new InputStreamReader(second, StandardCharsets.UTF_8));
+        try
+        {
+            String line;
+            do
+            {
+                line = nextElement(one);
+                if(!Objects.equals(line, nextElement(other)))
+                {
+                    return false;
+                }
+            }
+            while(line != null);
+            return true;
+        }
+        finally
+        {
+            one.close();
+            other.close();
+        }
+    }
+
+    private static String nextElement(BufferedReader reader) throws IOException
+    {
+        String line = reader.readLine();
+        while(line != null && (line.equals("[BEGIN]") || line.equals("[END]")))
+        {
+            line = reader.readLine();
+        }
+        return line;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if(children != null)
+        {
+            for(File child : children)
+            {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}